@@ -25,6 +25,7 @@ import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import com.mentalresonance.dust.http.service.HttpService;
 import com.mentalresonance.dust.http.trait.HttpClientActor;
 import com.mentalresonance.dust.nlp.genericgpt.GenericGptAPIServiceActor;
+import com.mentalresonance.dust.nlp.lang.BpeTokenizer;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Request;
 
@@ -53,13 +54,37 @@ public class ChatGptAPIServiceActor extends GenericGptAPIServiceActor implements
 		return Props.create(ChatGptAPIServiceActor.class, proxyThrottler, key);
 	}
 
+	/**
+	 * Props with token budget checking
+	 * @param proxyThrottler nullable throttler
+	 * @param key API key
+	 * @param tokenizer of the model - see {@link BpeTokenizer#forModel(String)}
+	 * @param contextTokens context window of the model
+	 * @return Props
+	 */
+	public static Props props(ActorRef proxyThrottler, String key, BpeTokenizer tokenizer, Integer contextTokens) {
+		return Props.create(ChatGptAPIServiceActor.class, proxyThrottler, key, tokenizer, contextTokens);
+	}
+
 	/**
 	 * Constructor
 	 * @param throttler nullable throttler
 	 * @param key API key
 	 */
 	public ChatGptAPIServiceActor(ActorRef throttler, String key) {
-		super("https://api.openai.com/v1/chat/completions", throttler);
+		this(throttler, key, null, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param throttler nullable throttler
+	 * @param key API key
+	 * @param tokenizer nullable tokenizer of the model. If not null requests which cannot fit are failed
+	 *                  without being sent
+	 * @param contextTokens context window of the model
+	 */
+	public ChatGptAPIServiceActor(ActorRef throttler, String key, BpeTokenizer tokenizer, Integer contextTokens) {
+		super("https://api.openai.com/v1/chat/completions", throttler, tokenizer, contextTokens);
 		this.key = key;
 	}
 
@@ -75,6 +100,9 @@ public class ChatGptAPIServiceActor extends GenericGptAPIServiceActor implements
                 originalSender = sender;
                 originalRequest = msg;
 
+                if (null != tokenizer && ! withinBudget(msg, msg.chatPromptTokens(tokenizer)))
+                    return;
+
                 Map<String, Object> data = Map.of(
                         "model", msg.getModel(),
                         "messages", List.of(
@@ -0,0 +1,166 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index from embedding metadata to ids: per field, per value, an {@link IdBitmap} of the ids having that
+ * value. Values of a field are kept ordered so range filters are a union over a slice of the values. A
+ * {@link Filter} is evaluated against the index to the bitmap of ids it admits, which searches then use to
+ * restrict their scan or graph traversal.
+ * <br/>
+ * Metadata values are normalized: integral numbers to Long, other numbers to Double and Instants to epoch
+ * milliseconds (Long). Strings and Booleans are kept as is. Numbers of either kind compare numerically.
+ * <br/>
+ * Removal only drops the id from the set of all ids - value bitmaps may still contain it, so callers also
+ * exclude removed ids (as the indexes do anyway).
+ * <br/>
+ * Thread safe.
+ */
+public class AttributeIndex {
+
+	/**
+	 * Numbers numerically, otherwise naturally within a type, otherwise by type name
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	static final Comparator<Object> ORDER = (a, b) -> {
+		if (a instanceof Long x && b instanceof Long y)
+			return Long.compare(x, y);
+		if (a instanceof Number x && b instanceof Number y)
+			return Double.compare(x.doubleValue(), y.doubleValue());
+		if (a.getClass() == b.getClass())
+			return ((Comparable)a).compareTo(b);
+		return a.getClass().getName().compareTo(b.getClass().getName());
+	};
+
+	final Map<String, TreeMap<Object, IdBitmap>> fields = new HashMap<>();
+	final IdBitmap all = new IdBitmap();
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Index the metadata of an id
+	 * @param id of embedding
+	 * @param metadata its metadata - may be null
+	 */
+	public void add(int id, Map<String, Object> metadata) {
+		lock.writeLock().lock();
+		try {
+			all.add(id);
+			if (null != metadata) {
+				for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+					if (null != entry.getValue()) {
+						fields
+							.computeIfAbsent(entry.getKey(), field -> new TreeMap<>(ORDER))
+							.computeIfAbsent(normalize(entry.getValue()), value -> new IdBitmap())
+							.add(id);
+					}
+				}
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param id of removed embedding
+	 */
+	public void remove(int id) {
+		lock.writeLock().lock();
+		try {
+			all.remove(id);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param filter to evaluate
+	 * @return new bitmap of the (not removed) ids admitted by filter
+	 */
+	public IdBitmap evaluate(Filter filter) {
+		lock.readLock().lock();
+		try {
+			return filter.evaluate(this).and(all);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Caller holds the read lock
+	 * @return ids with field in [from, to] - either bound may be null for unbounded
+	 */
+	IdBitmap range(String field, Object from, Object to) {
+		TreeMap<Object, IdBitmap> values = fields.get(field);
+		IdBitmap result = new IdBitmap();
+
+		if (null != values) {
+			NavigableMap<Object, IdBitmap> slice = values;
+			if (null != from)
+				slice = slice.tailMap(normalize(from), true);
+			if (null != to)
+				slice = slice.headMap(normalize(to), true);
+			for (IdBitmap ids : slice.values()) {
+				result = result.or(ids);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Caller holds the read lock
+	 * @return ids with field equal to value - not to be modified
+	 */
+	IdBitmap equal(String field, Object value) {
+		TreeMap<Object, IdBitmap> values = fields.get(field);
+		IdBitmap ids = null != values ? values.get(normalize(value)) : null;
+		return null != ids ? ids : new IdBitmap();
+	}
+
+	/**
+	 * Normalize a metadata value
+	 * @param value String, Boolean, Number or Instant
+	 * @return normalized value
+	 */
+	public static Object normalize(Object value) {
+		return switch (value) {
+			case Long l -> l;
+			case Integer i -> (long)i;
+			case Short s -> (long)s;
+			case Byte b -> (long)b;
+			case Number n -> n.doubleValue();
+			case Instant instant -> instant.toEpochMilli();
+			case String s -> s;
+			case Boolean b -> b;
+			default -> throw new IllegalArgumentException("Unsupported metadata type %s".formatted(value.getClass().getName()));
+		};
+	}
+}
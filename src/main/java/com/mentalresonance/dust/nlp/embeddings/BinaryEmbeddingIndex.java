@@ -0,0 +1,272 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+
+/**
+ * Two stage index: a parallel Hamming scan of the whole corpus over sign-bit codes (see {@link BinaryQuantizer})
+ * picks a shortlist of rescoreFactor * k candidates, which are then rescored at full precision under the index's
+ * {@link SimilarityMetric}. The scan set is 1/32 of the float vectors.
+ * <br/>
+ * Full precision vectors come from a source set with {@link #setFullPrecision(IntFunction)} (e.g. an on-disk
+ * store) or, if constructed with keepFullPrecision, from a copy held by the index. With neither, results are
+ * ranked by Hamming distance alone and scores are the negated distance.
+ * <br/>
+ * Codes and full precision copies are held in pages of PAGE_ROWS rows, as {@link ExactEmbeddingIndex} holds its
+ * vectors, so the index is not bounded by the maximum array size.
+ * <br/>
+ * Filtered searches mask the scan with the ids the filter admits (see {@link AttributeIndex}).
+ * <br/>
+ * Thread safe: adds are exclusive, searches run concurrently.
+ */
+public class BinaryEmbeddingIndex implements EmbeddingIndex {
+
+	static final int PAGE_BITS = ExactEmbeddingIndex.PAGE_BITS, PAGE_ROWS = 1 << PAGE_BITS, PAGE_MASK = PAGE_ROWS - 1;
+
+	@Getter
+	final SimilarityMetric metric;
+	@Getter
+	final BinaryQuantizer quantizer;
+	/**
+	 * Shortlist size as a multiple of k
+	 */
+	@Getter
+	@Setter
+	volatile int rescoreFactor;
+	/**
+	 * Full precision vector by id, for rescoring
+	 */
+	@Setter
+	volatile IntFunction<float[]> fullPrecision = null;
+
+	final boolean keepFullPrecision;
+	final ForkJoinPool pool;
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	int dimension = 0, words = 0, size = 0, removed = 0;
+	long[][] codes = new long[0][];
+	float[][] originals = new float[0][];
+	float[] norms = new float[0];
+	final ArrayList<String> chunks = new ArrayList<>();
+	final ArrayList<Map<String, Object>> metadata = new ArrayList<>();
+	final BitSet deleted = new BitSet();
+	final AttributeIndex attributes = new AttributeIndex();
+
+	/**
+	 * Cosine index, sign quantized, shortlisting 10k and keeping full precision vectors
+	 */
+	public BinaryEmbeddingIndex() {
+		this(SimilarityMetric.COSINE, new BinaryQuantizer(), 10, true);
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to rescore
+	 * @param quantizer how to encode vectors
+	 * @param rescoreFactor shortlist size as a multiple of k
+	 * @param keepFullPrecision keep a full precision copy of each vector for rescoring
+	 */
+	public BinaryEmbeddingIndex(SimilarityMetric metric, BinaryQuantizer quantizer, int rescoreFactor, boolean keepFullPrecision) {
+		this(metric, quantizer, rescoreFactor, keepFullPrecision, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to rescore
+	 * @param quantizer how to encode vectors
+	 * @param rescoreFactor shortlist size as a multiple of k
+	 * @param keepFullPrecision keep a full precision copy of each vector for rescoring
+	 * @param pool to run parallel scans on
+	 */
+	public BinaryEmbeddingIndex(
+		SimilarityMetric metric, BinaryQuantizer quantizer, int rescoreFactor, boolean keepFullPrecision, ForkJoinPool pool
+	) {
+		this.metric = metric;
+		this.quantizer = quantizer;
+		this.rescoreFactor = Math.max(1, rescoreFactor);
+		this.keepFullPrecision = keepFullPrecision;
+		this.pool = pool;
+	}
+
+	@Override
+	public int add(Embedding embedding) {
+		float[] vector = embedding.getVector();
+
+		lock.writeLock().lock();
+		try {
+			if (dimension == 0) {
+				dimension = vector.length;
+				words = BinaryQuantizer.words(dimension);
+			}
+			else
+				checkDimension(vector);
+
+			if ((size & PAGE_MASK) == 0 && size >>> PAGE_BITS == codes.length) {
+				codes = Arrays.copyOf(codes, codes.length + 1);
+				codes[codes.length - 1] = new long[PAGE_ROWS * words];
+			}
+			if (keepFullPrecision && (size & PAGE_MASK) == 0 && size >>> PAGE_BITS == originals.length) {
+				originals = Arrays.copyOf(originals, originals.length + 1);
+				originals[originals.length - 1] = new float[PAGE_ROWS * dimension];
+			}
+			if (size == norms.length)
+				norms = Arrays.copyOf(norms, Math.max(16, 2 * size));
+			quantizer.encode(vector, codes[size >>> PAGE_BITS], (size & PAGE_MASK) * words);
+			if (keepFullPrecision)
+				System.arraycopy(vector, 0, originals[size >>> PAGE_BITS], (size & PAGE_MASK) * dimension, dimension);
+			norms[size] = embedding.norm();
+			chunks.add(embedding.getChunk());
+			metadata.add(embedding.getMetadata());
+			attributes.add(size, embedding.getMetadata());
+			return size++;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(int id) {
+		lock.writeLock().lock();
+		try {
+			if (id < 0 || id >= size || deleted.get(id))
+				return false;
+			deleted.set(id);
+			attributes.remove(id);
+			++removed;
+			return true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k) {
+		return search(new float[][] { query }, k).getFirst();
+	}
+
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k) {
+		return search(queries, k, (Filter)null);
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k, Filter filter) {
+		return search(new float[][] { query }, k, filter).getFirst();
+	}
+
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k, Filter filter) {
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+
+		lock.readLock().lock();
+		try {
+			BitSet allowed = null != filter ? attributes.evaluate(filter).toBitSet() : null;
+			IntFunction<float[]> source = keepFullPrecision ? this::original : fullPrecision;
+			long[] queryCodes = new long[queries.length * words];
+
+			for (int q = 0; q < queries.length; q++) {
+				checkDimension(queries[q]);
+				quantizer.encode(queries[q], queryCodes, q * words);
+			}
+			TopK[] shortlists = ScanTask.scan(
+				pool, queries.length, null != source ? k * rescoreFactor : k, removed > 0 ? deleted : null, allowed, size,
+				() -> (q, row) -> -BinaryQuantizer.hamming(queryCodes, q * words, codes[row >>> PAGE_BITS], (row & PAGE_MASK) * words, words)
+			);
+
+			for (int q = 0; q < queries.length; q++) {
+				results.add(null != source ? rescore(queries[q], shortlists[q], k, source) : shortlists[q].toMatches(chunks::get));
+			}
+			return results;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Embedding get(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= size || deleted.get(id))
+				return null;
+			IntFunction<float[]> source = keepFullPrecision ? this::original : fullPrecision;
+			if (null == source)
+				return null;
+			Embedding embedding = new Embedding(chunks.get(id), source.apply(id));
+			embedding.setMetadata(metadata.get(id));
+			return embedding;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() { return size - removed; }
+
+	@Override
+	public int dimension() { return dimension; }
+
+	/**
+	 * @return resident bytes used by the scan set
+	 */
+	public long scanBytes() {
+		return (long)size * words * Long.BYTES;
+	}
+
+	private List<EmbeddingMatch> rescore(float[] query, TopK shortlist, int k, IntFunction<float[]> source) {
+		float norm = (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(query, 0, query, 0, query.length));
+		TopK top = new TopK(k);
+
+		for (int i = 0; i < shortlist.size; i++) {
+			int id = shortlist.ids[i];
+			if (keepFullPrecision)
+				top.offer(id, metric.score(query, norm, originals[id >>> PAGE_BITS], (id & PAGE_MASK) * dimension, norms[id]));
+			else
+				top.offer(id, metric.score(query, norm, source.apply(id), 0, norms[id]));
+		}
+		return top.toMatches(chunks::get);
+	}
+
+	private float[] original(int id) {
+		int offset = (id & PAGE_MASK) * dimension;
+		return Arrays.copyOfRange(originals[id >>> PAGE_BITS], offset, offset + dimension);
+	}
+
+	private void checkDimension(float[] vector) {
+		if (dimension != 0 && vector.length != dimension) {
+			throw new IllegalArgumentException("Vector dimension %d does not match index dimension %d".formatted(vector.length, dimension));
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Sign-bit (1 bit per dimension) quantization packed into long[]. The distance between two codes is the Hamming
+ * distance - an xor and a popcount per 64 dimensions. Crude, but a 32x reduction on float[] and good enough to
+ * shortlist candidates for full precision rescoring.
+ * <br/>
+ * By default bits are the sign of each value. Embeddings whose dimensions are not centred on zero lose
+ * information that way, so a quantizer can instead be centred on the per-dimension mean of a sample.
+ */
+public class BinaryQuantizer implements Serializable {
+
+	/**
+	 * Per dimension threshold - null is 0
+	 */
+	final float[] centre;
+
+	/**
+	 * Quantize on the sign of each value
+	 */
+	public BinaryQuantizer() {
+		this(null);
+	}
+
+	BinaryQuantizer(float[] centre) {
+		this.centre = centre;
+	}
+
+	/**
+	 * Quantize relative to the per-dimension mean of a sample
+	 * @param sample representative embeddings
+	 * @return quantizer
+	 */
+	public static BinaryQuantizer centred(List<Embedding> sample) {
+		int dimension = sample.getFirst().dimension();
+		double[] sum = new double[dimension];
+
+		for (Embedding embedding : sample) {
+			float[] vector = embedding.getVector();
+			if (vector.length != dimension) {
+				throw new IllegalArgumentException("Sample vectors must all be of the same size.");
+			}
+			for (int i = 0; i < dimension; i++) {
+				sum[i] += vector[i];
+			}
+		}
+		float[] centre = new float[dimension];
+		for (int i = 0; i < dimension; i++) {
+			centre[i] = (float)(sum[i] / sample.size());
+		}
+		return new BinaryQuantizer(centre);
+	}
+
+	/**
+	 * @param dimension vector dimension
+	 * @return longs per code
+	 */
+	public static int words(int dimension) {
+		return (dimension + 63) >>> 6;
+	}
+
+	/**
+	 * @param vector to encode
+	 * @return the code
+	 */
+	public long[] encode(float[] vector) {
+		long[] code = new long[words(vector.length)];
+		encode(vector, code, 0);
+		return code;
+	}
+
+	/**
+	 * Encode into a contiguous array of codes
+	 * @param vector to encode
+	 * @param codes receives the code
+	 * @param offset where in codes
+	 */
+	public void encode(float[] vector, long[] codes, int offset) {
+		if (null != centre && centre.length != vector.length) {
+			throw new IllegalArgumentException("Vector dimension %d does not match quantizer dimension %d".formatted(vector.length, centre.length));
+		}
+		int words = words(vector.length);
+
+		for (int w = 0; w < words; w++) {
+			long bits = 0L;
+			for (int i = w << 6, end = Math.min(i + 64, vector.length), bit = 0; i < end; i++, bit++) {
+				if (vector[i] > (null != centre ? centre[i] : 0.0f))
+					bits |= 1L << bit;
+			}
+			codes[offset + w] = bits;
+		}
+	}
+
+	/**
+	 * @param a codes
+	 * @param aOffset start of code in a
+	 * @param b codes
+	 * @param bOffset start of code in b
+	 * @param words longs per code
+	 * @return number of differing bits
+	 */
+	public static int hamming(long[] a, int aOffset, long[] b, int bOffset, int words) {
+		int distance = 0;
+
+		for (int w = 0; w < words; w++) {
+			distance += Long.bitCount(a[aOffset + w] ^ b[bOffset + w]);
+		}
+		return distance;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Msg to embed a corpus of documents through one pipeline, so that requests carry chunks from across document
+ * boundaries and the embedding server stays busy. Each document is an {@link EmbeddingsRequestResponseMsg} - with
+ * text, file or stream, and optionally previous embeddings or streaming - which is sent back to the requester as
+ * soon as that document is complete. This message follows the last of them, with the final counts.
+ * <br/>
+ * Documents are taken off the message as they are opened for embedding, so it never holds on to documents which
+ * have been completed and replied to - when it comes back documents is empty.
+ */
+@Getter
+public class BulkEmbeddingsRequestResponseMsg implements Serializable {
+    /**
+     * The documents not yet taken for embedding
+     */
+    List<EmbeddingsRequestResponseMsg> documents = null;
+
+    /**
+     * Or a lazy source of them, consumed as documents are needed. Only meaningful within one JVM
+     */
+    transient Iterator<EmbeddingsRequestResponseMsg> stream = null;
+
+    /**
+     * Progress - documents completed
+     */
+    int completed = 0;
+
+    /**
+     * Progress - chunks embedded by the server
+     */
+    int embedded = 0;
+
+    /**
+     * Progress - chunks whose embedding was reused from the cache or the document's previous embeddings
+     */
+    int reused = 0;
+
+    /**
+     * Progress - chunks which could not be embedded
+     */
+    int failed = 0;
+
+    /**
+     * Constructor
+     * @param documents to embed
+     */
+    public BulkEmbeddingsRequestResponseMsg(List<EmbeddingsRequestResponseMsg> documents) {
+        this.documents = new LinkedList<>(documents);
+    }
+
+    /**
+     * Constructor
+     * @param stream of documents to embed, read as needed
+     */
+    public BulkEmbeddingsRequestResponseMsg(Iterator<EmbeddingsRequestResponseMsg> stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Bulk request from texts
+     * @param texts by docId
+     * @return the request
+     */
+    public static BulkEmbeddingsRequestResponseMsg ofTexts(Map<String, String> texts) {
+        List<EmbeddingsRequestResponseMsg> documents = new ArrayList<>(texts.size());
+        texts.forEach((docId, text) -> documents.add(new EmbeddingsRequestResponseMsg(text, docId)));
+        return new BulkEmbeddingsRequestResponseMsg(documents);
+    }
+
+    /**
+     * @return iterator over the documents, each removed from documents as it is taken
+     */
+    public Iterator<EmbeddingsRequestResponseMsg> iterator() {
+        if (null != stream)
+            return stream;
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() { return !documents.isEmpty(); }
+
+            @Override
+            public EmbeddingsRequestResponseMsg next() {
+                if (documents.isEmpty())
+                    throw new NoSuchElementException();
+                return documents.removeFirst();
+            }
+        };
+    }
+
+    /**
+     * Update the progress counts
+     * @param completed documents completed
+     * @param embedded chunks embedded
+     * @param reused chunks reused
+     * @param failed chunks failed
+     */
+    public void progress(int completed, int embedded, int reused, int failed) {
+        this.completed = completed;
+        this.embedded = embedded;
+        this.reused = reused;
+        this.failed = failed;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkEmbeddingsRequestResponseMsg: %d documents, %d chunks embedded, %d reused, %d failed."
+            .formatted(completed, embedded, reused, failed);
+    }
+}
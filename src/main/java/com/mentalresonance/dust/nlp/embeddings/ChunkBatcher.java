@@ -0,0 +1,396 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import com.mentalresonance.dust.nlp.lang.Chunker;
+import com.mentalresonance.dust.nlp.lang.MappedTextReader;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * The bookkeeping of the HF and OpenAI actors which embed whole documents - chunking documents, gathering chunks
+ * into batches, reusing known embeddings and reassembling responses in document order - kept apart from the actors
+ * so it can be exercised without an embedding server.
+ * <br/>
+ * Batches are taken with {@link #nextBatch()} and answered, in any order, with {@link #completed(ChunkTag, float[][])}.
+ * {@link #deliver()} then hands every embedding with no gap before it, and every document which is complete, to
+ * the replies consumer.
+ */
+@Slf4j
+public class ChunkBatcher {
+
+	final String api;
+	final int maxBatch, maxBatchBytes;
+	final EmbeddingCache cache;
+	@Getter
+	final NearDuplicateDetector duplicates;
+	/**
+	 * Content defined chunking if not null, else sentence chunking
+	 */
+	final ContentDefinedChunker chunker;
+	final Chunker sentenceChunker;
+	/**
+	 * Receives each {@link EmbeddingChunkMsg} of a streaming document and each document when complete
+	 */
+	final Consumer<Serializable> replies;
+	/**
+	 * Documents being chunked or awaiting embeddings by id, in the order they were opened. Only the last may
+	 * still have chunks to request
+	 */
+	final LinkedHashMap<Integer, Document> active = new LinkedHashMap<>();
+	int nextDocument = 0;
+	/**
+	 * Documents not yet opened
+	 */
+	Iterator<EmbeddingsRequestResponseMsg> documents = Collections.emptyIterator();
+	/**
+	 * A chunk which would have overflowed the byte budget of the previous batch starts the next one
+	 */
+	String carriedChunk = null;
+	/**
+	 * Progress
+	 */
+	@Getter
+	int completedDocuments = 0, embedded = 0, reused = 0, failed = 0;
+
+	/**
+	 * Constructor
+	 * @param api url of the embedding server - also the model part of cache keys
+	 * @param sentenceChunker chunks by sentences with overlap. Used if chunker is null
+	 * @param chunker nullable content defined chunker
+	 * @param maxBatch maximum number of chunks in one batch
+	 * @param maxBatchBytes maximum total UTF-8 size of the chunks in one batch, 0 for no limit
+	 * @param cache nullable cache
+	 * @param duplicates nullable near duplicate detector
+	 * @param replies receives chunk messages and completed documents
+	 */
+	public ChunkBatcher(
+		String api, Chunker sentenceChunker, ContentDefinedChunker chunker, int maxBatch, int maxBatchBytes,
+		EmbeddingCache cache, NearDuplicateDetector duplicates, Consumer<Serializable> replies
+	) {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be at least 1");
+		this.api = api;
+		this.sentenceChunker = sentenceChunker;
+		this.chunker = chunker;
+		this.maxBatch = maxBatch;
+		this.maxBatchBytes = maxBatchBytes;
+		this.cache = cache;
+		this.duplicates = duplicates;
+		this.replies = replies;
+	}
+
+	/**
+	 * Set the documents to embed, opened one after another as their predecessors' chunks are exhausted
+	 * @param documents to embed
+	 */
+	public void setDocuments(Iterator<EmbeddingsRequestResponseMsg> documents) {
+		this.documents = documents;
+	}
+
+	/**
+	 * Gather up to maxBatch chunks needing embedding within the byte budget, moving on to the next document as each
+	 * is exhausted. Chunks matching a previous embedding or in the cache go straight to completed.
+	 * @return the batch or null when every document is exhausted
+	 */
+	public ChunkTag nextBatch() {
+		List<String> batch = new ArrayList<>(maxBatch);
+		int[] sequences = new int[maxBatch], owners = new int[maxBatch];
+		int bytes = 0;
+		Document document;
+
+		while (batch.size() < maxBatch && null != (document = chunking())) {
+			String chunk = nextChunk(document);
+			if (null == chunk)
+				continue;
+			if (null == carriedChunk) {
+				Embedding known = null != document.previous && document.previous.containsKey(chunk) ?
+					document.previous.get(chunk).pollFirst() : null;
+				if (null == known && null != cache) {
+					float[] vector = cache.get(api, 0, chunk);
+					if (null != vector)
+						known = new Embedding(chunk, vector);
+				}
+				if (null == known && null != duplicates) {
+					float[] vector = duplicates.find(api, chunk);
+					if (null != vector)
+						known = new Embedding(chunk, vector);
+				}
+				if (null != known) {
+					document.completed.put(document.nextSequence++, known);
+					++reused;
+					continue;
+				}
+			}
+			carriedChunk = null;
+			int size = chunk.getBytes(StandardCharsets.UTF_8).length;
+			if (maxBatchBytes > 0 && !batch.isEmpty() && bytes + size > maxBatchBytes) {
+				carriedChunk = chunk;
+				break;
+			}
+			owners[batch.size()] = document.id;
+			sequences[batch.size()] = document.nextSequence++;
+			batch.add(chunk);
+			bytes += size;
+		}
+		return batch.isEmpty() ? null :
+			new ChunkTag(Arrays.copyOf(owners, batch.size()), Arrays.copyOf(sequences, batch.size()), batch);
+	}
+
+	/**
+	 * Record the embeddings of a batch, caching them. Nothing is delivered until {@link #deliver()}
+	 * @param tag the batch
+	 * @param vectors one per chunk in batch order, or null if the batch failed
+	 */
+	public void completed(ChunkTag tag, float[][] vectors) {
+		for (int i = 0; i < tag.chunks.size(); ++i) {
+			Embedding embedding = null;
+			if (null != vectors) {
+				String chunk = tag.chunks.get(i);
+				embedding = new Embedding(chunk, vectors[i]);
+				if (null != cache)
+					cache.put(api, 0, chunk, vectors[i]);
+				if (null != duplicates)
+					duplicates.add(api, chunk, vectors[i]);
+				++embedded;
+			}
+			else
+				++failed;
+			active.get(tag.documents[i]).completed.put(tag.sequences[i], embedding);
+		}
+	}
+
+	/**
+	 * Deliver every embedding with no gap before it and reply for each document which is then complete
+	 */
+	public void deliver() {
+		for (Iterator<Document> documents = active.values().iterator(); documents.hasNext(); ) {
+			Document document = documents.next();
+			deliver(document);
+			if (document.exhausted && document.nextToDeliver == document.nextSequence) {
+				EmbeddingsRequestResponseMsg msg = document.msg;
+				if (null != document.previous)
+					msg.setRetired(document.previous.values().stream().flatMap(Collection::stream).toList());
+				documents.remove();
+				++completedDocuments;
+				replies.accept(msg);
+			}
+		}
+	}
+
+	/**
+	 * Give up on the documents in progress - e.g. the server has stopped answering. Each chunk requested but not
+	 * answered is counted failed, as is the text of a document not yet chunked (as one chunk), then every open
+	 * document is replied to with what it has. Documents not yet opened are dropped
+	 */
+	public void abandon() {
+		for (Document document : active.values()) {
+			for (int sequence = document.nextToDeliver; sequence < document.nextSequence; ++sequence) {
+				if (!document.completed.containsKey(sequence)) {
+					document.completed.put(sequence, null);
+					++failed;
+				}
+			}
+			if (!document.exhausted) {
+				document.exhausted = true;
+				closeSource(document);
+				document.msg.setFailed(document.msg.getFailed() + 1);
+				++failed;
+			}
+		}
+		carriedChunk = null;
+		documents = Collections.emptyIterator();
+		deliver();
+	}
+
+	/**
+	 * Close the readers of any documents still being chunked
+	 */
+	public void close() {
+		active.values().forEach(this::closeSource);
+	}
+
+	/*
+	 * The document whose chunks are being requested - opening the next if the last is exhausted. Null when there
+	 * are no more documents
+	 */
+	private Document chunking() {
+		Document last = active.isEmpty() ? null : active.lastEntry().getValue();
+		if (null != last && !last.exhausted)
+			return last;
+		if (!documents.hasNext())
+			return null;
+
+		Document document = open(documents.next());
+		active.put(document.id, document);
+		return document;
+	}
+
+	private Document open(EmbeddingsRequestResponseMsg msg) {
+		Document document = new Document(nextDocument++, msg);
+
+		if (msg.isStreaming() && null == msg.getDocId())
+			msg.setDocId(UUID.randomUUID().toString());
+		if (null != msg.getPrevious()) {
+			document.previous = new HashMap<>();
+			for (Embedding embedding : msg.getPrevious())
+				document.previous.computeIfAbsent(embedding.getChunk(), c -> new ArrayDeque<>()).addLast(embedding);
+		}
+
+		String allText = msg.getText();
+		if (null == msg.getFile() && null == msg.getStream() && (allText == null || allText.isEmpty())) {
+			log.warn("{} received trivial text", api);
+			document.chunks = Collections.emptyIterator();
+		} else {
+			try {
+				document.chunks = chunks(document);
+			}
+			catch (IOException e) {
+				log.error("{} reading text: {}", api, e.getMessage());
+				document.chunks = Collections.emptyIterator();
+			}
+		}
+		return document;
+	}
+
+	/*
+	 * Chunk by sentences with a one sentence overlap between consecutive chunks, or content defined. A file or
+	 * stream is read as its chunks are consumed - except for content defined chunking which needs the whole text
+	 */
+	private Iterator<String> chunks(Document document) throws IOException {
+		EmbeddingsRequestResponseMsg msg = document.msg;
+		if (null == msg.getFile() && null == msg.getStream())
+			return null != chunker ? chunker.chunk(msg.getText()).iterator() : sentenceChunker.chunks(msg.getText());
+
+		document.source = null != msg.getFile() ?
+			new MappedTextReader(msg.getPath()) :
+			new InputStreamReader(msg.getStream(), StandardCharsets.UTF_8);
+		if (null == chunker)
+			return sentenceChunker.chunks(document.source);
+
+		StringWriter text = new StringWriter();
+		document.source.transferTo(text);
+		closeSource(document);
+		return chunker.chunk(text.toString()).iterator();
+	}
+
+	/*
+	 * The carried chunk or the document's next. Null (and the document marked exhausted) when its text is exhausted
+	 * or can't be read
+	 */
+	private String nextChunk(Document document) {
+		if (null != carriedChunk)
+			return carriedChunk;
+		try {
+			if (document.chunks.hasNext())
+				return document.chunks.next();
+		}
+		catch (UncheckedIOException e) {
+			log.error("{} reading text: {}", api, e.getMessage());
+		}
+		document.exhausted = true;
+		closeSource(document);
+		return null;
+	}
+
+	private void closeSource(Document document) {
+		if (null != document.source) {
+			try {
+				document.source.close();
+			}
+			catch (IOException e) {
+				log.warn("{} closing text: {}", api, e.getMessage());
+			}
+			document.source = null;
+		}
+	}
+
+	/*
+	 * Add every embedding of the document with no gap before it to the response - or send it on if streaming.
+	 * Failed chunks are counted in the response
+	 */
+	private void deliver(Document document) {
+		EmbeddingsRequestResponseMsg msg = document.msg;
+
+		while (document.completed.containsKey(document.nextToDeliver)) {
+			int sequence = document.nextToDeliver++;
+			Embedding next = document.completed.remove(sequence);
+			if (null == next) {
+				msg.setFailed(msg.getFailed() + 1);
+				continue;
+			}
+			if (msg.isStreaming()) {
+				replies.accept(new EmbeddingChunkMsg(msg.getDocId(), sequence, next));
+				msg.setStreamed(msg.getStreamed() + 1);
+			}
+			else
+				msg.getEmbeddings().add(next);
+		}
+	}
+
+	/*
+	 * A document being embedded. Each chunk has a sequence number. Responses (and cache hits) may arrive out of
+	 * order so they are parked in completed until every earlier chunk has been delivered. A failed chunk parks a null.
+	 */
+	static class Document {
+		final int id;
+		final EmbeddingsRequestResponseMsg msg;
+		/**
+		 * Chunks yet to be requested
+		 */
+		Iterator<String> chunks;
+		/**
+		 * Reader of a file or stream being chunked, closed once exhausted
+		 */
+		Reader source = null;
+		boolean exhausted = false;
+		/**
+		 * Previous embeddings of the text by chunk, not yet matched to a chunk of this version
+		 */
+		Map<String, Deque<Embedding>> previous = null;
+		int nextSequence = 0, nextToDeliver = 0;
+		Map<Integer, Embedding> completed = new HashMap<>();
+
+		Document(int id, EmbeddingsRequestResponseMsg msg) {
+			this.id = id;
+			this.msg = msg;
+		}
+	}
+
+	/**
+	 * Identifies the chunks of a batch - their documents and positions in them
+	 */
+	@Getter
+	public static class ChunkTag implements Serializable {
+		final int[] documents, sequences;
+		final List<String> chunks;
+
+		ChunkTag(int[] documents, int[] sequences, List<String> chunks) {
+			this.documents = documents;
+			this.sequences = sequences;
+			this.chunks = chunks;
+		}
+	}
+}
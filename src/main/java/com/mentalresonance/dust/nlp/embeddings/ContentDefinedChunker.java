@@ -0,0 +1,203 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import com.mentalresonance.dust.nlp.lang.SentenceSegmenter;
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Content defined chunking at sentence granularity. A chunk ends after a sentence when a hash of that sentence
+ * and the one before it hits 1 in divisor (subject to minChars), or when the next sentence would take it past
+ * maxChars. Boundaries therefore depend only on nearby content: an edit moves at most the boundaries around the
+ * edited sentences and the chunks either side re-synchronize, so unchanged text keeps its chunks (and their
+ * embeddings). Contrast the overlapping sentence chunker, where an edit shifts every later chunk.
+ * <br/>
+ * Chunks do not overlap - concatenated they are the original text. A sentence longer than maxChars is split
+ * into maxChars pieces.
+ * <br/>
+ * {@link #diff(List, List)} compares the chunks of a new version of a document with the embeddings of the
+ * previous version.
+ */
+@Getter
+public class ContentDefinedChunker implements Serializable {
+
+	final int maxChars, minChars, divisor;
+
+	/**
+	 * Chunker with minChars a quarter of maxChars and a boundary expected every 4 sentences
+	 * @param maxChars maximum chunk size
+	 */
+	public ContentDefinedChunker(int maxChars) {
+		this(maxChars, maxChars / 4, 4);
+	}
+
+	/**
+	 * Constructor
+	 * @param maxChars maximum chunk size
+	 * @param minChars no content defined boundary before a chunk is at least this long
+	 * @param divisor a sentence ends a chunk with probability 1/divisor
+	 */
+	public ContentDefinedChunker(int maxChars, int minChars, int divisor) {
+		if (maxChars < 1 || minChars > maxChars || divisor < 1)
+			throw new IllegalArgumentException("Need 0 < maxChars, minChars <= maxChars and 0 < divisor");
+		this.maxChars = maxChars;
+		this.minChars = minChars;
+		this.divisor = divisor;
+	}
+
+	/**
+	 * Chunk English text
+	 * @param text to chunk
+	 * @return chunks in document order
+	 */
+	public List<String> chunk(String text) {
+		return chunk(text, Locale.ENGLISH);
+	}
+
+	/**
+	 * Chunk text
+	 * @param text to chunk
+	 * @param locale of text
+	 * @return chunks in document order
+	 */
+	public List<String> chunk(String text, Locale locale) {
+		List<String> chunks = new ArrayList<>();
+		StringBuilder current = new StringBuilder();
+		long previous = 0;
+
+		for (String sentence : SentenceSegmenter.of(locale).sentences(text)) {
+			long hash = hash(sentence);
+			if (sentence.length() > maxChars) {
+				flush(current, chunks);
+				for (int i = 0; i < sentence.length(); i += maxChars)
+					chunks.add(sentence.substring(i, Math.min(i + maxChars, sentence.length())));
+			}
+			else {
+				if (current.length() + sentence.length() > maxChars)
+					flush(current, chunks);
+				current.append(sentence);
+				if (Long.remainderUnsigned(mix(previous * 31 + hash), divisor) == 0 && current.length() >= minChars)
+					flush(current, chunks);
+			}
+			previous = hash;
+		}
+		flush(current, chunks);
+		return chunks;
+	}
+
+	/**
+	 * Match chunks of a new version of a document against the embeddings of the previous version (by chunk
+	 * text - repeated chunks are matched one for one)
+	 * @param previous embeddings of the previous version
+	 * @param chunks of the new version
+	 * @return what can be reused, what needs embedding and what should be retired
+	 */
+	public static ChunkDiff diff(List<Embedding> previous, List<String> chunks) {
+		Map<String, Deque<Embedding>> byChunk = new HashMap<>();
+		Embedding[] reused = new Embedding[chunks.size()];
+		List<String> changed = new ArrayList<>();
+		List<Embedding> retired = new ArrayList<>();
+
+		for (Embedding embedding : previous)
+			byChunk.computeIfAbsent(embedding.getChunk(), c -> new ArrayDeque<>()).addLast(embedding);
+		for (int i = 0; i < reused.length; ++i) {
+			Deque<Embedding> candidates = byChunk.get(chunks.get(i));
+			reused[i] = null != candidates ? candidates.pollFirst() : null;
+			if (null == reused[i])
+				changed.add(chunks.get(i));
+		}
+		for (Embedding embedding : previous) {
+			Deque<Embedding> unmatched = byChunk.get(embedding.getChunk());
+			if (unmatched.remove(embedding))
+				retired.add(embedding);
+		}
+		return new ChunkDiff(chunks, reused, changed, retired);
+	}
+
+	private static void flush(StringBuilder current, List<String> chunks) {
+		if (! current.isEmpty()) {
+			chunks.add(current.toString());
+			current.setLength(0);
+		}
+	}
+
+	/*
+	 * FNV-1a of the sentence ignoring surrounding whitespace, so reflowing text does not move boundaries
+	 */
+	static long hash(String sentence) {
+		long hash = 0xcbf29ce484222325L;
+		int start = 0, end = sentence.length();
+
+		while (start < end && Character.isWhitespace(sentence.charAt(start)))
+			++start;
+		while (end > start && Character.isWhitespace(sentence.charAt(end - 1)))
+			--end;
+		for (int i = start; i < end; ++i) {
+			hash ^= sentence.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/*
+	 * Murmur3 finalizer
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Result of comparing a new version of a document's chunks with the embeddings of the previous version
+	 */
+	@Getter
+	public static class ChunkDiff implements Serializable {
+		/**
+		 * Chunks of the new version
+		 */
+		final List<String> chunks;
+		/**
+		 * reused[i] is the previous embedding of chunks[i], or null if chunks[i] needs embedding
+		 */
+		final Embedding[] reused;
+		/**
+		 * Chunks which need embedding, in document order
+		 */
+		final List<String> changed;
+		/**
+		 * Previous embeddings which no longer correspond to a chunk
+		 */
+		final List<Embedding> retired;
+
+		ChunkDiff(List<String> chunks, Embedding[] reused, List<String> changed, List<Embedding> retired) {
+			this.chunks = chunks;
+			this.reused = reused;
+			this.changed = changed;
+			this.retired = retired;
+		}
+	}
+}
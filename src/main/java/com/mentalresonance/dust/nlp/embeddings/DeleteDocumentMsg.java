@@ -0,0 +1,46 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+
+/**
+ * Msg to delete a document's embeddings from a {@link DurableEmbeddingStore}
+ */
+@Getter
+public class DeleteDocumentMsg implements Serializable {
+    /**
+     * Id of the document
+     */
+    String docId;
+
+    /**
+     * Constructor
+     * @param docId id of the document to delete
+     */
+    public DeleteDocumentMsg(String docId) {
+        this.docId = docId;
+    }
+
+    @Override
+    public String toString() { return "DeleteDocumentMsg: " + docId; }
+}
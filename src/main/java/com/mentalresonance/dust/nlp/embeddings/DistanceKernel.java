@@ -0,0 +1,93 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+/**
+ * The inner loops of the distance functions. Vectors are addressed as (array, offset) so the same kernel serves
+ * single float[] embeddings and rows of a contiguous matrix. See {@link EmbeddingDistance} for how the
+ * implementation is selected.
+ */
+interface DistanceKernel {
+
+	/**
+	 * @param a first array
+	 * @param aOffset start of vector in a
+	 * @param b second array
+	 * @param bOffset start of vector in b
+	 * @param length dimension
+	 * @return a . b
+	 */
+	float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	/**
+	 * @param a first array
+	 * @param aOffset start of vector in a
+	 * @param b second array
+	 * @param bOffset start of vector in b
+	 * @param length dimension
+	 * @return |a - b|^2
+	 */
+	float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	/**
+	 * One pass computation of a . b, |a|^2 and |b|^2
+	 * @param a first array
+	 * @param aOffset start of vector in a
+	 * @param b second array
+	 * @param bOffset start of vector in b
+	 * @param length dimension
+	 * @param result receives [a . b, |a|^2, |b|^2]
+	 */
+	void dotAndNorms(float[] a, int aOffset, float[] b, int bOffset, int length, float[] result);
+
+	/**
+	 * Dot product of a float vector with an int8 code vector
+	 * @param a float array
+	 * @param aOffset start of vector in a
+	 * @param codes int8 codes
+	 * @param codesOffset start of vector in codes
+	 * @param length dimension
+	 * @return sum of a[i] * codes[i]
+	 */
+	float dot(float[] a, int aOffset, byte[] codes, int codesOffset, int length);
+
+	/**
+	 * Dot product of a float vector with an fp16 (IEEE half precision) vector
+	 * @param a float array
+	 * @param aOffset start of vector in a
+	 * @param halves fp16 values as produced by Float.floatToFloat16
+	 * @param halvesOffset start of vector in halves
+	 * @param length dimension
+	 * @return sum of a[i] * halves[i]
+	 */
+	default float dot(float[] a, int aOffset, short[] halves, int halvesOffset, int length) {
+		float s0 = 0f, s1 = 0f;
+		int i = 0, bound = length & ~1;
+
+		for (; i < bound; i += 2) {
+			s0 += a[aOffset + i] * Float.float16ToFloat(halves[halvesOffset + i]);
+			s1 += a[aOffset + i + 1] * Float.float16ToFloat(halves[halvesOffset + i + 1]);
+		}
+		if (i < length) {
+			s0 += a[aOffset + i] * Float.float16ToFloat(halves[halvesOffset + i]);
+		}
+		return s0 + s1;
+	}
+}
@@ -0,0 +1,1041 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Durable, incrementally updated store of the embeddings of documents, kept in a directory. Documents are put
+ * (inserted or replaced) and deleted by id and searches see every change immediately.
+ * <br/>
+ * Changes are appended to a {@link WriteAheadLog} - which syncs in groups, so callers are never blocked by the
+ * disk and get a future which completes once the change is durable - and applied to an in-memory memtable.
+ * When the memtable holds memtableRows embeddings it is written in the background to an immutable segment: a
+ * {@link MappedEmbeddingStore} plus a sidecar (.doc) listing the row range of each document and the ids of
+ * documents deleted. If that fails the memtable is kept, with its log, and written with the next one. Once there
+ * are more than maxSegments segments the run of adjacent segments holding the fewest rows is merged into one,
+ * dropping replaced and deleted rows - so merges stay small and a row is rewritten a few times rather than on
+ * every merge. A MANIFEST, replaced atomically, lists the segments and the first log not yet folded into them.
+ * <br/>
+ * On open the segments are loaded in order (later documents and deletions overriding earlier ones) and the
+ * remaining logs replayed into the memtable.
+ * <br/>
+ * Embeddings keep their metadata, in the log and in segments, so searches may be filtered on it.
+ * <br/>
+ * Thread safe: changes are exclusive, searches run concurrently.
+ */
+@Slf4j
+public class DurableEmbeddingStore implements Closeable {
+
+	/**
+	 * Log record types - PUT is a put without metadata, as logged before metadata was kept
+	 */
+	static final byte PUT = 1, DELETE = 2, PUT_WITH_METADATA = 3;
+	static final int SIDECAR_MAGIC = 0x44555344;
+	/**
+	 * Rows copied at a time when merging
+	 */
+	static final int MERGE_BATCH = 1024;
+
+	@Getter
+	final Path directory;
+	@Getter
+	final SimilarityMetric metric;
+	@Getter
+	final MappedEmbeddingStore.Encoding encoding;
+	/**
+	 * Write the memtable to a segment once it holds this many embeddings
+	 */
+	@Getter
+	@Setter
+	volatile int memtableRows;
+	/**
+	 * Merge the segments once there are more than this many
+	 */
+	@Getter
+	@Setter
+	volatile int maxSegments;
+
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+	final ExecutorService compactor = Executors.newSingleThreadExecutor(
+		Thread.ofPlatform().daemon().name("embedding-store-compactor").factory()
+	);
+
+	/*
+	 * Latest version of each document is in memtable, else in flushing (being written to a segment), else in
+	 * locations. A null memtable entry is a deletion.
+	 */
+	LinkedHashMap<String, List<Embedding>> memtable = new LinkedHashMap<>();
+	LinkedHashMap<String, List<Embedding>> flushing = null;
+	final Map<String, Location> locations = new HashMap<>();
+	final List<Segment> segments = new ArrayList<>();
+
+	WriteAheadLog wal;
+	int walGeneration, manifestGeneration, nextSegment = 0, dimension = 0, memtableSize = 0, live = 0;
+
+	/**
+	 * Open (creating if necessary) a cosine, float32 store, with 64K row memtables and at most 8 segments
+	 * @param directory holding the store
+	 * @return the store
+	 * @throws IOException on failure
+	 */
+	public static DurableEmbeddingStore open(Path directory) throws IOException {
+		return open(directory, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 1 << 16, 8);
+	}
+
+	/**
+	 * Open (creating if necessary) a store
+	 * @param directory holding the store
+	 * @param metric how to score searches
+	 * @param encoding of vectors in segments
+	 * @param memtableRows write the memtable to a segment once it holds this many embeddings
+	 * @param maxSegments merge the segments once there are more than this many
+	 * @return the store
+	 * @throws IOException on failure
+	 */
+	public static DurableEmbeddingStore open(
+		Path directory, SimilarityMetric metric, MappedEmbeddingStore.Encoding encoding, int memtableRows, int maxSegments
+	) throws IOException {
+		return new DurableEmbeddingStore(directory, metric, encoding, memtableRows, maxSegments);
+	}
+
+	DurableEmbeddingStore(
+		Path directory, SimilarityMetric metric, MappedEmbeddingStore.Encoding encoding, int memtableRows, int maxSegments
+	) throws IOException {
+		this.directory = directory;
+		this.metric = metric;
+		this.encoding = encoding;
+		this.memtableRows = memtableRows;
+		this.maxSegments = maxSegments;
+
+		Files.createDirectories(directory);
+		recover();
+	}
+
+	/**
+	 * Insert or replace a document
+	 * @param docId id of the document
+	 * @param embeddings its embeddings
+	 * @return completes when the change is durable
+	 */
+	public CompletableFuture<Void> put(String docId, List<Embedding> embeddings) {
+		byte[] record = encodePut(docId, embeddings);
+
+		lock.writeLock().lock();
+		try {
+			for (Embedding embedding : embeddings) {
+				if (dimension == 0)
+					dimension = embedding.dimension();
+				else if (embedding.dimension() != dimension) {
+					throw new IllegalArgumentException("Vector dimension %d does not match store dimension %d".formatted(embedding.dimension(), dimension));
+				}
+			}
+			CompletableFuture<Void> durable = wal.append(record);
+			applyPut(docId, List.copyOf(embeddings));
+			maybeFlush();
+			return durable;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Delete a document
+	 * @param docId id of the document
+	 * @return completes when the change is durable
+	 */
+	public CompletableFuture<Void> delete(String docId) {
+		byte[] record = encodeDelete(docId);
+
+		lock.writeLock().lock();
+		try {
+			CompletableFuture<Void> durable = wal.append(record);
+			applyDelete(docId);
+			return durable;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param docId id of the document
+	 * @return its embeddings or null if it is not in the store
+	 */
+	public List<Embedding> get(String docId) {
+		lock.readLock().lock();
+		try {
+			if (memtable.containsKey(docId))
+				return memtable.get(docId);
+			if (null != flushing && flushing.containsKey(docId))
+				return flushing.get(docId);
+			Location location = locations.get(docId);
+			if (null == location)
+				return null;
+			List<Embedding> embeddings = new ArrayList<>(location.count);
+			for (int row = location.first; row < location.first + location.count; row++) {
+				embeddings.add(location.segment.store.get(row));
+			}
+			return embeddings;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * k nearest neighbours of query. Each match carries its docId and, as its id, its position in the document.
+	 * @param query the query vector
+	 * @param k number of neighbours
+	 * @return up to k matches, best first
+	 */
+	public List<EmbeddingMatch> search(float[] query, int k) {
+		return search(query, k, null);
+	}
+
+	/**
+	 * k nearest neighbours of query among the embeddings whose metadata satisfies filter
+	 * @param query the query vector
+	 * @param k number of neighbours
+	 * @param filter on metadata - null for none
+	 * @return up to k matches, best first
+	 */
+	public List<EmbeddingMatch> search(float[] query, int k, Filter filter) {
+		return search(new float[][] { query }, k, filter).getFirst();
+	}
+
+	/**
+	 * k nearest neighbours of each of a batch of queries
+	 * @param queries the queries
+	 * @param k number of neighbours
+	 * @return per query up to k matches, best first
+	 */
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k) {
+		return search(queries, k, null);
+	}
+
+	/**
+	 * k nearest neighbours of each of a batch of queries among the embeddings whose metadata satisfies filter
+	 * @param queries the queries
+	 * @param k number of neighbours
+	 * @param filter on metadata - null for none
+	 * @return per query up to k matches, best first
+	 */
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k, Filter filter) {
+		List<List<EmbeddingMatch>> candidates = new ArrayList<>(queries.length);
+		float[] queryNorms = EmbeddingDistance.norms(queries);
+
+		for (int q = 0; q < queries.length; q++) {
+			candidates.add(new ArrayList<>());
+		}
+		lock.readLock().lock();
+		try {
+			for (Segment segment : segments) {
+				TopK[] tops = segment.store.search(queries, k, segment.deleted, filter);
+				for (int q = 0; q < queries.length; q++) {
+					TopK top = tops[q];
+					for (int i = 0; i < top.size; i++) {
+						int row = top.ids[i], doc = segment.docOf(row);
+						candidates.get(q).add(new EmbeddingMatch(
+							segment.docIds[doc], row - segment.firsts[doc], top.scores[i], segment.store.chunkAt(row)
+						));
+					}
+				}
+			}
+			scan(memtable, null, queries, queryNorms, k, filter, candidates);
+			if (null != flushing)
+				scan(flushing, memtable, queries, queryNorms, k, filter, candidates);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+		for (List<EmbeddingMatch> matches : candidates) {
+			matches.sort(Comparator.comparing(EmbeddingMatch::getScore).reversed());
+			results.add(new ArrayList<>(matches.subList(0, Math.min(k, matches.size()))));
+		}
+		return results;
+	}
+
+	/**
+	 * @return number of embeddings in the store
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return live;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return dimension of the vectors in the store, or 0 if nothing has been added yet
+	 */
+	public int dimension() { return dimension; }
+
+	/**
+	 * @return number of immutable segments
+	 */
+	public int segmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Write the memtable to a segment now (merging segments if there are then too many)
+	 * @return completes when done
+	 */
+	public Future<?> compact() {
+		lock.writeLock().lock();
+		try {
+			if (null == flushing && ! memtable.isEmpty())
+				rotate();
+			return compactor.submit(() -> {});
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Wait for background compaction and durability of all changes then close. Changes not yet in a segment are
+	 * recovered from the log on the next open.
+	 */
+	@Override
+	public void close() throws IOException {
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(1, TimeUnit.HOURS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lock.writeLock().lock();
+		try {
+			wal.close();
+			for (Segment segment : segments) {
+				segment.store.close();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void applyPut(String docId, List<Embedding> embeddings) {
+		unlink(docId);
+		memtable.put(docId, embeddings);
+		memtableSize += embeddings.size();
+		live += embeddings.size();
+	}
+
+	private void applyDelete(String docId) {
+		unlink(docId);
+		memtable.put(docId, null);
+	}
+
+	/**
+	 * Account for the current version of a document being superseded
+	 */
+	private void unlink(String docId) {
+		if (memtable.containsKey(docId)) {
+			List<Embedding> current = memtable.get(docId);
+			if (null != current) {
+				memtableSize -= current.size();
+				live -= current.size();
+			}
+		}
+		else if (null != flushing && flushing.containsKey(docId)) {
+			List<Embedding> current = flushing.get(docId);
+			if (null != current)
+				live -= current.size();
+		}
+		else {
+			Location location = locations.remove(docId);
+			if (null != location) {
+				location.delete();
+				live -= location.count;
+			}
+		}
+	}
+
+	/**
+	 * Add the best k rows of docs - skipping deletions, documents superseded in newer and, given a filter, rows
+	 * whose metadata it does not admit - to the candidates of each query
+	 */
+	private void scan(
+		Map<String, List<Embedding>> docs, Map<String, List<Embedding>> newer, float[][] queries, float[] queryNorms, int k,
+		Filter filter, List<List<EmbeddingMatch>> candidates
+	) {
+		TopK[] tops = new TopK[queries.length];
+		List<String> docIds = new ArrayList<>();
+		List<List<Embedding>> contents = new ArrayList<>();
+		AttributeIndex attributes = null == filter ? null : new AttributeIndex();
+		int[] firsts = new int[16];
+		int row = 0;
+
+		for (int q = 0; q < queries.length; q++) {
+			tops[q] = new TopK(k);
+		}
+		for (Map.Entry<String, List<Embedding>> entry : docs.entrySet()) {
+			List<Embedding> embeddings = entry.getValue();
+			if (null == embeddings || embeddings.isEmpty() || (null != newer && newer.containsKey(entry.getKey())))
+				continue;
+			if (docIds.size() == firsts.length)
+				firsts = Arrays.copyOf(firsts, 2 * firsts.length);
+			firsts[docIds.size()] = row;
+			docIds.add(entry.getKey());
+			contents.add(embeddings);
+			for (Embedding embedding : embeddings) {
+				if (null != attributes)
+					attributes.add(row, embedding.getMetadata());
+				++row;
+			}
+		}
+		BitSet allowed = null == attributes ? null : attributes.evaluate(filter).toBitSet();
+
+		row = 0;
+		for (List<Embedding> embeddings : contents) {
+			for (Embedding embedding : embeddings) {
+				if (null == allowed || allowed.get(row)) {
+					for (int q = 0; q < queries.length; q++) {
+						float score = metric.score(queries[q], queryNorms[q], embedding.getVector(), 0, embedding.norm());
+						if (score > tops[q].threshold())
+							tops[q].offer(row, score);
+					}
+				}
+				++row;
+			}
+		}
+		for (int q = 0; q < queries.length; q++) {
+			TopK top = tops[q];
+			for (int i = 0; i < top.size; i++) {
+				int doc = docOf(firsts, docIds.size(), top.ids[i]), position = top.ids[i] - firsts[doc];
+				candidates.get(q).add(new EmbeddingMatch(
+					docIds.get(doc), position, top.scores[i], contents.get(doc).get(position).getChunk()
+				));
+			}
+		}
+	}
+
+	/**
+	 * @param firsts first row of each document, ascending
+	 * @param docs number of documents
+	 * @param row a row
+	 * @return index of the document containing row
+	 */
+	static int docOf(int[] firsts, int docs, int row) {
+		int index = Arrays.binarySearch(firsts, 0, docs, row);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	private void maybeFlush() {
+		if (memtableSize >= memtableRows && null == flushing && ! compactor.isShutdown())
+			rotate();
+	}
+
+	/**
+	 * Freeze the memtable, start a new log and write the frozen memtable to a segment in the background. Caller
+	 * holds the write lock.
+	 */
+	private void rotate() {
+		try {
+			LinkedHashMap<String, List<Embedding>> frozen = memtable;
+			WriteAheadLog frozenLog = wal;
+			String name = "segment-%06d".formatted(nextSegment++);
+
+			flushing = frozen;
+			memtable = new LinkedHashMap<>();
+			memtableSize = 0;
+			wal = new WriteAheadLog(walPath(++walGeneration));
+			int generation = walGeneration;
+
+			compactor.submit(() -> flush(name, frozen, frozenLog, generation));
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void flush(String name, LinkedHashMap<String, List<Embedding>> frozen, WriteAheadLog frozenLog, int generation) {
+		Segment segment;
+
+		try {
+			frozenLog.close();
+			segment = writeSegment(name, frozen);
+		}
+		catch (Exception e) {
+			log.error("{}: flushing {} failed - its changes stay in the memtable: {}", directory, name, e.getMessage());
+			restore(frozen);
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			segments.add(segment);
+			for (int doc = 0; doc < segment.docIds.length; doc++) {
+				String docId = segment.docIds[doc];
+				Location location = new Location(segment, segment.firsts[doc], segment.counts[doc]);
+				if (memtable.containsKey(docId))
+					location.delete();
+				else
+					locations.put(docId, location);
+			}
+			flushing = null;
+			maybeFlush();
+			writeManifest(generation);
+		}
+		catch (IOException e) {
+			// The segment is in use and its changes are still in the logs the manifest points at
+			log.error("{}: writing the manifest after flushing {} failed: {}", directory, name, e.getMessage());
+			return;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		try {
+			deleteLogsBefore(generation);
+		}
+		catch (IOException e) {
+			log.warn("{}: deleting logs before {} failed: {}", directory, generation, e.getMessage());
+		}
+		if (segments.size() > maxSegments) {
+			try {
+				merge();
+			}
+			catch (Exception e) {
+				log.error("{}: merging segments failed: {}", directory, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Put back a memtable whose segment could not be written, beneath the current memtable, so its changes stay
+	 * visible and are written with the next flush. Its log is kept until then.
+	 */
+	private void restore(LinkedHashMap<String, List<Embedding>> frozen) {
+		lock.writeLock().lock();
+		try {
+			LinkedHashMap<String, List<Embedding>> restored = new LinkedHashMap<>(frozen);
+			restored.keySet().removeAll(memtable.keySet());
+			restored.putAll(memtable);
+			memtable = restored;
+			memtableSize = restored.values().stream().filter(Objects::nonNull).mapToInt(List::size).sum();
+			flushing = null;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Merge the run of adjacent segments holding the fewest live rows into one with just their live documents,
+	 * copying a batch of rows at a time. The merged segment takes the run's place so the order in which
+	 * segments override each other on recovery is kept, and carries the run's deletions of documents in older
+	 * segments. Runs on the compactor so no segments are added meanwhile, but documents in them may be replaced
+	 * or deleted.
+	 */
+	private void merge() throws IOException {
+		List<Segment> merging;
+		Map<String, Location> snapshot = new HashMap<>();
+		Set<String> older = new HashSet<>();
+		String name;
+
+		lock.readLock().lock();
+		try {
+			int width = Math.min(segments.size(), Math.max(2, maxSegments / 2 + 1)), start = 0;
+			long fewest = Long.MAX_VALUE;
+
+			for (int i = 0; i + width <= segments.size(); i++) {
+				long rows = 0;
+				for (Segment segment : segments.subList(i, i + width)) {
+					rows += segment.store.size() - segment.deleted.cardinality();
+				}
+				if (rows < fewest) {
+					fewest = rows;
+					start = i;
+				}
+			}
+			merging = List.copyOf(segments.subList(start, start + width));
+			for (Segment segment : segments.subList(0, start)) {
+				older.addAll(Arrays.asList(segment.docIds));
+			}
+			for (Map.Entry<String, Location> entry : locations.entrySet()) {
+				if (merging.contains(entry.getValue().segment))
+					snapshot.put(entry.getKey(), entry.getValue());
+			}
+			name = "segment-%06d".formatted(nextSegment++);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		SegmentWriter writer = new SegmentWriter(directory.resolve(name), encoding, metric);
+		Segment merged;
+		try {
+			for (Segment segment : merging) {
+				for (int doc = 0; doc < segment.docIds.length; doc++) {
+					Location location = snapshot.get(segment.docIds[doc]);
+					if (null != location && location.segment == segment)
+						writer.copy(segment.docIds[doc], location);
+				}
+				for (String tombstone : segment.tombstones) {
+					if (older.contains(tombstone) && ! snapshot.containsKey(tombstone))
+						writer.tombstone(tombstone);
+				}
+			}
+			merged = writer.finish();
+		}
+		catch (IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+
+		lock.writeLock().lock();
+		try {
+			for (int doc = 0; doc < merged.docIds.length; doc++) {
+				String docId = merged.docIds[doc];
+				Location location = new Location(merged, merged.firsts[doc], merged.counts[doc]);
+				if (locations.get(docId) == snapshot.get(docId))
+					locations.put(docId, location);
+				else
+					location.delete();
+			}
+			int position = segments.indexOf(merging.getFirst());
+			segments.removeAll(merging);
+			segments.add(position, merged);
+			writeManifest(manifestGeneration);
+			for (Segment segment : merging) {
+				segment.store.close();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		for (Segment segment : merging) {
+			for (Path path : segment.files()) {
+				Files.deleteIfExists(path);
+			}
+		}
+		log.debug("{}: merged {} segments into {}", directory, merging.size(), name);
+	}
+
+	private Segment writeSegment(String name, LinkedHashMap<String, List<Embedding>> docs) throws IOException {
+		SegmentWriter writer = new SegmentWriter(directory.resolve(name), encoding, metric);
+
+		try {
+			for (Map.Entry<String, List<Embedding>> entry : docs.entrySet()) {
+				writer.put(entry.getKey(), entry.getValue());
+			}
+			return writer.finish();
+		}
+		catch (IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+	}
+
+	private void recover() throws IOException {
+		Path manifest = directory.resolve("MANIFEST");
+		List<String> names = new ArrayList<>();
+
+		if (Files.exists(manifest)) {
+			for (String line : Files.readAllLines(manifest)) {
+				String[] parts = line.split(" ", 2);
+				switch (parts[0]) {
+					case "generation" -> manifestGeneration = Integer.parseInt(parts[1]);
+					case "segment" -> names.add(parts[1]);
+					default -> log.warn("{}: unknown manifest entry {}", directory, line);
+				}
+			}
+		}
+		for (String name : names) {
+			Segment segment = Segment.open(directory.resolve(name), metric, null);
+			segments.add(segment);
+			nextSegment = Math.max(nextSegment, Integer.parseInt(name.substring(name.indexOf('-') + 1)) + 1);
+			if (dimension == 0)
+				dimension = segment.store.dimension();
+			for (int doc = 0; doc < segment.docIds.length; doc++) {
+				Location previous = locations.put(
+					segment.docIds[doc], new Location(segment, segment.firsts[doc], segment.counts[doc])
+				);
+				if (null != previous)
+					previous.delete();
+			}
+			for (String tombstone : segment.tombstones) {
+				Location previous = locations.remove(tombstone);
+				if (null != previous)
+					previous.delete();
+			}
+		}
+		for (Location location : locations.values()) {
+			live += location.count;
+		}
+		walGeneration = manifestGeneration;
+		for (int generation : logGenerations()) {
+			if (generation < manifestGeneration)
+				continue;
+			int replayed = WriteAheadLog.replay(walPath(generation), this::apply);
+			log.debug("{}: replayed {} changes from log {}", directory, replayed, generation);
+			walGeneration = Math.max(walGeneration, generation);
+		}
+		wal = new WriteAheadLog(walPath(++walGeneration));
+	}
+
+	private void apply(byte[] record) {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+			byte type = in.readByte();
+			String docId = in.readUTF();
+
+			if (type == DELETE) {
+				applyDelete(docId);
+				return;
+			}
+			int count = in.readInt(), size = in.readInt();
+			List<Embedding> embeddings = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				int length = in.readInt();
+				String chunk = length < 0 ? null : new String(in.readNBytes(length), StandardCharsets.UTF_8);
+				float[] vector = new float[size];
+				for (int d = 0; d < size; d++) {
+					vector[d] = in.readFloat();
+				}
+				Embedding embedding = new Embedding(chunk, vector);
+				if (type == PUT_WITH_METADATA)
+					embedding.setMetadata(EmbeddingCodec.readMetadata(in));
+				embeddings.add(embedding);
+			}
+			if (dimension == 0)
+				dimension = size;
+			applyPut(docId, embeddings);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static byte[] encodePut(String docId, List<Embedding> embeddings) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(PUT_WITH_METADATA);
+			out.writeUTF(docId);
+			out.writeInt(embeddings.size());
+			out.writeInt(embeddings.isEmpty() ? 0 : embeddings.getFirst().dimension());
+			for (Embedding embedding : embeddings) {
+				if (null == embedding.getChunk())
+					out.writeInt(-1);
+				else {
+					byte[] chunk = embedding.getChunk().getBytes(StandardCharsets.UTF_8);
+					out.writeInt(chunk.length);
+					out.write(chunk);
+				}
+				for (float value : embedding.getVector()) {
+					out.writeFloat(value);
+				}
+				EmbeddingCodec.writeMetadata(out, embedding.getMetadata());
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeDelete(String docId) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(DELETE);
+			out.writeUTF(docId);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private void writeManifest(int generation) throws IOException {
+		Path manifest = directory.resolve("MANIFEST"), temporary = directory.resolve("MANIFEST.tmp");
+		List<String> lines = new ArrayList<>();
+
+		lines.add("generation " + generation);
+		for (Segment segment : segments) {
+			lines.add("segment " + segment.name);
+		}
+		try (FileOutputStream out = new FileOutputStream(temporary.toFile())) {
+			out.write((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		Files.move(temporary, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		manifestGeneration = generation;
+	}
+
+	private List<Integer> logGenerations() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files
+				.map(path -> path.getFileName().toString())
+				.filter(name -> name.startsWith("wal-") && name.endsWith(".log"))
+				.map(name -> Integer.parseInt(name.substring(4, name.length() - 4)))
+				.sorted()
+				.toList();
+		}
+	}
+
+	private void deleteLogsBefore(int generation) throws IOException {
+		for (int older : logGenerations()) {
+			if (older < generation)
+				Files.deleteIfExists(walPath(older));
+		}
+	}
+
+	private Path walPath(int generation) {
+		return directory.resolve("wal-%06d.log".formatted(generation));
+	}
+
+	/**
+	 * Where a document's embeddings are in a segment
+	 */
+	static class Location {
+		final Segment segment;
+		final int first, count;
+
+		Location(Segment segment, int first, int count) {
+			this.segment = segment;
+			this.first = first;
+			this.count = count;
+		}
+
+		void delete() {
+			segment.deleted.set(first, first + count);
+		}
+	}
+
+	/**
+	 * An immutable segment - a read only store, the row range of each of its documents and the documents it
+	 * deletes
+	 */
+	static class Segment {
+		final String name;
+		final Path path;
+		final MappedEmbeddingStore store;
+		final String[] docIds;
+		final int[] firsts, counts;
+		final List<String> tombstones;
+		final BitSet deleted = new BitSet();
+
+		Segment(Path path, MappedEmbeddingStore store, String[] docIds, int[] firsts, int[] counts, List<String> tombstones) {
+			this.name = path.getFileName().toString();
+			this.path = path;
+			this.store = store;
+			this.docIds = docIds;
+			this.firsts = firsts;
+			this.counts = counts;
+			this.tombstones = tombstones;
+		}
+
+		static Segment open(Path path, SimilarityMetric metric, List<String> tombstones) throws IOException {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar(path))))) {
+				if (in.readInt() != SIDECAR_MAGIC) {
+					throw new IOException("%s is not a segment".formatted(sidecar(path)));
+				}
+				int docs = in.readInt();
+				String[] docIds = new String[docs];
+				int[] firsts = new int[docs], counts = new int[docs];
+				for (int doc = 0; doc < docs; doc++) {
+					docIds[doc] = in.readUTF();
+					firsts[doc] = in.readInt();
+					counts[doc] = in.readInt();
+				}
+				if (null == tombstones) {
+					int count = in.readInt();
+					tombstones = new ArrayList<>(count);
+					for (int i = 0; i < count; i++) {
+						tombstones.add(in.readUTF());
+					}
+				}
+				return new Segment(
+					path, MappedEmbeddingStore.open(path, metric), docIds, firsts, counts, tombstones
+				);
+			}
+		}
+
+		/**
+		 * @param row in the store
+		 * @return index of the document containing it
+		 */
+		int docOf(int row) {
+			return DurableEmbeddingStore.docOf(firsts, firsts.length, row);
+		}
+
+		List<Path> files() {
+			return files(path);
+		}
+
+		static List<Path> files(Path path) {
+			List<Path> files = new ArrayList<>(MappedEmbeddingStore.files(path));
+			files.add(sidecar(path));
+			return files;
+		}
+
+		static Path sidecar(Path path) {
+			return path.resolveSibling(path.getFileName() + ".doc");
+		}
+	}
+
+	/**
+	 * Writes a segment a document at a time
+	 */
+	static class SegmentWriter {
+		final Path path;
+		final SimilarityMetric metric;
+		final MappedEmbeddingStore store;
+		final List<String> docIds = new ArrayList<>();
+		final List<Integer> firsts = new ArrayList<>(), counts = new ArrayList<>();
+		final Set<String> tombstones = new LinkedHashSet<>();
+
+		SegmentWriter(Path path, MappedEmbeddingStore.Encoding encoding, SimilarityMetric metric) throws IOException {
+			this.path = path;
+			this.metric = metric;
+			for (Path file : Segment.files(path)) {
+				Files.deleteIfExists(file);
+			}
+			this.store = MappedEmbeddingStore.openForAppend(path, encoding, metric);
+		}
+
+		/**
+		 * Add a document. An empty one is recorded as a deletion, so row ranges are never empty.
+		 */
+		void put(String docId, List<Embedding> embeddings) {
+			if (null == embeddings || embeddings.isEmpty())
+				tombstone(docId);
+			else {
+				docIds.add(docId);
+				firsts.add(store.size());
+				counts.add(embeddings.size());
+				store.addAll(embeddings);
+			}
+		}
+
+		/**
+		 * Add a document copied from its location in another segment, MERGE_BATCH rows at a time
+		 */
+		void copy(String docId, Location location) {
+			docIds.add(docId);
+			firsts.add(store.size());
+			counts.add(location.count);
+			for (int from = location.first, end = location.first + location.count; from < end; from += MERGE_BATCH) {
+				List<Embedding> batch = new ArrayList<>(Math.min(MERGE_BATCH, end - from));
+				for (int row = from; row < Math.min(from + MERGE_BATCH, end); row++) {
+					batch.add(location.segment.store.get(row));
+				}
+				store.addAll(batch);
+			}
+		}
+
+		void tombstone(String docId) {
+			tombstones.add(docId);
+		}
+
+		/**
+		 * Close the store, write the sidecar and open the segment
+		 */
+		Segment finish() throws IOException {
+			store.close();
+			try (
+				FileOutputStream file = new FileOutputStream(Segment.sidecar(path).toFile());
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))
+			) {
+				out.writeInt(SIDECAR_MAGIC);
+				out.writeInt(docIds.size());
+				for (int doc = 0; doc < docIds.size(); doc++) {
+					out.writeUTF(docIds.get(doc));
+					out.writeInt(firsts.get(doc));
+					out.writeInt(counts.get(doc));
+				}
+				out.writeInt(tombstones.size());
+				for (String tombstone : tombstones) {
+					out.writeUTF(tombstone);
+				}
+				out.flush();
+				file.getFD().sync();
+			}
+			return Segment.open(path, metric, List.copyOf(tombstones));
+		}
+
+		/**
+		 * Discard a partly written segment
+		 */
+		void abort() {
+			try {
+				store.close();
+				for (Path file : Segment.files(path)) {
+					Files.deleteIfExists(file);
+				}
+			}
+			catch (IOException e) {
+				log.warn("{}: discarding partial segment failed: {}", path, e.getMessage());
+			}
+		}
+	}
+}
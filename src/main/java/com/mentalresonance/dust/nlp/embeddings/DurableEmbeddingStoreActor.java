@@ -0,0 +1,130 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import com.mentalresonance.dust.core.actors.Actor;
+import com.mentalresonance.dust.core.actors.ActorBehavior;
+import com.mentalresonance.dust.core.actors.Props;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Owns a {@link DurableEmbeddingStore}. Typically sits in a pipeline after an HFEmbeddingAPIServiceActor:
+ * <pre>
+ *     EmbeddingsRequestResponseMsg - its embeddings replace those of its docId (a random id if it has none)
+ *     EmbeddingChunkMsg - a streamed embedding, held until the streaming EmbeddingsRequestResponseMsg for its
+ *     		document arrives; all the document's streamed embeddings then replace those in the store
+ *     DeleteDocumentMsg - the document's embeddings are deleted
+ *     EmbeddingSearchRequestResponseMsg - is answered, applying its filter if any to the embeddings' metadata,
+ *     		and returned to the sender
+ * </pre>
+ * A document whose response reports failed chunks - or, if streamed, for which fewer chunks arrived than were
+ * sent - is only partly embedded, so its replacement is skipped and the store keeps its previous embeddings.
+ * <br/>
+ * A document replaces its embeddings in one step, so streamed embeddings are buffered until the document is
+ * complete rather than applied one by one - which would leave a mix of old and new chunks searchable, or a
+ * partial document if embedding fails part way. The buffer holds the vectors and chunk text of a single
+ * document, the same as a non streaming response carries; the text being embedded is never held.
+ * <br/>
+ * Changes are applied at once and made durable in the background, so the actor never waits on the disk. The
+ * store is closed when the actor stops.
+ */
+@Slf4j
+public class DurableEmbeddingStoreActor extends Actor {
+
+	DurableEmbeddingStore store;
+	/**
+	 * Streamed embeddings by docId awaiting their terminal message
+	 */
+	Map<String, List<Embedding>> streaming = new HashMap<>();
+
+	/**
+	 * Props
+	 * @param store the store to own
+	 * @return Props
+	 */
+	public static Props props(DurableEmbeddingStore store) {
+		return Props.create(DurableEmbeddingStoreActor.class, store);
+	}
+
+	/**
+	 * Constructor
+	 * @param store the store to own
+	 */
+	public DurableEmbeddingStoreActor(DurableEmbeddingStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public void postStop() {
+		try {
+			store.close();
+		}
+		catch (IOException e) {
+			log.error("{} closing store: {}", self.path, e.getMessage());
+		}
+	}
+
+	@Override
+	public ActorBehavior createBehavior() {
+		return (Serializable message) -> {
+			switch(message) {
+				case EmbeddingChunkMsg msg ->
+					streaming.computeIfAbsent(msg.getDocId(), id -> new ArrayList<>()).add(msg.getEmbedding());
+
+				case EmbeddingsRequestResponseMsg msg -> {
+					String docId = null != msg.getDocId() ? msg.getDocId() : UUID.randomUUID().toString();
+					List<Embedding> embeddings = msg.isStreaming() ?
+						Objects.requireNonNullElse(streaming.remove(docId), List.of()) :
+						msg.getEmbeddings();
+					if (msg.getFailed() > 0 || (msg.isStreaming() && embeddings.size() != msg.getStreamed())) {
+						log.warn(
+							"{} keeping previous embeddings of {}: {} chunks failed, {} of {} streamed chunks arrived",
+							self.path, docId, msg.getFailed(), embeddings.size(), msg.getStreamed()
+						);
+					}
+					else
+						store.put(docId, embeddings).exceptionally(e -> {
+							log.error("{} persisting {}: {}", self.path, docId, e.getMessage());
+							return null;
+						});
+				}
+
+				case DeleteDocumentMsg msg -> store.delete(msg.getDocId());
+
+				case EmbeddingSearchRequestResponseMsg msg -> {
+					try {
+						msg.setResults(store.search(msg.getQueries(), msg.getK(), msg.getFilter()));
+					}
+					catch (Exception e) {
+						log.error("{}: {}", self.path, e.getMessage());
+						msg.setError(e.getMessage());
+					}
+					sender.tell(msg, self);
+				}
+
+				default -> log.error("Unhandled message: {}", message);
+			}
+		};
+	}
+}
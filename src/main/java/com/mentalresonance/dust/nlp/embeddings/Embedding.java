@@ -21,30 +21,167 @@ package com.mentalresonance.dust.nlp.embeddings;
 
 import lombok.Getter;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
 /**
- * The embeddings for one chunk
+ * The embeddings for one chunk. The vector is held as a primitive float[] - a boxed List&lt;Double&gt; costs
+ * roughly seven times the heap and every access chases a pointer. {@link #getEmbedding()} is kept as a
+ * List&lt;Double&gt; view for code written against the original API.
+ * <br/>
+ * Externalizable through {@link EmbeddingCodec}: the vector is written as packed float32 and the chunk as UTF-8.
  */
-@Getter
-public class Embedding implements Serializable {
+public class Embedding implements Externalizable {
 	/**
-	 * The embeddings
+	 * The embedding vector
 	 */
-	List<Double> embedding;
+	@Getter
+	float[] vector;
 	/**
 	 * The chunk
 	 */
+	@Getter
 	String chunk;
+	/**
+	 * Typed metadata (e.g. tenant, document, date) for filtered search - see {@link AttributeIndex}. Null if none.
+	 */
+	@Getter
+	Map<String, Object> metadata = null;
+	/**
+	 * Cached L2 norm of vector. 0 means not yet computed.
+	 */
+	transient float norm = 0.0f;
+
+	/**
+	 * For deserialization
+	 */
+	public Embedding() {}
 
 	/**
 	 * Constructor
 	 * @param chunk embedded chunk
-	 * @param embedding as embedded
+	 * @param vector as embedded
 	 */
-	public Embedding(String chunk, List<Double>embedding) {
+	public Embedding(String chunk, float[] vector) {
 		this.chunk = chunk;
-		this.embedding = embedding;
+		this.vector = vector;
+	}
+
+	/**
+	 * Constructor
+	 * @param chunk embedded chunk
+	 * @param embedding as embedded
+	 */
+	public Embedding(String chunk, List<? extends Number> embedding) {
+		this(chunk, toFloats(embedding));
+	}
+
+	/**
+	 * Add a metadata value
+	 * @param key field
+	 * @param value String, Boolean, Number or Instant
+	 * @return this
+	 */
+	public Embedding withMetadata(String key, Object value) {
+		if (null == metadata)
+			metadata = new LinkedHashMap<>();
+		metadata.put(key, AttributeIndex.normalize(value));
+		return this;
+	}
+
+	/**
+	 * Replace the metadata
+	 * @param metadata field to String, Boolean, Number or Instant - may be null
+	 */
+	public void setMetadata(Map<String, Object> metadata) {
+		this.metadata = null;
+		if (null != metadata)
+			metadata.forEach(this::withMetadata);
+	}
+
+	/**
+	 * The embeddings as a (read only) list. This is a view onto the underlying vector - nothing is copied.
+	 * @return List view of the vector
+	 */
+	public List<Double> getEmbedding() {
+		return asList(vector);
+	}
+
+	/**
+	 * @return dimension of the vector
+	 */
+	public int dimension() { return vector.length; }
+
+	/**
+	 * L2 norm of the vector. Computed once then cached.
+	 * @return norm
+	 */
+	public float norm() {
+		if (norm == 0.0f) {
+			norm = (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(vector, 0, vector, 0, vector.length));
+		}
+		return norm;
+	}
+
+	/**
+	 * Convert a list of numbers (typically as deserialized by Gson) into a primitive vector
+	 * @param embedding list of numbers
+	 * @return vector
+	 */
+	public static float[] toFloats(List<? extends Number> embedding) {
+		float[] vector = new float[embedding.size()];
+		int i = 0;
+		for (Number n : embedding) {
+			vector[i++] = n.floatValue();
+		}
+		return vector;
+	}
+
+	/**
+	 * A read only List&lt;Double&gt; view of a vector
+	 * @param vector the vector
+	 * @return List view
+	 */
+	public static List<Double> asList(float[] vector) {
+		return new FloatListView(vector);
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		EmbeddingCodec.writeString(out, chunk);
+		EmbeddingCodec.writeVector(out, vector);
+		EmbeddingCodec.writeMetadata(out, metadata);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		chunk = EmbeddingCodec.readString(in);
+		vector = EmbeddingCodec.readVector(in);
+		metadata = EmbeddingCodec.readMetadata(in);
+		norm = 0.0f;
+	}
+
+	@Override
+	public String toString() {
+		return "Embedding: [%d] %s".formatted(vector.length, chunk);
+	}
+
+	private static class FloatListView extends AbstractList<Double> implements RandomAccess {
+		final float[] vector;
+
+		FloatListView(float[] vector) { this.vector = vector; }
+
+		@Override
+		public Double get(int index) { return (double)vector[index]; }
+
+		@Override
+		public int size() { return vector.length; }
 	}
 }
@@ -0,0 +1,265 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content addressed cache of embedding vectors, keyed by a hash of (model, dimension, chunk text), so a chunk
+ * already embedded by a given model never goes back to the network. Shared by the embedding service actors
+ * (which are typically created per request) by passing it in their props.
+ * <br/>
+ * A bounded LRU is held in memory. Optionally every vector is also appended to a {@link MappedEmbeddingStore}
+ * per dimension in a directory, whose chunk text is the hex key, so the cache survives restarts. Memory misses
+ * are then looked up on disk (and promoted back into memory).
+ * <br/>
+ * Thread safe.
+ */
+@Slf4j
+public class EmbeddingCache implements Closeable {
+
+	static final String PREFIX = "cache-";
+
+	final int capacity;
+	final Path dir;
+	final Map<Key, float[]> memory;
+	/**
+	 * Disk tier: key to (dimension, row) packed in a long, and the store for each dimension
+	 */
+	final Map<Key, Long> onDisk = new ConcurrentHashMap<>();
+	final Map<Integer, MappedEmbeddingStore> stores = new HashMap<>();
+
+	final LongAdder hits = new LongAdder(), diskHits = new LongAdder(), misses = new LongAdder();
+
+	/**
+	 * Memory only cache
+	 * @param capacity maximum number of vectors held
+	 * @return the cache
+	 */
+	public static EmbeddingCache inMemory(int capacity) {
+		return new EmbeddingCache(capacity, null);
+	}
+
+	/**
+	 * Cache with a disk tier in dir, creating it if necessary
+	 * @param capacity maximum number of vectors held in memory
+	 * @param dir holds the disk tier
+	 * @return the cache
+	 * @throws IOException if the disk tier cannot be opened
+	 */
+	public static EmbeddingCache open(int capacity, Path dir) throws IOException {
+		EmbeddingCache cache = new EmbeddingCache(capacity, dir);
+		Files.createDirectories(dir);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*.vec")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				int dimension = Integer.parseInt(name.substring(PREFIX.length(), name.length() - 4));
+				MappedEmbeddingStore store = MappedEmbeddingStore.openForAppend(
+					dir.resolve(PREFIX + dimension), MappedEmbeddingStore.Encoding.FLOAT32
+				);
+				cache.stores.put(dimension, store);
+				for (int row = 0; row < store.size(); ++row)
+					cache.onDisk.put(Key.parse(store.chunk(row)), pack(dimension, row));
+			}
+		}
+		log.info("Opened embedding cache {} with {} vectors", dir, cache.onDisk.size());
+		return cache;
+	}
+
+	EmbeddingCache(int capacity, Path dir) {
+		this.capacity = capacity;
+		this.dir = dir;
+		this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+				return size() > EmbeddingCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Cached vector
+	 * @param model which produced the vector
+	 * @param dimension requested of the model, 0 if its native dimension
+	 * @param text chunk text
+	 * @return a copy of the vector or null if not cached
+	 */
+	public float[] get(String model, int dimension, String text) {
+		Key key = Key.of(model, dimension, text);
+		float[] vector;
+
+		synchronized (memory) {
+			vector = memory.get(key);
+		}
+		if (null != vector) {
+			hits.increment();
+			return vector.clone();
+		}
+		Long location = onDisk.get(key);
+		if (null != location) {
+			MappedEmbeddingStore store;
+			synchronized (stores) {
+				store = stores.get((int)(location >>> 32));
+			}
+			vector = store.vector((int)(long)location);
+			synchronized (memory) {
+				memory.put(key, vector);
+			}
+			hits.increment();
+			diskHits.increment();
+			return vector.clone();
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Cache a vector
+	 * @param model which produced the vector
+	 * @param dimension requested of the model, 0 if its native dimension
+	 * @param text chunk text
+	 * @param vector the embedding of text
+	 */
+	public void put(String model, int dimension, String text, float[] vector) {
+		Key key = Key.of(model, dimension, text);
+
+		synchronized (memory) {
+			memory.put(key, vector.clone());
+		}
+		if (null != dir && !onDisk.containsKey(key)) {
+			synchronized (stores) {
+				if (!onDisk.containsKey(key)) {
+					try {
+						MappedEmbeddingStore store = stores.get(vector.length);
+						if (null == store) {
+							store = MappedEmbeddingStore.openForAppend(
+								dir.resolve(PREFIX + vector.length), MappedEmbeddingStore.Encoding.FLOAT32
+							);
+							stores.put(vector.length, store);
+						}
+						onDisk.put(key, pack(vector.length, store.add(new Embedding(key.toString(), vector))));
+					}
+					catch (Exception e) {
+						log.warn("Could not write {} to embedding cache: {}", key, e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return lookups answered from the cache (memory or disk)
+	 */
+	public long getHits() { return hits.sum(); }
+
+	/**
+	 * @return lookups answered from the disk tier
+	 */
+	public long getDiskHits() { return diskHits.sum(); }
+
+	/**
+	 * @return lookups which had to go to the model
+	 */
+	public long getMisses() { return misses.sum(); }
+
+	/**
+	 * @return number of vectors held in memory
+	 */
+	public int size() {
+		synchronized (memory) {
+			return memory.size();
+		}
+	}
+
+	/**
+	 * Force the disk tier to disk
+	 * @throws IOException on failure
+	 */
+	public void flush() throws IOException {
+		synchronized (stores) {
+			for (MappedEmbeddingStore store : stores.values())
+				store.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (stores) {
+			for (MappedEmbeddingStore store : stores.values())
+				store.close();
+			stores.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EmbeddingCache: %d hits (%d from disk), %d misses".formatted(hits.sum(), diskHits.sum(), misses.sum());
+	}
+
+	private static long pack(int dimension, int row) {
+		return ((long)dimension << 32) | row;
+	}
+
+	/**
+	 * First 128 bits of the SHA-256 of model, dimension and text
+	 */
+	record Key(long high, long low) {
+
+		static Key of(String model, int dimension, String text) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				digest.update(model.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte)0);
+				digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(dimension).array());
+				digest.update(text.getBytes(StandardCharsets.UTF_8));
+				ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+				return new Key(hash.getLong(), hash.getLong());
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		static Key parse(String hex) {
+			return new Key(HexFormat.fromHexDigitsToLong(hex, 0, 16), HexFormat.fromHexDigitsToLong(hex, 16, 32));
+		}
+
+		@Override
+		public String toString() {
+			return HexFormat.of().toHexDigits(high) + HexFormat.of().toHexDigits(low);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+
+/**
+ * One chunk's embedding of a streaming {@link EmbeddingsRequestResponseMsg}. Sent in document order as soon as
+ * the chunk and every chunk before it are done; the request itself follows the last of them.
+ */
+@Getter
+public class EmbeddingChunkMsg implements Serializable {
+    /**
+     * Id of the document the chunk came from
+     */
+    String docId;
+
+    /**
+     * Position of the chunk in the document, from 0. A gap means the chunk(s) in between could not be embedded
+     */
+    int sequence;
+
+    /**
+     * The chunk and its embedding
+     */
+    Embedding embedding;
+
+    /**
+     * Constructor
+     * @param docId id of the document
+     * @param sequence position of the chunk in the document
+     * @param embedding of the chunk
+     */
+    public EmbeddingChunkMsg(String docId, int sequence, Embedding embedding) {
+        this.docId = docId;
+        this.sequence = sequence;
+        this.embedding = embedding;
+    }
+
+    @Override
+    public String toString() { return "EmbeddingChunkMsg: " + docId + " #" + sequence; }
+}
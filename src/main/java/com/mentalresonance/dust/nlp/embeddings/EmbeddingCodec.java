@@ -0,0 +1,181 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding behind the Externalizable embedding messages. Vectors are written as packed float32,
+ * strings as length prefixed UTF-8 (no 64K limit, unlike writeUTF) with -1 for null, and lists of embeddings as a
+ * count followed by each embedding's fields - with no per element object header or class descriptor.
+ */
+public final class EmbeddingCodec {
+
+	static final byte LONG = 0, DOUBLE = 1, STRING = 2, BOOLEAN = 3;
+
+	private EmbeddingCodec() {}
+
+	/**
+	 * @param out to write to
+	 * @param s nullable string
+	 * @throws IOException on failure
+	 */
+	public static void writeString(DataOutput out, String s) throws IOException {
+		if (null == s)
+			out.writeInt(-1);
+		else {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * @param in to read from
+	 * @return string or null
+	 * @throws IOException on failure
+	 */
+	public static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param out to write to
+	 * @param vector nullable vector
+	 * @throws IOException on failure
+	 */
+	public static void writeVector(DataOutput out, float[] vector) throws IOException {
+		if (null == vector)
+			out.writeInt(-1);
+		else {
+			ByteBuffer bytes = ByteBuffer.allocate(vector.length * Float.BYTES);
+			bytes.asFloatBuffer().put(vector);
+			out.writeInt(vector.length);
+			out.write(bytes.array());
+		}
+	}
+
+	/**
+	 * @param in to read from
+	 * @return vector or null
+	 * @throws IOException on failure
+	 */
+	public static float[] readVector(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length * Float.BYTES];
+		in.readFully(bytes);
+		float[] vector = new float[length];
+		ByteBuffer.wrap(bytes).asFloatBuffer().get(vector);
+		return vector;
+	}
+
+	/**
+	 * @param out to write to
+	 * @param embeddings nullable embeddings
+	 * @throws IOException on failure
+	 */
+	public static void writeEmbeddings(ObjectOutput out, Collection<Embedding> embeddings) throws IOException {
+		if (null == embeddings)
+			out.writeInt(-1);
+		else {
+			out.writeInt(embeddings.size());
+			for (Embedding embedding : embeddings)
+				embedding.writeExternal(out);
+		}
+	}
+
+	/**
+	 * @param in to read from
+	 * @param embeddings to add the embeddings to
+	 * @return embeddings, or null if null was written
+	 * @param <T> type of list
+	 * @throws IOException on failure
+	 */
+	public static <T extends List<Embedding>> T readEmbeddings(ObjectInput in, T embeddings) throws IOException {
+		int count = in.readInt();
+		if (count < 0)
+			return null;
+		for (int i = 0; i < count; ++i) {
+			Embedding embedding = new Embedding();
+			embedding.readExternal(in);
+			embeddings.add(embedding);
+		}
+		return embeddings;
+	}
+
+	/**
+	 * @param out to write to
+	 * @param metadata nullable metadata of normalized values - see {@link AttributeIndex#normalize(Object)}
+	 * @throws IOException on failure
+	 */
+	static void writeMetadata(DataOutput out, Map<String, Object> metadata) throws IOException {
+		if (null == metadata) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(metadata.size());
+		for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+			writeString(out, entry.getKey());
+			switch (entry.getValue()) {
+				case Long l -> { out.writeByte(LONG); out.writeLong(l); }
+				case Double d -> { out.writeByte(DOUBLE); out.writeDouble(d); }
+				case String s -> { out.writeByte(STRING); writeString(out, s); }
+				case Boolean b -> { out.writeByte(BOOLEAN); out.writeBoolean(b); }
+				default -> throw new IOException("Unsupported metadata type " + entry.getValue().getClass().getName());
+			}
+		}
+	}
+
+	static Map<String, Object> readMetadata(DataInput in) throws IOException {
+		int count = in.readInt();
+		if (count < 0)
+			return null;
+		Map<String, Object> metadata = new LinkedHashMap<>();
+		for (int i = 0; i < count; ++i) {
+			String key = readString(in);
+			byte type = in.readByte();
+			metadata.put(key, switch (type) {
+				case LONG -> in.readLong();
+				case DOUBLE -> in.readDouble();
+				case STRING -> readString(in);
+				case BOOLEAN -> in.readBoolean();
+				default -> throw new IOException("Unknown metadata type " + type);
+			});
+		}
+		return metadata;
+	}
+}
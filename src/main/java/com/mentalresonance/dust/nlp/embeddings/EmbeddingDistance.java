@@ -19,12 +19,34 @@
 
 package com.mentalresonance.dust.nlp.embeddings;
 
+import lombok.extern.slf4j.Slf4j;
+
 import java.util.List;
 
 /**
- * Convenient embedding-distance functions
+ * Convenient embedding-distance functions.
+ * <br/>
+ * The float[] functions run on a SIMD kernel built on the JDK Vector API when the JVM is started with
+ * <pre>
+ *     --add-modules jdk.incubator.vector
+ * </pre>
+ * and otherwise on a plain Java kernel. Setting the system property dust.nlp.simd=false forces the plain kernel.
  */
+@Slf4j
 public class EmbeddingDistance {
+
+    /**
+     * The kernel in use
+     */
+    static final DistanceKernel KERNEL = selectKernel(Boolean.parseBoolean(System.getProperty("dust.nlp.simd", "true")));
+
+    /**
+     * @return true if the SIMD (Vector API) kernel is in use
+     */
+    public static boolean isVectorized() {
+        return !(KERNEL instanceof ScalarDistanceKernel);
+    }
+
     /**
      *
      * @param vectorA embedding
@@ -41,9 +63,10 @@ public class EmbeddingDistance {
         double magnitudeB = 0.0;
 
         for (int i = 0; i < vectorA.size(); i++) {
-            dotProduct += vectorA.get(i) * vectorB.get(i);
-            magnitudeA += Math.pow(vectorA.get(i), 2);
-            magnitudeB += Math.pow(vectorB.get(i), 2);
+            double a = vectorA.get(i), b = vectorB.get(i);
+            dotProduct += a * b;
+            magnitudeA += a * a;
+            magnitudeB += b * b;
         }
 
         magnitudeA = Math.sqrt(magnitudeA);
@@ -65,5 +88,218 @@ public class EmbeddingDistance {
     public static double cosineDistance(List<Double> vectorA, List<Double> vectorB) {
         return 1.0 - cosineSimilarity(vectorA, vectorB);
     }
-}
 
+    /**
+     *
+     * @param vectorA embedding
+     * @param vectorB embedding
+     * @return 1 if same direction, 0 if orthogonal -1 is opposite
+     */
+    public static double cosineSimilarity(float[] vectorA, float[] vectorB) {
+        checkSize(vectorA, vectorB);
+
+        float[] result = new float[3];
+        KERNEL.dotAndNorms(vectorA, 0, vectorB, 0, vectorA.length, result);
+
+        if (result[1] == 0.0f || result[2] == 0.0f) {
+            throw new IllegalArgumentException("Vector magnitude cannot be zero.");
+        }
+
+        return result[0] / (Math.sqrt(result[1]) * Math.sqrt(result[2]));
+    }
+
+    /**
+     * Similarity using the cached norms of the embeddings, so only the dot product is computed per call.
+     * @param embeddingA embedding
+     * @param embeddingB embedding
+     * @return 1 if same direction, 0 if orthogonal -1 is opposite
+     */
+    public static double cosineSimilarity(Embedding embeddingA, Embedding embeddingB) {
+        float[] vectorA = embeddingA.getVector(), vectorB = embeddingB.getVector();
+
+        checkSize(vectorA, vectorB);
+        double magnitudes = (double)embeddingA.norm() * embeddingB.norm();
+
+        if (magnitudes == 0.0) {
+            throw new IllegalArgumentException("Vector magnitude cannot be zero.");
+        }
+
+        return KERNEL.dot(vectorA, 0, vectorB, 0, vectorA.length) / magnitudes;
+    }
+
+    /**
+     * Convenience since value is always positive
+     * @param vectorA embedding
+     * @param vectorB embedding
+     * @return 0 if same through 2 which means opposite
+     */
+    public static double cosineDistance(float[] vectorA, float[] vectorB) {
+        return 1.0 - cosineSimilarity(vectorA, vectorB);
+    }
+
+    /**
+     * Convenience since value is always positive
+     * @param embeddingA embedding
+     * @param embeddingB embedding
+     * @return 0 if same through 2 which means opposite
+     */
+    public static double cosineDistance(Embedding embeddingA, Embedding embeddingB) {
+        return 1.0 - cosineSimilarity(embeddingA, embeddingB);
+    }
+
+    /**
+     * Dot product. For unit length vectors (e.g. OpenAI embeddings) this is the cosine similarity.
+     * @param vectorA embedding
+     * @param vectorB embedding
+     * @return a . b
+     */
+    public static double dot(float[] vectorA, float[] vectorB) {
+        checkSize(vectorA, vectorB);
+        return KERNEL.dot(vectorA, 0, vectorB, 0, vectorA.length);
+    }
+
+    /**
+     * @param vectorA embedding
+     * @param vectorB embedding
+     * @return |a - b|^2
+     */
+    public static double squaredEuclideanDistance(float[] vectorA, float[] vectorB) {
+        checkSize(vectorA, vectorB);
+        return KERNEL.squaredL2(vectorA, 0, vectorB, 0, vectorA.length);
+    }
+
+    /**
+     * @param vectorA embedding
+     * @param vectorB embedding
+     * @return |a - b|
+     */
+    public static double euclideanDistance(float[] vectorA, float[] vectorB) {
+        return Math.sqrt(squaredEuclideanDistance(vectorA, vectorB));
+    }
+
+    /**
+     * One vs many dot products against a contiguous row-major matrix of vectors, each of dimension query.length.
+     * @param query the query vector
+     * @param matrix rows * query.length floats
+     * @param rows number of rows to score
+     * @param result receives one dot product per row
+     */
+    public static void dots(float[] query, float[] matrix, int rows, float[] result) {
+        int dimension = query.length;
+
+        for (int row = 0, offset = 0; row < rows; row++, offset += dimension) {
+            result[row] = KERNEL.dot(query, 0, matrix, offset, dimension);
+        }
+    }
+
+    /**
+     * One vs many cosine similarity. A zero vector has similarity 0 with everything rather than throwing,
+     * so one bad vector does not abort a scan.
+     * @param query the query vector
+     * @param vectors vectors to compare against
+     * @return similarity of query to each vector
+     */
+    public static float[] cosineSimilarities(float[] query, float[][] vectors) {
+        float[] similarities = new float[vectors.length];
+        float queryNorm = (float)Math.sqrt(KERNEL.dot(query, 0, query, 0, query.length));
+        float[] result = new float[3];
+
+        for (int i = 0; i < vectors.length; i++) {
+            checkSize(query, vectors[i]);
+            KERNEL.dotAndNorms(query, 0, vectors[i], 0, query.length, result);
+            similarities[i] = cosine(result[0], queryNorm, (float)Math.sqrt(result[2]));
+        }
+        return similarities;
+    }
+
+    /**
+     * One vs many cosine similarity using the cached norms of the embeddings.
+     * @param query the query
+     * @param embeddings embeddings to compare against
+     * @return similarity of query to each embedding
+     */
+    public static float[] cosineSimilarities(Embedding query, List<Embedding> embeddings) {
+        float[] similarities = new float[embeddings.size()];
+        float[] q = query.getVector();
+        int i = 0;
+
+        for (Embedding embedding : embeddings) {
+            checkSize(q, embedding.getVector());
+            similarities[i++] = cosine(
+                KERNEL.dot(q, 0, embedding.getVector(), 0, q.length), query.norm(), embedding.norm()
+            );
+        }
+        return similarities;
+    }
+
+    /**
+     * Many vs many cosine similarity. The right hand side is walked in blocks so a block stays in cache
+     * while every left hand vector is scored against it.
+     * @param vectorsA left hand vectors
+     * @param vectorsB right hand vectors
+     * @return [i][j] is the similarity of vectorsA[i] with vectorsB[j]
+     */
+    public static float[][] cosineSimilarities(float[][] vectorsA, float[][] vectorsB) {
+        final int BLOCK = 64;
+        float[][] similarities = new float[vectorsA.length][vectorsB.length];
+        float[] normsA = norms(vectorsA), normsB = norms(vectorsB);
+
+        for (int blockStart = 0; blockStart < vectorsB.length; blockStart += BLOCK) {
+            int blockEnd = Math.min(blockStart + BLOCK, vectorsB.length);
+
+            for (int i = 0; i < vectorsA.length; i++) {
+                float[] a = vectorsA[i];
+                for (int j = blockStart; j < blockEnd; j++) {
+                    checkSize(a, vectorsB[j]);
+                    similarities[i][j] = cosine(KERNEL.dot(a, 0, vectorsB[j], 0, a.length), normsA[i], normsB[j]);
+                }
+            }
+        }
+        return similarities;
+    }
+
+    /**
+     * @param vectors vectors
+     * @return L2 norm of each
+     */
+    public static float[] norms(float[][] vectors) {
+        float[] norms = new float[vectors.length];
+
+        for (int i = 0; i < vectors.length; i++) {
+            norms[i] = (float)Math.sqrt(KERNEL.dot(vectors[i], 0, vectors[i], 0, vectors[i].length));
+        }
+        return norms;
+    }
+
+    static float cosine(float dot, float normA, float normB) {
+        float magnitudes = normA * normB;
+        return magnitudes == 0.0f ? 0.0f : dot / magnitudes;
+    }
+
+    private static void checkSize(float[] vectorA, float[] vectorB) {
+        if (vectorA.length != vectorB.length) {
+            throw new IllegalArgumentException("Vectors must be of the same size.");
+        }
+    }
+
+    /*
+     * The Vector API kernel if simd and the module is present, else the scalar kernel
+     */
+    static DistanceKernel selectKernel(boolean simd) {
+        if (simd && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+        {
+            try {
+                DistanceKernel kernel = (DistanceKernel) Class
+                    .forName("com.mentalresonance.dust.nlp.embeddings.VectorApiDistanceKernel")
+                    .getDeclaredConstructor()
+                    .newInstance();
+                log.debug("Using Vector API distance kernel");
+                return kernel;
+            }
+            catch (Throwable t) {
+                log.warn("Vector API unavailable ({}) - using scalar distance kernel", t.getMessage());
+            }
+        }
+        return new ScalarDistanceKernel();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import com.mentalresonance.dust.nlp.embeddings.openai.OpenAIEmbeddingsRequestResponseMsg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory index of embeddings answering k nearest neighbour queries. Ids are assigned by the index in
+ * insertion order starting from 0.
+ */
+public interface EmbeddingIndex {
+
+	/**
+	 * Add an embedding
+	 * @param embedding to add
+	 * @return its id in the index
+	 */
+	int add(Embedding embedding);
+
+	/**
+	 * Add embeddings. Ids are assigned in list order, as by successive calls to {@link #add(Embedding)}
+	 * @param embeddings to add
+	 */
+	default void addAll(List<Embedding> embeddings) {
+		for (Embedding embedding : embeddings) {
+			add(embedding);
+		}
+	}
+
+	/**
+	 * Add all the embeddings of a processed request - i.e. the output of an embeddings actor
+	 * @param msg processed request
+	 */
+	default void addAll(EmbeddingsRequestResponseMsg msg) {
+		addAll(msg.getEmbeddings());
+	}
+
+	/**
+	 * Add the embedding of a processed OpenAI request - i.e. the output of an OpenAIEmbeddingsAPIServiceActor
+	 * @param msg processed request
+	 * @return its id in the index
+	 */
+	default int add(OpenAIEmbeddingsRequestResponseMsg msg) {
+		return add(msg.getEmbedding());
+	}
+
+	/**
+	 * Remove an embedding. Its id is not reused.
+	 * @param id of embedding
+	 * @return true if it was present
+	 */
+	boolean remove(int id);
+
+	/**
+	 * k nearest neighbours of query
+	 * @param query the query vector
+	 * @param k number of neighbours
+	 * @return up to k matches, best first
+	 */
+	List<EmbeddingMatch> search(float[] query, int k);
+
+	/**
+	 * k nearest neighbours of query
+	 * @param query the query
+	 * @param k number of neighbours
+	 * @return up to k matches, best first
+	 */
+	default List<EmbeddingMatch> search(Embedding query, int k) {
+		return search(query.getVector(), k);
+	}
+
+	/**
+	 * k nearest neighbours of each of a batch of queries. Implementations may do this in fewer passes over the
+	 * data than searching each query in turn.
+	 * @param queries the queries
+	 * @param k number of neighbours
+	 * @return per query up to k matches, best first
+	 */
+	default List<List<EmbeddingMatch>> search(float[][] queries, int k) {
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+		for (float[] query : queries) {
+			results.add(search(query, k));
+		}
+		return results;
+	}
+
+	/**
+	 * k nearest neighbours of query among the embeddings whose metadata satisfies filter. The indexes and
+	 * {@link MappedEmbeddingStore} index metadata as embeddings are added and apply the filter during the search,
+	 * so filtering does not cost results. This default throws UnsupportedOperationException.
+	 * @param query the query vector
+	 * @param k number of neighbours
+	 * @param filter on metadata - null for none
+	 * @return up to k matches, best first
+	 */
+	default List<EmbeddingMatch> search(float[] query, int k, Filter filter) {
+		if (null == filter)
+			return search(query, k);
+		throw new UnsupportedOperationException("%s does not support filtered search".formatted(getClass().getSimpleName()));
+	}
+
+	/**
+	 * k nearest neighbours of each of a batch of queries among the embeddings whose metadata satisfies filter
+	 * @param queries the queries
+	 * @param k number of neighbours
+	 * @param filter on metadata - null for none
+	 * @return per query up to k matches, best first
+	 */
+	default List<List<EmbeddingMatch>> search(float[][] queries, int k, Filter filter) {
+		if (null == filter)
+			return search(queries, k);
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+		for (float[] query : queries) {
+			results.add(search(query, k, filter));
+		}
+		return results;
+	}
+
+	/**
+	 * @param id of embedding
+	 * @return the embedding or null if it has been removed
+	 */
+	Embedding get(int id);
+
+	/**
+	 * @return number of (not removed) embeddings in the index
+	 */
+	int size();
+
+	/**
+	 * @return dimension of the vectors in the index, or 0 if nothing has been added yet
+	 */
+	int dimension();
+
+	/**
+	 * @return how vectors are scored against queries
+	 */
+	SimilarityMetric getMetric();
+}
@@ -0,0 +1,117 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import com.mentalresonance.dust.core.actors.Actor;
+import com.mentalresonance.dust.core.actors.ActorBehavior;
+import com.mentalresonance.dust.core.actors.Props;
+import com.mentalresonance.dust.nlp.embeddings.openai.OpenAIEmbeddingsRequestResponseMsg;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Owns an {@link EmbeddingIndex}. Typically sits in a pipeline after an embeddings actor:
+ * <pre>
+ *     EmbeddingsRequestResponseMsg - all its embeddings are added to the index
+ *     OpenAIEmbeddingsRequestResponseMsg - its embedding is added to the index
+ *     Embedding - is added to the index
+ *     EmbeddingSearchRequestResponseMsg - is answered and returned to the sender
+ * </pre>
+ * An index which is {@link Closeable} (e.g. a {@link MappedEmbeddingStore}) is closed when the actor stops.
+ */
+@Slf4j
+public class EmbeddingIndexActor extends Actor {
+
+	EmbeddingIndex index;
+
+	/**
+	 * Props
+	 * @param index the index to own
+	 * @return Props
+	 */
+	public static Props props(EmbeddingIndex index) {
+		return Props.create(EmbeddingIndexActor.class, index);
+	}
+
+	/**
+	 * Props for an exact cosine index
+	 * @return Props
+	 */
+	public static Props props() {
+		return props(new ExactEmbeddingIndex());
+	}
+
+	/**
+	 * Constructor
+	 * @param index the index to own
+	 */
+	public EmbeddingIndexActor(EmbeddingIndex index) {
+		this.index = index;
+	}
+
+	@Override
+	public void postStop() {
+		if (index instanceof Closeable closeable) {
+			try {
+				closeable.close();
+			}
+			catch (IOException e) {
+				log.error("{} closing index: {}", self.path, e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public ActorBehavior createBehavior() {
+		return (Serializable message) -> {
+			switch(message) {
+				case EmbeddingsRequestResponseMsg msg -> {
+					index.addAll(msg);
+					log.trace("{} indexed {} - size now {}", self.path, msg, index.size());
+				}
+
+				case OpenAIEmbeddingsRequestResponseMsg msg -> {
+					if (null != msg.getVector())
+						index.add(msg);
+					else
+						log.warn("{} received unembedded {}", self.path, msg);
+				}
+
+				case Embedding embedding -> index.add(embedding);
+
+				case EmbeddingSearchRequestResponseMsg msg -> {
+					try {
+						msg.setResults(index.search(msg.getQueries(), msg.getK(), msg.getFilter()));
+					}
+					catch (Exception e) {
+						log.error("{}: {}", self.path, e.getMessage());
+						msg.setError(e.getMessage());
+					}
+					sender.tell(msg, self);
+				}
+
+				default -> log.error("Unhandled message: {}", message);
+			}
+		};
+	}
+}
@@ -0,0 +1,374 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Streaming decoders for embedding endpoint responses. Vectors are read straight from the response body into
+ * float arrays - there is no intermediate String of the body, no boxed Doubles and no list nodes.
+ * <pre>
+ *     readVectors  Text Embeddings Inference: [[f, f, ...], ...] or a single [f, f, ...]. Numbers are parsed
+ *                  in place from a reused character buffer.
+ *     readOpenAI   OpenAI: {"data": [{"index": i, "embedding": ...}, ...]} where embedding is either an array
+ *                  of numbers or (encoding_format base64) the little-endian float32 bytes, which is one String
+ *                  per vector rather than one per dimension.
+ * </pre>
+ * An error object in place of the expected response becomes an IOException carrying the endpoint's message.
+ */
+public final class EmbeddingJsonDecoder {
+
+	private EmbeddingJsonDecoder() {}
+
+	/**
+	 * Exact powers of ten for the fast number path
+	 */
+	static final double[] POW10 = new double[23];
+
+	static {
+		POW10[0] = 1.0;
+		for (int i = 1; i < POW10.length; ++i)
+			POW10[i] = POW10[i - 1] * 10.0;
+	}
+
+	/**
+	 * Read a Text Embeddings Inference response
+	 * @param in response body. Not closed
+	 * @return one vector per input, in input order
+	 * @throws IOException on malformed json or an error response
+	 */
+	public static float[][] readVectors(Reader in) throws IOException {
+		VectorReader reader = new VectorReader(in);
+		int c = reader.peek();
+
+		if ('{' == c)
+			throw new IOException(errorMessage(new JsonReader(reader.remaining())));
+		reader.expect('[');
+		if ('[' != reader.peek()) // Single vector
+			return new float[][] { reader.elements() };
+		List<float[]> vectors = new ArrayList<>();
+		do {
+			vectors.add(reader.vector());
+		} while (reader.separator(']'));
+		return vectors.toArray(new float[0][]);
+	}
+
+	/**
+	 * Read an OpenAI embeddings response
+	 * @param in response body. Not closed
+	 * @param inputs number of inputs in the request
+	 * @return vectors[i] is the embedding of input i
+	 * @throws IOException on malformed json, an error response or a missing embedding
+	 */
+	public static float[][] readOpenAI(Reader in, int inputs) throws IOException {
+		float[][] vectors = new float[inputs][];
+		float[] scratch = new float[1024];
+		JsonReader reader = new JsonReader(in);
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "error" -> throw new IOException(errorMessage(reader));
+				case "data" -> {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						int index = -1;
+						float[] vector = null;
+						reader.beginObject();
+						while (reader.hasNext()) {
+							switch (reader.nextName()) {
+								case "index" -> index = reader.nextInt();
+								case "embedding" -> {
+									if (JsonToken.STRING == reader.peek())
+										vector = fromBase64(reader.nextString());
+									else {
+										int n = 0;
+										reader.beginArray();
+										while (reader.hasNext()) {
+											if (n == scratch.length)
+												scratch = Arrays.copyOf(scratch, n * 2);
+											scratch[n++] = (float) reader.nextDouble();
+										}
+										reader.endArray();
+										vector = Arrays.copyOf(scratch, n);
+									}
+								}
+								default -> reader.skipValue();
+							}
+						}
+						reader.endObject();
+						if (index < 0 || index >= inputs || null == vector)
+							throw new IOException("Bad embedding entry with index " + index);
+						vectors[index] = vector;
+					}
+					reader.endArray();
+				}
+				default -> reader.skipValue();
+			}
+		}
+		reader.endObject();
+		for (int i = 0; i < inputs; ++i) {
+			if (null == vectors[i])
+				throw new IOException("No embedding for input " + i);
+		}
+		return vectors;
+	}
+
+	/**
+	 * Decode a base64 little-endian float32 vector
+	 * @param encoded base64
+	 * @return the vector
+	 */
+	public static float[] fromBase64(String encoded) {
+		ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(encoded)).order(ByteOrder.LITTLE_ENDIAN);
+		float[] vector = new float[bytes.remaining() / Float.BYTES];
+		bytes.asFloatBuffer().get(vector);
+		return vector;
+	}
+
+	/*
+	 * Message from an error value - either a string or an object with a message. Reader is positioned at the
+	 * value, or at the start of an object containing an error key.
+	 */
+	private static String errorMessage(JsonReader reader) throws IOException {
+		String message = null;
+
+		switch (reader.peek()) {
+			case STRING -> message = reader.nextString();
+			case BEGIN_OBJECT -> {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String name = reader.nextName();
+					if (("message".equals(name) || "error".equals(name)) && null == message) {
+						message = JsonToken.BEGIN_OBJECT == reader.peek() ? errorMessage(reader) : reader.nextString();
+					} else
+						reader.skipValue();
+				}
+				reader.endObject();
+			}
+			default -> reader.skipValue();
+		}
+		return null != message ? message : "Unknown error";
+	}
+
+	/*
+	 * Minimal pull parser for arrays of numbers over a reused character buffer
+	 */
+	static final class VectorReader {
+		final Reader in;
+		final char[] buf = new char[8192];
+		final char[] number = new char[64];
+		float[] scratch = new float[1024];
+		int pos = 0, limit = 0, length = 0;
+
+		VectorReader(Reader in) {
+			this.in = in;
+		}
+
+		/*
+		 * Next non-whitespace character without consuming it, -1 at end of input
+		 */
+		int peek() throws IOException {
+			for (;;) {
+				if (pos == limit && !fill())
+					return -1;
+				char c = buf[pos];
+				if (' ' == c || '\n' == c || '\r' == c || '\t' == c)
+					++pos;
+				else
+					return c;
+			}
+		}
+
+		void expect(char expected) throws IOException {
+			int c = peek();
+			if (c != expected)
+				throw new IOException("Expected '" + expected + "' but got " + (c < 0 ? "end of input" : "'" + (char) c + "'"));
+			++pos;
+		}
+
+		/*
+		 * Consume ',' (true - more to come) or close (false)
+		 */
+		boolean separator(char close) throws IOException {
+			int c = peek();
+			if (',' == c) {
+				++pos;
+				return true;
+			}
+			expect(close);
+			return false;
+		}
+
+		float[] vector() throws IOException {
+			expect('[');
+			return elements();
+		}
+
+		/*
+		 * Numbers up to and including the closing ']'
+		 */
+		float[] elements() throws IOException {
+			int n = 0;
+
+			if (']' == peek()) {
+				++pos;
+				return new float[0];
+			}
+			do {
+				if (n == scratch.length)
+					scratch = Arrays.copyOf(scratch, n * 2);
+				scratch[n++] = nextFloat();
+			} while (separator(']'));
+			return Arrays.copyOf(scratch, n);
+		}
+
+		/*
+		 * Exact when the significand has at most 15 digits and the decimal exponent is within 22 (both
+		 * operands are then exactly representable so the one division or multiplication rounds correctly).
+		 * Anything else falls back to Double.parseDouble on the characters of the number.
+		 */
+		float nextFloat() throws IOException {
+			int digits = 0, exponent = 0;
+			long significand = 0;
+			boolean negative = false, seenPoint = false, seenDigit = false, exact = true;
+
+			peek();
+			length = 0;
+			for (;;) {
+				int c = current();
+				if (c >= '0' && c <= '9') {
+					seenDigit = true;
+					if (0 != significand || '0' != c) {
+						if (digits < 18) {
+							significand = significand * 10 + (c - '0');
+							++digits;
+							if (seenPoint)
+								--exponent;
+						} else {
+							exact = false;
+							if (!seenPoint)
+								++exponent;
+						}
+					} else if (seenPoint)
+						--exponent;
+				}
+				else if ('.' == c && !seenPoint)
+					seenPoint = true;
+				else if ('-' == c && 0 == length)
+					negative = true;
+				else if ('e' == c || 'E' == c) {
+					consume(c);
+					exponent += exponent();
+					break;
+				}
+				else
+					break;
+				consume(c);
+			}
+			if (!seenDigit)
+				throw new IOException("Expected a number");
+
+			if (exact && digits <= 15 && exponent >= -22 && exponent <= 22) {
+				double value = exponent < 0 ? significand / POW10[-exponent] : significand * POW10[exponent];
+				return (float) (negative ? -value : value);
+			}
+			return (float) Double.parseDouble(new String(number, 0, length));
+		}
+
+		/*
+		 * Exponent after e/E
+		 */
+		private int exponent() throws IOException {
+			int value = 0;
+			boolean negative = false, any = false;
+			int c = current();
+
+			if ('-' == c || '+' == c) {
+				negative = '-' == c;
+				consume(c);
+			}
+			while ((c = current()) >= '0' && c <= '9') {
+				any = true;
+				value = Math.min(value * 10 + (c - '0'), 100000);
+				consume(c);
+			}
+			if (!any)
+				throw new IOException("Malformed exponent");
+			return negative ? -value : value;
+		}
+
+		/*
+		 * Current character, -1 at end of input
+		 */
+		private int current() throws IOException {
+			return pos < limit || fill() ? buf[pos] : -1;
+		}
+
+		/*
+		 * Append c to the number being read and advance
+		 */
+		private void consume(int c) throws IOException {
+			if (length == number.length)
+				throw new IOException("Number too long");
+			number[length++] = (char) c;
+			++pos;
+		}
+
+		private boolean fill() throws IOException {
+			int n = in.read(buf, 0, buf.length);
+			if (n <= 0)
+				return false;
+			pos = 0;
+			limit = n;
+			return true;
+		}
+
+		/*
+		 * Whatever has not yet been consumed - for handing over to a JsonReader
+		 */
+		Reader remaining() {
+			return new Reader() {
+				@Override
+				public int read(char[] cbuf, int off, int len) throws IOException {
+					if (pos == limit && !fill())
+						return -1;
+					int n = Math.min(len, limit - pos);
+					System.arraycopy(buf, pos, cbuf, off, n);
+					pos += n;
+					return n;
+				}
+
+				@Override
+				public void close() {}
+			};
+		}
+	}
+}
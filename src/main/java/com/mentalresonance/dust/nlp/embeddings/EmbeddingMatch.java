@@ -0,0 +1,79 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+
+/**
+ * One result of a search of an {@link EmbeddingIndex}
+ */
+@Getter
+public class EmbeddingMatch implements Serializable {
+	/**
+	 * Id of the matching embedding in the index
+	 */
+	int id;
+	/**
+	 * Score under the index's {@link SimilarityMetric} - larger is closer
+	 */
+	float score;
+	/**
+	 * The matching chunk
+	 */
+	String chunk;
+	/**
+	 * Document the chunk belongs to, if the index is keyed by document (see {@link DurableEmbeddingStore}). In
+	 * that case id is the chunk's position within the document.
+	 */
+	String docId = null;
+
+	/**
+	 * Constructor
+	 * @param id in index
+	 * @param score larger is closer
+	 * @param chunk the matching chunk
+	 */
+	public EmbeddingMatch(int id, float score, String chunk) {
+		this.id = id;
+		this.score = score;
+		this.chunk = chunk;
+	}
+
+	/**
+	 * Constructor
+	 * @param docId document of the chunk
+	 * @param id position of the chunk in the document
+	 * @param score larger is closer
+	 * @param chunk the matching chunk
+	 */
+	public EmbeddingMatch(String docId, int id, float score, String chunk) {
+		this(id, score, chunk);
+		this.docId = docId;
+	}
+
+	@Override
+	public String toString() {
+		return null == docId ?
+			"EmbeddingMatch: %d (%.4f) %s".formatted(id, score, chunk) :
+			"EmbeddingMatch: %s/%d (%.4f) %s".formatted(docId, id, score, chunk);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Msg to request the k nearest neighbours of one or more query vectors from an {@link EmbeddingIndexActor}
+ */
+@Getter
+public class EmbeddingSearchRequestResponseMsg implements Serializable {
+    /**
+     * The query vectors
+     */
+    float[][] queries;
+
+    /**
+     * Number of neighbours per query
+     */
+    int k;
+
+    /**
+     * Optional filter on metadata
+     */
+    @Setter
+    Filter filter = null;
+
+    /**
+     * Per query matches, best first
+     */
+    @Setter
+    List<List<EmbeddingMatch>> results = null;
+
+    /**
+     * Why the search failed, in which case results is null
+     */
+    @Setter
+    String error = null;
+
+    /**
+     * Constructor
+     * @param query vector
+     * @param k number of neighbours
+     */
+    public EmbeddingSearchRequestResponseMsg(float[] query, int k) {
+        this(new float[][] { query }, k);
+    }
+
+    /**
+     * Constructor
+     * @param query embedding
+     * @param k number of neighbours
+     */
+    public EmbeddingSearchRequestResponseMsg(Embedding query, int k) {
+        this(query.getVector(), k);
+    }
+
+    /**
+     * Constructor for a batch of queries
+     * @param queries embeddings
+     * @param k number of neighbours per query
+     */
+    public EmbeddingSearchRequestResponseMsg(List<Embedding> queries, int k) {
+        this(queries.stream().map(Embedding::getVector).toArray(float[][]::new), k);
+    }
+
+    /**
+     * Constructor for a batch of queries
+     * @param queries vectors
+     * @param k number of neighbours per query
+     */
+    public EmbeddingSearchRequestResponseMsg(float[][] queries, int k) {
+        this.queries = queries;
+        this.k = k;
+    }
+
+    /**
+     * @return matches for the first (usually only) query or null if not yet searched
+     */
+    public List<EmbeddingMatch> getMatches() {
+        return null != results ? results.getFirst() : null;
+    }
+
+    @Override
+    public String toString() { return "EmbeddingSearchRequestResponseMsg: " + queries.length + " queries, k = " + k; }
+}
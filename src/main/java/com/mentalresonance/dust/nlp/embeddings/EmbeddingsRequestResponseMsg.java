@@ -22,26 +22,90 @@ package com.mentalresonance.dust.nlp.embeddings;
 import lombok.Getter;
 import lombok.Setter;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
 /**
- * Msg to request the entire text be processed (chunked) and the chunks embedded
+ * Msg to request the entire text be processed (chunked) and the chunks embedded. The text may instead be given
+ * as a file or stream, which is read as it is chunked so that large inputs are never held in memory.
+ * <br/>
+ * Externalizable through {@link EmbeddingCodec}, so its embeddings cross between nodes as packed vectors.
  */
 @Getter
-public class EmbeddingsRequestResponseMsg implements Serializable {
+public class EmbeddingsRequestResponseMsg implements Externalizable {
     /**
      * Text to embed
      */
     String text;
 
+    /**
+     * Or the file holding the (UTF-8) text. A String since Paths are not Serializable
+     */
+    String file = null;
+
+    /**
+     * Or a stream of the (UTF-8) text, closed once read. Only meaningful within one JVM
+     */
+    transient InputStream stream = null;
+
+    /**
+     * Optional id of the document the text came from - keys the embeddings in a {@link DurableEmbeddingStore}
+     */
+    @Setter
+    String docId = null;
+
     /**
      * List of embeddings - one per chunk
      */
     @Setter
     List<Embedding> embeddings = new LinkedList<>();
 
+    /**
+     * Optional embeddings of the previous version of the text. Chunks whose text is unchanged reuse these
+     * rather than being re-embedded
+     */
+    @Setter
+    List<Embedding> previous = null;
+
+    /**
+     * On response, if previous was given, those of previous which no longer correspond to a chunk
+     */
+    @Setter
+    List<Embedding> retired = null;
+
+    /**
+     * If true embeddings are not collected here. Each is sent to the requester as an {@link EmbeddingChunkMsg}
+     * as soon as it is ready, and this message - with no embeddings - follows the last of them. A docId is
+     * assigned if there is none
+     */
+    @Setter
+    boolean streaming = false;
+
+    /**
+     * On response to a streaming request, the number of {@link EmbeddingChunkMsg}s sent
+     */
+    @Setter
+    int streamed = 0;
+
+    /**
+     * On response, the number of chunks which could not be embedded. They are missing from embeddings - or, if
+     * streaming, no {@link EmbeddingChunkMsg} was sent for them - so the response covers only part of the text
+     */
+    @Setter
+    int failed = 0;
+
+    /**
+     * For deserialization
+     */
+    public EmbeddingsRequestResponseMsg() {}
+
     /**
      * Constructor
      * @param text to embed
@@ -50,6 +114,72 @@ public class EmbeddingsRequestResponseMsg implements Serializable {
         this.text = text;
     }
 
+    /**
+     * Constructor
+     * @param text to embed
+     * @param docId id of the document the text came from
+     */
+    public EmbeddingsRequestResponseMsg(String text, String docId) {
+        this.text = text;
+        this.docId = docId;
+    }
+
+    /**
+     * Constructor
+     * @param path of the UTF-8 file holding the text to embed
+     * @param docId nullable id of the document the text came from
+     */
+    public EmbeddingsRequestResponseMsg(Path path, String docId) {
+        this.file = path.toString();
+        this.docId = docId;
+    }
+
+    /**
+     * Constructor
+     * @param stream of the UTF-8 text to embed. Closed once read
+     * @param docId nullable id of the document the text came from
+     */
+    public EmbeddingsRequestResponseMsg(InputStream stream, String docId) {
+        this.stream = stream;
+        this.docId = docId;
+    }
+
+    /**
+     * @return path of the file holding the text or null
+     */
+    public Path getPath() {
+        return null != file ? Path.of(file) : null;
+    }
+
     @Override
-    public String toString() { return "EmbeddingsRequestResponseMsg: " + embeddings.size() + " chunks."; }
+    public void writeExternal(ObjectOutput out) throws IOException {
+        EmbeddingCodec.writeString(out, text);
+        EmbeddingCodec.writeString(out, file);
+        EmbeddingCodec.writeString(out, docId);
+        out.writeBoolean(streaming);
+        out.writeInt(streamed);
+        out.writeInt(failed);
+        EmbeddingCodec.writeEmbeddings(out, embeddings);
+        EmbeddingCodec.writeEmbeddings(out, previous);
+        EmbeddingCodec.writeEmbeddings(out, retired);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        text = EmbeddingCodec.readString(in);
+        file = EmbeddingCodec.readString(in);
+        docId = EmbeddingCodec.readString(in);
+        streaming = in.readBoolean();
+        streamed = in.readInt();
+        failed = in.readInt();
+        embeddings = EmbeddingCodec.readEmbeddings(in, new LinkedList<>());
+        previous = EmbeddingCodec.readEmbeddings(in, new ArrayList<>());
+        retired = EmbeddingCodec.readEmbeddings(in, new ArrayList<>());
+    }
+
+    @Override
+    public String toString() {
+        return "EmbeddingsRequestResponseMsg: " + (streaming ? streamed : embeddings.size()) + " chunks" +
+            (failed > 0 ? ", " + failed + " failed." : ".");
+    }
 }
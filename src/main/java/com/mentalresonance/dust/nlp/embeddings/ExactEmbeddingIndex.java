@@ -0,0 +1,247 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Exact (brute force) k nearest neighbour index. Vectors are stored contiguously in row-major float[] pages of
+ * PAGE_ROWS rows - so the index is not bounded by the maximum array size - and a query is a scan of those pages
+ * keeping the best k in a bounded heap. Large scans are split across cores
+ * on a fork/join pool and batches of queries are answered in a single pass over the data.
+ * <br/>
+ * This is the baseline every approximate index is measured against and is perfectly adequate for up to a few
+ * million vectors.
+ * <br/>
+ * Filtered searches scan only the ids the filter admits - directly if they are few, otherwise by masking the
+ * full scan.
+ * <br/>
+ * Thread safe: adds are exclusive, searches run concurrently.
+ */
+public class ExactEmbeddingIndex implements EmbeddingIndex {
+
+	/**
+	 * Rows per page of vectors - 24MB at 1536 dimensions
+	 */
+	static final int PAGE_BITS = 12, PAGE_ROWS = 1 << PAGE_BITS, PAGE_MASK = PAGE_ROWS - 1;
+	/**
+	 * A filter admitting fewer than 1 in this many rows is searched by scoring just the admitted rows
+	 */
+	static final int SELECTIVE = 16;
+
+	@Getter
+	final SimilarityMetric metric;
+
+	final ForkJoinPool pool;
+
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	int dimension = 0, size = 0, removed = 0;
+	final BitSet deleted = new BitSet();
+	float[][] pages = new float[0][];
+	float[] norms = new float[0];
+	final ArrayList<String> chunks = new ArrayList<>();
+	final ArrayList<Map<String, Object>> metadata = new ArrayList<>();
+	final AttributeIndex attributes = new AttributeIndex();
+
+	/**
+	 * Cosine index scanning on the common pool
+	 */
+	public ExactEmbeddingIndex() {
+		this(SimilarityMetric.COSINE);
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 */
+	public ExactEmbeddingIndex(SimilarityMetric metric) {
+		this(metric, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 * @param pool to run parallel scans on
+	 */
+	public ExactEmbeddingIndex(SimilarityMetric metric, ForkJoinPool pool) {
+		this.metric = metric;
+		this.pool = pool;
+	}
+
+	@Override
+	public int add(Embedding embedding) {
+		float[] vector = embedding.getVector();
+
+		lock.writeLock().lock();
+		try {
+			if (dimension == 0)
+				dimension = vector.length;
+			else
+				checkDimension(vector);
+
+			if ((size & PAGE_MASK) == 0 && size >>> PAGE_BITS == pages.length) {
+				pages = Arrays.copyOf(pages, pages.length + 1);
+				pages[pages.length - 1] = new float[PAGE_ROWS * dimension];
+			}
+			if (size == norms.length)
+				norms = Arrays.copyOf(norms, Math.max(16, 2 * size));
+			System.arraycopy(vector, 0, pages[size >>> PAGE_BITS], (size & PAGE_MASK) * dimension, dimension);
+			norms[size] = embedding.norm();
+			chunks.add(embedding.getChunk());
+			metadata.add(embedding.getMetadata());
+			attributes.add(size, embedding.getMetadata());
+			return size++;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k) {
+		return search(new float[][] { query }, k).getFirst();
+	}
+
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k) {
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+
+		lock.readLock().lock();
+		try {
+			for (float[] query : queries) {
+				checkDimension(query);
+			}
+			TopK[] tops = scan(queries, EmbeddingDistance.norms(queries), k, removed > 0 ? deleted : null, null);
+
+			for (TopK top : tops) {
+				results.add(top.toMatches(chunks::get));
+			}
+			return results;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k, Filter filter) {
+		return search(new float[][] { query }, k, filter).getFirst();
+	}
+
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k, Filter filter) {
+		if (null == filter)
+			return search(queries, k);
+
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+
+		lock.readLock().lock();
+		try {
+			for (float[] query : queries) {
+				checkDimension(query);
+			}
+			float[] queryNorms = EmbeddingDistance.norms(queries);
+			IdBitmap allowed = attributes.evaluate(filter);
+			TopK[] tops;
+
+			if (allowed.cardinality() < size / SELECTIVE) {
+				tops = new TopK[queries.length];
+				for (int q = 0; q < queries.length; q++) {
+					tops[q] = new TopK(k);
+				}
+				allowed.forEach(row -> {
+					for (int q = 0; q < queries.length; q++) {
+						tops[q].offer(row, metric.score(queries[q], queryNorms[q], pages[row >>> PAGE_BITS], (row & PAGE_MASK) * dimension, norms[row]));
+					}
+				});
+			}
+			else {
+				tops = scan(queries, queryNorms, k, null, allowed.toBitSet());
+			}
+			for (TopK top : tops) {
+				results.add(top.toMatches(chunks::get));
+			}
+			return results;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(int id) {
+		lock.writeLock().lock();
+		try {
+			if (id < 0 || id >= size || deleted.get(id))
+				return false;
+			deleted.set(id);
+			attributes.remove(id);
+			++removed;
+			return true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Embedding get(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= size || deleted.get(id))
+				return null;
+			int offset = (id & PAGE_MASK) * dimension;
+			Embedding embedding = new Embedding(chunks.get(id), Arrays.copyOfRange(pages[id >>> PAGE_BITS], offset, offset + dimension));
+			embedding.setMetadata(metadata.get(id));
+			return embedding;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() { return size - removed; }
+
+	@Override
+	public int dimension() { return dimension; }
+
+	private void checkDimension(float[] vector) {
+		if (dimension != 0 && vector.length != dimension) {
+			throw new IllegalArgumentException("Vector dimension %d does not match index dimension %d".formatted(vector.length, dimension));
+		}
+	}
+
+	private TopK[] scan(float[][] queries, float[] queryNorms, int k, BitSet deleted, BitSet allowed) {
+		return ScanTask.scan(pool, queries.length, k, deleted, allowed, size, () -> (q, row) ->
+			metric.score(queries[q], queryNorms[q], pages[row >>> PAGE_BITS], (row & PAGE_MASK) * dimension, norms[row])
+		);
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A predicate on embedding metadata, evaluated against an {@link AttributeIndex} to the set of ids it admits:
+ * <pre>
+ *     Filter.and(Filter.eq("tenant", "acme"), Filter.range("date", from, null), Filter.not(Filter.eq("draft", true)))
+ * </pre>
+ * Serializable so it can travel in an {@link EmbeddingSearchRequestResponseMsg}.
+ */
+public abstract class Filter implements Serializable {
+
+	/**
+	 * @param field metadata field
+	 * @param value required value - not null, since null metadata values are not indexed
+	 * @return field equals value
+	 */
+	public static Filter eq(String field, Object value) {
+		if (null == value) {
+			throw new IllegalArgumentException("Filter.eq on %s needs a value - null metadata values are not indexed".formatted(field));
+		}
+		return new Equal(field, value);
+	}
+
+	/**
+	 * @param field metadata field
+	 * @param values allowed values
+	 * @return field equals one of values
+	 */
+	public static Filter in(String field, Object... values) {
+		return or(Arrays.stream(values).map(value -> eq(field, value)).toArray(Filter[]::new));
+	}
+
+	/**
+	 * @param field metadata field
+	 * @param from inclusive lower bound or null
+	 * @param to inclusive upper bound or null - not below from
+	 * @return field in [from, to]
+	 */
+	public static Filter range(String field, Object from, Object to) {
+		Range range = new Range(field, from, to);
+		if (null != range.from && null != range.to && AttributeIndex.ORDER.compare(range.from, range.to) > 0) {
+			throw new IllegalArgumentException("Filter.range on %s is empty - from %s is after to %s".formatted(field, from, to));
+		}
+		return range;
+	}
+
+	/**
+	 * @param filters all of which must hold
+	 * @return conjunction
+	 */
+	public static Filter and(Filter... filters) {
+		return new Combination(true, List.of(filters));
+	}
+
+	/**
+	 * @param filters any of which must hold
+	 * @return disjunction
+	 */
+	public static Filter or(Filter... filters) {
+		return new Combination(false, List.of(filters));
+	}
+
+	/**
+	 * @param filter which must not hold
+	 * @return negation
+	 */
+	public static Filter not(Filter filter) {
+		return new Not(filter);
+	}
+
+	/**
+	 * Caller holds the index's read lock
+	 * @param index to evaluate against
+	 * @return ids admitted (possibly including removed ids)
+	 */
+	abstract IdBitmap evaluate(AttributeIndex index);
+
+	static class Equal extends Filter {
+		final String field;
+		final Object value;
+
+		Equal(String field, Object value) {
+			this.field = field;
+			this.value = AttributeIndex.normalize(value);
+		}
+
+		@Override
+		IdBitmap evaluate(AttributeIndex index) { return index.equal(field, value); }
+
+		@Override
+		public String toString() { return "%s = %s".formatted(field, value); }
+	}
+
+	static class Range extends Filter {
+		final String field;
+		final Object from, to;
+
+		Range(String field, Object from, Object to) {
+			this.field = field;
+			this.from = null != from ? AttributeIndex.normalize(from) : null;
+			this.to = null != to ? AttributeIndex.normalize(to) : null;
+		}
+
+		@Override
+		IdBitmap evaluate(AttributeIndex index) { return index.range(field, from, to); }
+
+		@Override
+		public String toString() { return "%s in [%s, %s]".formatted(field, from, to); }
+	}
+
+	static class Combination extends Filter {
+		final boolean conjunction;
+		final List<Filter> filters;
+
+		Combination(boolean conjunction, List<Filter> filters) {
+			this.conjunction = conjunction;
+			this.filters = filters;
+		}
+
+		@Override
+		IdBitmap evaluate(AttributeIndex index) {
+			if (filters.isEmpty())
+				return conjunction ? index.all : new IdBitmap();
+
+			IdBitmap result = filters.getFirst().evaluate(index);
+			for (int i = 1; i < filters.size(); i++) {
+				if (conjunction && result.isEmpty())
+					break;
+				IdBitmap ids = filters.get(i).evaluate(index);
+				result = conjunction ? result.and(ids) : result.or(ids);
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return filters.stream().map(Filter::toString).collect(Collectors.joining(conjunction ? " and " : " or ", "(", ")"));
+		}
+	}
+
+	static class Not extends Filter {
+		final Filter filter;
+
+		Not(Filter filter) {
+			this.filter = filter;
+		}
+
+		@Override
+		IdBitmap evaluate(AttributeIndex index) { return index.all.andNot(filter.evaluate(index)); }
+
+		@Override
+		public String toString() { return "not " + filter; }
+	}
+}
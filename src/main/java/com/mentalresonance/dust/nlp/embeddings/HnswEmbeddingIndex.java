@@ -0,0 +1,700 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate k nearest neighbour index using a Hierarchical Navigable Small World graph (Malkov and Yashunin).
+ * <br/>
+ * Tuning:
+ * <pre>
+ *     m - links per node per layer (2m on layer 0). Larger improves recall on high dimensional data at the cost
+ *         of memory and insert time. 16 is a good default.
+ *     efConstruction - breadth of the search used to find neighbours on insert. Larger builds a better graph
+ *         more slowly.
+ *     efSearch - breadth of the search at query time (at least k is always used). The recall/latency knob - it
+ *         can be changed at any time. Use {@link #recallReport(float[][], int, int...)} to pick it.
+ * </pre>
+ * Inserts may run concurrently with each other and with searches. Each node's link lists are guarded by a
+ * striped lock and vectors are held in fixed size pages, so growing the index never copies existing vectors.
+ * <br/>
+ * Removal marks the node deleted: it is still traversed (so the graph stays connected) but never returned.
+ * <br/>
+ * Filtered searches work the same way - every node is traversed but only those the filter admits are
+ * returned, so the search carries on until it has found ef admitted nodes. A filter admitting fewer nodes than
+ * such a search would visit anyway is answered by scoring the admitted nodes directly.
+ */
+public class HnswEmbeddingIndex implements EmbeddingIndex {
+
+	static final int PAGE_BITS = 12, PAGE_ROWS = 1 << PAGE_BITS, PAGE_MASK = PAGE_ROWS - 1;
+	static final int LOCK_STRIPES = 1 << 12;
+
+	@Getter
+	final SimilarityMetric metric;
+	/**
+	 * Links per node on upper layers. Layer 0 has 2m.
+	 */
+	@Getter
+	final int m;
+	@Getter
+	final int efConstruction;
+	/**
+	 * Breadth of search at query time
+	 */
+	@Getter
+	@Setter
+	volatile int efSearch;
+
+	final double levelMultiplier;
+	final ForkJoinPool pool;
+	final Object[] locks = new Object[LOCK_STRIPES];
+	final Object allocationLock = new Object(), entryLock = new Object();
+
+	volatile int dimension = 0, count = 0;
+	volatile Page[] pages = new Page[0];
+	volatile int entryPoint = -1, maxLevel = -1;
+	final AtomicInteger removed = new AtomicInteger();
+	final AttributeIndex attributes = new AttributeIndex();
+
+	final ThreadLocal<Visited> visited = ThreadLocal.withInitial(Visited::new);
+
+	/**
+	 * Cosine index with m = 16, efConstruction = 200, efSearch = 64
+	 */
+	public HnswEmbeddingIndex() {
+		this(SimilarityMetric.COSINE, 16, 200, 64);
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 * @param m links per node per layer
+	 * @param efConstruction breadth of search on insert
+	 * @param efSearch breadth of search at query time
+	 */
+	public HnswEmbeddingIndex(SimilarityMetric metric, int m, int efConstruction, int efSearch) {
+		this(metric, m, efConstruction, efSearch, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 * @param m links per node per layer
+	 * @param efConstruction breadth of search on insert
+	 * @param efSearch breadth of search at query time
+	 * @param pool used by addAll to insert in parallel
+	 */
+	public HnswEmbeddingIndex(SimilarityMetric metric, int m, int efConstruction, int efSearch, ForkJoinPool pool) {
+		if (m < 2) {
+			throw new IllegalArgumentException("m must be at least 2");
+		}
+		this.metric = metric;
+		this.m = m;
+		this.efConstruction = Math.max(efConstruction, m);
+		this.efSearch = efSearch;
+		this.levelMultiplier = 1.0 / Math.log(m);
+		this.pool = pool;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	@Override
+	public int add(Embedding embedding) {
+		int level = randomLevel();
+		int id = allocate(embedding, level);
+		connect(id, level, embedding);
+		return id;
+	}
+
+	/**
+	 * Ids are reserved in list order, then large batches are linked into the graph in parallel on the pool
+	 * @param embeddings to add
+	 */
+	@Override
+	public void addAll(List<Embedding> embeddings) {
+		if (embeddings.size() < 256) {
+			EmbeddingIndex.super.addAll(embeddings);
+			return;
+		}
+		int[] ids = new int[embeddings.size()], levels = new int[embeddings.size()];
+
+		synchronized (allocationLock) {
+			for (int i = 0; i < ids.length; i++) {
+				levels[i] = randomLevel();
+				ids[i] = allocate(embeddings.get(i), levels[i]);
+			}
+		}
+		pool.submit(() -> IntStream.range(0, ids.length).parallel().forEach(i -> connect(ids[i], levels[i], embeddings.get(i)))).join();
+	}
+
+	int randomLevel() {
+		return (int)(-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * levelMultiplier);
+	}
+
+	/**
+	 * Link an allocated node into the graph on every level up to its own
+	 */
+	void connect(int id, int level, Embedding embedding) {
+		float[] vector = embedding.getVector();
+		int entry, top;
+
+		synchronized (entryLock) {
+			if (entryPoint < 0) {
+				entryPoint = id;
+				maxLevel = level;
+				return;
+			}
+			entry = entryPoint;
+			top = maxLevel;
+		}
+
+		float norm = embedding.norm();
+		Visited marks = visited.get();
+		int[] buffer = new int[2 * m + 1];
+		float entryScore = score(vector, norm, entry);
+
+		for (int l = top; l > level; l--) {
+			entry = greedy(vector, norm, entry, entryScore, l, buffer);
+			entryScore = score(vector, norm, entry);
+		}
+		for (int l = Math.min(level, top); l >= 0; l--) {
+			TopK candidates = searchLayer(vector, norm, entry, entryScore, efConstruction, l, marks, buffer, null);
+			int[] ids = new int[candidates.size];
+			float[] scores = new float[candidates.size];
+			// Drain worst first so arrays end up best first
+			for (int i = candidates.size - 1; i >= 0; i--) {
+				scores[i] = candidates.scores[0];
+				ids[i] = candidates.poll();
+			}
+			int[] neighbours = selectNeighbours(ids, scores, ids.length, m);
+			int capacity = l == 0 ? 2 * m : m;
+
+			synchronized (lock(id)) {
+				int[] links = page(id).links[id & PAGE_MASK][l];
+				links[0] = neighbours.length;
+				System.arraycopy(neighbours, 0, links, 1, neighbours.length);
+			}
+			for (int neighbour : neighbours) {
+				link(neighbour, id, l, capacity);
+			}
+			entry = ids[0];
+			entryScore = scores[0];
+		}
+		if (level > top) {
+			synchronized (entryLock) {
+				if (level > maxLevel) {
+					maxLevel = level;
+					entryPoint = id;
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean remove(int id) {
+		if (id < 0 || id >= count)
+			return false;
+		Page page = page(id);
+		synchronized (lock(id)) {
+			if (page.deleted[id & PAGE_MASK])
+				return false;
+			page.deleted[id & PAGE_MASK] = true;
+		}
+		attributes.remove(id);
+		removed.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k) {
+		return search(query, k, efSearch);
+	}
+
+	/**
+	 * Search with an explicit efSearch
+	 * @param query the query
+	 * @param k number of neighbours
+	 * @param ef breadth of search (at least k is used)
+	 * @return up to k matches, best first
+	 */
+	public List<EmbeddingMatch> search(float[] query, int k, int ef) {
+		return search(query, k, ef, id -> !isDeleted(id));
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k, Filter filter) {
+		if (null == filter)
+			return search(query, k);
+
+		int ef = Math.max(efSearch, k);
+		IdBitmap allowed = attributes.evaluate(filter);
+
+		if (allowed.cardinality() > ef * 2 * m)
+			return search(query, k, ef, id -> !isDeleted(id) && allowed.contains(id));
+
+		checkDimension(query);
+		float norm = (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(query, 0, query, 0, query.length));
+		TopK best = new TopK(k);
+		allowed.forEach(id -> {
+			if (!isDeleted(id))
+				best.offer(id, score(query, norm, id));
+		});
+		return best.toMatches(this::chunk);
+	}
+
+	private List<EmbeddingMatch> search(float[] query, int k, int ef, IntPredicate accept) {
+		int entry, top;
+
+		synchronized (entryLock) {
+			entry = entryPoint;
+			top = maxLevel;
+		}
+		if (entry < 0 || k <= 0)
+			return new ArrayList<>();
+		checkDimension(query);
+
+		float norm = (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(query, 0, query, 0, query.length));
+		int[] buffer = new int[2 * m + 1];
+		float entryScore = score(query, norm, entry);
+
+		for (int l = top; l > 0; l--) {
+			entry = greedy(query, norm, entry, entryScore, l, buffer);
+			entryScore = score(query, norm, entry);
+		}
+		TopK candidates = searchLayer(query, norm, entry, entryScore, Math.max(ef, k), 0, visited.get(), buffer, accept);
+		TopK best = new TopK(k);
+		best.addAll(candidates);
+		return best.toMatches(this::chunk);
+	}
+
+	/**
+	 * Recall versus latency at each value of efSearch, measured against an exact scan of this index.
+	 * This is a diagnostic - the exact scan is brute force.
+	 * @param queries sample queries (ideally drawn from the same distribution as real queries)
+	 * @param k neighbours per query
+	 * @param efSearchValues settings of efSearch to measure
+	 * @return a report per setting
+	 */
+	public List<RecallReport> recallReport(float[][] queries, int k, int... efSearchValues) {
+		List<List<EmbeddingMatch>> truth = exactSearch(queries, k);
+		List<RecallReport> reports = new ArrayList<>();
+
+		for (int ef : efSearchValues) {
+			reports.add(RecallReport.measure("efSearch=" + ef, query -> search(query, k, ef), queries, truth, k));
+		}
+		return reports;
+	}
+
+	@Override
+	public Embedding get(int id) {
+		if (id < 0 || id >= count)
+			return null;
+		Page page = page(id);
+		int row = id & PAGE_MASK;
+
+		if (page.deleted[row])
+			return null;
+		Embedding embedding = new Embedding(page.chunks[row], Arrays.copyOfRange(page.vectors, row * dimension, (row + 1) * dimension));
+		embedding.setMetadata(page.metadata[row]);
+		return embedding;
+	}
+
+	@Override
+	public int size() { return count - removed.get(); }
+
+	@Override
+	public int dimension() { return dimension; }
+
+	/**
+	 * Reserve an id and store the vector and empty link lists for it. The node is not reachable until
+	 * it is linked in.
+	 */
+	int allocate(Embedding embedding, int level) {
+		float[] vector = embedding.getVector();
+
+		synchronized (allocationLock) {
+			if (dimension == 0)
+				dimension = vector.length;
+			else
+				checkDimension(vector);
+
+			int id = count;
+			if ((id >>> PAGE_BITS) == pages.length) {
+				Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+				grown[pages.length] = new Page(dimension);
+				pages = grown;
+			}
+			Page page = pages[id >>> PAGE_BITS];
+			int row = id & PAGE_MASK;
+			int[][] links = new int[level + 1][];
+
+			for (int l = 0; l <= level; l++) {
+				links[l] = new int[(l == 0 ? 2 * m : m) + 1];
+			}
+			System.arraycopy(vector, 0, page.vectors, row * dimension, dimension);
+			page.norms[row] = embedding.norm();
+			page.chunks[row] = embedding.getChunk();
+			page.metadata[row] = embedding.getMetadata();
+			attributes.add(id, embedding.getMetadata());
+			synchronized (lock(id)) {
+				page.links[row] = links;
+			}
+			count = id + 1;
+			return id;
+		}
+	}
+
+	/**
+	 * Add a link from node to neighbour on level, pruning node's links with the selection heuristic if full
+	 */
+	void link(int node, int neighbour, int level, int capacity) {
+		synchronized (lock(node)) {
+			int[] links = page(node).links[node & PAGE_MASK][level];
+			int n = links[0];
+
+			if (n < capacity) {
+				links[++links[0]] = neighbour;
+				return;
+			}
+			Page page = page(node);
+			int offset = (node & PAGE_MASK) * dimension;
+			float norm = page.norms[node & PAGE_MASK];
+			int[] ids = new int[n + 1];
+			float[] scores = new float[n + 1];
+
+			for (int i = 0; i <= n; i++) {
+				ids[i] = i < n ? links[i + 1] : neighbour;
+				scores[i] = score(page.vectors, offset, norm, ids[i]);
+			}
+			sortDescending(ids, scores);
+			int[] selected = selectNeighbours(ids, scores, ids.length, capacity);
+			links[0] = selected.length;
+			System.arraycopy(selected, 0, links, 1, selected.length);
+		}
+	}
+
+	/**
+	 * The HNSW neighbour selection heuristic: walking candidates best first, keep one only if it is closer to
+	 * the base than to any already kept. This spreads links across directions. Slots left over are filled with
+	 * the best of the discarded.
+	 * @param ids candidates, best first
+	 * @param scores their scores against the base
+	 * @param n number of candidates
+	 * @param max links wanted
+	 * @return selected ids
+	 */
+	int[] selectNeighbours(int[] ids, float[] scores, int n, int max) {
+		if (n <= max)
+			return Arrays.copyOf(ids, n);
+
+		int[] selected = new int[max];
+		boolean[] taken = new boolean[n];
+		int count = 0;
+
+		for (int i = 0; i < n && count < max; i++) {
+			Page page = page(ids[i]);
+			int offset = (ids[i] & PAGE_MASK) * dimension;
+			float norm = page.norms[ids[i] & PAGE_MASK];
+			boolean keep = true;
+
+			for (int j = 0; j < count; j++) {
+				if (score(page.vectors, offset, norm, selected[j]) > scores[i]) {
+					keep = false;
+					break;
+				}
+			}
+			if (keep) {
+				selected[count++] = ids[i];
+				taken[i] = true;
+			}
+		}
+		for (int i = 0; i < n && count < max; i++) {
+			if (!taken[i])
+				selected[count++] = ids[i];
+		}
+		return selected;
+	}
+
+	/**
+	 * Best first search of one layer
+	 * @param accept if not null only admit nodes it accepts to the results (others are still expanded)
+	 * @return up to ef best nodes found
+	 */
+	TopK searchLayer(
+		float[] query, float norm, int entry, float entryScore, int ef, int level, Visited marks, int[] buffer, IntPredicate accept
+	) {
+		TopK results = new TopK(ef);
+		Candidates candidates = new Candidates();
+
+		marks.reset(count);
+		marks.visit(entry);
+		candidates.push(entry, entryScore);
+		if (null == accept || accept.test(entry))
+			results.offer(entry, entryScore);
+
+		while (candidates.size > 0) {
+			if (results.isFull() && candidates.peekScore() < results.threshold())
+				break;
+			int candidate = candidates.pop();
+			int n = neighbours(candidate, level, buffer);
+
+			for (int i = 0; i < n; i++) {
+				int neighbour = buffer[i];
+				if (!marks.visit(neighbour))
+					continue;
+				float score = score(query, norm, neighbour);
+				if (!results.isFull() || score > results.threshold()) {
+					candidates.push(neighbour, score);
+					if (null == accept || accept.test(neighbour))
+						results.offer(neighbour, score);
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Greedy descent of an upper layer
+	 * @return closest node found
+	 */
+	int greedy(float[] query, float norm, int entry, float entryScore, int level, int[] buffer) {
+		boolean changed = true;
+
+		while (changed) {
+			changed = false;
+			int n = neighbours(entry, level, buffer);
+			for (int i = 0; i < n; i++) {
+				float score = score(query, norm, buffer[i]);
+				if (score > entryScore) {
+					entryScore = score;
+					entry = buffer[i];
+					changed = true;
+				}
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Copy the links of node on level into buffer
+	 * @return number of links
+	 */
+	int neighbours(int node, int level, int[] buffer) {
+		synchronized (lock(node)) {
+			int[] links = page(node).links[node & PAGE_MASK][level];
+			int n = links[0];
+			System.arraycopy(links, 1, buffer, 0, n);
+			return n;
+		}
+	}
+
+	List<List<EmbeddingMatch>> exactSearch(float[][] queries, int k) {
+		int n = count;
+		return IntStream.range(0, queries.length).parallel().mapToObj(q -> {
+			float[] query = queries[q];
+			float norm = (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(query, 0, query, 0, query.length));
+			TopK top = new TopK(k);
+
+			for (int id = 0; id < n; id++) {
+				if (!isDeleted(id)) {
+					float score = score(query, norm, id);
+					if (score > top.threshold())
+						top.offer(id, score);
+				}
+			}
+			return top.toMatches(this::chunk);
+		}).toList();
+	}
+
+	float score(float[] query, float norm, int id) {
+		Page page = page(id);
+		int row = id & PAGE_MASK;
+		return metric.score(query, norm, page.vectors, row * dimension, page.norms[row]);
+	}
+
+	/**
+	 * Score node id against a vector held at offset in data
+	 */
+	float score(float[] data, int offset, float norm, int id) {
+		Page page = page(id);
+		int row = id & PAGE_MASK;
+
+		return switch (metric) {
+			case COSINE -> EmbeddingDistance.cosine(
+				EmbeddingDistance.KERNEL.dot(data, offset, page.vectors, row * dimension, dimension), norm, page.norms[row]
+			);
+			case DOT -> EmbeddingDistance.KERNEL.dot(data, offset, page.vectors, row * dimension, dimension);
+			case EUCLIDEAN -> -EmbeddingDistance.KERNEL.squaredL2(data, offset, page.vectors, row * dimension, dimension);
+		};
+	}
+
+	boolean isDeleted(int id) {
+		return page(id).deleted[id & PAGE_MASK];
+	}
+
+	String chunk(int id) {
+		return page(id).chunks[id & PAGE_MASK];
+	}
+
+	Page page(int id) {
+		return pages[id >>> PAGE_BITS];
+	}
+
+	Object lock(int id) {
+		return locks[id & (LOCK_STRIPES - 1)];
+	}
+
+	private void checkDimension(float[] vector) {
+		if (dimension != 0 && vector.length != dimension) {
+			throw new IllegalArgumentException("Vector dimension %d does not match index dimension %d".formatted(vector.length, dimension));
+		}
+	}
+
+	private static void sortDescending(int[] ids, float[] scores) {
+		// Insertion sort - these are link lists of at most 2m + 1
+		for (int i = 1; i < ids.length; i++) {
+			int id = ids[i];
+			float score = scores[i];
+			int j = i - 1;
+			while (j >= 0 && scores[j] < score) {
+				ids[j + 1] = ids[j];
+				scores[j + 1] = scores[j];
+				--j;
+			}
+			ids[j + 1] = id;
+			scores[j + 1] = score;
+		}
+	}
+
+	/**
+	 * Fixed size block of nodes
+	 */
+	static class Page {
+		final float[] vectors;
+		final float[] norms = new float[PAGE_ROWS];
+		final String[] chunks = new String[PAGE_ROWS];
+		@SuppressWarnings("unchecked")
+		final Map<String, Object>[] metadata = new Map[PAGE_ROWS];
+		final boolean[] deleted = new boolean[PAGE_ROWS];
+		/**
+		 * Per node, per level: [count, id, id ...]
+		 */
+		final int[][][] links = new int[PAGE_ROWS][][];
+
+		Page(int dimension) {
+			vectors = new float[PAGE_ROWS * dimension];
+		}
+	}
+
+	/**
+	 * Max-heap of candidates to expand, best first
+	 */
+	static class Candidates {
+		int[] ids = new int[64];
+		float[] scores = new float[64];
+		int size = 0;
+
+		void push(int id, float score) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, 2 * size);
+				scores = Arrays.copyOf(scores, 2 * size);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (scores[parent] >= score)
+					break;
+				ids[i] = ids[parent];
+				scores[i] = scores[parent];
+				i = parent;
+			}
+			ids[i] = id;
+			scores[i] = score;
+		}
+
+		float peekScore() { return scores[0]; }
+
+		int pop() {
+			int top = ids[0];
+			int id = ids[--size];
+			float score = scores[size];
+			int i = 0, half = size >>> 1;
+
+			while (i < half) {
+				int child = 2 * i + 1, right = child + 1;
+				if (right < size && scores[right] > scores[child])
+					child = right;
+				if (score >= scores[child])
+					break;
+				ids[i] = ids[child];
+				scores[i] = scores[child];
+				i = child;
+			}
+			ids[i] = id;
+			scores[i] = score;
+			return top;
+		}
+	}
+
+	/**
+	 * Per thread visited marks. Bumping the generation clears all marks in O(1).
+	 */
+	static class Visited {
+		int[] marks = new int[0];
+		int generation = 0;
+
+		void reset(int capacity) {
+			if (marks.length < capacity) {
+				marks = new int[Math.max(capacity, 2 * marks.length)];
+				generation = 0;
+			}
+			if (++generation == Integer.MAX_VALUE) {
+				Arrays.fill(marks, 0);
+				generation = 1;
+			}
+		}
+
+		/**
+		 * @return true if id had not been visited
+		 */
+		boolean visit(int id) {
+			if (id >= marks.length) {
+				marks = Arrays.copyOf(marks, Math.max(id + 1, 2 * marks.length));
+			}
+			if (marks[id] == generation)
+				return false;
+			marks[id] = generation;
+			return true;
+		}
+	}
+}
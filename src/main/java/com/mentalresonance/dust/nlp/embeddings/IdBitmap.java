@@ -0,0 +1,468 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non-negative int ids in the style of a roaring bitmap. Ids are grouped by their high 16 bits
+ * and each group is held as a sorted char[] while it has at most 4096 members, otherwise as a 65536 bit bitmap -
+ * so neither sparse nor dense sets waste space, and intersections and unions work a group at a time.
+ * <br/>
+ * Not thread safe.
+ */
+public class IdBitmap implements Serializable {
+
+	static final int ARRAY_MAX = 4096, WORDS = 1024;
+
+	int groups = 0;
+	char[] keys = new char[4];
+	Container[] containers = new Container[4];
+
+	/**
+	 * @param ids members
+	 * @return bitmap of ids
+	 */
+	public static IdBitmap of(int... ids) {
+		IdBitmap bitmap = new IdBitmap();
+		for (int id : ids) {
+			bitmap.add(id);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * @param id to add
+	 */
+	public void add(int id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Ids must be non-negative - got %d".formatted(id));
+		}
+		char key = (char)(id >>> 16);
+		int i = Arrays.binarySearch(keys, 0, groups, key);
+
+		if (i < 0) {
+			i = -i - 1;
+			if (groups == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * groups);
+				containers = Arrays.copyOf(containers, 2 * groups);
+			}
+			System.arraycopy(keys, i, keys, i + 1, groups - i);
+			System.arraycopy(containers, i, containers, i + 1, groups - i);
+			keys[i] = key;
+			containers[i] = new ArrayContainer();
+			++groups;
+		}
+		containers[i] = containers[i].add((char)id);
+	}
+
+	/**
+	 * @param id to remove
+	 */
+	public void remove(int id) {
+		int i = id < 0 ? -1 : Arrays.binarySearch(keys, 0, groups, (char)(id >>> 16));
+
+		if (i >= 0) {
+			containers[i] = containers[i].remove((char)id);
+			if (null == containers[i]) {
+				System.arraycopy(keys, i + 1, keys, i, groups - i - 1);
+				System.arraycopy(containers, i + 1, containers, i, groups - i - 1);
+				containers[--groups] = null;
+			}
+		}
+	}
+
+	/**
+	 * @param id to test
+	 * @return true if id is a member
+	 */
+	public boolean contains(int id) {
+		int i = id < 0 ? -1 : Arrays.binarySearch(keys, 0, groups, (char)(id >>> 16));
+		return i >= 0 && containers[i].contains((char)id);
+	}
+
+	/**
+	 * @return number of members
+	 */
+	public int cardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < groups; i++) {
+			cardinality += containers[i].cardinality();
+		}
+		return cardinality;
+	}
+
+	/**
+	 * @return true if there are no members
+	 */
+	public boolean isEmpty() { return groups == 0; }
+
+	/**
+	 * @param other bitmap
+	 * @return new bitmap of ids in both
+	 */
+	public IdBitmap and(IdBitmap other) {
+		IdBitmap result = new IdBitmap();
+
+		for (int i = 0, j = 0; i < groups && j < other.groups; ) {
+			if (keys[i] < other.keys[j])
+				++i;
+			else if (keys[i] > other.keys[j])
+				++j;
+			else
+				result.append(keys[i], Container.and(containers[i++], other.containers[j++]));
+		}
+		return result;
+	}
+
+	/**
+	 * @param other bitmap
+	 * @return new bitmap of ids in either
+	 */
+	public IdBitmap or(IdBitmap other) {
+		IdBitmap result = new IdBitmap();
+		int i = 0, j = 0;
+
+		while (i < groups && j < other.groups) {
+			if (keys[i] < other.keys[j])
+				result.append(keys[i], containers[i++].copy());
+			else if (keys[i] > other.keys[j])
+				result.append(other.keys[j], other.containers[j++].copy());
+			else
+				result.append(keys[i], Container.or(containers[i++], other.containers[j++]));
+		}
+		for (; i < groups; i++) {
+			result.append(keys[i], containers[i].copy());
+		}
+		for (; j < other.groups; j++) {
+			result.append(other.keys[j], other.containers[j].copy());
+		}
+		return result;
+	}
+
+	/**
+	 * @param other bitmap
+	 * @return new bitmap of ids in this but not other
+	 */
+	public IdBitmap andNot(IdBitmap other) {
+		IdBitmap result = new IdBitmap();
+
+		for (int i = 0, j = 0; i < groups; i++) {
+			while (j < other.groups && other.keys[j] < keys[i]) {
+				++j;
+			}
+			result.append(
+				keys[i],
+				j < other.groups && other.keys[j] == keys[i] ? Container.andNot(containers[i], other.containers[j]) : containers[i].copy()
+			);
+		}
+		return result;
+	}
+
+	/**
+	 * @return a copy
+	 */
+	public IdBitmap copy() {
+		return or(new IdBitmap());
+	}
+
+	/**
+	 * @param consumer receives each member in ascending order
+	 */
+	public void forEach(IntConsumer consumer) {
+		for (int i = 0; i < groups; i++) {
+			containers[i].forEach(keys[i] << 16, consumer);
+		}
+	}
+
+	/**
+	 * @return members in ascending order
+	 */
+	public int[] toArray() {
+		int[] ids = new int[cardinality()];
+		int[] n = { 0 };
+		forEach(id -> ids[n[0]++] = id);
+		return ids;
+	}
+
+	/**
+	 * @return as a BitSet - constant time membership tests for scans
+	 */
+	public BitSet toBitSet() {
+		BitSet bits = new BitSet();
+		forEach(bits::set);
+		return bits;
+	}
+
+	@Override
+	public String toString() {
+		return "IdBitmap: %d ids in %d groups".formatted(cardinality(), groups);
+	}
+
+	private void append(char key, Container container) {
+		if (null == container)
+			return;
+		if (groups == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * groups);
+			containers = Arrays.copyOf(containers, 2 * groups);
+		}
+		keys[groups] = key;
+		containers[groups++] = container;
+	}
+
+	/**
+	 * The low 16 bits of the members of one group
+	 */
+	abstract static class Container implements Serializable {
+
+		abstract Container add(char low);
+
+		/**
+		 * @return the container or null if now empty
+		 */
+		abstract Container remove(char low);
+
+		abstract boolean contains(char low);
+
+		abstract int cardinality();
+
+		abstract void forEach(int high, IntConsumer consumer);
+
+		abstract Container copy();
+
+		/**
+		 * @return contents as WORDS longs - callers must not modify
+		 */
+		abstract long[] words();
+
+		static Container and(Container a, Container b) {
+			if (a instanceof ArrayContainer x) {
+				ArrayContainer result = new ArrayContainer(x.cardinality);
+				for (int i = 0; i < x.cardinality; i++) {
+					if (b.contains(x.values[i]))
+						result.values[result.cardinality++] = x.values[i];
+				}
+				return result.cardinality > 0 ? result : null;
+			}
+			if (b instanceof ArrayContainer)
+				return and(b, a);
+			long[] words = Arrays.copyOf(a.words(), WORDS), other = b.words();
+			for (int w = 0; w < WORDS; w++) {
+				words[w] &= other[w];
+			}
+			return fromWords(words);
+		}
+
+		static Container or(Container a, Container b) {
+			if (a instanceof ArrayContainer x && b instanceof ArrayContainer y && x.cardinality + y.cardinality <= ARRAY_MAX) {
+				ArrayContainer result = new ArrayContainer(x.cardinality + y.cardinality);
+				int i = 0, j = 0;
+				while (i < x.cardinality && j < y.cardinality) {
+					char u = x.values[i], v = y.values[j];
+					result.values[result.cardinality++] = u <= v ? u : v;
+					if (u <= v)
+						++i;
+					if (v <= u)
+						++j;
+				}
+				while (i < x.cardinality) {
+					result.values[result.cardinality++] = x.values[i++];
+				}
+				while (j < y.cardinality) {
+					result.values[result.cardinality++] = y.values[j++];
+				}
+				return result;
+			}
+			long[] words = Arrays.copyOf(a.words(), WORDS), other = b.words();
+			for (int w = 0; w < WORDS; w++) {
+				words[w] |= other[w];
+			}
+			return fromWords(words);
+		}
+
+		static Container andNot(Container a, Container b) {
+			if (a instanceof ArrayContainer x) {
+				ArrayContainer result = new ArrayContainer(x.cardinality);
+				for (int i = 0; i < x.cardinality; i++) {
+					if (! b.contains(x.values[i]))
+						result.values[result.cardinality++] = x.values[i];
+				}
+				return result.cardinality > 0 ? result : null;
+			}
+			long[] words = Arrays.copyOf(a.words(), WORDS), other = b.words();
+			for (int w = 0; w < WORDS; w++) {
+				words[w] &= ~other[w];
+			}
+			return fromWords(words);
+		}
+
+		static Container fromWords(long[] words) {
+			int cardinality = 0;
+			for (long word : words) {
+				cardinality += Long.bitCount(word);
+			}
+			if (cardinality == 0)
+				return null;
+			if (cardinality > ARRAY_MAX)
+				return new BitmapContainer(words, cardinality);
+
+			ArrayContainer result = new ArrayContainer(cardinality);
+			for (int w = 0; w < WORDS; w++) {
+				for (long word = words[w]; word != 0; word &= word - 1) {
+					result.values[result.cardinality++] = (char)((w << 6) + Long.numberOfTrailingZeros(word));
+				}
+			}
+			return result;
+		}
+	}
+
+	static class ArrayContainer extends Container {
+		char[] values;
+		int cardinality = 0;
+
+		ArrayContainer() {
+			this(4);
+		}
+
+		ArrayContainer(int capacity) {
+			values = new char[Math.max(1, capacity)];
+		}
+
+		@Override
+		Container add(char low) {
+			int i = Arrays.binarySearch(values, 0, cardinality, low);
+			if (i >= 0)
+				return this;
+			if (cardinality == ARRAY_MAX) {
+				long[] words = words();
+				words[low >>> 6] |= 1L << low;
+				return new BitmapContainer(words, cardinality + 1);
+			}
+			i = -i - 1;
+			if (cardinality == values.length)
+				values = Arrays.copyOf(values, Math.min(2 * cardinality, ARRAY_MAX));
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = low;
+			++cardinality;
+			return this;
+		}
+
+		@Override
+		Container remove(char low) {
+			int i = Arrays.binarySearch(values, 0, cardinality, low);
+			if (i >= 0) {
+				System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+				--cardinality;
+			}
+			return cardinality > 0 ? this : null;
+		}
+
+		@Override
+		boolean contains(char low) {
+			return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+		}
+
+		@Override
+		int cardinality() { return cardinality; }
+
+		@Override
+		void forEach(int high, IntConsumer consumer) {
+			for (int i = 0; i < cardinality; i++) {
+				consumer.accept(high | values[i]);
+			}
+		}
+
+		@Override
+		Container copy() {
+			ArrayContainer copy = new ArrayContainer(cardinality);
+			System.arraycopy(values, 0, copy.values, 0, cardinality);
+			copy.cardinality = cardinality;
+			return copy;
+		}
+
+		@Override
+		long[] words() {
+			long[] words = new long[WORDS];
+			for (int i = 0; i < cardinality; i++) {
+				words[values[i] >>> 6] |= 1L << values[i];
+			}
+			return words;
+		}
+	}
+
+	static class BitmapContainer extends Container {
+		final long[] words;
+		int cardinality;
+
+		BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		Container add(char low) {
+			long bit = 1L << low;
+			if ((words[low >>> 6] & bit) == 0) {
+				words[low >>> 6] |= bit;
+				++cardinality;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(char low) {
+			long bit = 1L << low;
+			if ((words[low >>> 6] & bit) != 0) {
+				words[low >>> 6] &= ~bit;
+				if (--cardinality <= ARRAY_MAX)
+					return fromWords(words);
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char low) {
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		int cardinality() { return cardinality; }
+
+		@Override
+		void forEach(int high, IntConsumer consumer) {
+			for (int w = 0; w < WORDS; w++) {
+				for (long word = words[w]; word != 0; word &= word - 1) {
+					consumer.accept(high | (w << 6) + Long.numberOfTrailingZeros(word));
+				}
+			}
+		}
+
+		@Override
+		Container copy() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		@Override
+		long[] words() { return words; }
+	}
+}
@@ -0,0 +1,632 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Inverted file index. A k-means coarse quantizer partitions the space into nlist cells and each vector is kept
+ * in the list of its nearest centroid. A query scans only the nprobe lists whose centroids are nearest to it, so
+ * query cost is roughly nprobe / nlist of an exact scan. Build time and memory are far below a graph index.
+ * <br/>
+ * Lifecycle:
+ * <pre>
+ *     Until trained, adds are buffered and searched exactly.
+ *     train(sample) fits the centroids to a sample of Embeddings and distributes everything added so far. If
+ *     nothing is trained when nlist * 39 vectors have been added the index trains itself on what it has.
+ *     rebuild() re-fits the centroids - warm started from the current ones - on a sample of the current
+ *     contents and re-distributes the vectors. Searches continue against the old lists while this happens. Set
+ *     rebuildGrowth to have this happen in the background whenever the index grows by that factor.
+ * </pre>
+ * For COSINE the partition is computed on normalized vectors.
+ * <br/>
+ * Filtered searches score the admitted ids directly if there are fewer of them than a probe would scan, otherwise
+ * they probe as usual skipping ids the filter does not admit.
+ * <br/>
+ * Thread safe: adds are exclusive, searches run concurrently.
+ */
+@Slf4j
+public class IvfEmbeddingIndex implements EmbeddingIndex {
+
+	/**
+	 * Below this many training points per centroid k-means is unreliable
+	 */
+	static final int MIN_POINTS_PER_LIST = 39;
+	/**
+	 * Training sample is capped at this many points per centroid
+	 */
+	static final int MAX_POINTS_PER_LIST = 256;
+	static final int TRAIN_ITERATIONS = 20, REBUILD_ITERATIONS = 5;
+
+	@Getter
+	final SimilarityMetric metric;
+	/**
+	 * Number of lists (centroids)
+	 */
+	@Getter
+	final int nlist;
+	/**
+	 * Number of lists scanned per query
+	 */
+	@Getter
+	@Setter
+	volatile int nprobe;
+	/**
+	 * If greater than 1 rebuild in the background whenever the index has grown by this factor since it was
+	 * last trained.
+	 */
+	@Getter
+	@Setter
+	volatile double rebuildGrowth = 0.0;
+
+	final ForkJoinPool pool;
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+	final AtomicBoolean training = new AtomicBoolean(false);
+	/**
+	 * Serializes train() and rebuild() - each redistributes against the lists as they were when it started
+	 */
+	final Object trainLock = new Object();
+	final Random random = new Random(17);
+
+	int dimension = 0, count = 0, removed = 0, trainedSize = 0;
+	float[] centroids = null, halfNorms = null;
+	InvertedList[] lists = new InvertedList[0];
+	InvertedList pending = new InvertedList(0);
+	/**
+	 * Per id - its list (-1 is pending) and position in that list
+	 */
+	int[] listOf = new int[0], positionOf = new int[0];
+	final ArrayList<String> chunks = new ArrayList<>();
+	final ArrayList<Map<String, Object>> metadata = new ArrayList<>();
+	final BitSet deleted = new BitSet();
+	final AttributeIndex attributes = new AttributeIndex();
+
+	/**
+	 * Cosine index probing 8 lists on the common pool
+	 * @param nlist number of lists. sqrt(expected size) is a reasonable start
+	 */
+	public IvfEmbeddingIndex(int nlist) {
+		this(SimilarityMetric.COSINE, nlist, 8);
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 * @param nlist number of lists
+	 * @param nprobe number of lists scanned per query
+	 */
+	public IvfEmbeddingIndex(SimilarityMetric metric, int nlist, int nprobe) {
+		this(metric, nlist, nprobe, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 * @param nlist number of lists
+	 * @param nprobe number of lists scanned per query
+	 * @param pool for training, rebuilding and batch queries
+	 */
+	public IvfEmbeddingIndex(SimilarityMetric metric, int nlist, int nprobe, ForkJoinPool pool) {
+		this.metric = metric;
+		this.nlist = nlist;
+		this.nprobe = nprobe;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return true once the coarse quantizer has been trained
+	 */
+	public boolean isTrained() {
+		lock.readLock().lock();
+		try {
+			return null != centroids;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int add(Embedding embedding) {
+		float[] vector = embedding.getVector();
+		boolean train = false;
+
+		lock.writeLock().lock();
+		try {
+			if (dimension == 0)
+				dimension = vector.length;
+			else
+				checkDimension(vector);
+
+			int id = count++;
+			if (id == listOf.length) {
+				listOf = Arrays.copyOf(listOf, Math.max(16, 2 * id));
+				positionOf = Arrays.copyOf(positionOf, listOf.length);
+			}
+			chunks.add(embedding.getChunk());
+			metadata.add(embedding.getMetadata());
+			attributes.add(id, embedding.getMetadata());
+			place(id, vector, embedding.norm(), centroids, halfNorms, lists);
+
+			int live = count - removed;
+			if (null == centroids)
+				train = live >= nlist * MIN_POINTS_PER_LIST;
+			else
+				train = rebuildGrowth > 1.0 && live >= trainedSize * rebuildGrowth;
+			return id;
+		}
+		finally {
+			lock.writeLock().unlock();
+			if (train && training.compareAndSet(false, true)) {
+				pool.execute(() -> {
+					try {
+						rebuild();
+					}
+					catch (Exception e) {
+						log.error("Background IVF rebuild failed: {}", e.getMessage());
+					}
+					finally {
+						training.set(false);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Fit the coarse quantizer to a sample and distribute everything added so far into the lists
+	 * @param sample training sample - at least nlist embeddings, ideally 39 * nlist or more
+	 */
+	public void train(List<Embedding> sample) {
+		int n = sample.size(), dim = sample.getFirst().dimension();
+		float[] data = new float[n * dim];
+
+		lock.writeLock().lock();
+		try {
+			if (dimension == 0)
+				dimension = dim;
+			else if (dim != dimension)
+				throw new IllegalArgumentException("Sample dimension %d does not match index dimension %d".formatted(dim, dimension));
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		for (int i = 0; i < n; i++) {
+			if (sample.get(i).dimension() != dim)
+				throw new IllegalArgumentException("Sample vectors must all be of the same size.");
+			System.arraycopy(sample.get(i).getVector(), 0, data, i * dim, dim);
+			normalizeIfCosine(data, i * dim, dim, sample.get(i).norm());
+		}
+		synchronized (trainLock) {
+			redistribute(KMeans.train(data, n, dim, nlist, TRAIN_ITERATIONS, random.nextLong(), pool));
+		}
+	}
+
+	/**
+	 * Re-fit the centroids to a sample of the current contents - warm started from the current centroids if
+	 * trained - and redistribute. Removed vectors are dropped from the lists. Searches continue against the
+	 * current lists until the new ones are swapped in. Only copying the sample holds the lock.
+	 */
+	public void rebuild() {
+		synchronized (trainLock) {
+			float[] data, warm;
+			int n;
+
+			lock.readLock().lock();
+			try {
+				int live = count - removed;
+				if (live < nlist) {
+					throw new IllegalStateException("Need at least %d vectors to train - have %d".formatted(nlist, live));
+				}
+				int[] ids = IntStream.range(0, count).filter(id -> !deleted.get(id)).toArray();
+				n = Math.min(ids.length, nlist * MAX_POINTS_PER_LIST);
+				data = new float[n * dimension];
+
+				for (int i = 0; i < n; i++) {
+					int j = i + random.nextInt(ids.length - i);
+					int t = ids[i]; ids[i] = ids[j]; ids[j] = t;
+					copyVector(ids[i], data, i * dimension);
+					normalizeIfCosine(data, i * dimension, dimension, norm(ids[i]));
+				}
+				warm = null == centroids ? null : centroids.clone();
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+			redistribute(null == warm ?
+				KMeans.train(data, n, dimension, nlist, TRAIN_ITERATIONS, random.nextLong(), pool) :
+				KMeans.train(data, n, dimension, warm, nlist, REBUILD_ITERATIONS, random.nextLong(), pool)
+			);
+		}
+	}
+
+	@Override
+	public boolean remove(int id) {
+		lock.writeLock().lock();
+		try {
+			if (id < 0 || id >= count || deleted.get(id))
+				return false;
+			deleted.set(id);
+			attributes.remove(id);
+			++removed;
+			return true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k) {
+		return search(query, k, nprobe);
+	}
+
+	/**
+	 * Search with an explicit nprobe
+	 * @param query the query
+	 * @param k number of neighbours
+	 * @param probes number of lists to scan
+	 * @return up to k matches, best first
+	 */
+	public List<EmbeddingMatch> search(float[] query, int k, int probes) {
+		lock.readLock().lock();
+		try {
+			checkDimension(query);
+			float norm = (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(query, 0, query, 0, query.length));
+			TopK top = new TopK(k);
+
+			scan(pending, query, norm, top, null);
+			if (null != centroids) {
+				for (int list : probe(query, norm, probes)) {
+					scan(lists[list], query, norm, top, null);
+				}
+			}
+			return top.toMatches(chunks::get);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k, Filter filter) {
+		if (null == filter)
+			return search(query, k);
+
+		lock.readLock().lock();
+		try {
+			checkDimension(query);
+			float norm = (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(query, 0, query, 0, query.length));
+			IdBitmap allowed = attributes.evaluate(filter);
+			TopK top = new TopK(k);
+			int probes = nprobe;
+
+			if (null == centroids || allowed.cardinality() < (long)count * probes / nlist) {
+				allowed.forEach(id -> {
+					if (! deleted.get(id)) {
+						InvertedList list = listOf[id] < 0 ? pending : lists[listOf[id]];
+						top.offer(id, metric.score(query, norm, list.vectors, positionOf[id] * dimension, list.norms[positionOf[id]]));
+					}
+				});
+			}
+			else {
+				BitSet admitted = allowed.toBitSet();
+				scan(pending, query, norm, top, admitted);
+				for (int list : probe(query, norm, probes)) {
+					scan(lists[list], query, norm, top, admitted);
+				}
+			}
+			return top.toMatches(chunks::get);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Queries are searched in parallel
+	 */
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k) {
+		int probes = nprobe;
+		return pool.submit(() ->
+			IntStream.range(0, queries.length).parallel().mapToObj(q -> search(queries[q], k, probes)).toList()
+		).join();
+	}
+
+	/**
+	 * Recall versus latency at each value of nprobe, measured against exact results (nprobe = nlist).
+	 * @param queries sample queries
+	 * @param k neighbours per query
+	 * @param nprobeValues settings of nprobe to measure
+	 * @return a report per setting
+	 */
+	public List<RecallReport> recallReport(float[][] queries, int k, int... nprobeValues) {
+		List<List<EmbeddingMatch>> truth = new ArrayList<>();
+		List<RecallReport> reports = new ArrayList<>();
+
+		for (float[] query : queries) {
+			truth.add(search(query, k, nlist));
+		}
+		for (int probes : nprobeValues) {
+			reports.add(RecallReport.measure("nprobe=" + probes, query -> search(query, k, probes), queries, truth, k));
+		}
+		return reports;
+	}
+
+	@Override
+	public Embedding get(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count || deleted.get(id))
+				return null;
+			float[] vector = new float[dimension];
+			copyVector(id, vector, 0);
+			Embedding embedding = new Embedding(chunks.get(id), vector);
+			embedding.setMetadata(metadata.get(id));
+			return embedding;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return count - removed;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int dimension() { return dimension; }
+
+	/**
+	 * @return number of vectors in each list - to check the balance of the partition
+	 */
+	public int[] listSizes() {
+		lock.readLock().lock();
+		try {
+			return Arrays.stream(lists).mapToInt(list -> list.size).toArray();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Build new lists from new centroids - the caller holds trainLock. Ids present when we start are assigned
+	 * in parallel against a snapshot of the lists taken under the read lock, anything added meanwhile is placed
+	 * under the write lock before the swap.
+	 */
+	void redistribute(float[] trained) {
+		float[] trainedHalfNorms = KMeans.halfSquaredNorms(trained, nlist, dimension);
+		InvertedList[] fresh = new InvertedList[nlist];
+		InvertedList[] snapshotLists;
+		InvertedList snapshotPending;
+		int[] snapshotListOf, snapshotPositionOf;
+		BitSet snapshotDeleted;
+		int snapshot;
+
+		for (int i = 0; i < nlist; i++) {
+			fresh[i] = new InvertedList(dimension);
+		}
+		lock.readLock().lock();
+		try {
+			snapshot = count;
+			snapshotLists = Arrays.stream(lists).map(InvertedList::snapshot).toArray(InvertedList[]::new);
+			snapshotPending = pending.snapshot();
+			snapshotListOf = listOf;
+			snapshotPositionOf = positionOf;
+			snapshotDeleted = (BitSet)deleted.clone();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		int[] freshListOf = new int[snapshotListOf.length], freshPositionOf = new int[snapshotListOf.length];
+		int[] assignment = pool.submit(() -> IntStream.range(0, snapshot).parallel().map(id -> {
+			if (snapshotDeleted.get(id))
+				return -1;
+			float[] vector = new float[dimension];
+			copyVector(id, vector, 0, snapshotLists, snapshotPending, snapshotListOf, snapshotPositionOf);
+			return nearestList(vector, trained, trainedHalfNorms);
+		}).toArray()).join();
+
+		float[] copy = new float[dimension];
+		for (int id = 0; id < snapshot; id++) {
+			if (assignment[id] >= 0) {
+				copyVector(id, copy, 0, snapshotLists, snapshotPending, snapshotListOf, snapshotPositionOf);
+				freshListOf[id] = assignment[id];
+				freshPositionOf[id] = fresh[assignment[id]].add(
+					copy, norm(id, snapshotLists, snapshotPending, snapshotListOf, snapshotPositionOf), id
+				);
+			}
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (freshListOf.length < listOf.length) {
+				freshListOf = Arrays.copyOf(freshListOf, listOf.length);
+				freshPositionOf = Arrays.copyOf(freshPositionOf, listOf.length);
+			}
+			float[] vector = new float[dimension];
+			InvertedList[] old = lists;
+			InvertedList oldPending = pending;
+			int[] oldListOf = listOf, oldPositionOf = positionOf;
+
+			for (int id = snapshot; id < count; id++) {
+				copyVector(id, vector, 0, old, oldPending, oldListOf, oldPositionOf);
+				int list = nearestList(vector, trained, trainedHalfNorms);
+				freshListOf[id] = list;
+				freshPositionOf[id] = fresh[list].add(vector, norm(id, old, oldPending, oldListOf, oldPositionOf), id);
+			}
+			centroids = trained;
+			halfNorms = trainedHalfNorms;
+			lists = fresh;
+			pending = new InvertedList(dimension);
+			listOf = freshListOf;
+			positionOf = freshPositionOf;
+			trainedSize = count - removed;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Put id into its list (or pending if untrained)
+	 */
+	private void place(int id, float[] vector, float norm, float[] centroids, float[] halfNorms, InvertedList[] lists) {
+		if (null == centroids) {
+			if (pending.dimension == 0)
+				pending = new InvertedList(dimension);
+			listOf[id] = -1;
+			positionOf[id] = pending.add(vector, norm, id);
+		} else {
+			int list = nearestList(vector, centroids, halfNorms);
+			listOf[id] = list;
+			positionOf[id] = lists[list].add(vector, norm, id);
+		}
+	}
+
+	/**
+	 * @return the nprobe lists nearest the query
+	 */
+	private int[] probe(float[] query, float norm, int probes) {
+		float[] normalized = normalizedCopy(query, norm);
+		TopK nearest = new TopK(Math.min(probes, nlist));
+
+		for (int c = 0; c < nlist; c++) {
+			nearest.offer(c, EmbeddingDistance.KERNEL.dot(normalized, 0, centroids, c * dimension, dimension) - halfNorms[c]);
+		}
+		return Arrays.copyOf(nearest.ids, nearest.size);
+	}
+
+	private int nearestList(float[] vector, float[] centroids, float[] halfNorms) {
+		float[] normalized = normalizedCopy(vector, (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(vector, 0, vector, 0, dimension)));
+		return KMeans.nearest(centroids, halfNorms, nlist, normalized, 0, dimension);
+	}
+
+	private void scan(InvertedList list, float[] query, float norm, TopK top, BitSet allowed) {
+		for (int i = 0, offset = 0; i < list.size; i++, offset += dimension) {
+			int id = list.ids[i];
+			if ((removed > 0 && deleted.get(id)) || (null != allowed && ! allowed.get(id)))
+				continue;
+			float score = metric.score(query, norm, list.vectors, offset, list.norms[i]);
+			if (score > top.threshold())
+				top.offer(id, score);
+		}
+	}
+
+	private void copyVector(int id, float[] into, int offset) {
+		copyVector(id, into, offset, lists, pending, listOf, positionOf);
+	}
+
+	private void copyVector(int id, float[] into, int offset, InvertedList[] lists, InvertedList pending, int[] listOf, int[] positionOf) {
+		InvertedList list = listOf[id] < 0 ? pending : lists[listOf[id]];
+		System.arraycopy(list.vectors, positionOf[id] * dimension, into, offset, dimension);
+	}
+
+	private float norm(int id) {
+		return norm(id, lists, pending, listOf, positionOf);
+	}
+
+	private float norm(int id, InvertedList[] lists, InvertedList pending, int[] listOf, int[] positionOf) {
+		InvertedList list = listOf[id] < 0 ? pending : lists[listOf[id]];
+		return list.norms[positionOf[id]];
+	}
+
+	private float[] normalizedCopy(float[] vector, float norm) {
+		float[] copy = vector.clone();
+		normalizeIfCosine(copy, 0, copy.length, norm);
+		return copy;
+	}
+
+	private void normalizeIfCosine(float[] data, int offset, int length, float norm) {
+		if (metric == SimilarityMetric.COSINE && norm > 0.0f) {
+			for (int i = 0; i < length; i++) {
+				data[offset + i] /= norm;
+			}
+		}
+	}
+
+	private void checkDimension(float[] vector) {
+		if (dimension != 0 && vector.length != dimension) {
+			throw new IllegalArgumentException("Vector dimension %d does not match index dimension %d".formatted(vector.length, dimension));
+		}
+	}
+
+	/**
+	 * One cell's vectors, contiguous
+	 */
+	static class InvertedList {
+		final int dimension;
+		float[] vectors = new float[0];
+		float[] norms = new float[0];
+		int[] ids = new int[0];
+		int size = 0;
+
+		InvertedList(int dimension) { this.dimension = dimension; }
+
+		/**
+		 * @return a view of the rows present now. Rows are only ever appended - growth copies to new arrays -
+		 * so the view stays valid, without a lock, however the list grows afterwards.
+		 */
+		InvertedList snapshot() {
+			InvertedList view = new InvertedList(dimension);
+			view.vectors = vectors;
+			view.norms = norms;
+			view.ids = ids;
+			view.size = size;
+			return view;
+		}
+
+		int add(float[] vector, float norm, int id) {
+			if (size == ids.length) {
+				int capacity = Math.max(16, 2 * size);
+				vectors = Arrays.copyOf(vectors, capacity * dimension);
+				norms = Arrays.copyOf(norms, capacity);
+				ids = Arrays.copyOf(ids, capacity);
+			}
+			System.arraycopy(vector, 0, vectors, size * dimension, dimension);
+			norms[size] = norm;
+			ids[size] = id;
+			return size++;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static com.mentalresonance.dust.nlp.embeddings.EmbeddingDistance.KERNEL;
+
+/**
+ * Parallel k-means (Lloyd's algorithm) over a contiguous row-major matrix. Used to train the coarse quantizer of
+ * {@link IvfEmbeddingIndex} and the codebooks of product quantization.
+ * <br/>
+ * Each iteration assigns every row to its nearest centroid in parallel, groups rows by centroid with a counting
+ * sort, then recomputes the centroids in parallel - so no per-thread copies of the centroids are needed. Empty
+ * clusters are re-seeded by splitting the largest one.
+ */
+public class KMeans {
+
+	/**
+	 * Train k centroids seeded from k distinct random rows
+	 * @param data row-major matrix
+	 * @param rows number of rows
+	 * @param dimension row length
+	 * @param k number of centroids
+	 * @param iterations maximum number of iterations
+	 * @param seed random seed
+	 * @param pool to run on
+	 * @return k * dimension centroids
+	 */
+	public static float[] train(float[] data, int rows, int dimension, int k, int iterations, long seed, ForkJoinPool pool) {
+		if (rows < k) {
+			throw new IllegalArgumentException("Need at least %d rows to train %d centroids - got %d".formatted(k, k, rows));
+		}
+		Random random = new Random(seed);
+		float[] centroids = new float[k * dimension];
+		int[] order = IntStream.range(0, rows).toArray();
+
+		// Partial Fisher-Yates - first k of order are a random sample
+		for (int i = 0; i < k; i++) {
+			int j = i + random.nextInt(rows - i);
+			int t = order[i]; order[i] = order[j]; order[j] = t;
+			System.arraycopy(data, order[i] * dimension, centroids, i * dimension, dimension);
+		}
+		return train(data, rows, dimension, centroids, k, iterations, seed, pool);
+	}
+
+	/**
+	 * Continue training from existing centroids (which are updated in place)
+	 * @param data row-major matrix
+	 * @param rows number of rows
+	 * @param dimension row length
+	 * @param centroids k * dimension initial centroids
+	 * @param k number of centroids
+	 * @param iterations maximum number of iterations
+	 * @param seed random seed (used re-seeding empty clusters)
+	 * @param pool to run on
+	 * @return centroids
+	 */
+	public static float[] train(
+		float[] data, int rows, int dimension, float[] centroids, int k, int iterations, long seed, ForkJoinPool pool
+	) {
+		Random random = new Random(seed);
+		int[] assignment = new int[rows];
+		Arrays.fill(assignment, -1);
+
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			float[] halfNorms = halfSquaredNorms(centroids, k, dimension);
+			int[] previous = assignment.clone();
+
+			pool.submit(() ->
+				IntStream.range(0, rows).parallel().forEach(row ->
+					assignment[row] = nearest(centroids, halfNorms, k, data, row * dimension, dimension)
+				)
+			).join();
+
+			if (Arrays.equals(previous, assignment))
+				break;
+
+			// Counting sort of rows by centroid
+			int[] starts = new int[k + 1];
+			for (int c : assignment) {
+				++starts[c + 1];
+			}
+			for (int c = 0; c < k; c++) {
+				starts[c + 1] += starts[c];
+			}
+			int[] members = new int[rows], fill = Arrays.copyOf(starts, k);
+			for (int row = 0; row < rows; row++) {
+				members[fill[assignment[row]]++] = row;
+			}
+
+			pool.submit(() ->
+				IntStream.range(0, k).parallel().forEach(c -> {
+					int from = starts[c], to = starts[c + 1];
+					if (from == to)
+						return;
+					double[] sum = new double[dimension];
+					for (int i = from; i < to; i++) {
+						int offset = members[i] * dimension;
+						for (int d = 0; d < dimension; d++) {
+							sum[d] += data[offset + d];
+						}
+					}
+					for (int d = 0; d < dimension; d++) {
+						centroids[c * dimension + d] = (float)(sum[d] / (to - from));
+					}
+				})
+			).join();
+
+			splitEmpty(centroids, starts, k, dimension, random);
+		}
+		return centroids;
+	}
+
+	/**
+	 * Index of the centroid nearest (by Euclidean distance) to a row
+	 * @param centroids k * dimension centroids
+	 * @param halfNorms from {@link #halfSquaredNorms(float[], int, int)}
+	 * @param k number of centroids
+	 * @param data row-major matrix
+	 * @param offset start of row in data
+	 * @param dimension row length
+	 * @return nearest centroid
+	 */
+	public static int nearest(float[] centroids, float[] halfNorms, int k, float[] data, int offset, int dimension) {
+		// |x - c|^2 = |x|^2 + |c|^2 - 2x.c so the nearest c maximises x.c - |c|^2 / 2
+		int best = 0;
+		float bestScore = Float.NEGATIVE_INFINITY;
+
+		for (int c = 0; c < k; c++) {
+			float score = KERNEL.dot(data, offset, centroids, c * dimension, dimension) - halfNorms[c];
+			if (score > bestScore) {
+				bestScore = score;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param centroids k * dimension centroids
+	 * @param k number of centroids
+	 * @param dimension row length
+	 * @return |c|^2 / 2 for each centroid
+	 */
+	public static float[] halfSquaredNorms(float[] centroids, int k, int dimension) {
+		float[] halfNorms = new float[k];
+
+		for (int c = 0; c < k; c++) {
+			halfNorms[c] = 0.5f * KERNEL.dot(centroids, c * dimension, centroids, c * dimension, dimension);
+		}
+		return halfNorms;
+	}
+
+	/**
+	 * Give each empty cluster a perturbed copy of the currently largest cluster's centroid
+	 */
+	private static void splitEmpty(float[] centroids, int[] starts, int k, int dimension, Random random) {
+		int[] sizes = new int[k];
+		for (int c = 0; c < k; c++) {
+			sizes[c] = starts[c + 1] - starts[c];
+		}
+		for (int c = 0; c < k; c++) {
+			if (sizes[c] == 0) {
+				int largest = 0;
+				for (int j = 1; j < k; j++) {
+					if (sizes[j] > sizes[largest])
+						largest = j;
+				}
+				for (int d = 0; d < dimension; d++) {
+					float value = centroids[largest * dimension + d];
+					float epsilon = (random.nextBoolean() ? 1f : -1f) * (1e-4f * Math.abs(value) + 1e-6f);
+					centroids[c * dimension + d] = value + epsilon;
+					centroids[largest * dimension + d] = value - epsilon;
+				}
+				sizes[c] = sizes[largest] / 2;
+				sizes[largest] -= sizes[c];
+			}
+		}
+	}
+}
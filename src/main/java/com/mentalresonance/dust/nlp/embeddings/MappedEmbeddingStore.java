@@ -0,0 +1,802 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only on-disk store of embeddings, read through memory maps so opening it costs a few mmap calls
+ * regardless of size and vectors are never copied onto the heap wholesale. A store at path p is the files:
+ * <pre>
+ *     p.vec - 64 byte header (magic, version, encoding, dimension) then fixed size rows:
+ *             FLOAT32: norm, dimension floats
+ *             INT8:    norm, scale, dimension bytes (per vector {@link ScalarQuantizer#int8()})
+ *     p.off - per row the end offset (long) of its chunk in p.txt - the start is the previous row's end
+ *     p.txt - chunk texts, UTF-8, concatenated (a null chunk is stored as empty)
+ *     p.del - ids (int) of removed rows, in order of removal
+ *     p.meta - per row with metadata its id (int), length (int) and metadata (as serialized by {@link Embedding})
+ * </pre>
+ * All little-endian. Rows are appended text first, then vector, then metadata, then offset, so the row count is
+ * recovered on open as the number of complete rows whose offset and text are both present - a torn append is
+ * simply discarded (and truncated if opened for append). Appends and removals are durable after {@link #flush()}
+ * or {@link #close()}.
+ * <br/>
+ * Metadata is held on the heap and indexed, so searches may be filtered (see
+ * {@link #search(float[][], int, Filter)}) - rows outside the filter are skipped by the scan.
+ * <br/>
+ * As an {@link EmbeddingIndex} searches are an exact parallel scan of the mapped rows, and it can serve as
+ * the full precision source for rescoring (see {@link #vector(int)}). Removed rows keep their space - they are
+ * only skipped by searches and {@link #get(int)}.
+ * <br/>
+ * Thread safe: appends are exclusive, reads run concurrently.
+ */
+public class MappedEmbeddingStore implements EmbeddingIndex, Closeable {
+
+	/**
+	 * How vectors are stored
+	 */
+	public enum Encoding {
+		/**
+		 * 4 bytes per dimension
+		 */
+		FLOAT32,
+		/**
+		 * 1 byte per dimension plus a per vector scale
+		 */
+		INT8
+	}
+
+	static final int MAGIC = 0x44555354, VERSION = 1, HEADER_BYTES = 64;
+	static final long SEGMENT_BYTES = 1L << 30;
+	static final byte[] EMPTY = new byte[0];
+
+	@Getter
+	final SimilarityMetric metric;
+	@Getter
+	Encoding encoding;
+
+	final boolean writable;
+	final FileChannel vectors, offsets, chunks, removals, metadataFile;
+	final ScalarQuantizer quantizer = ScalarQuantizer.int8();
+	final ForkJoinPool pool;
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	int dimension = 0, rowBytes = 0, rows = 0, removed = 0;
+	final BitSet deleted = new BitSet();
+	volatile int mappedRows = 0;
+	long chunkBytes = 0, metadataBytes = 0;
+	final Map<Integer, Map<String, Object>> metadata = new HashMap<>();
+	final AttributeIndex attributes = new AttributeIndex();
+	Segments vectorMap, offsetMap, chunkMap;
+	FloatBuffer[] floats = new FloatBuffer[0];
+
+	/**
+	 * Open an existing store read only, for cosine search
+	 * @param path the store (without extension)
+	 * @return the store
+	 * @throws IOException if it cannot be read
+	 */
+	public static MappedEmbeddingStore open(Path path) throws IOException {
+		return open(path, SimilarityMetric.COSINE);
+	}
+
+	/**
+	 * Open an existing store read only
+	 * @param path the store (without extension)
+	 * @param metric how to score searches
+	 * @return the store
+	 * @throws IOException if it cannot be read
+	 */
+	public static MappedEmbeddingStore open(Path path, SimilarityMetric metric) throws IOException {
+		return new MappedEmbeddingStore(path, null, metric, false, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Open a store for appending, for cosine search, creating it if necessary
+	 * @param path the store (without extension)
+	 * @param encoding of a new store - must match that of an existing one
+	 * @return the store
+	 * @throws IOException if it cannot be opened
+	 */
+	public static MappedEmbeddingStore openForAppend(Path path, Encoding encoding) throws IOException {
+		return openForAppend(path, encoding, SimilarityMetric.COSINE);
+	}
+
+	/**
+	 * Open a store for appending, creating it if necessary
+	 * @param path the store (without extension)
+	 * @param encoding of a new store - must match that of an existing one
+	 * @param metric how to score searches
+	 * @return the store
+	 * @throws IOException if it cannot be opened
+	 */
+	public static MappedEmbeddingStore openForAppend(Path path, Encoding encoding, SimilarityMetric metric) throws IOException {
+		return new MappedEmbeddingStore(path, encoding, metric, true, ForkJoinPool.commonPool());
+	}
+
+	MappedEmbeddingStore(Path path, Encoding encoding, SimilarityMetric metric, boolean writable, ForkJoinPool pool) throws IOException {
+		OpenOption[] options = writable ? new OpenOption[] { READ, WRITE, CREATE } : new OpenOption[] { READ };
+
+		this.metric = metric;
+		this.writable = writable;
+		this.pool = pool;
+		this.vectors = FileChannel.open(sibling(path, ".vec"), options);
+		this.offsets = FileChannel.open(sibling(path, ".off"), options);
+		this.chunks = FileChannel.open(sibling(path, ".txt"), options);
+		this.removals = writable || Files.exists(sibling(path, ".del")) ? FileChannel.open(sibling(path, ".del"), options) : null;
+		this.metadataFile = writable || Files.exists(sibling(path, ".meta")) ? FileChannel.open(sibling(path, ".meta"), options) : null;
+
+		if (vectors.size() >= HEADER_BYTES) {
+			readHeader();
+			if (null != encoding && encoding != this.encoding) {
+				close();
+				throw new IllegalArgumentException("%s is %s not %s".formatted(path, this.encoding, encoding));
+			}
+			recover();
+		}
+		else if (writable) {
+			this.encoding = encoding;
+			vectors.truncate(0);
+			offsets.truncate(0);
+			chunks.truncate(0);
+			removals.truncate(0);
+			metadataFile.truncate(0);
+		}
+		else {
+			close();
+			throw new IOException("%s is not an embedding store".formatted(path));
+		}
+	}
+
+	/**
+	 * The files of a store
+	 * @param path the store (without extension)
+	 * @return vector, offset, chunk, removal and metadata files
+	 */
+	public static List<Path> files(Path path) {
+		return List.of(sibling(path, ".vec"), sibling(path, ".off"), sibling(path, ".txt"), sibling(path, ".del"), sibling(path, ".meta"));
+	}
+
+	@Override
+	public int add(Embedding embedding) {
+		return append(List.of(embedding));
+	}
+
+	@Override
+	public void addAll(List<Embedding> embeddings) {
+		if (! embeddings.isEmpty())
+			append(embeddings);
+	}
+
+	/**
+	 * Record the removal of a row in p.del. Its space is not reclaimed.
+	 * @param id of embedding
+	 * @return true if it was present
+	 */
+	@Override
+	public boolean remove(int id) {
+		lock.writeLock().lock();
+		try {
+			if (! writable) {
+				throw new UnsupportedOperationException("Embedding store is read only");
+			}
+			if (id < 0 || id >= rows || deleted.get(id))
+				return false;
+			write(removals, ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(0, id), (long)removed * Integer.BYTES);
+			deleted.set(id);
+			attributes.remove(id);
+			++removed;
+			return true;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k) {
+		return search(new float[][] { query }, k).getFirst();
+	}
+
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k) {
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+
+		ensureMapped();
+		lock.readLock().lock();
+		try {
+			TopK[] tops = scan(queries, k, removed > 0 ? deleted : null, null);
+
+			for (int q = 0; q < queries.length; q++) {
+				results.add(tops[q].toMatches(this::chunkAt));
+			}
+			return results;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k, Filter filter) {
+		return search(new float[][] { query }, k, filter).getFirst();
+	}
+
+	/**
+	 * As {@link #search(float[][], int)} but only scoring the rows whose metadata satisfies filter
+	 * @param queries the queries
+	 * @param k number of neighbours
+	 * @param filter on metadata - null for none
+	 * @return per query up to k matches, best first
+	 */
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k, Filter filter) {
+		if (null == filter)
+			return search(queries, k);
+
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+
+		ensureMapped();
+		lock.readLock().lock();
+		try {
+			TopK[] tops = scan(queries, k, null, attributes.evaluate(filter).toBitSet());
+
+			for (int q = 0; q < queries.length; q++) {
+				results.add(tops[q].toMatches(this::chunkAt));
+			}
+			return results;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * As {@link #search(float[][], int, Filter)} but also skipping the given rows and without resolving chunks
+	 * @param queries the queries
+	 * @param k number of neighbours
+	 * @param skip rows to skip, or null
+	 * @param filter on metadata - null for none
+	 * @return per query the best k rows
+	 */
+	TopK[] search(float[][] queries, int k, BitSet skip, Filter filter) {
+		ensureMapped();
+		lock.readLock().lock();
+		try {
+			if (removed > 0) {
+				BitSet both = (BitSet)deleted.clone();
+				if (null != skip)
+					both.or(skip);
+				skip = both;
+			}
+			return scan(queries, k, skip, null == filter ? null : attributes.evaluate(filter).toBitSet());
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Scan the mapped rows - the caller holds the read lock
+	 * @param queries the queries
+	 * @param k number of neighbours
+	 * @param deleted rows to skip, or null
+	 * @param allowed if not null only these rows are scored
+	 * @return per query the best k rows
+	 */
+	TopK[] scan(float[][] queries, int k, BitSet deleted, BitSet allowed) {
+		ScalarQuantizer.Query[] prepared = new ScalarQuantizer.Query[queries.length];
+
+		for (int q = 0; q < queries.length; q++) {
+			if (queries[q].length != dimension && dimension != 0) {
+				throw new IllegalArgumentException("Vector dimension %d does not match store dimension %d".formatted(queries[q].length, dimension));
+			}
+			prepared[q] = quantizer.prepare(queries[q]);
+		}
+		float[] queryNorms = EmbeddingDistance.norms(queries);
+		return ScanTask.scan(pool, queries.length, k, deleted, allowed, mappedRows, () -> new BlockScorer(prepared, queryNorms));
+	}
+
+	@Override
+	public Embedding get(int id) {
+		ensureMapped();
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= mappedRows || deleted.get(id))
+				return null;
+			Embedding embedding = new Embedding(chunkAt(id), vectorAt(id));
+			embedding.setMetadata(metadata.get(id));
+			return embedding;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Full precision (or for INT8, dequantized) vector - e.g. as the rescoring source of a quantized index
+	 * @param id of embedding
+	 * @return its vector
+	 */
+	public float[] vector(int id) {
+		ensureMapped();
+		lock.readLock().lock();
+		try {
+			checkId(id);
+			return vectorAt(id);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param id of embedding
+	 * @return its chunk text
+	 */
+	public String chunk(int id) {
+		ensureMapped();
+		lock.readLock().lock();
+		try {
+			checkId(id);
+			return chunkAt(id);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	float[] vectorAt(int id) {
+		long position = (long)id * rowBytes;
+		ByteBuffer buffer = vectorMap.buffer(position);
+		int at = vectorMap.offset(position);
+
+		if (encoding == Encoding.FLOAT32) {
+			float[] vector = new float[dimension];
+			floats[vectorMap.index(position)].get((at >>> 2) + 1, vector);
+			return vector;
+		}
+		byte[] codes = new byte[dimension];
+		buffer.get(at + 8, codes);
+		return quantizer.decode(codes, 0, dimension, buffer.getFloat(at + 4));
+	}
+
+	String chunkAt(int id) {
+		long start = id == 0 ? 0 : offsetMap.getLong((long)(id - 1) * Long.BYTES);
+		long end = offsetMap.getLong((long)id * Long.BYTES);
+		byte[] text = new byte[(int)(end - start)];
+
+		chunkMap.get(start, text);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+
+	private void checkId(int id) {
+		if (id < 0 || id >= mappedRows) {
+			throw new IndexOutOfBoundsException("No embedding %d in store of %d".formatted(id, mappedRows));
+		}
+	}
+
+	@Override
+	public int size() { return rows - removed; }
+
+	@Override
+	public int dimension() { return dimension; }
+
+	/**
+	 * Force appended embeddings to disk
+	 * @throws IOException on failure
+	 */
+	public void flush() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (writable) {
+				chunks.force(false);
+				vectors.force(false);
+				offsets.force(false);
+				removals.force(false);
+				metadataFile.force(false);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			vectors.close();
+			offsets.close();
+			chunks.close();
+			if (null != removals)
+				removals.close();
+			if (null != metadataFile)
+				metadataFile.close();
+		}
+	}
+
+	private int append(List<Embedding> embeddings) {
+		lock.writeLock().lock();
+		try {
+			if (! writable) {
+				throw new UnsupportedOperationException("Embedding store is read only");
+			}
+			if (dimension == 0)
+				writeHeader(embeddings.getFirst().dimension());
+
+			int first = rows, count = embeddings.size();
+			ByteBuffer rowBuffer = ByteBuffer.allocate(count * rowBytes).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer offsetBuffer = ByteBuffer.allocate(count * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			ByteArrayOutputStream text = new ByteArrayOutputStream(), records = new ByteArrayOutputStream();
+			byte[] codes = encoding == Encoding.INT8 ? new byte[dimension] : null;
+			long end = chunkBytes;
+			int row = first;
+
+			for (Embedding embedding : embeddings) {
+				float[] vector = embedding.getVector();
+				if (vector.length != dimension) {
+					throw new IllegalArgumentException("Vector dimension %d does not match store dimension %d".formatted(vector.length, dimension));
+				}
+				byte[] bytes = null != embedding.getChunk() ? embedding.getChunk().getBytes(StandardCharsets.UTF_8) : EMPTY;
+				text.writeBytes(bytes);
+				end += bytes.length;
+				offsetBuffer.putLong(end);
+
+				rowBuffer.putFloat(embedding.norm());
+				if (null != codes) {
+					rowBuffer.putFloat(quantizer.encode(vector, codes, 0));
+					rowBuffer.put(codes);
+				}
+				else {
+					for (float value : vector) {
+						rowBuffer.putFloat(value);
+					}
+				}
+				if (null != embedding.getMetadata() && ! embedding.getMetadata().isEmpty()) {
+					byte[] encoded = encodeMetadata(embedding.getMetadata());
+					records.writeBytes(ByteBuffer.allocate(2 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(row).putInt(encoded.length).array());
+					records.writeBytes(encoded);
+				}
+				++row;
+			}
+			byte[] metadataRecords = records.toByteArray();
+
+			write(chunks, ByteBuffer.wrap(text.toByteArray()), chunkBytes);
+			write(vectors, rowBuffer.flip(), HEADER_BYTES + (long)first * rowBytes);
+			write(metadataFile, ByteBuffer.wrap(metadataRecords), metadataBytes);
+			write(offsets, offsetBuffer.flip(), (long)first * Long.BYTES);
+			chunkBytes = end;
+			metadataBytes += metadataRecords.length;
+			for (int i = 0; i < count; i++) {
+				Map<String, Object> values = embeddings.get(i).getMetadata();
+				if (null != values && ! values.isEmpty())
+					metadata.put(first + i, new HashMap<>(values));
+				attributes.add(first + i, values);
+			}
+			rows += count;
+			return first;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends are written through the channels - map them before they are read
+	 */
+	private void ensureMapped() {
+		if (mappedRows != rows) {
+			lock.writeLock().lock();
+			try {
+				map();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	private void map() throws IOException {
+		if (rows == mappedRows)
+			return;
+		vectorMap.extend((long)rows * rowBytes);
+		offsetMap.extend((long)rows * Long.BYTES);
+		chunkMap.extend(chunkBytes);
+		if (encoding == Encoding.FLOAT32) {
+			floats = new FloatBuffer[vectorMap.buffers.length];
+			for (int i = 0; i < floats.length; i++) {
+				floats[i] = vectorMap.buffers[i].asFloatBuffer();
+			}
+		}
+		mappedRows = rows;
+	}
+
+	private void readHeader() throws IOException {
+		ByteBuffer header = read(vectors, 0, HEADER_BYTES);
+		int magic = header.getInt(), version = header.getInt();
+
+		if (magic != MAGIC || version != VERSION) {
+			close();
+			throw new IOException("Not an embedding store or unsupported version %d".formatted(version));
+		}
+		encoding = Encoding.values()[header.getInt()];
+		layout(header.getInt());
+	}
+
+	private void writeHeader(int dimension) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+		header.putInt(MAGIC).putInt(VERSION).putInt(encoding.ordinal()).putInt(dimension);
+		write(vectors, header.clear(), 0);
+		layout(dimension);
+	}
+
+	private void layout(int dimension) {
+		this.dimension = dimension;
+		this.rowBytes = encoding == Encoding.FLOAT32 ? Float.BYTES * (1 + dimension) : 2 * Float.BYTES + dimension;
+		long rowsPerSegment = Math.max(1, SEGMENT_BYTES / rowBytes);
+		vectorMap = new Segments(vectors, HEADER_BYTES, rowsPerSegment * rowBytes);
+		offsetMap = new Segments(offsets, 0, SEGMENT_BYTES);
+		chunkMap = new Segments(chunks, 0, SEGMENT_BYTES);
+	}
+
+	/**
+	 * Count the complete rows and, if writable, drop anything after them
+	 */
+	private void recover() throws IOException {
+		long count = Math.min((vectors.size() - HEADER_BYTES) / rowBytes, offsets.size() / Long.BYTES);
+		long textBytes = chunks.size();
+
+		while (count > 0 && read(offsets, (count - 1) * Long.BYTES, Long.BYTES).getLong() > textBytes) {
+			--count;
+		}
+		rows = (int)count;
+		chunkBytes = count > 0 ? read(offsets, (count - 1) * Long.BYTES, Long.BYTES).getLong() : 0;
+		if (writable) {
+			vectors.truncate(HEADER_BYTES + count * rowBytes);
+			offsets.truncate(count * Long.BYTES);
+			chunks.truncate(chunkBytes);
+		}
+		if (null != removals) {
+			long removalBytes = removals.size() / Integer.BYTES * Integer.BYTES;
+			ByteBuffer ids = removalBytes > 0 ? read(removals, 0, (int)removalBytes) : ByteBuffer.allocate(0);
+
+			while (ids.hasRemaining()) {
+				int id = ids.getInt();
+				if (id >= 0 && id < rows)
+					deleted.set(id);
+			}
+			removed = deleted.cardinality();
+			if (writable) {
+				// Rewrite so a torn or stale id cannot shift later removals
+				ByteBuffer kept = ByteBuffer.allocate(removed * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				deleted.stream().forEach(kept::putInt);
+				removals.truncate(0);
+				write(removals, kept.flip(), 0);
+			}
+		}
+		if (null != metadataFile)
+			recoverMetadata();
+		for (int row = 0; row < rows; row++) {
+			attributes.add(row, metadata.get(row));
+		}
+		deleted.stream().forEach(attributes::remove);
+		map();
+	}
+
+	/**
+	 * Load the metadata of the recovered rows and, if writable, drop a torn tail or records of discarded rows
+	 */
+	private void recoverMetadata() throws IOException {
+		long size = metadataFile.size(), position = 0;
+		// Not closed - that would close the channel
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(metadataFile.position(0))));
+
+		while (size - position >= 2 * Integer.BYTES) {
+			int row = Integer.reverseBytes(in.readInt()), length = Integer.reverseBytes(in.readInt());
+			if (row < 0 || row >= rows || length < 0 || length > size - position - 2 * Integer.BYTES)
+				break;
+			try {
+				metadata.put(row, EmbeddingCodec.readMetadata(new DataInputStream(new ByteArrayInputStream(in.readNBytes(length)))));
+			}
+			catch (IOException e) {
+				break;
+			}
+			position += 2 * Integer.BYTES + length;
+		}
+		metadataBytes = position;
+		if (writable)
+			metadataFile.truncate(position);
+	}
+
+	private static byte[] encodeMetadata(Map<String, Object> values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			EmbeddingCodec.writeMetadata(out, values);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file");
+		}
+		return buffer.flip();
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static Path sibling(Path path, String extension) {
+		return path.resolveSibling(path.getFileName() + extension);
+	}
+
+	/**
+	 * A file mapped in fixed size read only segments (a single map is limited to 2GB) from start
+	 */
+	static class Segments {
+		final FileChannel channel;
+		final long start, segmentBytes;
+		ByteBuffer[] buffers = new ByteBuffer[0];
+		long mapped = 0;
+
+		Segments(FileChannel channel, long start, long segmentBytes) {
+			this.channel = channel;
+			this.start = start;
+			this.segmentBytes = segmentBytes;
+		}
+
+		/**
+		 * Map [start, start + length), remapping the last partial segment
+		 */
+		void extend(long length) throws IOException {
+			if (length <= mapped)
+				return;
+			int first = (int)(mapped / segmentBytes), count = (int)((length + segmentBytes - 1) / segmentBytes);
+
+			buffers = Arrays.copyOf(buffers, count);
+			for (int i = first; i < count; i++) {
+				long from = i * segmentBytes;
+				buffers[i] = channel
+					.map(FileChannel.MapMode.READ_ONLY, start + from, Math.min(segmentBytes, length - from))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			}
+			mapped = length;
+		}
+
+		int index(long position) { return (int)(position / segmentBytes); }
+
+		ByteBuffer buffer(long position) { return buffers[index(position)]; }
+
+		int offset(long position) { return (int)(position % segmentBytes); }
+
+		long getLong(long position) {
+			return buffer(position).getLong(offset(position));
+		}
+
+		/**
+		 * Read bytes which may span segments
+		 */
+		void get(long position, byte[] into) {
+			for (int done = 0; done < into.length; ) {
+				int offset = offset(position + done);
+				int length = (int)Math.min(into.length - done, segmentBytes - offset);
+				buffer(position + done).get(offset, into, done, length);
+				done += length;
+			}
+		}
+	}
+
+	/**
+	 * Copies each block of mapped rows once into scratch arrays, then scores it against every query
+	 */
+	class BlockScorer implements ScanTask.RowScorer {
+		final ScalarQuantizer.Query[] queries;
+		final float[] queryNorms;
+		final boolean int8 = encoding == Encoding.INT8;
+		final float[] norms = new float[ScanTask.BLOCK_ROWS], scales = new float[ScanTask.BLOCK_ROWS], vectors;
+		final byte[] codes;
+		int from;
+
+		BlockScorer(ScalarQuantizer.Query[] queries, float[] queryNorms) {
+			this.queries = queries;
+			this.queryNorms = queryNorms;
+			this.vectors = int8 ? null : new float[ScanTask.BLOCK_ROWS * dimension];
+			this.codes = int8 ? new byte[ScanTask.BLOCK_ROWS * dimension] : null;
+		}
+
+		@Override
+		public void block(int from, int to) {
+			this.from = from;
+			for (int row = from, offset = 0; row < to; row++, offset += dimension) {
+				long position = (long)row * rowBytes;
+				ByteBuffer buffer = vectorMap.buffer(position);
+				int at = vectorMap.offset(position);
+				norms[row - from] = buffer.getFloat(at);
+
+				if (int8) {
+					scales[row - from] = buffer.getFloat(at + 4);
+					buffer.get(at + 8, codes, offset, dimension);
+				}
+				else
+					floats[vectorMap.index(position)].get((at >>> 2) + 1, vectors, offset, dimension);
+			}
+		}
+
+		@Override
+		public float score(int query, int row) {
+			int i = row - from;
+			float dot = int8 ?
+				quantizer.dot(queries[query], codes, i * dimension, scales[i]) :
+				EmbeddingDistance.KERNEL.dot(queries[query].weights, 0, vectors, i * dimension, dimension);
+			return metric.fromDot(dot, queryNorms[query], norms[i]);
+		}
+	}
+}
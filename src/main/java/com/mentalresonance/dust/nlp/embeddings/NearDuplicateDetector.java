@@ -0,0 +1,250 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds chunks which are near duplicates of chunks already embedded, so they can reuse the representative's
+ * embedding rather than being embedded again - templated pages, quoted replies and the like.
+ * <br/>
+ * Chunks are compared by the Jaccard similarity of their sets of lower cased word 3-shingles, estimated by a
+ * MinHash signature of 128 hashes: the fraction of hashes on which two signatures agree. To find candidates
+ * without comparing against every signature each is cut into 16 bands of 8 hashes and indexed under each band -
+ * chunks at a similarity of 0.8 share a band with probability 0.99, at 0.5 with probability 0.06. Candidates are
+ * duplicates if their estimated similarity is at least the threshold. Thresholds much below 0.7 will miss many
+ * duplicates which never become candidates.
+ * <br/>
+ * Representatives are added as they are embedded, so a duplicate of a chunk still being embedded is not caught.
+ * The oldest representatives are forgotten beyond capacity. Like {@link EmbeddingCache} it is shared between
+ * embedding service actors by passing it in their props. Vectors are scoped by model (and dimension) so
+ * representatives of one model are never used for another.
+ * <br/>
+ * Thread safe.
+ */
+public class NearDuplicateDetector {
+
+	/**
+	 * Default minimum similarity of duplicates
+	 */
+	public static final double DEFAULT_THRESHOLD = 0.8;
+
+	static final int SHINGLE = 3, BANDS = 16, ROWS = 8, HASHES = BANDS * ROWS;
+
+	@Getter
+	final double threshold;
+	@Getter
+	final int capacity;
+	/**
+	 * Representatives under each of their band keys, and in the order added
+	 */
+	final Map<Long, List<Representative>> buckets = new HashMap<>();
+	final ArrayDeque<Representative> representatives = new ArrayDeque<>();
+
+	final LongAdder checked = new LongAdder(), duplicates = new LongAdder();
+
+	/**
+	 * Detector with the default threshold
+	 * @param capacity maximum number of representatives remembered
+	 */
+	public NearDuplicateDetector(int capacity) {
+		this(DEFAULT_THRESHOLD, capacity);
+	}
+
+	/**
+	 * Detector
+	 * @param threshold minimum estimated Jaccard similarity of the shingles of duplicates, in (0, 1]
+	 * @param capacity maximum number of representatives remembered
+	 */
+	public NearDuplicateDetector(double threshold, int capacity) {
+		if (threshold <= 0 || threshold > 1)
+			throw new IllegalArgumentException("threshold must be in (0, 1]");
+		this.threshold = threshold;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Embedding of a near duplicate of the chunk
+	 * @param scope model (and dimension) the embedding must come from
+	 * @param chunk text
+	 * @return a copy of the representative's vector or null if there is no near duplicate
+	 */
+	public float[] find(String scope, String chunk) {
+		int[] signature = signature(chunk);
+		checked.increment();
+		if (null == signature)
+			return null;
+
+		synchronized (buckets) {
+			for (int band = 0; band < BANDS; ++band) {
+				List<Representative> candidates = buckets.get(key(scope, signature, band));
+				if (null == candidates)
+					continue;
+				for (Representative candidate : candidates) {
+					if (similarity(candidate.signature, signature) >= threshold && candidate.scope.equals(scope)) {
+						duplicates.increment();
+						return Arrays.copyOf(candidate.vector, candidate.vector.length);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Remember an embedded chunk as a representative
+	 * @param scope model (and dimension) which produced the vector
+	 * @param chunk text
+	 * @param vector its embedding
+	 */
+	public void add(String scope, String chunk, float[] vector) {
+		int[] signature = signature(chunk);
+		if (null == signature)
+			return;
+
+		Representative representative = new Representative(scope, signature, Arrays.copyOf(vector, vector.length));
+		synchronized (buckets) {
+			for (int band = 0; band < BANDS; ++band)
+				buckets.computeIfAbsent(key(scope, signature, band), k -> new ArrayList<>(1)).add(representative);
+			representatives.addLast(representative);
+
+			while (representatives.size() > capacity) {
+				Representative eldest = representatives.removeFirst();
+				for (int band = 0; band < BANDS; ++band) {
+					long key = key(eldest.scope, eldest.signature, band);
+					List<Representative> bucket = buckets.get(key);
+					bucket.remove(eldest);
+					if (bucket.isEmpty())
+						buckets.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return chunks looked up
+	 */
+	public long getChecked() { return checked.sum(); }
+
+	/**
+	 * @return chunks found to be near duplicates
+	 */
+	public long getDuplicates() { return duplicates.sum(); }
+
+	/**
+	 * @return fraction of chunks looked up which were near duplicates
+	 */
+	public double getDuplicateRate() {
+		long n = checked.sum();
+		return 0 == n ? 0 : (double) duplicates.sum() / n;
+	}
+
+	/**
+	 * @return number of representatives remembered
+	 */
+	public int size() {
+		synchronized (buckets) {
+			return representatives.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "NearDuplicateDetector: %d of %d chunks were near duplicates".formatted(duplicates.sum(), checked.sum());
+	}
+
+	/**
+	 * MinHash of the chunk's lower cased word 3-shingles (or of the whole chunk if it has fewer words)
+	 * @param chunk text
+	 * @return signature or null if it has no words
+	 */
+	static int[] signature(String chunk) {
+		List<String> words = words(chunk);
+		if (words.isEmpty())
+			return null;
+
+		int[] signature = new int[HASHES];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		int shingles = Math.max(1, words.size() - SHINGLE + 1);
+		for (int i = 0; i < shingles; ++i) {
+			long hash = 0xcbf29ce484222325L;
+			for (int j = i; j < Math.min(i + SHINGLE, words.size()); ++j) {
+				String word = words.get(j);
+				for (int k = 0; k < word.length(); ++k) {
+					hash ^= word.charAt(k);
+					hash *= 0x100000001b3L;
+				}
+				hash ^= ' ';
+				hash *= 0x100000001b3L;
+			}
+			// Hash function h is the mix of the shingle hash offset by h
+			for (int h = 0; h < HASHES; ++h)
+				signature[h] = Math.min(signature[h], (int) (ContentDefinedChunker.mix(hash + h * 0x9e3779b97f4a7c15L) >>> 33));
+		}
+		return signature;
+	}
+
+	/**
+	 * Estimated Jaccard similarity of the shingles behind two signatures
+	 */
+	static double similarity(int[] a, int[] b) {
+		int agree = 0;
+		for (int h = 0; h < HASHES; ++h) {
+			if (a[h] == b[h])
+				++agree;
+		}
+		return (double) agree / HASHES;
+	}
+
+	private static List<String> words(String chunk) {
+		List<String> words = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i <= chunk.length(); ++i) {
+			boolean letter = i < chunk.length() && Character.isLetterOrDigit(chunk.charAt(i));
+			if (letter && start < 0)
+				start = i;
+			else if (!letter && start >= 0) {
+				words.add(chunk.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	/*
+	 * Bucket key of one band of a signature
+	 */
+	private static long key(String scope, int[] signature, int band) {
+		long key = scope.hashCode() * 31L + band;
+		for (int h = band * ROWS; h < (band + 1) * ROWS; ++h)
+			key = ContentDefinedChunker.mix(key * 31 + signature[h]);
+		return key;
+	}
+
+	record Representative(String scope, int[] signature, float[] vector) {}
+}
@@ -0,0 +1,279 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+
+/**
+ * Exact scan index over product quantized vectors (see {@link ProductQuantizer}) for corpora too large even for
+ * int8. The scan set costs subspaces bytes plus a float norm per vector - 68 bytes at 64 subspaces, so about 14GB
+ * for 200 million vectors. That excludes the chunk text, which is held on the heap as well and at a few hundred
+ * characters per chunk outweighs the codes several times over. Codes (and any full precision copies) are held in
+ * pages rather than one array so the index is not bounded by the maximum array size.
+ * <br/>
+ * Every query scans every code. For sub-linear search over the same codes partition them first, as
+ * {@link IvfEmbeddingIndex} does for full vectors.
+ * <br/>
+ * The quantizer must already be trained (on a sample of the corpus). As with {@link QuantizedEmbeddingIndex} the
+ * best rescoreFactor * k candidates may be rescored at full precision - from a source set with
+ * {@link #setFullPrecision(IntFunction)} (e.g. an on-disk store) or from a copy held by the index.
+ * <br/>
+ * Filtered searches mask the scan with the ids the filter admits (see {@link AttributeIndex}).
+ * <br/>
+ * Thread safe: adds are exclusive, searches run concurrently.
+ */
+public class PqEmbeddingIndex implements EmbeddingIndex {
+
+	static final int PAGE_BITS = 16, PAGE_ROWS = 1 << PAGE_BITS, PAGE_MASK = PAGE_ROWS - 1;
+	/**
+	 * Full precision copies are paged as {@link ExactEmbeddingIndex} pages its vectors
+	 */
+	static final int ORIGINAL_PAGE_BITS = ExactEmbeddingIndex.PAGE_BITS, ORIGINAL_PAGE_MASK = ExactEmbeddingIndex.PAGE_MASK;
+
+	@Getter
+	final SimilarityMetric metric;
+	@Getter
+	final ProductQuantizer quantizer;
+	/**
+	 * If greater than 0, shortlist rescoreFactor * k candidates and rescore them at full precision
+	 */
+	@Getter
+	@Setter
+	volatile int rescoreFactor;
+	/**
+	 * Full precision vector by id, for rescoring
+	 */
+	@Setter
+	volatile IntFunction<float[]> fullPrecision = null;
+
+	final boolean keepFullPrecision;
+	final ForkJoinPool pool;
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+	final int codeSize;
+
+	int size = 0, removed = 0;
+	byte[][] pages = new byte[0][];
+	float[] norms = new float[0];
+	float[][] originals = new float[0][];
+	final ArrayList<String> chunks = new ArrayList<>();
+	final ArrayList<Map<String, Object>> metadata = new ArrayList<>();
+	final BitSet deleted = new BitSet();
+	final AttributeIndex attributes = new AttributeIndex();
+
+	/**
+	 * Cosine index, no rescoring
+	 * @param quantizer trained quantizer
+	 */
+	public PqEmbeddingIndex(ProductQuantizer quantizer) {
+		this(SimilarityMetric.COSINE, quantizer, 0, false);
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 * @param quantizer trained quantizer
+	 * @param rescoreFactor if greater than 0 rescore this many times k candidates at full precision
+	 * @param keepFullPrecision keep a full precision copy of each vector for rescoring
+	 */
+	public PqEmbeddingIndex(SimilarityMetric metric, ProductQuantizer quantizer, int rescoreFactor, boolean keepFullPrecision) {
+		this(metric, quantizer, rescoreFactor, keepFullPrecision, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 * @param quantizer trained quantizer
+	 * @param rescoreFactor if greater than 0 rescore this many times k candidates at full precision
+	 * @param keepFullPrecision keep a full precision copy of each vector for rescoring
+	 * @param pool to run parallel scans on
+	 */
+	public PqEmbeddingIndex(
+		SimilarityMetric metric, ProductQuantizer quantizer, int rescoreFactor, boolean keepFullPrecision, ForkJoinPool pool
+	) {
+		this.metric = metric;
+		this.quantizer = quantizer;
+		this.rescoreFactor = rescoreFactor;
+		this.keepFullPrecision = keepFullPrecision;
+		this.pool = pool;
+		this.codeSize = quantizer.bytesPerVector();
+	}
+
+	@Override
+	public int add(Embedding embedding) {
+		float[] vector = embedding.getVector();
+		int dimension = quantizer.getDimension();
+
+		lock.writeLock().lock();
+		try {
+			checkDimension(vector);
+			if ((size & PAGE_MASK) == 0 && size >>> PAGE_BITS == pages.length) {
+				pages = Arrays.copyOf(pages, pages.length + 1);
+				pages[pages.length - 1] = new byte[PAGE_ROWS * codeSize];
+			}
+			if (keepFullPrecision && (size & ORIGINAL_PAGE_MASK) == 0 && size >>> ORIGINAL_PAGE_BITS == originals.length) {
+				originals = Arrays.copyOf(originals, originals.length + 1);
+				originals[originals.length - 1] = new float[(ORIGINAL_PAGE_MASK + 1) * dimension];
+			}
+			if (size == norms.length)
+				norms = Arrays.copyOf(norms, Math.max(16, 2 * size));
+			quantizer.encode(vector, pages[size >>> PAGE_BITS], (size & PAGE_MASK) * codeSize);
+			if (keepFullPrecision)
+				System.arraycopy(vector, 0, originals[size >>> ORIGINAL_PAGE_BITS], (size & ORIGINAL_PAGE_MASK) * dimension, dimension);
+			norms[size] = embedding.norm();
+			chunks.add(embedding.getChunk());
+			metadata.add(embedding.getMetadata());
+			attributes.add(size, embedding.getMetadata());
+			return size++;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(int id) {
+		lock.writeLock().lock();
+		try {
+			if (id < 0 || id >= size || deleted.get(id))
+				return false;
+			deleted.set(id);
+			attributes.remove(id);
+			++removed;
+			return true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k) {
+		return search(new float[][] { query }, k).getFirst();
+	}
+
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k) {
+		return search(queries, k, (Filter)null);
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k, Filter filter) {
+		return search(new float[][] { query }, k, filter).getFirst();
+	}
+
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k, Filter filter) {
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+
+		lock.readLock().lock();
+		try {
+			BitSet allowed = null != filter ? attributes.evaluate(filter).toBitSet() : null;
+			IntFunction<float[]> source = keepFullPrecision ? this::original : fullPrecision;
+			boolean rescore = rescoreFactor > 0 && null != source;
+			float[][] tables = new float[queries.length][];
+
+			for (int q = 0; q < queries.length; q++) {
+				tables[q] = quantizer.table(queries[q]);
+			}
+			float[] queryNorms = EmbeddingDistance.norms(queries);
+			TopK[] tops = ScanTask.scan(
+				pool, queries.length, rescore ? k * rescoreFactor : k, removed > 0 ? deleted : null, allowed, size, () -> (q, row) ->
+					metric.fromDot(quantizer.dot(tables[q], pages[row >>> PAGE_BITS], (row & PAGE_MASK) * codeSize), queryNorms[q], norms[row])
+			);
+
+			for (int q = 0; q < queries.length; q++) {
+				results.add(rescore ? rescore(queries[q], tops[q], k, source) : tops[q].toMatches(chunks::get));
+			}
+			return results;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Embedding get(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= size || deleted.get(id))
+				return null;
+			Embedding embedding = new Embedding(chunks.get(id), keepFullPrecision ? original(id) : decode(id));
+			embedding.setMetadata(metadata.get(id));
+			return embedding;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param id of embedding
+	 * @return the vector reconstructed from its codes
+	 */
+	public float[] decode(int id) {
+		return quantizer.decode(pages[id >>> PAGE_BITS], (id & PAGE_MASK) * codeSize);
+	}
+
+	@Override
+	public int size() { return size - removed; }
+
+	@Override
+	public int dimension() { return quantizer.getDimension(); }
+
+	/**
+	 * @return approximate resident bytes used by the scan set (codes and norms)
+	 */
+	public long scanBytes() {
+		return (long)size * (codeSize + Float.BYTES);
+	}
+
+	private List<EmbeddingMatch> rescore(float[] query, TopK candidates, int k, IntFunction<float[]> source) {
+		float norm = (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(query, 0, query, 0, query.length));
+		TopK top = new TopK(k);
+
+		for (int i = 0; i < candidates.size; i++) {
+			int id = candidates.ids[i];
+			top.offer(id, metric.score(query, norm, source.apply(id), 0, norms[id]));
+		}
+		return top.toMatches(chunks::get);
+	}
+
+	private float[] original(int id) {
+		int dimension = quantizer.getDimension(), offset = (id & ORIGINAL_PAGE_MASK) * dimension;
+		return Arrays.copyOfRange(originals[id >>> ORIGINAL_PAGE_BITS], offset, offset + dimension);
+	}
+
+	private void checkDimension(float[] vector) {
+		if (vector.length != quantizer.getDimension()) {
+			throw new IllegalArgumentException("Vector dimension %d does not match index dimension %d".formatted(vector.length, quantizer.getDimension()));
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.mentalresonance.dust.nlp.embeddings.EmbeddingDistance.KERNEL;
+
+/**
+ * Product quantization. Vectors are split into subspaces, each with its own codebook of up to 256 centroids trained
+ * by {@link KMeans} on a sample, so a vector is stored as one byte per subspace - e.g. 96 bytes for a 1536 float
+ * (6144 byte) embedding.
+ * <br/>
+ * Distances are asymmetric: the query stays at full precision and {@link #table(float[])} precomputes its dot
+ * with every centroid of every subspace, after which the dot with any encoded vector is subspaces table lookups.
+ * <br/>
+ * If the dimension does not divide evenly the leading subspaces are one wider than the rest.
+ */
+public class ProductQuantizer implements Serializable {
+
+	@Getter
+	final int dimension, subspaces, centroids;
+	/**
+	 * Start of each subspace, plus dimension
+	 */
+	final int[] offsets;
+	/**
+	 * Per subspace centroids * width
+	 */
+	final float[][] codebooks;
+	final float[][] halfNorms;
+
+	ProductQuantizer(int dimension, int subspaces, int centroids, float[][] codebooks) {
+		this.dimension = dimension;
+		this.subspaces = subspaces;
+		this.centroids = centroids;
+		this.codebooks = codebooks;
+		this.offsets = new int[subspaces + 1];
+		this.halfNorms = new float[subspaces][];
+
+		for (int s = 0; s < subspaces; s++) {
+			offsets[s + 1] = offsets[s] + dimension / subspaces + (s < dimension % subspaces ? 1 : 0);
+			halfNorms[s] = KMeans.halfSquaredNorms(codebooks[s], centroids, width(s));
+		}
+	}
+
+	/**
+	 * Train 256 centroid codebooks for 25 iterations on the common pool
+	 * @param sample representative embeddings - at least 256
+	 * @param subspaces number of subspaces (bytes per vector)
+	 * @return trained quantizer
+	 */
+	public static ProductQuantizer train(List<Embedding> sample, int subspaces) {
+		return train(sample, subspaces, 256, 25, 42L, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Train codebooks
+	 * @param sample representative embeddings - at least centroids of them
+	 * @param subspaces number of subspaces (bytes per vector)
+	 * @param centroids per subspace, at most 256
+	 * @param iterations maximum k-means iterations
+	 * @param seed random seed
+	 * @param pool to train on
+	 * @return trained quantizer
+	 */
+	public static ProductQuantizer train(
+		List<Embedding> sample, int subspaces, int centroids, int iterations, long seed, ForkJoinPool pool
+	) {
+		int dimension = sample.getFirst().dimension(), rows = sample.size();
+
+		if (subspaces < 1 || subspaces > dimension) {
+			throw new IllegalArgumentException("Subspaces must be between 1 and %d - got %d".formatted(dimension, subspaces));
+		}
+		if (centroids < 1 || centroids > 256) {
+			throw new IllegalArgumentException("Centroids must be between 1 and 256 - got %d".formatted(centroids));
+		}
+		float[][] codebooks = new float[subspaces][];
+
+		for (int s = 0, offset = 0; s < subspaces; s++) {
+			int width = dimension / subspaces + (s < dimension % subspaces ? 1 : 0);
+			float[] data = new float[rows * width];
+
+			for (int row = 0; row < rows; row++) {
+				float[] vector = sample.get(row).getVector();
+				if (vector.length != dimension) {
+					throw new IllegalArgumentException("Sample vectors must all be of the same size.");
+				}
+				System.arraycopy(vector, offset, data, row * width, width);
+			}
+			codebooks[s] = KMeans.train(data, rows, width, centroids, iterations, seed + s, pool);
+			offset += width;
+		}
+		return new ProductQuantizer(dimension, subspaces, centroids, codebooks);
+	}
+
+	/**
+	 * @return bytes per encoded vector
+	 */
+	public int bytesPerVector() { return subspaces; }
+
+	/**
+	 * Encode a vector as the nearest centroid in each subspace
+	 * @param vector to encode
+	 * @param codes receives subspaces bytes
+	 * @param offset where in codes
+	 */
+	public void encode(float[] vector, byte[] codes, int offset) {
+		checkDimension(vector);
+		for (int s = 0; s < subspaces; s++) {
+			codes[offset + s] = (byte)KMeans.nearest(codebooks[s], halfNorms[s], centroids, vector, offsets[s], width(s));
+		}
+	}
+
+	/**
+	 * @param codes encoded vectors
+	 * @param offset start of code in codes
+	 * @return the reconstructed vector
+	 */
+	public float[] decode(byte[] codes, int offset) {
+		float[] vector = new float[dimension];
+
+		for (int s = 0; s < subspaces; s++) {
+			int width = width(s);
+			System.arraycopy(codebooks[s], (codes[offset + s] & 0xFF) * width, vector, offsets[s], width);
+		}
+		return vector;
+	}
+
+	/**
+	 * Asymmetric distance table for a query
+	 * @param query at full precision
+	 * @return subspaces * centroids dot products of the query with each centroid
+	 */
+	public float[] table(float[] query) {
+		checkDimension(query);
+		float[] table = new float[subspaces * centroids];
+
+		for (int s = 0; s < subspaces; s++) {
+			int width = width(s);
+			for (int c = 0; c < centroids; c++) {
+				table[s * centroids + c] = KERNEL.dot(query, offsets[s], codebooks[s], c * width, width);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * @param table from {@link #table(float[])}
+	 * @param codes encoded vectors
+	 * @param offset start of code in codes
+	 * @return approximate dot product of the query and the encoded vector
+	 */
+	public float dot(float[] table, byte[] codes, int offset) {
+		float dot = 0.0f;
+
+		for (int s = 0, base = 0; s < subspaces; s++, base += centroids) {
+			dot += table[base + (codes[offset + s] & 0xFF)];
+		}
+		return dot;
+	}
+
+	int width(int subspace) {
+		return offsets[subspace + 1] - offsets[subspace];
+	}
+
+	private void checkDimension(float[] vector) {
+		if (vector.length != dimension) {
+			throw new IllegalArgumentException("Vector dimension %d does not match quantizer dimension %d".formatted(vector.length, dimension));
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+
+/**
+ * Exact scan index over scalar quantized vectors (see {@link ScalarQuantizer}). Resident memory is 2-4x below
+ * {@link ExactEmbeddingIndex} and scans are faster since more vectors fit in cache.
+ * <br/>
+ * Optionally the best rescoreFactor * k candidates by quantized score are rescored at full precision and the
+ * best k of those returned. Full precision vectors come from a source set with {@link #setFullPrecision(IntFunction)}
+ * (e.g. an on-disk store) or, if constructed with keepFullPrecision, from a copy held by the index - which
+ * keeps the cache benefit of the scan but not the memory saving.
+ * <br/>
+ * Codes and full precision copies are held in pages of PAGE_ROWS rows, as {@link ExactEmbeddingIndex} holds its
+ * vectors, so the index is not bounded by the maximum array size.
+ * <br/>
+ * Filtered searches mask the scan with the ids the filter admits (see {@link AttributeIndex}).
+ * <br/>
+ * Thread safe: adds are exclusive, searches run concurrently.
+ */
+public class QuantizedEmbeddingIndex implements EmbeddingIndex {
+
+	static final int PAGE_BITS = ExactEmbeddingIndex.PAGE_BITS, PAGE_ROWS = 1 << PAGE_BITS, PAGE_MASK = PAGE_ROWS - 1;
+
+	@Getter
+	final SimilarityMetric metric;
+	@Getter
+	final ScalarQuantizer quantizer;
+	/**
+	 * If greater than 0, shortlist rescoreFactor * k candidates and rescore them at full precision
+	 */
+	@Getter
+	@Setter
+	volatile int rescoreFactor;
+	/**
+	 * Full precision vector by id, for rescoring
+	 */
+	@Setter
+	volatile IntFunction<float[]> fullPrecision = null;
+
+	final boolean keepFullPrecision;
+	final ForkJoinPool pool;
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	int dimension = 0, size = 0, removed = 0;
+	byte[][] codes = new byte[0][];
+	short[][] halves = new short[0][];
+	float[][] originals = new float[0][];
+	float[] scales = new float[0], norms = new float[0];
+	final ArrayList<String> chunks = new ArrayList<>();
+	final ArrayList<Map<String, Object>> metadata = new ArrayList<>();
+	final BitSet deleted = new BitSet();
+	final AttributeIndex attributes = new AttributeIndex();
+
+	/**
+	 * Cosine index, no rescoring
+	 * @param quantizer how to encode vectors
+	 */
+	public QuantizedEmbeddingIndex(ScalarQuantizer quantizer) {
+		this(SimilarityMetric.COSINE, quantizer, 0, false);
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 * @param quantizer how to encode vectors
+	 * @param rescoreFactor if greater than 0 rescore this many times k candidates at full precision
+	 * @param keepFullPrecision keep a full precision copy of each vector for rescoring
+	 */
+	public QuantizedEmbeddingIndex(SimilarityMetric metric, ScalarQuantizer quantizer, int rescoreFactor, boolean keepFullPrecision) {
+		this(metric, quantizer, rescoreFactor, keepFullPrecision, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor
+	 * @param metric how to score
+	 * @param quantizer how to encode vectors
+	 * @param rescoreFactor if greater than 0 rescore this many times k candidates at full precision
+	 * @param keepFullPrecision keep a full precision copy of each vector for rescoring
+	 * @param pool to run parallel scans on
+	 */
+	public QuantizedEmbeddingIndex(
+		SimilarityMetric metric, ScalarQuantizer quantizer, int rescoreFactor, boolean keepFullPrecision, ForkJoinPool pool
+	) {
+		this.metric = metric;
+		this.quantizer = quantizer;
+		this.rescoreFactor = rescoreFactor;
+		this.keepFullPrecision = keepFullPrecision;
+		this.pool = pool;
+	}
+
+	@Override
+	public int add(Embedding embedding) {
+		float[] vector = embedding.getVector();
+
+		lock.writeLock().lock();
+		try {
+			if (dimension == 0)
+				dimension = vector.length;
+			else
+				checkDimension(vector);
+
+			int page = size >>> PAGE_BITS, offset = (size & PAGE_MASK) * dimension;
+			if ((size & PAGE_MASK) == 0) {
+				if (quantizer.isInt8() && page == codes.length) {
+					codes = Arrays.copyOf(codes, page + 1);
+					codes[page] = new byte[PAGE_ROWS * dimension];
+				}
+				if (!quantizer.isInt8() && page == halves.length) {
+					halves = Arrays.copyOf(halves, page + 1);
+					halves[page] = new short[PAGE_ROWS * dimension];
+				}
+				if (keepFullPrecision && page == originals.length) {
+					originals = Arrays.copyOf(originals, page + 1);
+					originals[page] = new float[PAGE_ROWS * dimension];
+				}
+			}
+			if (size == norms.length) {
+				int capacity = Math.max(16, 2 * size);
+				scales = Arrays.copyOf(scales, capacity);
+				norms = Arrays.copyOf(norms, capacity);
+			}
+			if (quantizer.isInt8())
+				scales[size] = quantizer.encode(vector, codes[page], offset);
+			else
+				quantizer.encode(vector, halves[page], offset);
+			if (keepFullPrecision)
+				System.arraycopy(vector, 0, originals[page], offset, dimension);
+			norms[size] = embedding.norm();
+			chunks.add(embedding.getChunk());
+			metadata.add(embedding.getMetadata());
+			attributes.add(size, embedding.getMetadata());
+			return size++;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(int id) {
+		lock.writeLock().lock();
+		try {
+			if (id < 0 || id >= size || deleted.get(id))
+				return false;
+			deleted.set(id);
+			attributes.remove(id);
+			++removed;
+			return true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k) {
+		return search(new float[][] { query }, k).getFirst();
+	}
+
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k) {
+		return search(queries, k, (Filter)null);
+	}
+
+	@Override
+	public List<EmbeddingMatch> search(float[] query, int k, Filter filter) {
+		return search(new float[][] { query }, k, filter).getFirst();
+	}
+
+	@Override
+	public List<List<EmbeddingMatch>> search(float[][] queries, int k, Filter filter) {
+		List<List<EmbeddingMatch>> results = new ArrayList<>(queries.length);
+
+		lock.readLock().lock();
+		try {
+			BitSet allowed = null != filter ? attributes.evaluate(filter).toBitSet() : null;
+			IntFunction<float[]> source = keepFullPrecision ? this::original : fullPrecision;
+			boolean rescore = rescoreFactor > 0 && null != source;
+			ScalarQuantizer.Query[] prepared = new ScalarQuantizer.Query[queries.length];
+
+			for (int q = 0; q < queries.length; q++) {
+				checkDimension(queries[q]);
+				prepared[q] = quantizer.prepare(queries[q]);
+			}
+			float[] queryNorms = EmbeddingDistance.norms(queries);
+			boolean int8 = quantizer.isInt8();
+			TopK[] tops = ScanTask.scan(
+				pool, queries.length, rescore ? k * rescoreFactor : k, removed > 0 ? deleted : null, allowed, size, () -> (q, row) -> {
+					float dot = int8 ?
+						quantizer.dot(prepared[q], codes[row >>> PAGE_BITS], (row & PAGE_MASK) * dimension, scales[row]) :
+						quantizer.dot(prepared[q], halves[row >>> PAGE_BITS], (row & PAGE_MASK) * dimension);
+					return metric.fromDot(dot, queryNorms[q], norms[row]);
+				}
+			);
+
+			for (int q = 0; q < queries.length; q++) {
+				results.add(rescore ? rescore(queries[q], tops[q], k, source) : tops[q].toMatches(chunks::get));
+			}
+			return results;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Embedding get(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= size || deleted.get(id))
+				return null;
+			Embedding embedding = new Embedding(chunks.get(id), keepFullPrecision ? original(id) : decode(id));
+			embedding.setMetadata(metadata.get(id));
+			return embedding;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param id of embedding
+	 * @return the vector reconstructed from its codes
+	 */
+	public float[] decode(int id) {
+		int offset = (id & PAGE_MASK) * dimension;
+		return quantizer.isInt8() ?
+			quantizer.decode(codes[id >>> PAGE_BITS], offset, dimension, scales[id]) :
+			quantizer.decode(halves[id >>> PAGE_BITS], offset, dimension);
+	}
+
+	@Override
+	public int size() { return size - removed; }
+
+	@Override
+	public int dimension() { return dimension; }
+
+	/**
+	 * @return approximate resident bytes used by the scan set (codes, scales and norms)
+	 */
+	public long scanBytes() {
+		return (long)size * (quantizer.bytesPerVector(dimension) + Float.BYTES);
+	}
+
+	private List<EmbeddingMatch> rescore(float[] query, TopK candidates, int k, IntFunction<float[]> source) {
+		float norm = (float)Math.sqrt(EmbeddingDistance.KERNEL.dot(query, 0, query, 0, query.length));
+		TopK top = new TopK(k);
+
+		for (int i = 0; i < candidates.size; i++) {
+			int id = candidates.ids[i];
+			if (keepFullPrecision)
+				top.offer(id, metric.score(query, norm, originals[id >>> PAGE_BITS], (id & PAGE_MASK) * dimension, norms[id]));
+			else
+				top.offer(id, metric.score(query, norm, source.apply(id), 0, norms[id]));
+		}
+		return top.toMatches(chunks::get);
+	}
+
+	private float[] original(int id) {
+		int offset = (id & PAGE_MASK) * dimension;
+		return Arrays.copyOfRange(originals[id >>> PAGE_BITS], offset, offset + dimension);
+	}
+
+	private void checkDimension(float[] vector) {
+		if (dimension != 0 && vector.length != dimension) {
+			throw new IllegalArgumentException("Vector dimension %d does not match index dimension %d".formatted(vector.length, dimension));
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Recall versus latency of an approximate index at one setting of its tuning parameters, measured against exact
+ * (ground truth) results for the same queries.
+ */
+@Getter
+public class RecallReport implements Serializable {
+	/**
+	 * Description of the setting measured - e.g. efSearch=64
+	 */
+	String setting;
+	/**
+	 * Neighbours per query
+	 */
+	int k;
+	/**
+	 * Number of queries timed
+	 */
+	int queries;
+	/**
+	 * Mean fraction of the true k nearest neighbours found
+	 */
+	double recall;
+	/**
+	 * Latency in microseconds
+	 */
+	double meanMicros, p50Micros, p99Micros;
+
+	/**
+	 * Constructor
+	 * @param setting description of setting measured
+	 * @param k neighbours per query
+	 * @param queries number of queries
+	 * @param recall mean recall at k
+	 * @param meanMicros mean latency
+	 * @param p50Micros median latency
+	 * @param p99Micros 99th percentile latency
+	 */
+	public RecallReport(String setting, int k, int queries, double recall, double meanMicros, double p50Micros, double p99Micros) {
+		this.setting = setting;
+		this.k = k;
+		this.queries = queries;
+		this.recall = recall;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p99Micros = p99Micros;
+	}
+
+	/**
+	 * Time search over the queries and compare with the ground truth. The queries are run once untimed first
+	 * to warm up the JIT.
+	 * @param setting description of setting measured
+	 * @param search the search under test
+	 * @param queries the queries
+	 * @param truth exact matches for each query
+	 * @param k neighbours per query
+	 * @return the report
+	 */
+	public static RecallReport measure(
+		String setting,
+		Function<float[], List<EmbeddingMatch>> search,
+		float[][] queries,
+		List<List<EmbeddingMatch>> truth,
+		int k
+	) {
+		long[] nanos = new long[queries.length];
+		double recall = 0.0;
+
+		for (float[] query : queries) {
+			search.apply(query);
+		}
+		for (int q = 0; q < queries.length; q++) {
+			long start = System.nanoTime();
+			List<EmbeddingMatch> matches = search.apply(queries[q]);
+			nanos[q] = System.nanoTime() - start;
+
+			Set<Integer> expected = new HashSet<>();
+			for (EmbeddingMatch match : truth.get(q)) {
+				expected.add(match.getId());
+			}
+			int found = 0;
+			for (EmbeddingMatch match : matches) {
+				if (expected.contains(match.getId()))
+					++found;
+			}
+			recall += expected.isEmpty() ? 1.0 : (double)found / expected.size();
+		}
+		Arrays.sort(nanos);
+		return new RecallReport(
+			setting,
+			k,
+			queries.length,
+			recall / queries.length,
+			Arrays.stream(nanos).average().orElse(0.0) / 1000.0,
+			percentile(nanos, 0.50) / 1000.0,
+			percentile(nanos, 0.99) / 1000.0
+		);
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted.length == 0 ? 0.0 : sorted[Math.min(sorted.length - 1, (int)Math.ceil(p * sorted.length) - 1)];
+	}
+
+	@Override
+	public String toString() {
+		return "%s: recall@%d %.4f mean %.1fus p50 %.1fus p99 %.1fus (%d queries)"
+			.formatted(setting, k, recall, meanMicros, p50Micros, p99Micros, queries);
+	}
+}
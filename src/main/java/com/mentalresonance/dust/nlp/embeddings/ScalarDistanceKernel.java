@@ -0,0 +1,98 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+/**
+ * Plain Java kernel. Used when the Vector API is not available. The loops are unrolled over four independent
+ * accumulators which gives the JIT room to pipeline (and sometimes auto-vectorize) them.
+ */
+class ScalarDistanceKernel implements DistanceKernel {
+
+	@Override
+	public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+		int i = 0, bound = length & ~3;
+
+		for (; i < bound; i += 4) {
+			s0 += a[aOffset + i] * b[bOffset + i];
+			s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+			s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+			s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+		}
+		for (; i < length; i++) {
+			s0 += a[aOffset + i] * b[bOffset + i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	@Override
+	public float dot(float[] a, int aOffset, byte[] codes, int codesOffset, int length) {
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+		int i = 0, bound = length & ~3;
+
+		for (; i < bound; i += 4) {
+			s0 += a[aOffset + i] * codes[codesOffset + i];
+			s1 += a[aOffset + i + 1] * codes[codesOffset + i + 1];
+			s2 += a[aOffset + i + 2] * codes[codesOffset + i + 2];
+			s3 += a[aOffset + i + 3] * codes[codesOffset + i + 3];
+		}
+		for (; i < length; i++) {
+			s0 += a[aOffset + i] * codes[codesOffset + i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	@Override
+	public float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+		int i = 0, bound = length & ~3;
+
+		for (; i < bound; i += 4) {
+			float d0 = a[aOffset + i] - b[bOffset + i];
+			float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+			float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+			float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+		for (; i < length; i++) {
+			float d = a[aOffset + i] - b[bOffset + i];
+			s0 += d * d;
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	@Override
+	public void dotAndNorms(float[] a, int aOffset, float[] b, int bOffset, int length, float[] result) {
+		float dot = 0f, normA = 0f, normB = 0f;
+
+		for (int i = 0; i < length; i++) {
+			float x = a[aOffset + i], y = b[bOffset + i];
+			dot += x * y;
+			normA += x * x;
+			normB += y * y;
+		}
+		result[0] = dot;
+		result[1] = normA;
+		result[2] = normB;
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.mentalresonance.dust.nlp.embeddings.EmbeddingDistance.KERNEL;
+
+/**
+ * Scalar quantization of embedding vectors. Distances are computed directly on the codes against a full
+ * precision query (asymmetric distance) so vectors are never decoded during a scan.
+ * <pre>
+ *     INT8_PER_VECTOR     1 byte per dimension + 1 float scale per vector (the vector's max |value| / 127).
+ *                         Needs no training.
+ *     INT8_PER_DIMENSION  1 byte per dimension. Each dimension has its own centre and scale fitted to a sample,
+ *                         which is more accurate when dimensions have very different ranges.
+ *     FP16                2 bytes per dimension (IEEE half precision). Near lossless for normalized embeddings.
+ * </pre>
+ */
+public class ScalarQuantizer implements Serializable {
+
+	/**
+	 * Quantization scheme
+	 */
+	public enum Type {
+		/**
+		 * int8 with a scale per vector
+		 */
+		INT8_PER_VECTOR,
+		/**
+		 * int8 with a centre and scale per dimension
+		 */
+		INT8_PER_DIMENSION,
+		/**
+		 * IEEE half precision
+		 */
+		FP16
+	}
+
+	@Getter
+	final Type type;
+	/**
+	 * Per dimension centre and scale - INT8_PER_DIMENSION only
+	 */
+	final float[] centres, scales;
+
+	ScalarQuantizer(Type type, float[] centres, float[] scales) {
+		this.type = type;
+		this.centres = centres;
+		this.scales = scales;
+	}
+
+	/**
+	 * @return int8 quantizer with a scale per vector
+	 */
+	public static ScalarQuantizer int8() {
+		return new ScalarQuantizer(Type.INT8_PER_VECTOR, null, null);
+	}
+
+	/**
+	 * Fit an int8 quantizer with a centre and scale per dimension. Values outside the range seen in the sample
+	 * are clipped when encoded.
+	 * @param sample representative embeddings
+	 * @return quantizer
+	 */
+	public static ScalarQuantizer int8(List<Embedding> sample) {
+		int dimension = sample.getFirst().dimension();
+		float[] min = new float[dimension], max = new float[dimension];
+
+		Arrays.fill(min, Float.POSITIVE_INFINITY);
+		Arrays.fill(max, Float.NEGATIVE_INFINITY);
+		for (Embedding embedding : sample) {
+			float[] vector = embedding.getVector();
+			if (vector.length != dimension) {
+				throw new IllegalArgumentException("Sample vectors must all be of the same size.");
+			}
+			for (int i = 0; i < dimension; i++) {
+				min[i] = Math.min(min[i], vector[i]);
+				max[i] = Math.max(max[i], vector[i]);
+			}
+		}
+		float[] centres = new float[dimension], scales = new float[dimension];
+		for (int i = 0; i < dimension; i++) {
+			centres[i] = 0.5f * (min[i] + max[i]);
+			scales[i] = Math.max((max[i] - min[i]) / 254.0f, Float.MIN_NORMAL);
+		}
+		return new ScalarQuantizer(Type.INT8_PER_DIMENSION, centres, scales);
+	}
+
+	/**
+	 * @return half precision quantizer
+	 */
+	public static ScalarQuantizer fp16() {
+		return new ScalarQuantizer(Type.FP16, null, null);
+	}
+
+	/**
+	 * @return true if codes are int8 (held in byte[]) rather than fp16 (held in short[])
+	 */
+	public boolean isInt8() {
+		return type != Type.FP16;
+	}
+
+	/**
+	 * @param dimension vector dimension
+	 * @return bytes used by one encoded vector including any per vector scale
+	 */
+	public int bytesPerVector(int dimension) {
+		return switch (type) {
+			case INT8_PER_VECTOR -> dimension + Float.BYTES;
+			case INT8_PER_DIMENSION -> dimension;
+			case FP16 -> 2 * dimension;
+		};
+	}
+
+	/**
+	 * Encode as int8
+	 * @param vector to encode
+	 * @param codes receives the codes
+	 * @param offset where in codes
+	 * @return the vector's scale (INT8_PER_VECTOR) else 1
+	 */
+	public float encode(float[] vector, byte[] codes, int offset) {
+		if (type == Type.INT8_PER_VECTOR) {
+			float maxAbs = 0.0f;
+			for (float v : vector) {
+				maxAbs = Math.max(maxAbs, Math.abs(v));
+			}
+			float scale = maxAbs > 0.0f ? maxAbs / 127.0f : 1.0f;
+			for (int i = 0; i < vector.length; i++) {
+				codes[offset + i] = (byte)Math.round(vector[i] / scale);
+			}
+			return scale;
+		}
+		if (type == Type.INT8_PER_DIMENSION) {
+			checkDimension(vector.length);
+			for (int i = 0; i < vector.length; i++) {
+				codes[offset + i] = (byte)Math.max(-127, Math.min(127, Math.round((vector[i] - centres[i]) / scales[i])));
+			}
+			return 1.0f;
+		}
+		throw new IllegalStateException("FP16 codes are short[]");
+	}
+
+	/**
+	 * Encode as fp16
+	 * @param vector to encode
+	 * @param halves receives the codes
+	 * @param offset where in halves
+	 */
+	public void encode(float[] vector, short[] halves, int offset) {
+		if (type != Type.FP16)
+			throw new IllegalStateException("int8 codes are byte[]");
+		for (int i = 0; i < vector.length; i++) {
+			halves[offset + i] = Float.floatToFloat16(vector[i]);
+		}
+	}
+
+	/**
+	 * Reconstruct from int8 codes
+	 * @param codes the codes
+	 * @param offset where in codes
+	 * @param dimension vector dimension
+	 * @param scale as returned by encode
+	 * @return approximate vector
+	 */
+	public float[] decode(byte[] codes, int offset, int dimension, float scale) {
+		float[] vector = new float[dimension];
+
+		for (int i = 0; i < dimension; i++) {
+			vector[i] = type == Type.INT8_PER_DIMENSION ?
+				centres[i] + scales[i] * codes[offset + i] :
+				scale * codes[offset + i];
+		}
+		return vector;
+	}
+
+	/**
+	 * Reconstruct from fp16 codes
+	 * @param halves the codes
+	 * @param offset where in halves
+	 * @param dimension vector dimension
+	 * @return approximate vector
+	 */
+	public float[] decode(short[] halves, int offset, int dimension) {
+		float[] vector = new float[dimension];
+
+		for (int i = 0; i < dimension; i++) {
+			vector[i] = Float.float16ToFloat(halves[offset + i]);
+		}
+		return vector;
+	}
+
+	/**
+	 * Fold the per dimension centres and scales into the query once, so each comparison is a single
+	 * float x int8 dot product: q . v = sum(q[i] * centre[i]) + sum(q[i] * scale[i] * code[i])
+	 * @param query the query
+	 * @return prepared query
+	 */
+	public Query prepare(float[] query) {
+		if (type != Type.INT8_PER_DIMENSION)
+			return new Query(query, 0.0f);
+
+		checkDimension(query.length);
+		float[] weights = new float[query.length];
+		float bias = 0.0f;
+		for (int i = 0; i < query.length; i++) {
+			weights[i] = query[i] * scales[i];
+			bias += query[i] * centres[i];
+		}
+		return new Query(weights, bias);
+	}
+
+	/**
+	 * Approximate dot product of a query with an int8 encoded vector
+	 * @param query prepared query
+	 * @param codes the codes
+	 * @param offset where in codes
+	 * @param scale the vector's scale
+	 * @return approximate query . vector
+	 */
+	public float dot(Query query, byte[] codes, int offset, float scale) {
+		return query.bias + scale * KERNEL.dot(query.weights, 0, codes, offset, query.weights.length);
+	}
+
+	/**
+	 * Approximate dot product of a query with an fp16 encoded vector
+	 * @param query prepared query
+	 * @param halves the codes
+	 * @param offset where in halves
+	 * @return approximate query . vector
+	 */
+	public float dot(Query query, short[] halves, int offset) {
+		return KERNEL.dot(query.weights, 0, halves, offset, query.weights.length);
+	}
+
+	private void checkDimension(int dimension) {
+		if (dimension != centres.length) {
+			throw new IllegalArgumentException("Vector dimension %d does not match quantizer dimension %d".formatted(dimension, centres.length));
+		}
+	}
+
+	/**
+	 * A query prepared for scoring against codes
+	 */
+	public static class Query {
+		final float[] weights;
+		final float bias;
+
+		Query(float[] weights, float bias) {
+			this.weights = weights;
+			this.bias = bias;
+		}
+	}
+}
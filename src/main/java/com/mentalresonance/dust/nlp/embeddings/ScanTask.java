@@ -0,0 +1,134 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * Exact scan of rows [from, to) for a batch of queries, shared by the brute force indexes. The range is split in
+ * half on the fork/join pool until it is a leaf and the halves' results merged. A leaf is scanned a block of rows
+ * at a time, each block scored against every query before moving on so it stays in cache. What a row is, and how
+ * it scores against a query, is up to the {@link RowScorer}.
+ */
+class ScanTask extends RecursiveTask<TopK[]> {
+
+	/**
+	 * Rows per fork/join leaf
+	 */
+	static final int LEAF_ROWS = 4096;
+	/**
+	 * Rows scored against every query of a batch before moving on. Small enough that the block stays in cache.
+	 */
+	static final int BLOCK_ROWS = 64;
+
+	/**
+	 * Scores rows against the queries of a scan. One scorer is created per leaf so it may keep scratch space.
+	 */
+	interface RowScorer {
+		/**
+		 * Rows [from, to) are about to be scored against every query - e.g. decode them once here
+		 * @param from first row
+		 * @param to last row (exclusive)
+		 */
+		default void block(int from, int to) {}
+
+		/**
+		 * @param query index of query in the batch
+		 * @param row row to score
+		 * @return score - larger is closer
+		 */
+		float score(int query, int row);
+	}
+
+	final Supplier<RowScorer> scorers;
+	final BitSet deleted, allowed;
+	final int queries, k, from, to;
+
+	/**
+	 * Scan rows [0, rows) - directly if there are few, otherwise on the pool
+	 * @param pool pool to scan on
+	 * @param queries number of queries in the batch
+	 * @param k best k per query
+	 * @param deleted rows to skip or null
+	 * @param allowed if not null only these rows are scored
+	 * @param rows rows in the index
+	 * @param scorers a scorer per leaf
+	 * @return best k rows per query
+	 */
+	static TopK[] scan(ForkJoinPool pool, int queries, int k, BitSet deleted, BitSet allowed, int rows, Supplier<RowScorer> scorers) {
+		ScanTask task = new ScanTask(scorers, queries, k, deleted, allowed, 0, rows);
+		return rows < 2 * LEAF_ROWS ? task.compute() : pool.invoke(task);
+	}
+
+	ScanTask(Supplier<RowScorer> scorers, int queries, int k, BitSet deleted, BitSet allowed, int from, int to) {
+		this.scorers = scorers;
+		this.queries = queries;
+		this.k = k;
+		this.deleted = deleted;
+		this.allowed = allowed;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected TopK[] compute() {
+		if (to - from > LEAF_ROWS) {
+			int mid = (from + to) >>> 1;
+			ScanTask left = new ScanTask(scorers, queries, k, deleted, allowed, from, mid);
+			left.fork();
+			TopK[] right = new ScanTask(scorers, queries, k, deleted, allowed, mid, to).compute();
+			TopK[] tops = left.join();
+			for (int q = 0; q < tops.length; q++) {
+				tops[q].addAll(right[q]);
+			}
+			return tops;
+		}
+		return scan();
+	}
+
+	TopK[] scan() {
+		RowScorer scorer = scorers.get();
+		TopK[] tops = new TopK[queries];
+		for (int q = 0; q < queries; q++) {
+			tops[q] = new TopK(k);
+		}
+		for (int blockStart = from; blockStart < to; blockStart += BLOCK_ROWS) {
+			int blockEnd = Math.min(blockStart + BLOCK_ROWS, to);
+			scorer.block(blockStart, blockEnd);
+
+			for (int q = 0; q < queries; q++) {
+				TopK top = tops[q];
+
+				for (int row = blockStart; row < blockEnd; row++) {
+					if ((null != deleted && deleted.get(row)) || (null != allowed && ! allowed.get(row)))
+						continue;
+					float score = scorer.score(q, row);
+					if (score > top.threshold())
+						top.offer(row, score);
+				}
+			}
+		}
+		return tops;
+	}
+}
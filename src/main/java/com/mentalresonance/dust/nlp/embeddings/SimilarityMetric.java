@@ -0,0 +1,73 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import static com.mentalresonance.dust.nlp.embeddings.EmbeddingDistance.KERNEL;
+
+/**
+ * How an index scores a stored vector against a query. Scores are always 'larger is closer' so the indexes
+ * can rank with one comparison regardless of metric.
+ */
+public enum SimilarityMetric {
+	/**
+	 * Cosine similarity
+	 */
+	COSINE,
+	/**
+	 * Dot product. The same as cosine for unit length vectors (e.g. OpenAI embeddings) and cheaper
+	 */
+	DOT,
+	/**
+	 * Negated squared Euclidean distance
+	 */
+	EUCLIDEAN;
+
+	/**
+	 * Score a row of a contiguous matrix against the query
+	 * @param query the query
+	 * @param queryNorm L2 norm of query (only used by COSINE)
+	 * @param data row-major matrix
+	 * @param offset start of row in data
+	 * @param norm L2 norm of the row (only used by COSINE)
+	 * @return score - larger is closer
+	 */
+	float score(float[] query, float queryNorm, float[] data, int offset, float norm) {
+		return switch (this) {
+			case COSINE -> EmbeddingDistance.cosine(KERNEL.dot(query, 0, data, offset, query.length), queryNorm, norm);
+			case DOT -> KERNEL.dot(query, 0, data, offset, query.length);
+			case EUCLIDEAN -> -KERNEL.squaredL2(query, 0, data, offset, query.length);
+		};
+	}
+
+	/**
+	 * Score from a (possibly approximate) dot product, for indexes that do not keep the vectors themselves
+	 * @param dot dot product of query and row
+	 * @param queryNorm L2 norm of the query
+	 * @param norm L2 norm of the row
+	 * @return score - larger is closer
+	 */
+	float fromDot(float dot, float queryNorm, float norm) {
+		return switch (this) {
+			case COSINE -> EmbeddingDistance.cosine(dot, queryNorm, norm);
+			case DOT -> dot;
+			case EUCLIDEAN -> -(queryNorm * queryNorm + norm * norm - 2.0f * dot);
+		};
+	}
+}
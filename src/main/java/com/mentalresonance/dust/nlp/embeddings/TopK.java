@@ -0,0 +1,135 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Bounded min-heap of (id, score) keeping the k largest scores seen. The smallest retained score sits at the root
+ * so rejecting a candidate - by far the common case in a scan - is a single comparison.
+ */
+class TopK {
+
+	final int k;
+	final int[] ids;
+	final float[] scores;
+	int size = 0;
+
+	TopK(int k) {
+		this.k = k;
+		this.ids = new int[k];
+		this.scores = new float[k];
+	}
+
+	/**
+	 * @return the score a candidate must beat to be retained
+	 */
+	float threshold() {
+		return size < k ? Float.NEGATIVE_INFINITY : scores[0];
+	}
+
+	boolean isFull() { return size == k; }
+
+	/**
+	 * Offer a candidate
+	 * @param id candidate id
+	 * @param score candidate score
+	 * @return true if retained
+	 */
+	boolean offer(int id, float score) {
+		if (size < k) {
+			int i = size++;
+			// Sift up
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (scores[parent] <= score)
+					break;
+				ids[i] = ids[parent];
+				scores[i] = scores[parent];
+				i = parent;
+			}
+			ids[i] = id;
+			scores[i] = score;
+			return true;
+		}
+		if (k == 0 || score <= scores[0])
+			return false;
+
+		siftDown(id, score);
+		return true;
+	}
+
+	/**
+	 * Merge other into this
+	 * @param other partial result
+	 */
+	void addAll(TopK other) {
+		for (int i = 0; i < other.size; i++) {
+			offer(other.ids[i], other.scores[i]);
+		}
+	}
+
+	/**
+	 * Remove and return the id with the smallest score
+	 * @return id
+	 */
+	int poll() {
+		int id = ids[0];
+		if (--size > 0) {
+			siftDown(ids[size], scores[size]);
+		}
+		return id;
+	}
+
+	/**
+	 * Drain into matches, best first.
+	 * @param chunks maps id to chunk
+	 * @return matches sorted by descending score
+	 */
+	List<EmbeddingMatch> toMatches(IntFunction<String> chunks) {
+		EmbeddingMatch[] matches = new EmbeddingMatch[size];
+
+		for (int i = size - 1; i >= 0; i--) {
+			float score = scores[0];
+			int id = poll();
+			matches[i] = new EmbeddingMatch(id, score, chunks.apply(id));
+		}
+		return new ArrayList<>(List.of(matches));
+	}
+
+	private void siftDown(int id, float score) {
+		int i = 0, half = size >>> 1;
+
+		while (i < half) {
+			int child = 2 * i + 1, right = child + 1;
+			if (right < size && scores[right] < scores[child])
+				child = right;
+			if (score <= scores[child])
+				break;
+			ids[i] = ids[child];
+			scores[i] = scores[child];
+			i = child;
+		}
+		ids[i] = id;
+		scores[i] = score;
+	}
+}
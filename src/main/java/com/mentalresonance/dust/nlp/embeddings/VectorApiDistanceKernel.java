@@ -0,0 +1,126 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernel built on the (incubating) JDK Vector API. This class must only be loaded when the
+ * jdk.incubator.vector module is present (i.e. the JVM was started with --add-modules jdk.incubator.vector),
+ * which {@link EmbeddingDistance} checks before instantiating it reflectively.
+ */
+class VectorApiDistanceKernel implements DistanceKernel {
+
+	static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	/**
+	 * Bytes species with the same lane count as SPECIES - so a load of codes widens to exactly one float vector.
+	 * Null if there is no such shape (floats narrower than 256 bits), in which case int8 falls back to scalar.
+	 */
+	static final VectorSpecies<Byte> BYTE_SPECIES = SPECIES.length() >= 8 ?
+		VectorSpecies.of(byte.class, VectorShape.forBitSize(SPECIES.length() * Byte.SIZE)) : null;
+
+	final ScalarDistanceKernel scalar = new ScalarDistanceKernel();
+
+	@Override
+	public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector acc = FloatVector.zero(SPECIES);
+		int i = 0, bound = SPECIES.loopBound(length);
+
+		for (; i < bound; i += SPECIES.length()) {
+			FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+			FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+			acc = va.fma(vb, acc);
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float dot(float[] a, int aOffset, byte[] codes, int codesOffset, int length) {
+		if (null == BYTE_SPECIES)
+			return scalar.dot(a, aOffset, codes, codesOffset, length);
+
+		FloatVector acc = FloatVector.zero(SPECIES);
+		int i = 0, bound = SPECIES.loopBound(length);
+
+		for (; i < bound; i += SPECIES.length()) {
+			FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+			FloatVector vc = (FloatVector) ByteVector.fromArray(BYTE_SPECIES, codes, codesOffset + i)
+				.convertShape(VectorOperators.B2F, SPECIES, 0);
+			acc = va.fma(vc, acc);
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			sum += a[aOffset + i] * codes[codesOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector acc = FloatVector.zero(SPECIES);
+		int i = 0, bound = SPECIES.loopBound(length);
+
+		for (; i < bound; i += SPECIES.length()) {
+			FloatVector diff = FloatVector.fromArray(SPECIES, a, aOffset + i)
+				.sub(FloatVector.fromArray(SPECIES, b, bOffset + i));
+			acc = diff.fma(diff, acc);
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			float d = a[aOffset + i] - b[bOffset + i];
+			sum += d * d;
+		}
+		return sum;
+	}
+
+	@Override
+	public void dotAndNorms(float[] a, int aOffset, float[] b, int bOffset, int length, float[] result) {
+		FloatVector dot = FloatVector.zero(SPECIES), normA = FloatVector.zero(SPECIES), normB = FloatVector.zero(SPECIES);
+		int i = 0, bound = SPECIES.loopBound(length);
+
+		for (; i < bound; i += SPECIES.length()) {
+			FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+			FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+			dot = va.fma(vb, dot);
+			normA = va.fma(va, normA);
+			normB = vb.fma(vb, normB);
+		}
+		float d = dot.reduceLanes(VectorOperators.ADD);
+		float na = normA.reduceLanes(VectorOperators.ADD);
+		float nb = normB.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			float x = a[aOffset + i], y = b[bOffset + i];
+			d += x * y;
+			na += x * x;
+			nb += y * y;
+		}
+		result[0] = d;
+		result[1] = na;
+		result[2] = nb;
+	}
+}
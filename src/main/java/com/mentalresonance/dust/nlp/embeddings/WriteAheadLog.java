@@ -0,0 +1,250 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only log of opaque records with group commit. Appenders never wait on the disk: records are queued
+ * and a single writer thread writes everything queued since its last sync and then syncs once, completing each
+ * record's future when it is durable. So the more appenders there are the fewer syncs per record.
+ * <br/>
+ * Each record is its length, the CRC32 of its payload and the payload. Replay stops at the first short or corrupt
+ * record - a torn write at the tail from a crash. Payloads are never empty, so a zero length (e.g. a tail the file
+ * system zero filled) is torn too.
+ * <br/>
+ * So a record is never acknowledged after a hole: if writing or syncing a batch fails the log is truncated back to
+ * where the batch began before its records are failed. If even that fails the log is failed - the rest of the
+ * queue is failed and further appends throw.
+ */
+@Slf4j
+public class WriteAheadLog implements Closeable {
+
+	final Path path;
+	final FileChannel channel;
+	final Thread writer;
+	final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+	long position;
+	boolean closed = false;
+	/**
+	 * Set when a failed batch could not be cut from the log - nothing more can be appended
+	 */
+	IOException failure = null;
+	volatile long records = 0, syncs = 0;
+
+	WriteAheadLog(Path path) throws IOException {
+		this(path, FileChannel.open(path, CREATE, WRITE));
+	}
+
+	/**
+	 * Log writing through the given channel
+	 * @param path of the log
+	 * @param channel open for writing on path
+	 * @throws IOException on failure
+	 */
+	WriteAheadLog(Path path, FileChannel channel) throws IOException {
+		this.path = path;
+		this.channel = channel;
+		this.position = channel.size();
+		this.writer = Thread.ofPlatform().daemon().name("wal-" + path.getFileName()).start(this::run);
+	}
+
+	/**
+	 * Queue a record
+	 * @param payload the record
+	 * @return completes when the record is durable
+	 */
+	CompletableFuture<Void> append(byte[] payload) {
+		Pending pending = new Pending(payload);
+
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Write ahead log %s is closed".formatted(path));
+			}
+			if (null != failure) {
+				throw new IllegalStateException("Write ahead log %s has failed".formatted(path), failure);
+			}
+			queue.add(pending);
+			notifyAll();
+		}
+		return pending.durable;
+	}
+
+	/**
+	 * Write and sync anything queued, then close
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Replay the records of a log
+	 * @param path of the log
+	 * @param consumer receives each intact record in order
+	 * @return number of records replayed
+	 * @throws IOException on read failure
+	 */
+	static int replay(Path path, Consumer<byte[]> consumer) throws IOException {
+		int count = 0;
+		long remaining = Files.size(path);
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			while (true) {
+				int length = in.readInt(), crc = in.readInt();
+				remaining -= 2 * Integer.BYTES;
+				if (length <= 0 || length > remaining) {
+					log.warn("{}: torn record {} of length {} - ignoring the rest of the log", path, count, length);
+					break;
+				}
+				remaining -= length;
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				if (crc != crc(payload)) {
+					log.warn("{}: corrupt record {} - ignoring the rest of the log", path, count);
+					break;
+				}
+				consumer.accept(payload);
+				++count;
+			}
+		}
+		catch (EOFException e) {
+			// Torn tail
+		}
+		return count;
+	}
+
+	private void run() {
+		while (true) {
+			List<Pending> batch;
+
+			synchronized (this) {
+				while (queue.isEmpty() && ! closed) {
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+						closed = true;
+					}
+				}
+				if (queue.isEmpty())
+					return;
+				batch = new ArrayList<>(queue);
+				queue.clear();
+				if (null != failure) {
+					batch.forEach(pending -> pending.durable.completeExceptionally(failure));
+					continue;
+				}
+			}
+			long start = position;
+			try {
+				int bytes = 0;
+				for (Pending pending : batch) {
+					bytes += 2 * Integer.BYTES + pending.payload.length;
+				}
+				ByteBuffer buffer = ByteBuffer.allocate(bytes);
+				for (Pending pending : batch) {
+					buffer.putInt(pending.payload.length).putInt(crc(pending.payload)).put(pending.payload);
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+				channel.force(false);
+				records += batch.size();
+				++syncs;
+				batch.forEach(pending -> pending.durable.complete(null));
+			}
+			catch (IOException e) {
+				log.error("{}: {}", path, e.getMessage());
+				cut(start, e);
+				batch.forEach(pending -> pending.durable.completeExceptionally(e));
+			}
+		}
+	}
+
+	/*
+	 * Remove whatever of a failed batch reached the log so the next batch follows the last durable record. If
+	 * that fails the log is failed
+	 */
+	private void cut(long start, IOException cause) {
+		try {
+			channel.truncate(start);
+			channel.force(false);
+			position = start;
+		}
+		catch (IOException e) {
+			log.error("{}: cannot truncate failed batch - failing the log: {}", path, e.getMessage());
+			cause.addSuppressed(e);
+			synchronized (this) {
+				failure = cause;
+			}
+		}
+	}
+
+	private static int crc(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int)crc.getValue();
+	}
+
+	static class Pending {
+		final byte[] payload;
+		final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+		Pending(byte[] payload) {
+			this.payload = payload;
+		}
+	}
+}
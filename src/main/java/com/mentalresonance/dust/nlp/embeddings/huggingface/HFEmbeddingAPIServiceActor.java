@@ -26,60 +26,212 @@ import com.mentalresonance.dust.core.msgs.StartMsg;
 import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import com.mentalresonance.dust.http.service.HttpService;
 import com.mentalresonance.dust.http.trait.HttpClientActor;
-import com.mentalresonance.dust.nlp.embeddings.Embedding;
+import com.mentalresonance.dust.nlp.embeddings.BulkEmbeddingsRequestResponseMsg;
+import com.mentalresonance.dust.nlp.embeddings.ChunkBatcher;
+import com.mentalresonance.dust.nlp.embeddings.ContentDefinedChunker;
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingChunkMsg;
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingCache;
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingJsonDecoder;
 import com.mentalresonance.dust.nlp.embeddings.EmbeddingsRequestResponseMsg;
-import com.mentalresonance.dust.nlp.lang.Words;
+import com.mentalresonance.dust.nlp.embeddings.NearDuplicateDetector;
+import com.mentalresonance.dust.nlp.embeddings.ChunkBatcher.ChunkTag;
+import com.mentalresonance.dust.nlp.lang.Chunker;
+import com.mentalresonance.dust.nlp.lang.MappedTextReader;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Request;
+import okhttp3.ResponseBody;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 
 /**
- * Responds to requests to get embeddings for a submitted text. Uses the hugging face embeddings server
+ * Responds to requests to get embeddings for a submitted text. Uses the hugging face embeddings server.
+ * Up to maxInFlight chunk requests are outstanding at once and the resulting embeddings are reassembled
+ * in document order. With maxBatch &gt; 1 each request carries up to maxBatch chunks (subject to maxBatchBytes)
+ * as an array of inputs, which the server embeds as a single batch. Chunks found in the (optional) shared
+ * {@link EmbeddingCache}, or among the previous embeddings of the text given in the request, are not sent at all -
+ * nor, given a {@link NearDuplicateDetector}, are near duplicates of chunks already embedded.
+ * <br/>
+ * By default chunks are built from sentences with a one sentence overlap. Given a {@link ContentDefinedChunker}
+ * chunk boundaries instead depend only on local content, so after an edit most chunks of the new version match
+ * those of the previous version and only the changed ones are embedded.
+ * <br/>
+ * The text may be given as a file (read through a {@link MappedTextReader}) or stream, which is read only as its
+ * chunks are needed so memory use does not grow with its size.
+ * <br/>
+ * A streaming request gets an {@link EmbeddingChunkMsg} per chunk as soon as it (and every chunk before it) is
+ * embedded, then the request itself as the terminal message, so the requester can index while embedding continues.
+ * Chunks which could not be embedded are left out and counted in the response's failed, so a requester can tell a
+ * partial document from a complete one.
+ * <br/>
+ * A single document is given IDLE_TIMEOUT_MS for each response, however long the whole text takes. If the server
+ * stops answering the requester gets the document as it stands, with the chunks still outstanding - and the text not
+ * yet chunked - counted as failed.
+ * <br/>
+ * A {@link BulkEmbeddingsRequestResponseMsg} embeds a whole corpus through the one actor: documents are chunked one
+ * after another, requests carry chunks from across document boundaries and maxInFlight limits the requests
+ * outstanding for the corpus as a whole. Each document is replied to as soon as it is complete, then the bulk
+ * request with the final counts.
  */
 @Slf4j
 public class HFEmbeddingAPIServiceActor extends Actor implements HttpClientActor {
 
-	// chunksLeft handles async since we just spin and throw embeddings requests at the embedder
-	Integer chunksLeft = 0, chunkSize;
-	EmbeddingsRequestResponseMsg originalMsg;
+	/**
+	 * Default number of chunk requests outstanding at once
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+	/**
+	 * Give up if the server has not answered for this long
+	 */
+	public static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000L;
+
+	Integer maxInFlight;
+	/**
+	 * Requests outstanding
+	 */
+	int inFlight = 0;
+	/**
+	 * Set once the final reply is sent - StartMsgs already queued behind it are then ignored
+	 */
+	boolean done = false;
+	/**
+	 * Chunking, batching and reassembly
+	 */
+	ChunkBatcher batcher;
+	/**
+	 * Bulk request or null for a single document
+	 */
+	BulkEmbeddingsRequestResponseMsg bulkMsg = null;
 	ActorRef originalSender;
 	String api;
-	LinkedList<String> sentences;
+
 	/**
-	 * Chunking. lastSentence is last sentence of current chunk. Becomes first sentence of next chunk i.e.
-	 * chunks have a one sentence overlap. nextSentence will follow this overlap in the next chunk.
+	 * Props
+	 * @param api url of hugging face api
+	 * @param chunkSize size to chunk to
+	 * @return Props
 	 */
-	String lastSentence = "" /* Of current chunk*/, nextSentence = "";
+	public static Props props(String api, Integer chunkSize) {
+		return props(api, chunkSize, DEFAULT_MAX_IN_FLIGHT);
+	}
 
 	/**
 	 * Props
 	 * @param api url of hugging face api
 	 * @param chunkSize size to chunk to
+	 * @param maxInFlight maximum number of chunk requests outstanding at once. 1 gives strictly sequential requests
 	 * @return Props
 	 */
-	public static Props props(String api, Integer chunkSize) {
-		return Props.create(HFEmbeddingAPIServiceActor.class, api, chunkSize);
+	public static Props props(String api, Integer chunkSize, Integer maxInFlight) {
+		return props(api, chunkSize, maxInFlight, 1, 0);
 	}
 
 	/**
-	 * Constructor
+	 * Props for batching mode
 	 * @param api url of hugging face api
 	 * @param chunkSize size to chunk to
+	 * @param maxInFlight maximum number of requests outstanding at once
+	 * @param maxBatch maximum number of chunks sent in one request. Should not exceed the server's
+	 *                 max-client-batch-size (32 by default)
+	 * @param maxBatchBytes maximum total UTF-8 size of the chunks in one request, 0 for no limit. A single chunk
+	 *                      larger than this is still sent on its own
+	 * @return Props
 	 */
-	public HFEmbeddingAPIServiceActor(String api, Integer chunkSize) {
-		this.api = api;
-		this.chunkSize = chunkSize;
+	public static Props props(String api, Integer chunkSize, Integer maxInFlight, Integer maxBatch, Integer maxBatchBytes) {
+		return props(api, chunkSize, maxInFlight, maxBatch, maxBatchBytes, null);
 	}
 
-	@Override
-	public void preStart() {
-		dieIn(5 * 60 * 1000L);
+	/**
+	 * Props with a cache
+	 * @param api url of hugging face api - also the model part of cache keys
+	 * @param chunkSize size to chunk to
+	 * @param maxInFlight maximum number of requests outstanding at once
+	 * @param maxBatch maximum number of chunks sent in one request
+	 * @param maxBatchBytes maximum total UTF-8 size of the chunks in one request, 0 for no limit
+	 * @param cache nullable cache shared between instances
+	 * @return Props
+	 */
+	public static Props props(String api, Integer chunkSize, Integer maxInFlight, Integer maxBatch, Integer maxBatchBytes, EmbeddingCache cache) {
+		return props(api, new Chunker(chunkSize), maxInFlight, maxBatch, maxBatchBytes, cache);
+	}
+
+	/**
+	 * Props with a given sentence chunker - e.g. one measuring chunks in tokens of the embedding model
+	 * @param api url of hugging face api - also the model part of cache keys
+	 * @param chunker chunks the text
+	 * @param maxInFlight maximum number of requests outstanding at once
+	 * @param maxBatch maximum number of chunks sent in one request
+	 * @param maxBatchBytes maximum total UTF-8 size of the chunks in one request, 0 for no limit
+	 * @param cache nullable cache shared between instances
+	 * @return Props
+	 */
+	public static Props props(String api, Chunker chunker, Integer maxInFlight, Integer maxBatch, Integer maxBatchBytes, EmbeddingCache cache) {
+		return props(api, chunker, maxInFlight, maxBatch, maxBatchBytes, cache, null);
+	}
+
+	/**
+	 * Props with near duplicate suppression
+	 * @param api url of hugging face api - also the model part of cache keys
+	 * @param chunker chunks the text
+	 * @param maxInFlight maximum number of requests outstanding at once
+	 * @param maxBatch maximum number of chunks sent in one request
+	 * @param maxBatchBytes maximum total UTF-8 size of the chunks in one request, 0 for no limit
+	 * @param cache nullable cache shared between instances
+	 * @param duplicates nullable detector shared between instances - near duplicates of chunks already embedded
+	 *                   reuse their embedding
+	 * @return Props
+	 */
+	public static Props props(
+		String api, Chunker chunker, Integer maxInFlight, Integer maxBatch, Integer maxBatchBytes, EmbeddingCache cache,
+		NearDuplicateDetector duplicates
+	) {
+		return Props.create(HFEmbeddingAPIServiceActor.class, api, chunker, null, maxInFlight, maxBatch, maxBatchBytes, cache, duplicates);
+	}
+
+	/**
+	 * Props with content defined chunking
+	 * @param api url of hugging face api - also the model part of cache keys
+	 * @param maxInFlight maximum number of requests outstanding at once
+	 * @param maxBatch maximum number of chunks sent in one request
+	 * @param maxBatchBytes maximum total UTF-8 size of the chunks in one request, 0 for no limit
+	 * @param cache nullable cache shared between instances
+	 * @param chunker chunks the text - its maxChars is the chunk size
+	 * @return Props
+	 */
+	public static Props props(String api, Integer maxInFlight, Integer maxBatch, Integer maxBatchBytes, EmbeddingCache cache, ContentDefinedChunker chunker) {
+		return Props.create(HFEmbeddingAPIServiceActor.class, api, null, chunker, maxInFlight, maxBatch, maxBatchBytes, cache, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param api url of hugging face api
+	 * @param sentenceChunker chunks by sentences with overlap. Used if chunker is null
+	 * @param chunker nullable content defined chunker
+	 * @param maxInFlight maximum number of requests outstanding at once
+	 * @param maxBatch maximum number of chunks sent in one request
+	 * @param maxBatchBytes maximum total UTF-8 size of the chunks in one request, 0 for no limit
+	 * @param cache nullable cache shared between instances
+	 * @param duplicates nullable near duplicate detector shared between instances
+	 */
+	public HFEmbeddingAPIServiceActor(
+		String api, Chunker sentenceChunker, ContentDefinedChunker chunker,
+		Integer maxInFlight, Integer maxBatch, Integer maxBatchBytes, EmbeddingCache cache, NearDuplicateDetector duplicates
+	) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be at least 1");
+		this.api = api;
+		this.maxInFlight = maxInFlight;
+		batcher = new ChunkBatcher(api, sentenceChunker, chunker, maxBatch, maxBatchBytes, cache, duplicates, this::reply);
 	}
 
 	public void postStop() {
+		cancelDeadMansHandle();
+		batcher.close();
+		if (null != batcher.getDuplicates())
+			log.debug("{}: {}", self.path, batcher.getDuplicates());
 		log.trace("{} stopped", self.path);
 	}
 
@@ -88,81 +240,67 @@ public class HFEmbeddingAPIServiceActor extends Actor implements HttpClientActor
 		return (Serializable message) -> {
 			switch(message) {
 				case EmbeddingsRequestResponseMsg msg:
-
+					dieIn(IDLE_TIMEOUT_MS);
 					originalSender = sender;
-					originalMsg = msg;
-
-					/*
-					 * Chunk by sentences with a one sentence overlap between consecutive chunks
-					 */
+					batcher.setDocuments(List.of(msg).iterator());
+					tellSelf(new StartMsg());
+					break;
 
-					String allText = originalMsg.getText();
-					if (allText == null || allText.isEmpty()) {
-						originalMsg.setEmbeddings(new LinkedList<>());
-						log.warn("{} received trivial text", self.path);
-						originalSender.tell(originalMsg, self);
-						stopSelf();
-					} else {
-						if (allText.length() <= chunkSize) {
-							sentences = new LinkedList<>(List.of(allText));
-						} else
-							sentences = Words.sentences(originalMsg.getText(), Locale.ENGLISH);
-						tellSelf(new StartMsg());
-					}
+				case BulkEmbeddingsRequestResponseMsg msg:
+					originalSender = sender;
+					bulkMsg = msg;
+					batcher.setDocuments(msg.iterator());
+					tellSelf(new StartMsg());
 					break;
 
-				case StartMsg ignored: // Get and process next chunk
+				case StartMsg ignored: // Fill the window with chunk requests
+					if (done)
+						break;
 
-					if (sentences.isEmpty()) {
-						originalSender.tell(originalMsg, self);
-						stopSelf();
+					ChunkTag batch;
+					while (inFlight < maxInFlight && null != (batch = batcher.nextBatch())) {
+						requestEmbeddings(batch);
+						++inFlight;
 					}
-					else {
-						// Starting a new chunk - start with end of last chunk
-						String text = lastSentence;
-						int currentSize = text.length();
-						nextSentence = sentences.removeFirst();
-
-						// Build the chunk
-						while (nextSentence != null && (currentSize = currentSize + nextSentence.length()) <= chunkSize) {
-							text = text + nextSentence;
-							lastSentence = nextSentence;
-							nextSentence = !sentences.isEmpty() ? sentences.removeFirst() : null;
-						}
-						/* If lastSentence + nextSentence exceeds chunk size we will just spin on lastSentence
-						   So fix things up by truncating nextSentence appropriately.
-						 */
-						if (null != nextSentence) {
-							if ( (lastSentence + nextSentence).length() > chunkSize) {
-								int l = chunkSize - lastSentence.length();
-								nextSentence = nextSentence.substring(0, l);
-								log.trace("{} adjusted chunk - size is {}", self.path, (lastSentence + nextSentence).length());
-							}
-						}
-						if (!text.isEmpty()) {
-							requestEmbedding(text);
-						} else {
-							// First sentence of chunk was already too long
-							tellSelf(new StartMsg());
+					batcher.deliver();
+					// Nothing outstanding and nothing left to request so every document is complete
+					if (0 == inFlight) {
+						done = true;
+						if (null != bulkMsg) {
+							progress();
+							originalSender.tell(bulkMsg, self);
 						}
+						stopSelf();
 					}
-                    break;
+					break;
 
 				case HttpRequestResponseMsg msg:
+					ChunkTag tag = (ChunkTag) msg.tag;
+					float[][] vectors = null;
+
 					if (msg.exception == null) {
-						try {
-							Embedding embedding = new Embedding(
-								(String) msg.tag,
-								((List<Double>)new Gson().fromJson(msg.response.body().string(), LinkedList.class).getFirst())
-							);
-							originalMsg.getEmbeddings().add(embedding);
+						try (ResponseBody body = msg.response.body()) {
+							// One vector per input, in input order
+							vectors = EmbeddingJsonDecoder.readVectors(body.charStream());
+							if (vectors.length != tag.getChunks().size())
+								throw new IllegalStateException(
+									"Expected " + tag.getChunks().size() + " embeddings but got " + vectors.length
+								);
 						}
 						catch (Exception e) {
 							log.error("{}: {}", self.path, e.getMessage());
+							vectors = null;
 						}
 					} else
 						log.error("Embeddings exception {}", msg.exception.getMessage());
 
+					// An idle timeout - a large file takes as long as it takes while the server keeps answering
+					if (null == bulkMsg) {
+						cancelDeadMansHandle();
+						dieIn(IDLE_TIMEOUT_MS);
+					}
+					--inFlight;
+					batcher.completed(tag, vectors);
 					tellSelf(new StartMsg());
 					break;
 
@@ -171,30 +309,45 @@ public class HFEmbeddingAPIServiceActor extends Actor implements HttpClientActor
 		};
 	}
 
-	private void requestEmbedding(String chunk) {
+	/*
+	 * The server has not answered for IDLE_TIMEOUT_MS. Reply with what has been embedded, the rest counted as failed
+	 */
+	@Override
+	protected void dying() {
+		log.warn("{}: no response for {}ms - replying with the embeddings so far", self.path, IDLE_TIMEOUT_MS);
+		done = true;
+		batcher.abandon();
+	}
+
+	/*
+	 * A chunk of a streaming document or a completed document
+	 */
+	private void reply(Serializable msg) {
+		originalSender.tell(msg, self);
+		if (null != bulkMsg && msg instanceof EmbeddingsRequestResponseMsg)
+			progress();
+	}
+
+	private void progress() {
+		bulkMsg.progress(batcher.getCompletedDocuments(), batcher.getEmbedded(), batcher.getReused(), batcher.getFailed());
+	}
+
+	private void requestEmbeddings(ChunkTag tag) {
+		List<String> chunks = tag.getChunks();
 
 		Request embedRequest = HttpService.buildPostRequest(
 			api,
-			new Gson().toJson(Map.of("inputs", chunk), LinkedHashMap.class),
+			new Gson().toJson(Map.of("inputs", 1 == chunks.size() ? chunks.getFirst() : chunks), LinkedHashMap.class),
 			Map.of(
 				"Content-Type", "application/json",
 				"Accept", "application/json"
 			)
 		);
 		HttpRequestResponseMsg rrm = new HttpRequestResponseMsg(self, embedRequest);
-		rrm.tag = chunk;
+		rrm.tag = tag;
 		request(rrm);
 	}
 
-	/*
-	 * Always reply to sender even if we error'd somehow
-	 */
-	private void stop() {
-		if (null != originalSender)
-			originalSender.tell(originalMsg, parent);
-		stopSelf();
-	}
-
 	/**
 	 * Uses EmbeddingsRequestResponseMsg pass-through message
 	 */
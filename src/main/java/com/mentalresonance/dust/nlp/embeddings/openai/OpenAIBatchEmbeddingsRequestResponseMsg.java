@@ -0,0 +1,91 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings.openai;
+
+import com.mentalresonance.dust.nlp.embeddings.Embedding;
+import com.mentalresonance.dust.nlp.genericgpt.GPTMsg;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request embeddings for a list of texts in a single call. On response vectors[i] is the embedding of inputs[i]
+ */
+@Getter
+public class OpenAIBatchEmbeddingsRequestResponseMsg extends GPTMsg {
+
+    /**
+     * Maximum number of inputs the endpoint accepts in one request
+     */
+    public static final int MAX_INPUTS = 2048;
+
+    List<String> inputs;
+
+    Integer length;
+
+    /**
+     * The embedding vectors, in the order of inputs
+     */
+    @Setter
+    float[][] vectors;
+
+    /**
+     * Opaque value for the requester to correlate the response
+     */
+    @Setter
+    Serializable tag = null;
+
+    public OpenAIBatchEmbeddingsRequestResponseMsg(String model, List<String> inputs, Integer length) {
+        if (inputs.isEmpty() || inputs.size() > MAX_INPUTS)
+            throw new IllegalArgumentException("Between 1 and " + MAX_INPUTS + " inputs are allowed, got " + inputs.size());
+        this.model = model;
+        this.inputs = new ArrayList<>(inputs);
+        this.length = length;
+    }
+
+    public OpenAIBatchEmbeddingsRequestResponseMsg(String model, List<String> inputs) {
+        this(model, inputs, null);
+    }
+
+    public OpenAIBatchEmbeddingsRequestResponseMsg(List<String> inputs) {
+        this("text-embedding-3-small", inputs, null);
+    }
+
+    /**
+     * The responses as Embeddings whose chunks are the inputs
+     * @return Embeddings in input order or null if no response
+     */
+    public List<Embedding> getEmbeddings() {
+        if (null == vectors)
+            return null;
+        List<Embedding> embeddings = new ArrayList<>(vectors.length);
+        for (int i = 0; i < vectors.length; ++i)
+            embeddings.add(new Embedding(inputs.get(i), vectors[i]));
+        return embeddings;
+    }
+
+    @Override
+    public String toString() {
+        return "OpenAIBatchEmbeddingsRequestResponseMsg: " + inputs.size() + " inputs" + (null != error ? " error: " + error : "");
+    }
+}
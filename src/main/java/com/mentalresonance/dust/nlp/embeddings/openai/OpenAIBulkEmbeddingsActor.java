@@ -0,0 +1,268 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings.openai;
+
+import com.mentalresonance.dust.core.actors.Actor;
+import com.mentalresonance.dust.core.actors.ActorBehavior;
+import com.mentalresonance.dust.core.actors.ActorRef;
+import com.mentalresonance.dust.core.actors.Props;
+import com.mentalresonance.dust.core.msgs.StartMsg;
+import com.mentalresonance.dust.nlp.embeddings.BulkEmbeddingsRequestResponseMsg;
+import com.mentalresonance.dust.nlp.embeddings.ChunkBatcher;
+import com.mentalresonance.dust.nlp.embeddings.ChunkBatcher.ChunkTag;
+import com.mentalresonance.dust.nlp.embeddings.ContentDefinedChunker;
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingsRequestResponseMsg;
+import com.mentalresonance.dust.nlp.lang.Chunker;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embeds a whole corpus - a {@link BulkEmbeddingsRequestResponseMsg} - through the OpenAI embeddings endpoint, as
+ * HFEmbeddingAPIServiceActor does through a hugging face server. Documents are chunked one after another and each
+ * {@link OpenAIBatchEmbeddingsRequestResponseMsg} sent to service (typically a ServiceManagerActor running
+ * {@link OpenAIEmbeddingsAPIServiceActor}s, which answer from their cache where they can) carries up to maxBatch
+ * chunks from across document boundaries. maxInFlight limits the batches outstanding for the corpus as a whole.
+ * <br/>
+ * Each document is replied to as soon as it is complete - chunks whose batch failed, or was not answered within
+ * timeoutMs, are counted in its failed - then the bulk request with the final counts. A single
+ * {@link EmbeddingsRequestResponseMsg}, streaming or not, is embedded the same way. The actor stops when done.
+ */
+@Slf4j
+public class OpenAIBulkEmbeddingsActor extends Actor {
+
+	/**
+	 * Default number of batches outstanding at once
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	ActorRef service;
+	String model;
+	/**
+	 * Nullable dimension to shorten embeddings to
+	 */
+	Integer length;
+	Integer maxInFlight;
+	Long timeoutMs;
+	/**
+	 * Batches outstanding
+	 */
+	int inFlight = 0;
+	/**
+	 * Set once the final reply is sent - StartMsgs already queued behind it are then ignored
+	 */
+	boolean done = false;
+	long nextBatchId = 0;
+	/**
+	 * Batches sent to the service, by batch id
+	 */
+	Map<Long, ChunkTag> sent = new HashMap<>();
+	/**
+	 * Chunking, batching and reassembly
+	 */
+	ChunkBatcher batcher;
+	/**
+	 * Bulk request or null for a single document
+	 */
+	BulkEmbeddingsRequestResponseMsg bulkMsg = null;
+	ActorRef originalSender;
+
+	/**
+	 * Props
+	 * @param service actor to send batches to
+	 * @param model embedding model
+	 * @param chunkSize size to chunk to
+	 * @param maxBatch maximum number of chunks in one batch
+	 * @return Props
+	 */
+	public static Props props(ActorRef service, String model, Integer chunkSize, Integer maxBatch) {
+		return props(
+			service, model, null, new Chunker(chunkSize), null,
+			DEFAULT_MAX_IN_FLIGHT, maxBatch, 0, OpenAIEmbeddingsAggregatorActor.DEFAULT_TIMEOUT_MS
+		);
+	}
+
+	/**
+	 * Props
+	 * @param service actor to send batches to
+	 * @param model embedding model
+	 * @param length nullable dimension to shorten embeddings to
+	 * @param sentenceChunker chunks by sentences with overlap. Used if chunker is null
+	 * @param chunker nullable content defined chunker
+	 * @param maxInFlight maximum number of batches outstanding at once
+	 * @param maxBatch maximum number of chunks in one batch - at most
+	 *                 {@link OpenAIBatchEmbeddingsRequestResponseMsg#MAX_INPUTS}
+	 * @param maxBatchBytes maximum total UTF-8 size of the chunks in one batch, 0 for no limit. The endpoint also
+	 *                      limits the total tokens of a request
+	 * @param timeoutMs how long to wait for the service to answer a batch before failing its chunks
+	 * @return Props
+	 */
+	public static Props props(
+		ActorRef service, String model, Integer length, Chunker sentenceChunker, ContentDefinedChunker chunker,
+		Integer maxInFlight, Integer maxBatch, Integer maxBatchBytes, Long timeoutMs
+	) {
+		return Props.create(
+			OpenAIBulkEmbeddingsActor.class,
+			service, model, length, sentenceChunker, chunker, maxInFlight, maxBatch, maxBatchBytes, timeoutMs
+		);
+	}
+
+	/**
+	 * Constructor
+	 * @param service actor to send batches to
+	 * @param model embedding model
+	 * @param length nullable dimension to shorten embeddings to
+	 * @param sentenceChunker chunks by sentences with overlap. Used if chunker is null
+	 * @param chunker nullable content defined chunker
+	 * @param maxInFlight maximum number of batches outstanding at once
+	 * @param maxBatch maximum number of chunks in one batch
+	 * @param maxBatchBytes maximum total UTF-8 size of the chunks in one batch, 0 for no limit
+	 * @param timeoutMs how long to wait for the service to answer a batch before failing its chunks
+	 */
+	public OpenAIBulkEmbeddingsActor(
+		ActorRef service, String model, Integer length, Chunker sentenceChunker, ContentDefinedChunker chunker,
+		Integer maxInFlight, Integer maxBatch, Integer maxBatchBytes, Long timeoutMs
+	) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		if (maxBatch > OpenAIBatchEmbeddingsRequestResponseMsg.MAX_INPUTS)
+			throw new IllegalArgumentException("maxBatch must be at most " + OpenAIBatchEmbeddingsRequestResponseMsg.MAX_INPUTS);
+		this.service = service;
+		this.model = model;
+		this.length = length;
+		this.maxInFlight = maxInFlight;
+		this.timeoutMs = timeoutMs;
+		// Caching is left to the service, which keys it by model and length
+		batcher = new ChunkBatcher(model, sentenceChunker, chunker, maxBatch, maxBatchBytes, null, null, this::reply);
+	}
+
+	@Override
+	public void postStop() {
+		batcher.close();
+		log.trace("{} stopped", self.path);
+	}
+
+	@Override
+	public ActorBehavior createBehavior() {
+		return (Serializable message) -> {
+			switch(message) {
+				case EmbeddingsRequestResponseMsg msg -> {
+					originalSender = sender;
+					batcher.setDocuments(List.of(msg).iterator());
+					tellSelf(new StartMsg());
+				}
+
+				case BulkEmbeddingsRequestResponseMsg msg -> {
+					originalSender = sender;
+					bulkMsg = msg;
+					batcher.setDocuments(msg.iterator());
+					tellSelf(new StartMsg());
+				}
+
+				case StartMsg ignored -> { // Fill the window with batches
+					if (done)
+						break;
+
+					ChunkTag batch;
+					while (inFlight < maxInFlight && null != (batch = batcher.nextBatch())) {
+						send(batch);
+						++inFlight;
+					}
+					batcher.deliver();
+					// Nothing outstanding and nothing left to request so every document is complete
+					if (0 == inFlight) {
+						done = true;
+						if (null != bulkMsg) {
+							progress();
+							originalSender.tell(bulkMsg, self);
+						}
+						stopSelf();
+					}
+				}
+
+				case OpenAIBatchEmbeddingsRequestResponseMsg msg -> {
+					ChunkTag tag = sent.remove((Long) msg.getTag());
+
+					if (null == tag)
+						log.warn("{} got response for unknown or timed out batch {}", self.path, msg.getTag());
+					else {
+						if (null != msg.getError())
+							log.error("{} batch {}: {}", self.path, msg.getTag(), msg.getError());
+						completed(tag, null != msg.getError() ? null : msg.getVectors());
+					}
+				}
+
+				case TimeoutMsg msg -> {
+					ChunkTag tag = sent.remove(msg.batchId);
+					// Null if the batch has been answered
+					if (null != tag) {
+						log.warn("{} batch {} timed out", self.path, msg.batchId);
+						completed(tag, null);
+					}
+				}
+
+				default -> log.error("Unhandled message: {}", message);
+			}
+		};
+	}
+
+	private void send(ChunkTag tag) {
+		OpenAIBatchEmbeddingsRequestResponseMsg batch = new OpenAIBatchEmbeddingsRequestResponseMsg(model, tag.getChunks(), length);
+		long id = nextBatchId++;
+
+		batch.setTag(id);
+		sent.put(id, tag);
+		service.tell(batch, self);
+		scheduleIn(new TimeoutMsg(id), timeoutMs);
+	}
+
+	private void completed(ChunkTag tag, float[][] vectors) {
+		--inFlight;
+		batcher.completed(tag, vectors);
+		tellSelf(new StartMsg());
+	}
+
+	/*
+	 * A chunk of a streaming document or a completed document
+	 */
+	private void reply(Serializable msg) {
+		originalSender.tell(msg, self);
+		if (null != bulkMsg && msg instanceof EmbeddingsRequestResponseMsg)
+			progress();
+	}
+
+	private void progress() {
+		bulkMsg.progress(batcher.getCompletedDocuments(), batcher.getEmbedded(), batcher.getReused(), batcher.getFailed());
+	}
+
+	/*
+	 * The service has had timeoutMs to answer the batch
+	 */
+	static class TimeoutMsg implements Serializable {
+		final long batchId;
+
+		TimeoutMsg(long batchId) {
+			this.batchId = batchId;
+		}
+	}
+}
@@ -28,25 +28,38 @@ import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import com.mentalresonance.dust.http.service.HttpService;
 import com.mentalresonance.dust.http.trait.HttpClientActor;
 import com.mentalresonance.dust.nlp.chatgpt.ChatGptRequestResponseMsg;
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingCache;
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingJsonDecoder;
+import com.mentalresonance.dust.nlp.embeddings.NearDuplicateDetector;
 import com.mentalresonance.dust.nlp.genericgpt.GenericGptAPIServiceActor;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Request;
+import okhttp3.ResponseBody;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
 /**
- * Requests/Responses to chat GPT
- * Should be used under a service manager (i.e. it processes one request then stops)
+ * Requests/Responses to the OpenAI embeddings endpoint - either a single text or a batch of texts.
+ * Should be used under a service manager (i.e. it processes one request then stops). Texts found in the
+ * (optional) shared {@link EmbeddingCache} are answered without calling the endpoint, as are near duplicates of texts
+ * already embedded given a {@link NearDuplicateDetector}.
  */
 @Slf4j
 public class OpenAIEmbeddingsAPIServiceActor extends Actor implements HttpClientActor {
 
 	ActorRef originalSender;
 	OpenAIEmbeddingsRequestResponseMsg originalRequest;
+	OpenAIBatchEmbeddingsRequestResponseMsg originalBatch;
+	/**
+	 * Indexes of the batch inputs actually sent - i.e. not cached
+	 */
+	int[] missing;
 
 	static final String api = "https://api.openai.com/v1/embeddings";
 
@@ -54,6 +67,10 @@ public class OpenAIEmbeddingsAPIServiceActor extends Actor implements HttpClient
 
 	ActorRef throttler;
 
+	EmbeddingCache cache;
+
+	NearDuplicateDetector duplicates;
+
 	/**
 	 * Props
 	 * @param proxyThrottler nullable throttler
@@ -61,17 +78,44 @@ public class OpenAIEmbeddingsAPIServiceActor extends Actor implements HttpClient
 	 * @return Props
 	 */
 	public static Props props(ActorRef proxyThrottler, String key) {
-		return Props.create(OpenAIEmbeddingsAPIServiceActor.class, proxyThrottler, key);
+		return props(proxyThrottler, key, null);
+	}
+
+	/**
+	 * Props with a cache
+	 * @param proxyThrottler nullable throttler
+	 * @param key API key
+	 * @param cache nullable cache shared between instances
+	 * @return Props
+	 */
+	public static Props props(ActorRef proxyThrottler, String key, EmbeddingCache cache) {
+		return props(proxyThrottler, key, cache, null);
+	}
+
+	/**
+	 * Props with a cache and near duplicate suppression
+	 * @param proxyThrottler nullable throttler
+	 * @param key API key
+	 * @param cache nullable cache shared between instances
+	 * @param duplicates nullable detector shared between instances
+	 * @return Props
+	 */
+	public static Props props(ActorRef proxyThrottler, String key, EmbeddingCache cache, NearDuplicateDetector duplicates) {
+		return Props.create(OpenAIEmbeddingsAPIServiceActor.class, proxyThrottler, key, cache, duplicates);
 	}
 
 	/**
 	 * Constructor
 	 * @param throttler nullable throttler
 	 * @param key API key
+	 * @param cache nullable cache shared between instances
+	 * @param duplicates nullable near duplicate detector shared between instances
 	 */
-	public OpenAIEmbeddingsAPIServiceActor(ActorRef throttler, String key) {
+	public OpenAIEmbeddingsAPIServiceActor(ActorRef throttler, String key, EmbeddingCache cache, NearDuplicateDetector duplicates) {
 		this.key = key;
 		this.throttler = throttler;
+		this.cache = cache;
+		this.duplicates = duplicates;
 	}
 
 	@Override
@@ -87,31 +131,37 @@ public class OpenAIEmbeddingsAPIServiceActor extends Actor implements HttpClient
 					originalSender = sender;
 					originalRequest = msg;
 
-					Map<String, Object> data = Map.of(
-							"model", msg.getModel(),
-							"input", msg.getRequest(),
-							"encoding_format", "float"
-					);
-					if (msg.getLength() != null) {
-						data.put("dimension", msg.getLength());
-					}
+					float[] cached = known(msg.getModel(), msg.getLength(), msg.getRequest());
+					if (null != cached) {
+						msg.setVector(cached);
+						originalSender.tell(msg, self);
+						stopSelf();
+					} else
+						post(msg.getModel(), msg.getRequest(), msg.getLength());
+				}
 
-					Request gptRequest = HttpService.buildPostRequest(
-							api,
-							new Gson().toJson(data, LinkedHashMap.class),
-							Map.of(
-									"Authorization", "Bearer " + key,
-									"Content-Type", "application/json",
-									"Accept", "application/json"
-							)
-					);
-
-					HttpRequestResponseMsg rrm = new HttpRequestResponseMsg(self, gptRequest);
-					if (null != throttler) {
-						throttler.tell(rrm, self);
-					} else {
-						request(rrm);
+				case OpenAIBatchEmbeddingsRequestResponseMsg msg -> {
+					originalSender = sender;
+					originalBatch = msg;
+
+					List<String> inputs = msg.getInputs();
+					float[][] vectors = new float[inputs.size()][];
+					List<String> uncached = new ArrayList<>();
+					missing = new int[inputs.size()];
+					for (int i = 0; i < inputs.size(); ++i) {
+						vectors[i] = known(msg.getModel(), msg.getLength(), inputs.get(i));
+						if (null == vectors[i]) {
+							missing[uncached.size()] = i;
+							uncached.add(inputs.get(i));
+						}
 					}
+					missing = Arrays.copyOf(missing, uncached.size());
+					msg.setVectors(vectors);
+					if (uncached.isEmpty()) {
+						originalSender.tell(msg, self);
+						stopSelf();
+					} else
+						post(msg.getModel(), uncached, msg.getLength());
 				}
 
 				case HttpRequestResponseMsg msg -> {
@@ -121,23 +171,40 @@ public class OpenAIEmbeddingsAPIServiceActor extends Actor implements HttpClient
 					}
 					else {
 						if (msg.exception != null) {
-							log.warn("Request {} failed: {}", originalRequest, msg.exception.getMessage());
+							log.warn("Request {} failed: {}", null != originalBatch ? originalBatch : originalRequest, msg.exception.getMessage());
+							if (null != originalBatch) {
+								// Batches are typically aggregated from many requesters so always answer
+								originalBatch.setError(msg.exception.getMessage());
+								originalBatch.setVectors(null);
+								originalSender.tell(originalBatch, self);
+							}
 							stopSelf();
-						} else {
-							String json = "";
-							try {
-								json = msg.response.body().string();
-								LinkedHashMap<String, Object> response = new Gson().fromJson(json, LinkedHashMap.class);
-								if (response.get("error") != null) {
-									originalRequest.setError(((Map<String, String>)response.get("error")).get("message"));
-								}
-								else {
-									List<Map<String, Object>> data = (List<Map<String, Object>>) response.get("data");
-									originalRequest.response = (List<Double>)data.get(0).get("embedding");
+						} else if (null != originalBatch) {
+							try (ResponseBody body = msg.response.body()) {
+								// Results are matched to inputs by index - the endpoint does not promise to preserve order
+								float[][] fetched = EmbeddingJsonDecoder.readOpenAI(body.charStream(), missing.length);
+								for (int i = 0; i < fetched.length; ++i) {
+									String input = originalBatch.getInputs().get(missing[i]);
+									originalBatch.getVectors()[missing[i]] = fetched[i];
+									remember(originalBatch.getModel(), originalBatch.getLength(), input, fetched[i]);
 								}
 							}
 							catch (Exception e) {
-								log.error("{} Response from OpenAI Embeddings: {}", e.getMessage(), json);
+								log.error("Response from OpenAI Embeddings: {}", e.getMessage());
+								originalBatch.setError(e.getMessage());
+								originalBatch.setVectors(null);
+							}
+							finally {
+								originalSender.tell(originalBatch, self);
+								stopSelf();
+							}
+						} else {
+							try (ResponseBody body = msg.response.body()) {
+								originalRequest.setVector(EmbeddingJsonDecoder.readOpenAI(body.charStream(), 1)[0]);
+								remember(originalRequest.getModel(), originalRequest.getLength(), originalRequest.getRequest(), originalRequest.getVector());
+							}
+							catch (Exception e) {
+								log.error("Response from OpenAI Embeddings: {}", e.getMessage());
 								originalRequest.setError(e.getMessage());
 							}
 							finally {
@@ -153,5 +220,60 @@ public class OpenAIEmbeddingsAPIServiceActor extends Actor implements HttpClient
 
 		};
 	}
+
+	/*
+	 * Vector of the text from the cache, or of a near duplicate. Null if neither
+	 */
+	private float[] known(String model, Integer length, String text) {
+		float[] vector = null != cache ? cache.get(model, dimension(length), text) : null;
+		if (null == vector && null != duplicates)
+			vector = duplicates.find(model + ":" + dimension(length), text);
+		return vector;
+	}
+
+	private void remember(String model, Integer length, String text, float[] vector) {
+		if (null != cache)
+			cache.put(model, dimension(length), text, vector);
+		if (null != duplicates)
+			duplicates.add(model + ":" + dimension(length), text, vector);
+	}
+
+	/*
+	 * Dimension part of a cache key
+	 */
+	private static int dimension(Integer length) {
+		return null != length ? length : 0;
+	}
+
+	/*
+	 * Post input (a string or list of strings) to the endpoint - via the throttler if we have one
+	 */
+	private void post(String model, Object input, Integer length) {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("model", model);
+		data.put("input", input);
+		// Base64 float32 is a third the size of the decimal form and decodes without parsing a number per dimension
+		data.put("encoding_format", "base64");
+		if (length != null) {
+			data.put("dimensions", length);
+		}
+
+		Request gptRequest = HttpService.buildPostRequest(
+				api,
+				new Gson().toJson(data, LinkedHashMap.class),
+				Map.of(
+						"Authorization", "Bearer " + key,
+						"Content-Type", "application/json",
+						"Accept", "application/json"
+				)
+		);
+
+		HttpRequestResponseMsg rrm = new HttpRequestResponseMsg(self, gptRequest);
+		if (null != throttler) {
+			throttler.tell(rrm, self);
+		} else {
+			request(rrm);
+		}
+	}
 }
 
@@ -0,0 +1,218 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.embeddings.openai;
+
+import com.mentalresonance.dust.core.actors.Actor;
+import com.mentalresonance.dust.core.actors.ActorBehavior;
+import com.mentalresonance.dust.core.actors.ActorRef;
+import com.mentalresonance.dust.core.actors.Props;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Coalesces single text {@link OpenAIEmbeddingsRequestResponseMsg}s arriving within lingerMs of each other into
+ * one {@link OpenAIBatchEmbeddingsRequestResponseMsg}, sent to service (typically a ServiceManagerActor running
+ * {@link OpenAIEmbeddingsAPIServiceActor}s). Each requester gets its own message back, exactly as if it had
+ * been sent to the service directly. Requests are only batched with others for the same model and length.
+ * <br/>
+ * A batch the service has not answered within timeoutMs is abandoned and each of its requesters gets its message
+ * back with an error. A late response to it is then ignored.
+ */
+@Slf4j
+public class OpenAIEmbeddingsAggregatorActor extends Actor {
+
+	/**
+	 * Default time to wait for the service to answer a batch
+	 */
+	public static final long DEFAULT_TIMEOUT_MS = 5 * 60 * 1000L;
+
+	ActorRef service;
+	Long lingerMs, timeoutMs;
+	Integer maxBatch;
+
+	long nextBatchId = 0;
+	/**
+	 * Batches being filled, by model and length
+	 */
+	Map<String, Pending> filling = new HashMap<>();
+	/**
+	 * Batches sent to the service, by batch id
+	 */
+	Map<Long, Pending> sent = new HashMap<>();
+
+	/**
+	 * Props
+	 * @param service actor to send batched requests to
+	 * @param lingerMs how long to wait for further requests after the first of a batch
+	 * @param maxBatch send a batch as soon as it has this many requests
+	 * @return Props
+	 */
+	public static Props props(ActorRef service, Long lingerMs, Integer maxBatch) {
+		return props(service, lingerMs, maxBatch, DEFAULT_TIMEOUT_MS);
+	}
+
+	/**
+	 * Props
+	 * @param service actor to send batched requests to
+	 * @param lingerMs how long to wait for further requests after the first of a batch
+	 * @param maxBatch send a batch as soon as it has this many requests
+	 * @param timeoutMs how long to wait for the service to answer a batch before failing its requests
+	 * @return Props
+	 */
+	public static Props props(ActorRef service, Long lingerMs, Integer maxBatch, Long timeoutMs) {
+		return Props.create(OpenAIEmbeddingsAggregatorActor.class, service, lingerMs, maxBatch, timeoutMs);
+	}
+
+	/**
+	 * Constructor
+	 * @param service actor to send batched requests to
+	 * @param lingerMs how long to wait for further requests after the first of a batch
+	 * @param maxBatch send a batch as soon as it has this many requests
+	 * @param timeoutMs how long to wait for the service to answer a batch before failing its requests
+	 */
+	public OpenAIEmbeddingsAggregatorActor(ActorRef service, Long lingerMs, Integer maxBatch, Long timeoutMs) {
+		if (maxBatch < 1 || maxBatch > OpenAIBatchEmbeddingsRequestResponseMsg.MAX_INPUTS)
+			throw new IllegalArgumentException("maxBatch must be between 1 and " + OpenAIBatchEmbeddingsRequestResponseMsg.MAX_INPUTS);
+		this.service = service;
+		this.lingerMs = lingerMs;
+		this.maxBatch = maxBatch;
+		this.timeoutMs = timeoutMs;
+	}
+
+	@Override
+	public ActorBehavior createBehavior() {
+		return (Serializable message) -> {
+			switch(message) {
+				case OpenAIEmbeddingsRequestResponseMsg msg -> {
+					String key = msg.getModel() + "/" + msg.getLength();
+					Pending pending = filling.get(key);
+
+					if (null == pending) {
+						pending = new Pending(nextBatchId++, msg.getModel(), msg.getLength());
+						filling.put(key, pending);
+						scheduleIn(new FlushMsg(key, pending.id), lingerMs);
+					}
+					pending.requests.add(msg);
+					pending.senders.add(sender);
+					if (pending.requests.size() >= maxBatch)
+						flush(key);
+				}
+
+				case FlushMsg msg -> {
+					Pending pending = filling.get(msg.key);
+					// Batch may already have been sent because it filled up
+					if (null != pending && pending.id == msg.batchId)
+						flush(msg.key);
+				}
+
+				case OpenAIBatchEmbeddingsRequestResponseMsg msg -> {
+					Pending pending = sent.remove((Long) msg.getTag());
+
+					if (null == pending)
+						log.warn("{} got response for unknown or timed out batch {}", self.path, msg.getTag());
+					else
+						answer(pending, msg.getError(), msg.getVectors());
+				}
+
+				case TimeoutMsg msg -> {
+					Pending pending = sent.remove(msg.batchId);
+					// Null if the batch has been answered
+					if (null != pending) {
+						log.warn("{} batch {} timed out", self.path, msg.batchId);
+						answer(pending, "No response from the embeddings service within " + timeoutMs + "ms", null);
+					}
+				}
+
+				default -> log.error("Unhandled message: {}", message);
+			}
+		};
+	}
+
+	private void flush(String key) {
+		Pending pending = filling.remove(key);
+		OpenAIBatchEmbeddingsRequestResponseMsg batch = new OpenAIBatchEmbeddingsRequestResponseMsg(
+			pending.model,
+			pending.requests.stream().map(OpenAIEmbeddingsRequestResponseMsg::getRequest).toList(),
+			pending.length
+		);
+		batch.setTag(pending.id);
+		sent.put(pending.id, pending);
+		log.trace("{} sending batch of {}", self.path, pending.requests.size());
+		service.tell(batch, self);
+		scheduleIn(new TimeoutMsg(pending.id), timeoutMs);
+	}
+
+	/*
+	 * Send each requester its own message back - with its vector or the error
+	 */
+	private void answer(Pending pending, String error, float[][] vectors) {
+		for (int i = 0; i < pending.requests.size(); ++i) {
+			OpenAIEmbeddingsRequestResponseMsg request = pending.requests.get(i);
+			if (null != error)
+				request.setError(error);
+			else
+				request.setVector(vectors[i]);
+			pending.senders.get(i).tell(request, self);
+		}
+	}
+
+	/*
+	 * Requests waiting on one batch
+	 */
+	static class Pending {
+		final long id;
+		final String model;
+		final Integer length;
+		final List<OpenAIEmbeddingsRequestResponseMsg> requests = new ArrayList<>();
+		final List<ActorRef> senders = new ArrayList<>();
+
+		Pending(long id, String model, Integer length) {
+			this.id = id;
+			this.model = model;
+			this.length = length;
+		}
+	}
+
+	/*
+	 * Linger expired for the batch being filled under key
+	 */
+	static class FlushMsg implements Serializable {
+		final String key;
+		final long batchId;
+
+		FlushMsg(String key, long batchId) {
+			this.key = key;
+			this.batchId = batchId;
+		}
+	}
+
+	/*
+	 * The service has had timeoutMs to answer the batch
+	 */
+	static class TimeoutMsg implements Serializable {
+		final long batchId;
+
+		TimeoutMsg(long batchId) {
+			this.batchId = batchId;
+		}
+	}
+}
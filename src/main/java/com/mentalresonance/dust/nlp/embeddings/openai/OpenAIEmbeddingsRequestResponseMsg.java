@@ -19,19 +19,37 @@
 
 package com.mentalresonance.dust.nlp.embeddings.openai;
 
+import com.mentalresonance.dust.nlp.embeddings.Embedding;
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingCodec;
 import com.mentalresonance.dust.nlp.genericgpt.GPTMsg;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.List;
 
+/**
+ * Request the embedding of one text. Externalizable through {@link EmbeddingCodec}, so the vector crosses between
+ * nodes packed.
+ */
 @Getter
-public class OpenAIEmbeddingsRequestResponseMsg extends GPTMsg {
+public class OpenAIEmbeddingsRequestResponseMsg extends GPTMsg implements Externalizable {
 
     Integer length;
 
+    /**
+     * The embedding vector of the request
+     */
     @Setter
-    List<Double> response;
+    float[] vector;
+
+    /**
+     * For deserialization
+     */
+    public OpenAIEmbeddingsRequestResponseMsg() {}
 
     public OpenAIEmbeddingsRequestResponseMsg(String model, String request, Integer length) {
         this.model = model;
@@ -46,4 +64,47 @@ public class OpenAIEmbeddingsRequestResponseMsg extends GPTMsg {
     public OpenAIEmbeddingsRequestResponseMsg(String request) {
         this("text-embedding-3-small", request, null);
     }
+
+    /**
+     * The response as a (read only) list view of the vector
+     * @return List view or null if no response
+     */
+    public List<Double> getResponse() {
+        return null != vector ? Embedding.asList(vector) : null;
+    }
+
+    /**
+     * Set the response
+     * @param response list of numbers
+     */
+    public void setResponse(List<? extends Number> response) {
+        vector = null != response ? Embedding.toFloats(response) : null;
+    }
+
+    /**
+     * The response as an Embedding whose chunk is the request
+     * @return Embedding or null if no response
+     */
+    public Embedding getEmbedding() {
+        return null != vector ? new Embedding(request, vector) : null;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        EmbeddingCodec.writeString(out, request);
+        EmbeddingCodec.writeString(out, model);
+        EmbeddingCodec.writeString(out, error);
+        out.writeInt(null != length ? length : -1);
+        EmbeddingCodec.writeVector(out, vector);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        request = EmbeddingCodec.readString(in);
+        model = EmbeddingCodec.readString(in);
+        error = EmbeddingCodec.readString(in);
+        int dimensions = in.readInt();
+        length = dimensions < 0 ? null : dimensions;
+        vector = EmbeddingCodec.readVector(in);
+    }
 }
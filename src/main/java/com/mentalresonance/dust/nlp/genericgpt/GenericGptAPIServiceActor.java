@@ -24,6 +24,7 @@ import com.mentalresonance.dust.core.actors.*;
 import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import com.mentalresonance.dust.http.service.HttpService;
 import com.mentalresonance.dust.http.trait.HttpClientActor;
+import com.mentalresonance.dust.nlp.lang.BpeTokenizer;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Request;
 
@@ -54,6 +55,14 @@ public class GenericGptAPIServiceActor extends Actor implements HttpClientActor
 	 * Original Sender
 	 */
 	protected ActorRef originalSender;
+	/**
+	 * Optional tokenizer to check requests fit contextTokens before they are sent
+	 */
+	protected BpeTokenizer tokenizer;
+	/**
+	 * Context window of the model - prompt plus completion tokens must fit
+	 */
+	protected Integer contextTokens;
 
 	/**
 	 * Props
@@ -64,14 +73,40 @@ public class GenericGptAPIServiceActor extends Actor implements HttpClientActor
 	public static Props props(String api, ActorRef proxyThrottler) {
 		return Props.create(GenericGptAPIServiceActor.class, api, proxyThrottler);
 	}
+	/**
+	 * Props with token budget checking
+	 * @param api completion endpoint
+	 * @param proxyThrottler optional throttler
+	 * @param tokenizer of the model
+	 * @param contextTokens context window of the model
+	 * @return Props
+	 */
+	public static Props props(String api, ActorRef proxyThrottler, BpeTokenizer tokenizer, Integer contextTokens) {
+		return Props.create(GenericGptAPIServiceActor.class, api, proxyThrottler, tokenizer, contextTokens);
+	}
+
 	/**
 	 * Constructor
 	 * @param api completion endpoint
 	 * @param throttler optional throttler
 	 */
 	public GenericGptAPIServiceActor(String api, ActorRef throttler) {
+		this(api, throttler, null, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param api completion endpoint
+	 * @param throttler optional throttler
+	 * @param tokenizer nullable tokenizer of the model. If not null requests which cannot fit are failed
+	 *                  without being sent
+	 * @param contextTokens context window of the model
+	 */
+	public GenericGptAPIServiceActor(String api, ActorRef throttler, BpeTokenizer tokenizer, Integer contextTokens) {
 		this.api = api;
 		this.throttler = throttler;
+		this.tokenizer = tokenizer;
+		this.contextTokens = contextTokens;
 	}
 
 	/**
@@ -98,6 +133,9 @@ public class GenericGptAPIServiceActor extends Actor implements HttpClientActor
 					originalSender = sender;
 					originalRequest = msg;
 
+					if (! withinBudget(msg, null != tokenizer ? tokenizer.count(msg.request) : 0))
+						break;
+
 					Map<String, Object> data = Map.of(
 						"model", msg.model,
 						"prompt",  msg.request,
@@ -157,6 +195,26 @@ public class GenericGptAPIServiceActor extends Actor implements HttpClientActor
 		};
 	}
 
+	/**
+	 * If we have a tokenizer check the prompt plus maximum completion fit the context. If they don't the request
+	 * is returned with an error (rather than sending it to be truncated or rejected) and we stop.
+	 * @param msg request
+	 * @param promptTokens tokens in the prompt as sent
+	 * @return true if the request should be sent
+	 */
+	protected boolean withinBudget(GenericGptRequestResponseMsg msg, int promptTokens) {
+		if (null == tokenizer || promptTokens + msg.getMaxTokens() <= contextTokens)
+			return true;
+
+		msg.setError("Prompt of %d tokens plus %d completion tokens exceeds the %d token context".formatted(
+			promptTokens, msg.getMaxTokens(), contextTokens
+		));
+		log.warn("{}: {}", self.path, msg.getError());
+		originalSender.tell(msg, parent);
+		stopSelf();
+		return false;
+	}
+
 	@Override
 	protected void dying() {
 		log.warn("Gpt did not respond -- stopping service Actor");
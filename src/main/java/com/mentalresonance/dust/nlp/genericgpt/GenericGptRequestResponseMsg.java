@@ -19,6 +19,7 @@
 
 package com.mentalresonance.dust.nlp.genericgpt;
 
+import com.mentalresonance.dust.nlp.lang.BpeTokenizer;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -141,6 +142,19 @@ public abstract class GenericGptRequestResponseMsg extends GPTMsg // extends Ret
         this.maxTokens = maxTokens;
     }
 
+    /**
+     * Tokens the system prompt and request take as chat messages - each message is framed by 3 tokens
+     * plus its role and the reply is primed with 3 more
+     * @param tokenizer of the model
+     * @return prompt tokens
+     */
+    public int chatPromptTokens(BpeTokenizer tokenizer) {
+        int tokens = 3;
+        if (null != systemPrompt)
+            tokens += 3 + tokenizer.count("system") + tokenizer.count(systemPrompt);
+        return tokens + 3 + tokenizer.count("user") + tokenizer.count(null != request ? request : "");
+    }
+
     /**
      * Our Overlord speaks.
      * @return The utterance
@@ -0,0 +1,385 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.lang;
+
+import lombok.Getter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte pair encoding tokenizer compatible with OpenAI's tiktoken encodings. Vocabularies are tiktoken files
+ * (a base64 token and its rank per line) loaded from the classpath as tiktoken/&lt;name&gt;.tiktoken, e.g.
+ * tiktoken/cl100k_base.tiktoken, or from any stream.
+ * <br/>
+ * Text is split by the encoding's regex into pieces, each UTF-8 encoded and merged lowest rank pair first.
+ * {@link #count(CharSequence)} does this without allocating: pieces are encoded into a per thread buffer and
+ * looked up in an open addressing table over the token bytes. Special tokens are not recognized - text is
+ * always encoded as ordinary text.
+ * <br/>
+ * Thread safe.
+ */
+public class BpeTokenizer {
+
+	/**
+	 * Split pattern of cl100k_base (gpt-4, gpt-3.5-turbo, text-embedding-3-*)
+	 */
+	public static final String CL100K_PATTERN =
+		"'(?i:[sdmt]|ll|ve|re)|[^\\r\\n\\p{L}\\p{N}]?+\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]++[\\r\\n]*|\\s*[\\r\\n]|\\s+(?!\\S)|\\s+";
+
+	/**
+	 * Split pattern of o200k_base (gpt-4o, o1, ...)
+	 */
+	public static final String O200K_PATTERN = String.join("|",
+		"[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?",
+		"[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?",
+		"\\p{N}{1,3}",
+		" ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*",
+		"\\s*[\\r\\n]+",
+		"\\s+(?!\\S)",
+		"\\s+"
+	);
+
+	@Getter
+	final String name;
+	final Pattern pattern;
+	/**
+	 * Token bytes of rank r are pool[offsets[r] .. offsets[r + 1])
+	 */
+	final byte[] pool;
+	final int[] offsets;
+	/**
+	 * Open addressing hash of token bytes to rank + 1 (0 is empty)
+	 */
+	final int[] table;
+	final int mask;
+	final ThreadLocal<Scratch> scratch;
+
+	/**
+	 * Load a tiktoken encoding from the classpath
+	 * @param name cl100k_base or o200k_base
+	 * @return tokenizer
+	 * @throws IOException if tiktoken/name.tiktoken cannot be read
+	 */
+	public static BpeTokenizer load(String name) throws IOException {
+		String pattern = switch (name) {
+			case "cl100k_base" -> CL100K_PATTERN;
+			case "o200k_base" -> O200K_PATTERN;
+			default -> throw new IllegalArgumentException("Unknown encoding " + name);
+		};
+		try (InputStream in = BpeTokenizer.class.getClassLoader().getResourceAsStream("tiktoken/" + name + ".tiktoken")) {
+			if (null == in)
+				throw new IOException("tiktoken/" + name + ".tiktoken is not on the classpath");
+			return load(name, in, pattern);
+		}
+	}
+
+	/**
+	 * Load the encoding used by an OpenAI model from the classpath
+	 * @param model e.g. gpt-4o-mini
+	 * @return tokenizer
+	 * @throws IOException if the encoding cannot be read
+	 */
+	public static BpeTokenizer forModel(String model) throws IOException {
+		return load(encodingFor(model));
+	}
+
+	/**
+	 * @param model OpenAI model name
+	 * @return name of its encoding
+	 */
+	public static String encodingFor(String model) {
+		return model.startsWith("gpt-4o") || model.startsWith("gpt-4.1") || model.startsWith("gpt-5") ||
+			model.startsWith("o1") || model.startsWith("o3") || model.startsWith("o4") ? "o200k_base" : "cl100k_base";
+	}
+
+	/**
+	 * Load a tiktoken file
+	 * @param name of the encoding
+	 * @param in lines of base64 token and rank. Not closed
+	 * @param pattern regex splitting text into pieces
+	 * @return tokenizer
+	 * @throws IOException on failure to read
+	 */
+	public static BpeTokenizer load(String name, InputStream in, String pattern) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		byte[][] tokens = new byte[1 << 16][];
+		int size = 0, bytes = 0;
+		String line;
+
+		while (null != (line = reader.readLine())) {
+			if (line.isBlank())
+				continue;
+			int space = line.indexOf(' ');
+			int rank = Integer.parseInt(line, space + 1, line.length(), 10);
+			if (rank >= tokens.length)
+				tokens = Arrays.copyOf(tokens, Math.max(tokens.length * 2, rank + 1));
+			tokens[rank] = Base64.getDecoder().decode(line.substring(0, space));
+			bytes += tokens[rank].length;
+			size = Math.max(size, rank + 1);
+		}
+		return new BpeTokenizer(name, Pattern.compile(pattern, Pattern.UNICODE_CHARACTER_CLASS), Arrays.copyOf(tokens, size), bytes);
+	}
+
+	BpeTokenizer(String name, Pattern pattern, byte[][] tokens, int bytes) {
+		this.name = name;
+		this.pattern = pattern;
+		this.pool = new byte[bytes];
+		this.offsets = new int[tokens.length + 1];
+		this.table = new int[Integer.highestOneBit(Math.max(tokens.length, 2) * 2) * 2];
+		this.mask = table.length - 1;
+
+		int at = 0;
+		for (int rank = 0; rank < tokens.length; ++rank) {
+			offsets[rank] = at;
+			if (null != tokens[rank]) {
+				System.arraycopy(tokens[rank], 0, pool, at, tokens[rank].length);
+				at += tokens[rank].length;
+				int slot = hash(pool, offsets[rank], at) & mask;
+				while (0 != table[slot])
+					slot = (slot + 1) & mask;
+				table[slot] = rank + 1;
+			}
+		}
+		offsets[tokens.length] = at;
+		this.scratch = ThreadLocal.withInitial(() -> new Scratch(pattern));
+	}
+
+	/**
+	 * @return number of tokens in the vocabulary
+	 */
+	public int size() { return offsets.length - 1; }
+
+	/**
+	 * Number of tokens in text
+	 * @param text to count
+	 * @return token count
+	 */
+	public int count(CharSequence text) {
+		return count(text, 0, text.length());
+	}
+
+	/**
+	 * Number of tokens in part of text
+	 * @param text to count
+	 * @param start of part
+	 * @param end of part (exclusive)
+	 * @return token count
+	 */
+	public int count(CharSequence text, int start, int end) {
+		Scratch s = scratch.get();
+		Matcher matcher = s.matcher.reset(text).region(start, end);
+		int count = 0;
+
+		try {
+			while (matcher.find())
+				count += merge(s, text, matcher.start(), matcher.end(), null, 0);
+		}
+		finally {
+			s.matcher.reset("");
+		}
+		return count;
+	}
+
+	/**
+	 * @param text to encode
+	 * @return token ranks
+	 */
+	public int[] encode(CharSequence text) {
+		Scratch s = scratch.get();
+		Matcher matcher = s.matcher.reset(text);
+		int[] tokens = new int[Math.max(16, text.length() / 3)];
+		int count = 0;
+
+		try {
+			while (matcher.find()) {
+				int pieceEnd = matcher.end(), needed = count + (pieceEnd - matcher.start()) * 4;
+				if (needed > tokens.length)
+					tokens = Arrays.copyOf(tokens, Math.max(needed, tokens.length * 2));
+				count += merge(s, text, matcher.start(), pieceEnd, tokens, count);
+			}
+		}
+		finally {
+			s.matcher.reset("");
+		}
+		return Arrays.copyOf(tokens, count);
+	}
+
+	/**
+	 * @param tokens ranks
+	 * @return the text they encode
+	 */
+	public String decode(int[] tokens) {
+		int length = 0;
+		for (int token : tokens)
+			length += offsets[token + 1] - offsets[token];
+		byte[] bytes = new byte[length];
+		int at = 0;
+		for (int token : tokens) {
+			int n = offsets[token + 1] - offsets[token];
+			System.arraycopy(pool, offsets[token], bytes, at, n);
+			at += n;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Rank of bytes[start..end) or -1 if not a token
+	 */
+	int rank(byte[] bytes, int start, int end) {
+		int slot = hash(bytes, start, end) & mask;
+		for (int entry; 0 != (entry = table[slot]); slot = (slot + 1) & mask) {
+			int rank = entry - 1;
+			if (Arrays.equals(pool, offsets[rank], offsets[rank + 1], bytes, start, end))
+				return rank;
+		}
+		return -1;
+	}
+
+	/*
+	 * Encode one piece, writing its tokens at out[at] if out is not null. Returns the number of tokens
+	 */
+	private int merge(Scratch s, CharSequence text, int start, int end, int[] out, int at) {
+		int length = s.utf8(text, start, end);
+		byte[] bytes = s.bytes;
+
+		int whole = rank(bytes, 0, length);
+		if (whole >= 0) {
+			if (null != out)
+				out[at] = whole;
+			return 1;
+		}
+		/*
+		 * parts are the boundaries of the current tokens. ranks[i] is the rank of merging tokens i and i + 1
+		 */
+		int parts = length + 1;
+		int[] starts = s.starts(parts), ranks = s.ranks(parts);
+		for (int i = 0; i < parts; ++i)
+			starts[i] = i;
+		for (int i = 0; i < parts - 2; ++i)
+			ranks[i] = rankOrMax(bytes, starts[i], starts[i + 2]);
+
+		while (parts > 2) {
+			int min = Integer.MAX_VALUE, best = -1;
+			for (int i = 0; i < parts - 2; ++i) {
+				if (ranks[i] < min) {
+					min = ranks[i];
+					best = i;
+				}
+			}
+			if (best < 0)
+				break;
+			// Merge tokens best and best + 1 by dropping boundary best + 1
+			System.arraycopy(starts, best + 2, starts, best + 1, parts - best - 2);
+			System.arraycopy(ranks, best + 2, ranks, best + 1, Math.max(0, parts - best - 4));
+			--parts;
+			ranks[best] = best + 2 < parts ? rankOrMax(bytes, starts[best], starts[best + 2]) : Integer.MAX_VALUE;
+			if (best > 0)
+				ranks[best - 1] = rankOrMax(bytes, starts[best - 1], starts[best + 1]);
+		}
+		if (null != out) {
+			for (int i = 0; i < parts - 1; ++i) {
+				int rank = rank(bytes, starts[i], starts[i + 1]);
+				if (rank < 0)
+					throw new IllegalStateException("Byte %d is not in the vocabulary of %s".formatted(bytes[starts[i]] & 0xff, name));
+				out[at + i] = rank;
+			}
+		}
+		return parts - 1;
+	}
+
+	private int rankOrMax(byte[] bytes, int start, int end) {
+		int rank = rank(bytes, start, end);
+		return rank < 0 ? Integer.MAX_VALUE : rank;
+	}
+
+	private static int hash(byte[] bytes, int start, int end) {
+		int hash = 0x811c9dc5;
+		for (int i = start; i < end; ++i)
+			hash = (hash ^ bytes[i]) * 0x01000193;
+		return hash ^ (hash >>> 16);
+	}
+
+	/*
+	 * Per thread working storage
+	 */
+	static class Scratch {
+		final Matcher matcher;
+		byte[] bytes = new byte[256];
+		int[] starts = new int[257], ranks = new int[257];
+
+		Scratch(Pattern pattern) {
+			matcher = pattern.matcher("");
+		}
+
+		int[] starts(int n) {
+			if (starts.length < n)
+				starts = new int[n * 2];
+			return starts;
+		}
+
+		int[] ranks(int n) {
+			if (ranks.length < n)
+				ranks = new int[n * 2];
+			return ranks;
+		}
+
+		/*
+		 * UTF-8 of text[start..end) into bytes, returning the length
+		 */
+		int utf8(CharSequence text, int start, int end) {
+			if (bytes.length < (end - start) * 3)
+				bytes = new byte[(end - start) * 6];
+			int n = 0;
+			for (int i = start; i < end; ++i) {
+				char c = text.charAt(i);
+				if (c < 0x80)
+					bytes[n++] = (byte) c;
+				else if (c < 0x800) {
+					bytes[n++] = (byte) (0xc0 | (c >> 6));
+					bytes[n++] = (byte) (0x80 | (c & 0x3f));
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, text.charAt(++i));
+					bytes[n++] = (byte) (0xf0 | (cp >> 18));
+					bytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					bytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					bytes[n++] = (byte) (0x80 | (cp & 0x3f));
+				}
+				else {
+					// Lone surrogates become U+FFFD as in String.getBytes
+					if (Character.isSurrogate(c))
+						c = '\uFFFD';
+					bytes[n++] = (byte) (0xe0 | (c >> 12));
+					bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					bytes[n++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.lang;
+
+import com.ibm.icu.text.BreakIterator;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Splits text into chunks of whole sentences of at most maxSize characters - or tokens if given a
+ * {@link BpeTokenizer} - consecutive chunks sharing overlap sentences. Chunks are produced lazily - from a
+ * CharSequence, or from a Reader of which only the text around the current chunk is held in memory. Each chunk
+ * is built once in a reused buffer, so chunking is linear in the size of the text.
+ * <br/>
+ * A sentence longer than maxSize becomes consecutive chunks of at most maxSize (without overlap). Token sizes are
+ * the sum of the sizes of the chunk's sentences, which can slightly overstate the tokens of the whole chunk.
+ * Overlap sentences are dropped from the front of a chunk as needed to make room for the next new sentence.
+ * <pre>
+ *     for (String chunk : new Chunker(256).iterable(text)) ...
+ * </pre>
+ */
+@Getter
+public class Chunker {
+
+	static final int BLOCK_CHARS = 1 << 16;
+
+	final int maxSize, overlap;
+	final Locale locale;
+	final BpeTokenizer tokenizer;
+
+	/**
+	 * English chunks with a one sentence overlap
+	 * @param maxChars maximum chunk size
+	 */
+	public Chunker(int maxChars) {
+		this(maxChars, 1, Locale.ENGLISH);
+	}
+
+	/**
+	 * Constructor
+	 * @param maxChars maximum chunk size
+	 * @param overlap number of sentences at the end of a chunk repeated at the start of the next
+	 * @param locale of the text
+	 */
+	public Chunker(int maxChars, int overlap, Locale locale) {
+		this(maxChars, overlap, locale, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param maxSize maximum chunk size - in tokens if tokenizer is not null else characters
+	 * @param overlap number of sentences at the end of a chunk repeated at the start of the next
+	 * @param locale of the text
+	 * @param tokenizer nullable tokenizer measuring chunks
+	 */
+	public Chunker(int maxSize, int overlap, Locale locale, BpeTokenizer tokenizer) {
+		if (maxSize < 2 || overlap < 0)
+			throw new IllegalArgumentException("Need maxSize > 1 and overlap >= 0");
+		this.maxSize = maxSize;
+		this.overlap = overlap;
+		this.locale = locale;
+		this.tokenizer = tokenizer;
+	}
+
+	/**
+	 * @param text to chunk
+	 * @return lazy iterator over chunks
+	 */
+	public Iterator<String> chunks(CharSequence text) {
+		return new Chunks(text, null);
+	}
+
+	/**
+	 * @param reader text to chunk. Read as chunks are consumed and not closed.
+	 * @return lazy iterator over chunks. IOExceptions are thrown as UncheckedIOException
+	 */
+	public Iterator<String> chunks(Reader reader) {
+		return new Chunks(new StringBuilder(), reader);
+	}
+
+	/**
+	 * @param text to chunk
+	 * @return chunks to iterate over once
+	 */
+	public Iterable<String> iterable(CharSequence text) {
+		return () -> chunks(text);
+	}
+
+	/**
+	 * @param text to chunk
+	 * @return lazy stream of chunks
+	 */
+	public Stream<String> stream(CharSequence text) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks(text), Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * @param reader text to chunk. Not closed
+	 * @return lazy stream of chunks
+	 */
+	public Stream<String> stream(Reader reader) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks(reader), Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * @param text to chunk
+	 * @return all chunks
+	 */
+	public List<String> chunk(CharSequence text) {
+		List<String> chunks = new ArrayList<>();
+		chunks(text).forEachRemaining(chunks::add);
+		return chunks;
+	}
+
+	/**
+	 * Iterator over chunks. Positions are absolute offsets in the text; for a Reader text holds the window
+	 * of the stream from base.
+	 */
+	class Chunks implements Iterator<String> {
+		final CharSequence text;
+		final StringBuilder window;
+		final Reader reader;
+		final BreakIterator breaks = SentenceSegmenter.of(locale).newIterator();
+		final StringBuilder chunk = new StringBuilder();
+		final char[] block;
+		/**
+		 * Sentences of the chunk being built (starting with those carried over as overlap)
+		 */
+		int[] sentenceStarts = new int[overlap + 16], sentenceEnds = new int[overlap + 16], sentenceSizes = new int[overlap + 16];
+		int sentences = 0, base = 0, position = 0, pendingEnd = -1;
+		boolean eof;
+		String next = null;
+
+		Chunks(CharSequence text, Reader reader) {
+			this.text = text;
+			this.reader = reader;
+			this.window = null != reader ? (StringBuilder) text : null;
+			this.block = null != reader ? new char[BLOCK_CHARS] : null;
+			this.eof = null == reader;
+			breaks.setText(text);
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (null == next)
+				next = computeNext();
+			return null != next;
+		}
+
+		@Override
+		public String next() {
+			if (! hasNext())
+				throw new NoSuchElementException();
+			String chunk = next;
+			next = null;
+			return chunk;
+		}
+
+		private String computeNext() {
+			int added = 0, length = 0;
+
+			for (int i = 0; i < sentences; ++i)
+				length += sentenceSizes[i];
+
+			for (;;) {
+				if (pendingEnd < 0 && (pendingEnd = nextBoundary()) < 0)
+					break;
+				int size = size(position, pendingEnd);
+
+				if (size > maxSize) {
+					if (added > 0)
+						break;
+					// Hard split - don't split a surrogate pair
+					int end = split(position, pendingEnd);
+					if (Character.isHighSurrogate(text.charAt(end - 1 - base)) && end - 1 > position)
+						--end;
+					sentences = 0;
+					chunk.setLength(0);
+					chunk.append(text, position - base, end - base);
+					position = end;
+					return chunk.toString();
+				}
+				// Make room for a first new sentence by dropping overlap
+				while (0 == added && sentences > 0 && length + size > maxSize) {
+					length -= sentenceSizes[0];
+					System.arraycopy(sentenceStarts, 1, sentenceStarts, 0, sentences - 1);
+					System.arraycopy(sentenceEnds, 1, sentenceEnds, 0, sentences - 1);
+					System.arraycopy(sentenceSizes, 1, sentenceSizes, 0, sentences - 1);
+					--sentences;
+				}
+				if (length + size > maxSize)
+					break;
+				if (sentences == sentenceStarts.length) {
+					sentenceStarts = Arrays.copyOf(sentenceStarts, sentences * 2);
+					sentenceEnds = Arrays.copyOf(sentenceEnds, sentences * 2);
+					sentenceSizes = Arrays.copyOf(sentenceSizes, sentences * 2);
+				}
+				sentenceStarts[sentences] = position;
+				sentenceSizes[sentences] = size;
+				sentenceEnds[sentences++] = pendingEnd;
+				length += size;
+				position = pendingEnd;
+				pendingEnd = -1;
+				++added;
+			}
+			if (0 == added)
+				return null;
+
+			chunk.setLength(0);
+			for (int i = 0; i < sentences; ++i)
+				chunk.append(text, sentenceStarts[i] - base, sentenceEnds[i] - base);
+
+			// Carry the overlap
+			int carry = Math.min(overlap, sentences);
+			System.arraycopy(sentenceStarts, sentences - carry, sentenceStarts, 0, carry);
+			System.arraycopy(sentenceEnds, sentences - carry, sentenceEnds, 0, carry);
+			System.arraycopy(sentenceSizes, sentences - carry, sentenceSizes, 0, carry);
+			sentences = carry;
+			return chunk.toString();
+		}
+
+		/*
+		 * Size of text between absolute positions
+		 */
+		private int size(int start, int end) {
+			return null == tokenizer ? end - start : tokenizer.count(text, start - base, end - base);
+		}
+
+		/*
+		 * End of the longest prefix of text[start..end) of at most maxSize - at least one character
+		 */
+		private int split(int start, int end) {
+			if (null == tokenizer)
+				return start + maxSize;
+			int low = start + 1, high = end;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (size(start, middle) <= maxSize)
+					low = middle;
+				else
+					high = middle - 1;
+			}
+			return low;
+		}
+
+		/*
+		 * End of the sentence starting at position, or -1 at end of text. For a Reader the final boundary of
+		 * the window is only a sentence end at end of input - before then the sentence may continue.
+		 */
+		private int nextBoundary() {
+			for (;;) {
+				int boundary = position - base < text.length() ? breaks.following(position - base) : BreakIterator.DONE;
+				if (boundary == BreakIterator.DONE) {
+					if (eof || !fill())
+						return eof && position - base < text.length() ? text.length() + base : -1;
+				}
+				else if (boundary == text.length() && !eof)
+					fill();
+				else
+					return boundary + base;
+			}
+		}
+
+		/*
+		 * Read the next block, discarding text no longer needed. False (and eof set) at end of input
+		 */
+		private boolean fill() {
+			try {
+				int keep = sentences > 0 ? sentenceStarts[0] : position;
+				if (keep - base > BLOCK_CHARS) {
+					window.delete(0, keep - base);
+					base = keep;
+				}
+				int n = reader.read(block, 0, block.length);
+				if (n < 0) {
+					eof = true;
+				}
+				else
+					window.append(block, 0, n);
+				breaks.setText(window);
+				return n >= 0;
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.lang;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a text file by decoding a memory mapped window of it, so the bytes are never copied onto the heap and
+ * the heap used is a small fixed buffer whatever the size of the file. The window slides through the file, and
+ * a character split across the end of a window is decoded from the next one. Malformed input is replaced.
+ * <br/>
+ * Not thread safe.
+ */
+public class MappedTextReader extends Reader {
+
+	/**
+	 * Bytes mapped at once
+	 */
+	static final int WINDOW_BYTES = 1 << 26;
+	/**
+	 * Remap when fewer than this many bytes are left in the window - more than the longest encoded character
+	 */
+	static final int TAIL_BYTES = 16;
+
+	final FileChannel channel;
+	final long size;
+	final int windowBytes;
+	final CharsetDecoder decoder;
+	final CharBuffer chars = CharBuffer.allocate(8192).flip();
+	MappedByteBuffer window = null;
+	long windowStart = 0;
+	boolean flushed = false;
+
+	/**
+	 * UTF-8 reader
+	 * @param path of the file
+	 * @throws IOException on opening the file
+	 */
+	public MappedTextReader(Path path) throws IOException {
+		this(path, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reader
+	 * @param path of the file
+	 * @param charset of the file
+	 * @throws IOException on opening the file
+	 */
+	public MappedTextReader(Path path, Charset charset) throws IOException {
+		this(path, charset, WINDOW_BYTES);
+	}
+
+	MappedTextReader(Path path, Charset charset, int windowBytes) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.windowBytes = Math.max(windowBytes, 2 * TAIL_BYTES);
+		this.decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	@Override
+	public int read(char[] buffer, int offset, int length) throws IOException {
+		if (0 == length)
+			return 0;
+		if (!chars.hasRemaining() && !fill())
+			return -1;
+		int n = Math.min(length, chars.remaining());
+		chars.get(buffer, offset, n);
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+
+	/**
+	 * Decode the next characters into chars. False at end of file
+	 */
+	private boolean fill() throws IOException {
+		chars.clear();
+		while (0 == chars.position() && !flushed) {
+			if (null == window || (window.remaining() < TAIL_BYTES && windowStart + window.limit() < size))
+				map();
+			boolean end = windowStart + window.limit() == size;
+			CoderResult result = decoder.decode(window, chars, end);
+			if (result.isError())
+				result.throwException();
+			if (end && result.isUnderflow()) {
+				decoder.flush(chars);
+				flushed = true;
+			}
+		}
+		chars.flip();
+		return chars.hasRemaining();
+	}
+
+	/**
+	 * Map the next window, starting at the first byte not yet decoded
+	 */
+	private void map() throws IOException {
+		if (!channel.isOpen())
+			throw new IOException("Reader closed");
+		long start = null == window ? 0 : windowStart + window.position();
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowBytes, size - start));
+		windowStart = start;
+	}
+}
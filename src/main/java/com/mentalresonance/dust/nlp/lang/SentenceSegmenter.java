@@ -0,0 +1,220 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+package com.mentalresonance.dust.nlp.lang;
+
+import com.ibm.icu.text.BreakIterator;
+import lombok.Getter;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Sentence segmentation returning boundaries rather than substrings. ICU sentence iterators are built once per
+ * locale and cloned once per thread, so repeated calls do not pay for iterator construction.
+ * <br/>
+ * Large texts are cut into pieces just after newlines - ICU always ends a sentence at a line or paragraph
+ * separator, so a cut there cannot change the result - and the pieces are segmented in parallel on a fork/join
+ * pool and stitched back together.
+ * <br/>
+ * Thread safe.
+ */
+public class SentenceSegmenter {
+
+	/**
+	 * Default target size of a piece segmented on its own
+	 */
+	public static final int PIECE_CHARS = 1 << 18;
+
+	static final Map<Locale, SentenceSegmenter> segmenters = new ConcurrentHashMap<>();
+
+	@Getter
+	final Locale locale;
+	@Getter
+	final int pieceChars;
+	final ForkJoinPool pool;
+	final BreakIterator prototype;
+	final ThreadLocal<BreakIterator> iterators;
+
+	/**
+	 * Shared segmenter for the locale
+	 * @param locale of text
+	 * @return segmenter
+	 */
+	public static SentenceSegmenter of(Locale locale) {
+		return segmenters.computeIfAbsent(locale, SentenceSegmenter::new);
+	}
+
+	/**
+	 * Segmenter using the common pool
+	 * @param locale of text
+	 */
+	public SentenceSegmenter(Locale locale) {
+		this(locale, PIECE_CHARS, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Segmenter
+	 * @param locale of text
+	 * @param pieceChars texts of more than four times this are cut into pieces of about this size and segmented in parallel
+	 * @param pool to segment pieces on
+	 */
+	public SentenceSegmenter(Locale locale, int pieceChars, ForkJoinPool pool) {
+		if (pieceChars < 1)
+			throw new IllegalArgumentException("pieceChars must be positive");
+		this.locale = locale;
+		this.pieceChars = pieceChars;
+		this.pool = pool;
+		this.prototype = BreakIterator.getSentenceInstance(locale);
+		this.iterators = ThreadLocal.withInitial(this::newIterator);
+	}
+
+	/**
+	 * A new sentence iterator for the locale, for callers which must hold an iterator across calls
+	 * @return iterator with no text
+	 */
+	public BreakIterator newIterator() {
+		return (BreakIterator) prototype.clone();
+	}
+
+	/**
+	 * Sentence boundaries of the text. Sentence i is the range [boundaries[i], boundaries[i+1]), so there is one
+	 * fewer sentence than boundaries; the first boundary is 0 and the last is text.length().
+	 * @param text to segment
+	 * @return boundaries
+	 */
+	public int[] segment(CharSequence text) {
+		List<int[]> pieces = pieces(text);
+		if (pieces.size() == 1)
+			return boundaries(text, 0, text.length());
+
+		int[][] parts = pool.invoke(new SegmentTask(text, pieces, 0, pieces.size()));
+		int total = 1;
+		for (int[] part : parts)
+			total += part.length - 1;
+
+		int[] boundaries = new int[total];
+		int n = 0;
+		for (int[] part : parts) {
+			System.arraycopy(part, 1, boundaries, n + 1, part.length - 1);
+			n += part.length - 1;
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Sentences of the text
+	 * @param text to segment
+	 * @return sentences
+	 */
+	public List<String> sentences(CharSequence text) {
+		int[] boundaries = segment(text);
+		List<String> sentences = new ArrayList<>(boundaries.length - 1);
+		for (int i = 1; i < boundaries.length; ++i)
+			sentences.add(text.subSequence(boundaries[i - 1], boundaries[i]).toString());
+		return sentences;
+	}
+
+	/**
+	 * Cut the text into [start, end) pieces of about pieceChars, each ending just after a newline. A text too
+	 * small to be worth splitting, or without newlines, is a single piece.
+	 */
+	List<int[]> pieces(CharSequence text) {
+		List<int[]> pieces = new ArrayList<>();
+		int length = text.length(), start = 0;
+
+		if (length > 4L * pieceChars) {
+			while (length - start > pieceChars) {
+				int cut = start + pieceChars;
+				while (cut < length && text.charAt(cut - 1) != '\n')
+					++cut;
+				if (cut >= length)
+					break;
+				pieces.add(new int[] { start, cut });
+				start = cut;
+			}
+		}
+		pieces.add(new int[] { start, length });
+		return pieces;
+	}
+
+	/**
+	 * Boundaries of text[start, end) relative to start, using this thread's iterator
+	 */
+	int[] boundaries(CharSequence text, int start, int end) {
+		BreakIterator breaks = iterators.get();
+		int[] boundaries = new int[Math.max(16, (end - start) >> 6)];
+		int n = 0;
+
+		try {
+			breaks.setText(0 == start && end == text.length() ? text : CharBuffer.wrap(text, start, end));
+			for (int boundary = breaks.first(); boundary != BreakIterator.DONE; boundary = breaks.next()) {
+				if (n == boundaries.length)
+					boundaries = Arrays.copyOf(boundaries, n * 2);
+				boundaries[n++] = boundary;
+			}
+		}
+		finally {
+			// Don't keep the text reachable from the thread
+			breaks.setText("");
+		}
+		return Arrays.copyOf(boundaries, n);
+	}
+
+	/**
+	 * Segments pieces [from, to), returning each piece's boundaries made absolute
+	 */
+	class SegmentTask extends RecursiveTask<int[][]> {
+		final CharSequence text;
+		final List<int[]> pieces;
+		final int from, to;
+
+		SegmentTask(CharSequence text, List<int[]> pieces, int from, int to) {
+			this.text = text;
+			this.pieces = pieces;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected int[][] compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				SegmentTask left = new SegmentTask(text, pieces, from, mid);
+				left.fork();
+				int[][] right = new SegmentTask(text, pieces, mid, to).compute();
+				int[][] parts = Arrays.copyOf(left.join(), to - from);
+				System.arraycopy(right, 0, parts, mid - from, to - mid);
+				return parts;
+			}
+			int[] piece = pieces.get(from);
+			int[] part = boundaries(text, piece[0], piece[1]);
+			for (int i = 0; i < part.length; ++i)
+				part[i] += piece[0];
+			return new int[][] { part };
+		}
+	}
+}
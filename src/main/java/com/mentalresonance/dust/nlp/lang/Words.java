@@ -19,7 +19,6 @@
 
 package com.mentalresonance.dust.nlp.lang;
 
-import com.ibm.icu.text.BreakIterator;
 import lombok.Getter;
 
 import java.util.Arrays;
@@ -127,22 +126,14 @@ public class Words {
     }
 
     /**
-     * Take the text and split it into sentences.
+     * Take the text and split it into sentences. For large texts prefer {@link SentenceSegmenter#segment(CharSequence)}
+     * which returns boundaries instead of copies.
      * @param text the text
      * @param locale the local
      * @return list of sentences
      */
     public static LinkedList<String> sentences(String text, Locale locale) {
-        LinkedList<String> sentences = new LinkedList<>();
-
-        BreakIterator breakIterator = BreakIterator.getSentenceInstance(locale);
-        breakIterator.setText(text);
-
-        int start = breakIterator.first();
-        for (int end = breakIterator.next(); end != BreakIterator.DONE; start = end, end = breakIterator.next()) {
-            sentences.add(text.substring(start, end));
-        }
-        return sentences;
+        return new LinkedList<>(SentenceSegmenter.of(locale).sentences(text));
     }
 
     @Override
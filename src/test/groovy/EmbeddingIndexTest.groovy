@@ -0,0 +1,371 @@
+/*
+ * Copyright 2024 Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+import com.mentalresonance.dust.nlp.embeddings.BinaryEmbeddingIndex
+import com.mentalresonance.dust.nlp.embeddings.BinaryQuantizer
+import com.mentalresonance.dust.nlp.embeddings.Embedding
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingDistance
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingMatch
+import com.mentalresonance.dust.nlp.embeddings.ExactEmbeddingIndex
+import com.mentalresonance.dust.nlp.embeddings.Filter
+import com.mentalresonance.dust.nlp.embeddings.HnswEmbeddingIndex
+import com.mentalresonance.dust.nlp.embeddings.IdBitmap
+import com.mentalresonance.dust.nlp.embeddings.IvfEmbeddingIndex
+import com.mentalresonance.dust.nlp.embeddings.PqEmbeddingIndex
+import com.mentalresonance.dust.nlp.embeddings.ProductQuantizer
+import com.mentalresonance.dust.nlp.embeddings.QuantizedEmbeddingIndex
+import com.mentalresonance.dust.nlp.embeddings.ScalarQuantizer
+import com.mentalresonance.dust.nlp.embeddings.SimilarityMetric
+import com.mentalresonance.dust.nlp.embeddings.RecallReport
+import groovy.util.logging.Slf4j
+import spock.lang.Specification
+
+/**
+ * In-memory vector indexes. Random vectors are indexed and searches compared against a direct scan using
+ * EmbeddingDistance.
+ */
+@Slf4j
+class EmbeddingIndexTest extends Specification {
+
+	static final int DIMENSION = 64
+
+	static Random random = new Random(42)
+
+	static float[] randomVector() {
+		float[] v = new float[DIMENSION]
+		for (int i = 0; i < DIMENSION; i++) {
+			v[i] = (float)random.nextGaussian()
+		}
+		v
+	}
+
+	static List<Embedding> randomEmbeddings(int n) {
+		(0..<n).collect { new Embedding("chunk $it", randomVector()) }
+	}
+
+	/**
+	 * Points scattered around a few random centres - more like real embeddings than uniform noise
+	 */
+	static List<Embedding> clusteredEmbeddings(int n, int clusters) {
+		List<float[]> centres = (0..<clusters).collect { randomVector() }
+		(0..<n).collect {
+			float[] centre = centres[random.nextInt(clusters)]
+			float[] v = new float[DIMENSION]
+			for (int i = 0; i < DIMENSION; i++) {
+				v[i] = centre[i] + 0.3f * (float)random.nextGaussian()
+			}
+			new Embedding("chunk $it", v)
+		}
+	}
+
+	/**
+	 * Ids of the k most similar embeddings by direct scan
+	 */
+	static List<Integer> bruteForce(List<Embedding> embeddings, float[] query, int k) {
+		(0..<embeddings.size()).toList()
+			.sort { -EmbeddingDistance.cosineSimilarity(query, embeddings[it].vector) }
+			.take(k)
+	}
+
+	static boolean close(float a, float b, float scale) {
+		Math.abs(a - b) <= 1e-4f * Math.max(1f, scale)
+	}
+
+	def "SIMD kernel agrees with the scalar kernel at every tail length"() {
+		given:
+			def simd = EmbeddingDistance.selectKernel(true)
+			def scalar = EmbeddingDistance.selectKernel(false)
+			float[] a = new float[300], b = new float[300]
+			byte[] codes = new byte[300]
+			short[] halves = new short[300]
+			for (int i = 0; i < 300; i++) {
+				a[i] = (float)random.nextGaussian()
+				b[i] = (float)random.nextGaussian()
+				codes[i] = (byte)(random.nextInt(256) - 128)
+				halves[i] = Float.floatToFloat16((float)random.nextGaussian())
+			}
+			float[] simdNorms = new float[3], scalarNorms = new float[3]
+			List<String> mismatches = []
+		when:
+			for (int length = 0; length <= 130; length++) {
+				for (int offset : [0, 1, 7]) {
+					simd.dotAndNorms(a, offset, b, 3, length, simdNorms)
+					scalar.dotAndNorms(a, offset, b, 3, length, scalarNorms)
+					if (!close(simd.dot(a, offset, b, 3, length), scalar.dot(a, offset, b, 3, length), length) ||
+						!close(simd.squaredL2(a, offset, b, 3, length), scalar.squaredL2(a, offset, b, 3, length), length) ||
+						!close(simd.dot(a, offset, codes, 5, length), scalar.dot(a, offset, codes, 5, length), 128 * length) ||
+						!close(simd.dot(a, offset, halves, 2, length), scalar.dot(a, offset, halves, 2, length), length) ||
+						(0..<3).any { !close(simdNorms[it], scalarNorms[it], length) })
+						mismatches << "length $length offset $offset".toString()
+				}
+			}
+		then:
+			// The suite runs with the Vector API module, so only the dust.nlp.simd switch picks the scalar kernel
+			EmbeddingDistance.vectorized
+			simd.class.simpleName == 'VectorApiDistanceKernel'
+			scalar.class.simpleName == 'ScalarDistanceKernel'
+			mismatches == []
+	}
+
+	def "Exact index matches direct scan"() {
+		given:
+			List<Embedding> embeddings = randomEmbeddings(20000)
+			ExactEmbeddingIndex index = new ExactEmbeddingIndex()
+			index.addAll(embeddings)
+			float[] query = randomVector()
+		when:
+			List<EmbeddingMatch> matches = index.search(query, 10)
+		then:
+			index.size() == 20000
+			matches*.id == bruteForce(embeddings, query, 10)
+			matches*.chunk == matches*.id.collect { "chunk $it" }
+			index.get(matches[0].id).vector == embeddings[matches[0].id].vector
+			index.get(-1) == null && index.get(20000) == null
+	}
+
+	def "Batch search equals single searches"() {
+		given:
+			ExactEmbeddingIndex index = new ExactEmbeddingIndex()
+			index.addAll(randomEmbeddings(10000))
+			float[][] queries = (0..<8).collect { randomVector() } as float[][]
+		when:
+			List<List<EmbeddingMatch>> batch = index.search(queries, 5)
+		then:
+			batch.size() == 8
+			(0..<8).every { batch[it]*.id == index.search(queries[it], 5)*.id }
+	}
+
+	def "Removed embeddings are not returned"() {
+		given:
+			ExactEmbeddingIndex exact = new ExactEmbeddingIndex()
+			HnswEmbeddingIndex hnsw = new HnswEmbeddingIndex()
+			List<Embedding> embeddings = randomEmbeddings(2000)
+			exact.addAll(embeddings)
+			hnsw.addAll(embeddings)
+			float[] query = embeddings[7].vector
+		when:
+			boolean removedExact = exact.remove(7)
+			boolean removedHnsw = hnsw.remove(7)
+		then:
+			removedExact && removedHnsw
+			!exact.remove(7)
+			exact.size() == 1999 && hnsw.size() == 1999
+			exact.get(7) == null && hnsw.get(7) == null
+			!(7 in exact.search(query, 10)*.id)
+			!(7 in hnsw.search(query, 10)*.id)
+	}
+
+	def "HNSW recall against exact search"() {
+		given:
+			HnswEmbeddingIndex index = new HnswEmbeddingIndex()
+			index.addAll(randomEmbeddings(20000))
+			float[][] queries = (0..<200).collect { randomVector() } as float[][]
+		when:
+			List<RecallReport> reports = index.recallReport(queries, 10, 16, 64, 256)
+			reports.each { log.info it.toString() }
+		then:
+			index.size() == 20000
+			reports*.recall == reports*.recall.sort(false)
+			reports.last().recall > 0.9
+	}
+
+	def "IVF trains, probes and rebuilds"() {
+		given:
+			List<Embedding> embeddings = clusteredEmbeddings(20000, 50)
+			IvfEmbeddingIndex index = new IvfEmbeddingIndex(64)
+			index.addAll(embeddings.take(1000))
+			float[][] queries = (0..<100).collect { clusteredEmbeddings(1, 50)[0].vector } as float[][]
+		when:
+			boolean trainedEarly = index.isTrained()
+			index.train(embeddings.take(5000))
+			index.addAll(embeddings.drop(1000))
+			List<RecallReport> reports = index.recallReport(queries, 10, 1, 8, 64)
+			reports.each { log.info it.toString() }
+			index.rebuild()
+		then:
+			!trainedEarly
+			index.isTrained()
+			index.size() == 20000
+			index.listSizes().sum() == 20000
+			reports.last().recall == 1.0
+			reports[1].recall > 0.8
+			index.search(embeddings[3].vector, 1)[0].id == 3
+			index.get(3).vector == embeddings[3].vector
+	}
+
+	def "Scalar quantized scan with rescoring"() {
+		given:
+			List<Embedding> embeddings = clusteredEmbeddings(10000, 50)
+			ExactEmbeddingIndex exact = new ExactEmbeddingIndex()
+			exact.addAll(embeddings)
+			QuantizedEmbeddingIndex index = new QuantizedEmbeddingIndex(SimilarityMetric.COSINE, quantizer, 0, true)
+			index.addAll(embeddings)
+			float[][] queries = (0..<50).collect { clusteredEmbeddings(1, 50)[0].vector } as float[][]
+			List<List<Integer>> truth = exact.search(queries, 10).collect { it*.id }
+		when:
+			double recall = (0..<50).sum { (index.search(queries[it], 10)*.id.intersect(truth[it])).size() } / 500.0
+			index.rescoreFactor = 4
+			double rescored = (0..<50).sum { (index.search(queries[it], 10)*.id.intersect(truth[it])).size() } / 500.0
+			log.info "${quantizer.type}: recall $recall rescored $rescored"
+		then:
+			recall > 0.8
+			rescored > 0.99
+			index.scanBytes() < 10000L * DIMENSION * 4
+			// Rows on later pages
+			index.get(9999).vector == embeddings[9999].vector
+			index.decode(5000).length == DIMENSION
+		where:
+			quantizer << [ScalarQuantizer.int8(), ScalarQuantizer.int8(clusteredEmbeddings(2000, 50)), ScalarQuantizer.fp16()]
+	}
+
+	def "Binary Hamming shortlist rescored at full precision"() {
+		given:
+			List<Embedding> embeddings = clusteredEmbeddings(10000, 50)
+			ExactEmbeddingIndex exact = new ExactEmbeddingIndex()
+			exact.addAll(embeddings)
+			BinaryEmbeddingIndex index = new BinaryEmbeddingIndex(SimilarityMetric.COSINE, quantizer, 20, true)
+			index.addAll(embeddings)
+			float[][] queries = (0..<50).collect { q ->
+				embeddings[q * 200].vector.collect { it + 0.3f * (float)random.nextGaussian() } as float[]
+			} as float[][]
+			List<List<Integer>> truth = exact.search(queries, 10).collect { it*.id }
+		when:
+			double recall = (0..<50).sum { (index.search(queries[it], 10)*.id.intersect(truth[it])).size() } / 500.0
+			log.info "Binary: recall $recall"
+		then:
+			recall > 0.95
+			index.scanBytes() == 10000L * DIMENSION / 8
+			index.get(9999).vector == embeddings[9999].vector
+		where:
+			quantizer << [new BinaryQuantizer(), BinaryQuantizer.centred(clusteredEmbeddings(2000, 50))]
+	}
+
+	def "Product quantized scan with rescoring"() {
+		given:
+			List<Embedding> embeddings = clusteredEmbeddings(10000, 50)
+			ExactEmbeddingIndex exact = new ExactEmbeddingIndex()
+			exact.addAll(embeddings)
+			PqEmbeddingIndex index = new PqEmbeddingIndex(
+				SimilarityMetric.COSINE, ProductQuantizer.train(embeddings.take(4000), 32), 0, true
+			)
+			embeddings[17].withMetadata("tenant", "t7")
+			index.addAll(embeddings)
+			float[][] queries = (0..<50).collect { q ->
+				embeddings[q * 200].vector.collect { it + 0.3f * (float)random.nextGaussian() } as float[]
+			} as float[][]
+			List<List<Integer>> truth = exact.search(queries, 10).collect { it*.id }
+		when:
+			double recall = (0..<50).sum { (index.search(queries[it], 10)*.id.intersect(truth[it])).size() } / 500.0
+			index.rescoreFactor = 20
+			double rescored = (0..<50).sum { (index.search(queries[it], 10)*.id.intersect(truth[it])).size() } / 500.0
+			log.info "PQ: recall $recall rescored $rescored"
+		then:
+			recall > 0.4
+			rescored > 0.95
+			index.scanBytes() == 10000L * (32 + 4)
+			index.decode(0).length == DIMENSION
+			index.get(17).metadata == [tenant: "t7"]
+			index.get(18).metadata == null
+	}
+
+	def "IdBitmap set operations agree with BitSet"() {
+		given:
+			BitSet a = new BitSet()
+			BitSet b = new BitSet()
+			// Sparse and dense groups
+			(0..<3000).each { a.set(random.nextInt(200000)); b.set(random.nextInt(200000)) }
+			(0..<30000).each { a.set(70000 + random.nextInt(40000)); b.set(65536 + random.nextInt(65536)) }
+			IdBitmap x = IdBitmap.of(a.stream().toArray())
+			IdBitmap y = IdBitmap.of(b.stream().toArray())
+			BitSet both = a & b
+			BitSet either = a | b
+			BitSet only = a.clone() as BitSet
+			only.andNot(b)
+		expect:
+			x.toBitSet() == a
+			x.cardinality() == a.cardinality()
+			x.and(y).toBitSet() == both
+			x.or(y).toBitSet() == either
+			x.andNot(y).toBitSet() == only
+			a.stream().limit(20000).allMatch { x.contains(it) }
+			x.copy().tap { a.stream().limit(20000).forEach { id -> remove(id) } }.cardinality() == a.cardinality() - 20000
+	}
+
+	def "Filtered search only returns admitted embeddings"() {
+		given:
+			List<Embedding> embeddings = clusteredEmbeddings(20000, 50).withIndex().collect { embedding, i ->
+				embedding.withMetadata("tenant", "t${i % 10}".toString()).withMetadata("day", i % 365)
+			}
+			index.addAll(embeddings)
+			float[] query = embeddings[12345].vector.collect { it + 0.1f * (float)random.nextGaussian() } as float[]
+		when:
+			List<EmbeddingMatch> found = index.search(query, 10, filter)
+			List<Integer> matches = found*.id
+			List<Integer> admitted = (0..<embeddings.size()).findAll { test(it) }
+			List<Integer> truth = admitted
+				.sort { -EmbeddingDistance.cosineSimilarity(query, embeddings[it].vector) }
+				.take(10)
+		then:
+			found.every { it.chunk == embeddings[it.id].chunk }
+			matches.every { test(it) }
+			matches.intersect(truth).size() >= 9
+			index.get(found[0].id).metadata.tenant == embeddings[matches[0]].metadata.tenant
+		where:
+			index                        | filter                                                                     | test
+			new ExactEmbeddingIndex()    | Filter.and(Filter.eq("tenant", "t5"), Filter.range("day", 100, 200))      | { it % 10 == 5 && it % 365 in 100..200 }
+			new ExactEmbeddingIndex()    | Filter.not(Filter.in("tenant", "t1", "t2"))                                | { !(it % 10 in [1, 2]) }
+			new HnswEmbeddingIndex()     | Filter.and(Filter.eq("tenant", "t5"), Filter.range("day", 100, 200))      | { it % 10 == 5 && it % 365 in 100..200 }
+			new HnswEmbeddingIndex()     | Filter.not(Filter.in("tenant", "t1", "t2"))                                | { !(it % 10 in [1, 2]) }
+			new HnswEmbeddingIndex()     | Filter.or(Filter.eq("tenant", "t3"), Filter.range("day", 0, 10))           | { it % 10 == 3 || it % 365 <= 10 }
+	}
+
+	def "Scan and IVF indexes filter their search"() {
+		given:
+			List<Embedding> embeddings = clusteredEmbeddings(20000, 50).withIndex().collect { embedding, i ->
+				embedding.withMetadata("tenant", "t${i % 10}".toString()).withMetadata("day", i % 365)
+			}
+			index.addAll(embeddings)
+			index.remove(5)
+			float[] query = embeddings[12345].vector.collect { it + 0.1f * (float)random.nextGaussian() } as float[]
+		when:
+			List<Integer> matches = index.search(query, 10, filter)*.id
+			List<Integer> truth = (0..<embeddings.size()).findAll { it != 5 && test(it) }
+				.sort { -EmbeddingDistance.cosineSimilarity(query, embeddings[it].vector) }
+				.take(10)
+		then:
+			matches.size() == 10
+			matches.every { it != 5 && test(it) }
+			matches.intersect(truth).size() >= 9
+			index.get(12345).metadata == [tenant: "t5", day: 300L]
+		where:
+			index                                                                                   | filter                                                                 | test
+			new IvfEmbeddingIndex(SimilarityMetric.COSINE, 50, 16)                                  | Filter.and(Filter.eq("tenant", "t5"), Filter.range("day", 0, 200))    | { it % 10 == 5 && it % 365 <= 200 }
+			new IvfEmbeddingIndex(SimilarityMetric.COSINE, 50, 16)                                  | Filter.not(Filter.in("tenant", "t1", "t2"))                            | { !(it % 10 in [1, 2]) }
+			new QuantizedEmbeddingIndex(SimilarityMetric.COSINE, ScalarQuantizer.int8(), 10, true)  | Filter.and(Filter.eq("tenant", "t5"), Filter.range("day", 0, 200))    | { it % 10 == 5 && it % 365 <= 200 }
+			new BinaryEmbeddingIndex(SimilarityMetric.COSINE, new BinaryQuantizer(), 50, true)      | Filter.not(Filter.in("tenant", "t1", "t2"))                            | { !(it % 10 in [1, 2]) }
+	}
+
+	def "Filters reject null values and empty ranges"() {
+		when:
+			factory()
+		then:
+			IllegalArgumentException e = thrown()
+			e.message.contains("day")
+		where:
+			factory << [{ Filter.eq("day", null) }, { Filter.range("day", 200, 100) }, { Filter.in("day", 1, null) }]
+	}
+}
@@ -0,0 +1,487 @@
+/*
+ *
+ *  Copyright 2024-Present Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *
+ */
+
+import com.ibm.icu.text.BreakIterator
+import com.mentalresonance.dust.nlp.chatgpt.ChatGptRequestResponseMsg
+import com.mentalresonance.dust.nlp.embeddings.BulkEmbeddingsRequestResponseMsg
+import com.mentalresonance.dust.nlp.embeddings.ChunkBatcher
+import com.mentalresonance.dust.nlp.embeddings.ContentDefinedChunker
+import com.mentalresonance.dust.nlp.embeddings.Embedding
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingCache
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingChunkMsg
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingJsonDecoder
+import com.mentalresonance.dust.nlp.embeddings.EmbeddingsRequestResponseMsg
+import com.mentalresonance.dust.nlp.embeddings.NearDuplicateDetector
+import com.mentalresonance.dust.nlp.embeddings.openai.OpenAIEmbeddingsRequestResponseMsg
+import com.mentalresonance.dust.nlp.lang.BpeTokenizer
+import com.mentalresonance.dust.nlp.lang.Chunker
+import com.mentalresonance.dust.nlp.lang.MappedTextReader
+import com.mentalresonance.dust.nlp.lang.SentenceSegmenter
+import com.mentalresonance.dust.nlp.lang.Words
+import groovy.util.logging.Slf4j
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * Parts of the embedding pipeline that need no embedding server - response decoding, caching, chunking and
+ * serialization
+ */
+@Slf4j
+class EmbeddingPipelineTest extends Specification {
+
+	static Random random = new Random(42)
+
+	@TempDir
+	Path dir
+
+	static float[][] randomVectors(int n, int dimension) {
+		(0..<n).collect {
+			float[] v = new float[dimension]
+			for (int i = 0; i < dimension; i++) {
+				v[i] = (float)random.nextGaussian()
+			}
+			v
+		} as float[][]
+	}
+
+	def "Streaming decoder reads TEI and OpenAI responses"() {
+		given:
+			float[][] vectors = randomVectors(5, 384)
+			// Mix of number forms including ones which take the fallback path
+			vectors[0][0] = 1.5e-7f
+			vectors[0][1] = -3.0f
+			vectors[0][2] = 0.0f
+			String tei = '[' + vectors.collect { v -> '[' + v.collect { it.toString() }.join(', ') + ']' }.join(',\n') + ']'
+			String teiDoubles = '[[0.12345678901234567, -1E+2, 123456789012345678901, 2.5e-30]]'
+			String openAIFloats = '{"object": "list", "data": [' +
+				[1, 0].collect { i -> """{"object": "embedding", "index": $i, "embedding": [${vectors[i].collect { it.toString() }.join(',')}]}""" }.join(',') +
+				'], "model": "text-embedding-3-small", "usage": {"prompt_tokens": 8, "total_tokens": 8}}'
+			String openAIBase64 = '{"data": [' +
+				(0..<5).collect { i ->
+					ByteBuffer bytes = ByteBuffer.allocate(384 * 4).order(ByteOrder.LITTLE_ENDIAN)
+					vectors[i].each { bytes.putFloat(it) }
+					"""{"index": $i, "embedding": "${Base64.encoder.encodeToString(bytes.array())}"}"""
+				}.join(',') + ']}'
+		when:
+			float[][] fromTei = EmbeddingJsonDecoder.readVectors(new StringReader(tei))
+			float[][] single = EmbeddingJsonDecoder.readVectors(new StringReader('[0.25, -0.5]'))
+			float[][] doubles = EmbeddingJsonDecoder.readVectors(new StringReader(teiDoubles))
+			float[][] fromFloats = EmbeddingJsonDecoder.readOpenAI(new StringReader(openAIFloats), 2)
+			float[][] fromBase64 = EmbeddingJsonDecoder.readOpenAI(new StringReader(openAIBase64), 5)
+		then:
+			fromTei.length == 5
+			(0..<5).every { Arrays.equals(fromTei[it], vectors[it]) && Arrays.equals(fromBase64[it], vectors[it]) }
+			Arrays.equals(fromFloats[0], vectors[0]) && Arrays.equals(fromFloats[1], vectors[1])
+			single.length == 1 && single[0] == [0.25f, -0.5f] as float[]
+			doubles[0] == [0.12345678901234567f, -100f, 1.2345679e20f, 2.5e-30f] as float[]
+	}
+
+	def "Streaming decoder surfaces endpoint errors"() {
+		when:
+			EmbeddingJsonDecoder.readVectors(new StringReader('{"error": "Input validation error", "error_type": "Validation"}'))
+		then:
+			IOException e = thrown()
+			e.message == 'Input validation error'
+
+		when:
+			EmbeddingJsonDecoder.readOpenAI(new StringReader('{"error": {"message": "Rate limit reached", "type": "requests"}}'), 1)
+		then:
+			e = thrown(IOException)
+			e.message == 'Rate limit reached'
+
+		when:
+			EmbeddingJsonDecoder.readOpenAI(new StringReader('{"data": [{"index": 0, "embedding": [1.0]}]}'), 2)
+		then:
+			e = thrown(IOException)
+			e.message == 'No embedding for input 1'
+	}
+
+	static byte[] serialize(Serializable object) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+		new ObjectOutputStream(bytes).withCloseable { it.writeObject(object) }
+		bytes.toByteArray()
+	}
+
+	static <T> T deserialize(byte[] bytes) {
+		new ObjectInputStream(new ByteArrayInputStream(bytes)).withCloseable { (T)it.readObject() }
+	}
+
+	def "Embedding messages round trip packed"() {
+		given:
+			float[][] vectors = randomVectors(20, 384)
+			EmbeddingsRequestResponseMsg msg = new EmbeddingsRequestResponseMsg('Some text ü 😀', 'doc-1')
+			vectors.eachWithIndex { float[] v, int i -> msg.embeddings << new Embedding("chunk $i é".toString(), v) }
+			msg.embeddings[0].withMetadata('tenant', 'acme').withMetadata('year', 2024).withMetadata('score', 0.5d).withMetadata('draft', true)
+			msg.previous = [new Embedding('old', vectors[0])]
+			msg.streaming = true
+			msg.streamed = 3
+			msg.failed = 2
+			OpenAIEmbeddingsRequestResponseMsg single = new OpenAIEmbeddingsRequestResponseMsg('text-embedding-3-small', 'query', 256)
+			single.vector = vectors[1]
+		when:
+			byte[] bytes = serialize(msg)
+			EmbeddingsRequestResponseMsg copy = deserialize(bytes)
+			OpenAIEmbeddingsRequestResponseMsg singleCopy = deserialize(serialize(single))
+			// What the vectors cost as the List<Double> they used to be
+			int boxed = serialize(msg.embeddings.collect { new ArrayList<Double>(it.embedding) } as ArrayList).length
+		then:
+			copy.text == msg.text
+			copy.docId == 'doc-1'
+			null == copy.file
+			copy.streaming
+			copy.streamed == 3
+			copy.failed == 2
+			copy.embeddings.size() == 20
+			(0..<20).every { copy.embeddings[it].vector == vectors[it] && copy.embeddings[it].chunk == msg.embeddings[it].chunk }
+			copy.embeddings[0].metadata == [tenant: 'acme', year: 2024L, score: 0.5d, draft: true]
+			copy.previous*.chunk == ['old']
+			null == copy.retired
+			singleCopy.vector == vectors[1]
+			singleCopy.request == 'query'
+			singleCopy.model == 'text-embedding-3-small'
+			singleCopy.length == 256
+			// 21 vectors of 384 floats and a little more
+			bytes.length < 21 * 384 * 4 + 1000
+			bytes.length * 3 < boxed
+	}
+
+	def "Cache evicts least recently used and survives restart on disk"() {
+		given:
+			float[][] vectors = randomVectors(4, 32)
+			EmbeddingCache memory = EmbeddingCache.inMemory(2)
+			EmbeddingCache disk = EmbeddingCache.open(2, dir)
+		when:
+			[memory, disk].each { cache ->
+				(0..<3).each { cache.put('model', 0, "chunk $it", vectors[it]) }
+			}
+			disk.put('model', 16, 'short', Arrays.copyOf(vectors[3], 16))
+			disk.close()
+			EmbeddingCache reopened = EmbeddingCache.open(2, dir)
+		then:
+			memory.size() == 2
+			memory.get('model', 0, 'chunk 0') == null
+			memory.get('model', 0, 'chunk 2') == vectors[2]
+			// Key includes model and dimension
+			memory.get('other', 0, 'chunk 2') == null
+			memory.get('model', 8, 'chunk 2') == null
+			memory.hits == 1 && memory.misses == 3
+			(0..<3).every { reopened.get('model', 0, "chunk $it") == vectors[it] }
+			reopened.get('model', 16, 'short') == Arrays.copyOf(vectors[3], 16)
+			reopened.diskHits == 4
+			reopened.size() == 2
+		cleanup:
+			reopened?.close()
+	}
+
+	static final List<String> WORDS = ['the', 'embedding', 'server', 'returns', 'a', 'vector', 'for', 'each', 'chunk',
+		'of', 'text', 'and', 'we', 'store', 'it', 'in', 'index', 'quickly', 'document', 'changes']
+
+	static String randomSentence() {
+		List<String> words = (0..<(5 + random.nextInt(15))).collect { WORDS[random.nextInt(WORDS.size())] }
+		words[0].capitalize() + ' ' + words.drop(1).join(' ') + '. '
+	}
+
+	def "Content defined chunks are stable under a local edit"() {
+		given:
+			ContentDefinedChunker chunker = new ContentDefinedChunker(400)
+			List<String> sentences = (0..<300).collect { randomSentence() }
+			String original = sentences.join()
+			List<String> edited = new ArrayList<>(sentences)
+			edited[150] = 'An entirely new sentence is inserted here. ' + edited[150].toUpperCase()
+		when:
+			List<String> before = chunker.chunk(original)
+			List<String> after = chunker.chunk(edited.join())
+			List<Embedding> embeddings = before.collect { new Embedding(it, [1f] as float[]) }
+			ContentDefinedChunker.ChunkDiff diff = ContentDefinedChunker.diff(embeddings, after)
+		then:
+			before.join() == original
+			before.every { it.length() <= 400 }
+			before.size() > 30
+			diff.changed.size() <= 3
+			diff.retired.size() <= 3
+			diff.reused.findAll { it != null }.size() == after.size() - diff.changed.size()
+			(0..<after.size()).every { diff.reused[it] == null || diff.reused[it].chunk == after[it] }
+	}
+
+	def "Chunker streams overlapping chunks from text and readers"() {
+		given:
+			String text = (0..<20000).collect { randomSentence() }.join() + 'X' * 700 + '. Last words'
+			Chunker plain = new Chunker(300, 0, Locale.ENGLISH)
+			Chunker overlapping = new Chunker(300, 2, Locale.ENGLISH)
+		when:
+			long start = System.currentTimeMillis()
+			List<String> chunks = plain.chunk(text)
+			long elapsed = System.currentTimeMillis() - start
+			List<String> overlapped = overlapping.chunk(text)
+			List<String> read = overlapping.stream(new StringReader(text)).toList()
+			List<String> sentences = Words.sentences(overlapped[10], Locale.ENGLISH)
+			log.info("Chunked ${text.length()} chars into ${chunks.size()} chunks in ${elapsed}ms")
+		then:
+			chunks.join() == text
+			chunks.every { it.length() <= 300 }
+			chunks.findAll { it.startsWith('XXX') }.size() == 3
+			overlapped.every { it.length() <= 300 }
+			overlapped[11].startsWith(sentences[-2] + sentences[-1]) || overlapped[11].startsWith(sentences[-1])
+			read == overlapped
+			new Chunker(300).chunk('') == []
+			new Chunker(300).chunk('One sentence.') == ['One sentence.']
+	}
+
+	def "Near duplicate chunks reuse the representative embedding"() {
+		given:
+			NearDuplicateDetector detector = new NearDuplicateDetector(100)
+			List<String> chunks = (0..<200).collect { (0..<8).collect { randomSentence() }.join() }
+			float[][] vectors = randomVectors(200, 8)
+		when:
+			chunks.eachWithIndex { String chunk, int i -> if (i < 150) detector.add('model', chunk, vectors[i]) }
+			List<String> words = chunks[120].split(' ') as List
+			words[words.size() >> 1] = 'altered'
+			String edited = words.join(' ')
+		then:
+			detector.size() == 100
+			detector.find('model', edited) == vectors[120]
+			detector.find('other', edited) == null
+			detector.find('model', chunks[10]) == null
+			detector.find('model', chunks[180]) == null
+			detector.find('model', '...') == null
+			detector.duplicates == 1
+			detector.duplicateRate == 0.2d
+	}
+
+	static List<ChunkBatcher.ChunkTag> drain(ChunkBatcher batcher) {
+		List<ChunkBatcher.ChunkTag> batches = []
+		ChunkBatcher.ChunkTag batch
+		while (null != (batch = batcher.nextBatch()))
+			batches << batch
+		batches
+	}
+
+	def "Chunk batcher fills batches across documents within the byte budget"() {
+		given:
+			Chunker chunker = new Chunker(60, 0, Locale.ENGLISH)
+			List<String> texts = (0..<3).collect { (0..<30).collect { randomSentence() }.join() }
+			List<List<String>> expected = texts.collect { chunker.chunk(it) }
+			ChunkBatcher unlimited = new ChunkBatcher('api', chunker, null, 4, 0, null, null, {})
+			ChunkBatcher budgeted = new ChunkBatcher('api', chunker, null, 4, 100, null, null, {})
+			unlimited.documents = texts.collect { new EmbeddingsRequestResponseMsg(it) }.iterator()
+			budgeted.documents = texts.collect { new EmbeddingsRequestResponseMsg(it) }.iterator()
+		when:
+			List<ChunkBatcher.ChunkTag> full = drain(unlimited)
+			List<ChunkBatcher.ChunkTag> small = drain(budgeted)
+		then:
+			full*.chunks.flatten() == expected.flatten()
+			full[0..-2].every { it.chunks.size() == 4 }
+			full.any { (it.documents as List).toSet().size() > 1 }
+			small*.chunks.flatten() == expected.flatten()
+			small.every { it.chunks.size() <= 4 }
+			small.every { it.chunks.size() == 1 || it.chunks.sum { it.getBytes('UTF-8').length } <= 100 }
+			small.size() > full.size()
+			// Each document's chunks are numbered in order
+			(0..<3).every { d ->
+				List<Integer> sequences = []
+				full.each { tag -> tag.documents.eachWithIndex { int owner, int i -> if (owner == d) sequences << tag.sequences[i] } }
+				sequences == (0..<expected[d].size()).toList()
+			}
+	}
+
+	def "Chunk batcher delivers out of order responses in document order"() {
+		given:
+			Chunker chunker = new Chunker(60, 0, Locale.ENGLISH)
+			List<String> texts = (0..<3).collect { (0..<20).collect { randomSentence() }.join() }
+			List<List<String>> expected = texts.collect { chunker.chunk(it) }
+			EmbeddingsRequestResponseMsg plain = new EmbeddingsRequestResponseMsg(texts[0], 'plain')
+			EmbeddingsRequestResponseMsg streamed = new EmbeddingsRequestResponseMsg(texts[1], 'streamed')
+			EmbeddingsRequestResponseMsg edited = new EmbeddingsRequestResponseMsg(texts[2], 'edited')
+			streamed.streaming = true
+			Embedding stale = new Embedding('Gone.', [9f] as float[])
+			edited.previous = [new Embedding(expected[2][1], [-1f] as float[]), stale]
+			List replies = []
+			ChunkBatcher batcher = new ChunkBatcher('api', chunker, null, 3, 0, null, null, { replies << it })
+			batcher.documents = [plain, streamed, edited].iterator()
+		when:
+			List<ChunkBatcher.ChunkTag> batches = drain(batcher)
+			ChunkBatcher.ChunkTag failing = batches[1]
+			batches.reverse().each { tag ->
+				batcher.completed(tag, tag == failing ? null : tag.chunks.collect { [it.length()] as float[] } as float[][])
+				batcher.deliver()
+			}
+			List<EmbeddingChunkMsg> chunks = replies.findAll { it instanceof EmbeddingChunkMsg }
+		then:
+			replies.findAll { it instanceof EmbeddingsRequestResponseMsg }.toSet() == [plain, streamed, edited].toSet()
+			// The streamed document's reply follows its last chunk
+			replies.indexOf(streamed) > replies.indexOf(chunks[-1])
+			plain.embeddings*.chunk == expected[0] - failing.chunks
+			plain.failed == failing.chunks.size()
+			streamed.failed == 0
+			chunks*.sequence == (0..<expected[1].size()).toList()
+			chunks*.docId.every { it == 'streamed' }
+			streamed.streamed == expected[1].size()
+			edited.embeddings*.chunk == expected[2]
+			edited.embeddings[1].vector == [-1f] as float[]
+			edited.retired == [stale]
+			batcher.reused == 1
+			batcher.failed == failing.chunks.size()
+			batcher.embedded + batcher.failed + batcher.reused == expected.flatten().size()
+			batcher.completedDocuments == 3
+	}
+
+	def "Chunk batcher replies with a partial document when abandoned"() {
+		given:
+			Chunker chunker = new Chunker(60, 0, Locale.ENGLISH)
+			Path file = dir.resolve('large.txt')
+			Files.writeString(file, (0..<2000).collect { randomSentence() }.join())
+			EmbeddingsRequestResponseMsg msg = new EmbeddingsRequestResponseMsg(file, 'large')
+			msg.streaming = true
+			List replies = []
+			ChunkBatcher batcher = new ChunkBatcher('api', chunker, null, 4, 0, null, null, { replies << it })
+			batcher.documents = [msg].iterator()
+		when:
+			ChunkBatcher.ChunkTag first = batcher.nextBatch()
+			ChunkBatcher.ChunkTag second = batcher.nextBatch()
+			batcher.completed(second, second.chunks.collect { [1f] as float[] } as float[][])
+			batcher.deliver()
+			int before = replies.size()
+			batcher.abandon()
+		then:
+			before == 0
+			replies[-1].is(msg)
+			replies.findAll { it instanceof EmbeddingChunkMsg }*.sequence == (4..<8).toList()
+			msg.streamed == 4
+			// The unanswered first batch and the text never chunked
+			msg.failed == first.chunks.size() + 1
+			batcher.failed == msg.failed
+			null == batcher.nextBatch()
+	}
+
+	def "Bulk request lets go of documents as they are taken"() {
+		given:
+			Chunker chunker = new Chunker(60, 0, Locale.ENGLISH)
+			BulkEmbeddingsRequestResponseMsg bulk = BulkEmbeddingsRequestResponseMsg.ofTexts(
+				(0..<4).collectEntries { ["doc-$it".toString(), (0..<10).collect { randomSentence() }.join()] }
+			)
+			List replies = []
+			ChunkBatcher batcher = new ChunkBatcher('api', chunker, null, 2, 0, null, null, { replies << it })
+			batcher.documents = bulk.iterator()
+		when:
+			ChunkBatcher.ChunkTag first = batcher.nextBatch()
+			int waiting = bulk.documents.size()
+			List<ChunkBatcher.ChunkTag> rest = drain(batcher)
+			([first] + rest).each { tag ->
+				batcher.completed(tag, tag.chunks.collect { [1f] as float[] } as float[][])
+				batcher.deliver()
+			}
+		then:
+			waiting == 3
+			bulk.documents.isEmpty()
+			replies*.docId == (0..<4).collect { "doc-$it".toString() }
+			batcher.completedDocuments == 4
+	}
+
+	def "Mapped reader decodes across window boundaries"() {
+		given:
+			String text = (0..<3000).collect { randomSentence() + (it % 3 == 0 ? 'Ünïcödé 😀 ' : '') }.join()
+			Path file = dir.resolve('text.txt')
+			Files.writeString(file, text)
+			Chunker chunker = new Chunker(300, 1, Locale.ENGLISH)
+		when:
+			StringWriter read = new StringWriter()
+			new MappedTextReader(file, StandardCharsets.UTF_8, 1001).withCloseable { it.transferTo(read) }
+			List<String> chunks = new MappedTextReader(file).withCloseable { chunker.stream(it).toList() }
+		then:
+			read.toString() == text
+			chunks == chunker.chunk(text)
+			new MappedTextReader(Files.writeString(dir.resolve('empty.txt'), '')).withCloseable { it.read() } == -1
+	}
+
+	def "Sentence segmenter stitches parallel pieces into the single pass boundaries"() {
+		given:
+			String text = (0..<5000).collect { randomSentence() + (it % 7 == 0 ? '\n\n' : it % 5 == 0 ? '\n' : '') }.join() + 'Last words'
+			SentenceSegmenter segmenter = new SentenceSegmenter(Locale.ENGLISH, 1000, new ForkJoinPool(4))
+			BreakIterator breaks = BreakIterator.getSentenceInstance(Locale.ENGLISH)
+			breaks.setText(text)
+			List<Integer> expected = []
+			for (int boundary = breaks.first(); boundary != BreakIterator.DONE; boundary = breaks.next())
+				expected << boundary
+		when:
+			int[] boundaries = segmenter.segment(text)
+		then:
+			segmenter.pieces(text).size() > 100
+			boundaries as List == expected
+			SentenceSegmenter.of(Locale.ENGLISH).segment(text) as List == expected
+			segmenter.sentences(text).join() == text
+			segmenter.segment('') == [0] as int[]
+			Words.sentences('One. Two.', Locale.ENGLISH) == ['One. ', 'Two.']
+	}
+
+	/**
+	 * tiktoken format vocabulary: every byte plus a few merges
+	 */
+	static BpeTokenizer tinyTokenizer() {
+		List<byte[]> tokens = (0..<256).collect { [it as byte] as byte[] }
+		['th', 'he', 'the', ' t', ' the', 'at', 'cat', ' c', 'é'].each { tokens << it.getBytes('UTF-8') }
+		String vocabulary = tokens.withIndex().collect { byte[] token, int rank -> "${Base64.encoder.encodeToString(token)} $rank" }.join('\n')
+		BpeTokenizer.load('tiny', new ByteArrayInputStream(vocabulary.getBytes('UTF-8')), BpeTokenizer.CL100K_PATTERN)
+	}
+
+	def "BPE tokenizer merges lowest rank first and round trips"() {
+		given:
+			BpeTokenizer tokenizer = tinyTokenizer()
+			String text = (0..<2000).collect { randomSentence() }.join() + ' Ünïcödé 😀 text\r\n\n  '
+		when:
+			int[] tokens = tokenizer.encode('the cat the')
+			int[] all = tokenizer.encode(text)
+		then:
+			// 'the' and ' the' are tokens. ' cat' is not: 'at' merges first, then 'c' + 'at', leaving ' ' and 'cat'
+			tokens == [258, 32, 262, 260] as int[]
+			tokenizer.count('the cat the') == 4
+			tokenizer.decode(all) == text
+			tokenizer.count(text) == all.length
+			tokenizer.count(text, 10, 500) == tokenizer.count(text.substring(10, 500))
+			tokenizer.encode('café') == [99, 97, 102, 264] as int[]
+	}
+
+	def "Chunker measures chunks in tokens"() {
+		given:
+			BpeTokenizer tokenizer = tinyTokenizer()
+			String text = (0..<500).collect { randomSentence() }.join() + 'X' * 400 + '. '
+			Chunker chunker = new Chunker(100, 1, Locale.ENGLISH, tokenizer)
+		when:
+			List<String> chunks = chunker.chunk(text)
+		then:
+			chunks.every { tokenizer.count(it) <= 100 }
+			chunks.count { it.startsWith('XXX') } == 4
+			chunks.collect { it.length() }.max() > 100
+	}
+
+	def "Prompt budgets count chat framing"() {
+		given:
+			BpeTokenizer tokenizer = tinyTokenizer()
+			ChatGptRequestResponseMsg msg = new ChatGptRequestResponseMsg('the cat', 'the', 100)
+		expect:
+			// 3 priming + (3 + 'system' 6 + 'the' 1) + (3 + 'user' 4 + 'the cat' 3)
+			msg.chatPromptTokens(tokenizer) == 23
+	}
+}
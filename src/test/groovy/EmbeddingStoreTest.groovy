@@ -0,0 +1,407 @@
+/*
+ * Copyright 2024 Alan Littleford
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import com.mentalresonance.dust.nlp.embeddings.DurableEmbeddingStore
+import com.mentalresonance.dust.nlp.embeddings.Embedding
+import com.mentalresonance.dust.nlp.embeddings.ExactEmbeddingIndex
+import com.mentalresonance.dust.nlp.embeddings.Filter
+import com.mentalresonance.dust.nlp.embeddings.MappedEmbeddingStore
+import com.mentalresonance.dust.nlp.embeddings.SimilarityMetric
+import com.mentalresonance.dust.nlp.embeddings.WriteAheadLog
+import groovy.util.logging.Slf4j
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
+/**
+ * On-disk embedding stores. Embeddings are written, the store reopened and its contents and searches compared
+ * against an in-memory index.
+ */
+@Slf4j
+class EmbeddingStoreTest extends Specification {
+
+	static final int DIMENSION = 64
+
+	static Random random = new Random(42)
+
+	@TempDir
+	Path dir
+
+	/**
+	 * Writes through to a file but tears one positional write - writing half of it then failing - and can fail
+	 * truncation
+	 */
+	static class FailingChannel extends FileChannel {
+		final FileChannel channel
+		int failWrite = -1, writes = 0
+		boolean failTruncate = false
+
+		FailingChannel(FileChannel channel) { this.channel = channel }
+
+		int write(ByteBuffer src, long position) {
+			if (writes++ == failWrite) {
+				ByteBuffer half = src.duplicate()
+				half.limit(src.position() + (src.remaining() >> 1))
+				channel.write(half, position)
+				throw new IOException("Injected write failure")
+			}
+			channel.write(src, position)
+		}
+
+		FileChannel truncate(long size) {
+			if (failTruncate)
+				throw new IOException("Injected truncate failure")
+			channel.truncate(size)
+			this
+		}
+
+		int read(ByteBuffer dst) { channel.read(dst) }
+		long read(ByteBuffer[] dsts, int offset, int length) { channel.read(dsts, offset, length) }
+		int write(ByteBuffer src) { channel.write(src) }
+		long write(ByteBuffer[] srcs, int offset, int length) { channel.write(srcs, offset, length) }
+		long position() { channel.position() }
+		FileChannel position(long newPosition) { channel.position(newPosition); this }
+		long size() { channel.size() }
+		void force(boolean metaData) { channel.force(metaData) }
+		long transferTo(long position, long count, WritableByteChannel target) { channel.transferTo(position, count, target) }
+		long transferFrom(ReadableByteChannel src, long position, long count) { channel.transferFrom(src, position, count) }
+		int read(ByteBuffer dst, long position) { channel.read(dst, position) }
+		MappedByteBuffer map(FileChannel.MapMode mode, long position, long size) { channel.map(mode, position, size) }
+		FileLock lock(long position, long size, boolean shared) { channel.lock(position, size, shared) }
+		FileLock tryLock(long position, long size, boolean shared) { channel.tryLock(position, size, shared) }
+		protected void implCloseChannel() { channel.close() }
+	}
+
+	static List<Embedding> randomEmbeddings(int n) {
+		(0..<n).collect {
+			float[] v = new float[DIMENSION]
+			for (int i = 0; i < DIMENSION; i++) {
+				v[i] = (float)random.nextGaussian()
+			}
+			new Embedding("chunk $it ✓", v)
+		}
+	}
+
+	def "Mapped store round trips and searches"() {
+		given:
+			List<Embedding> embeddings = randomEmbeddings(10000)
+			ExactEmbeddingIndex exact = new ExactEmbeddingIndex()
+			exact.addAll(embeddings)
+			MappedEmbeddingStore writer = MappedEmbeddingStore.openForAppend(dir.resolve("store"), encoding)
+			writer.addAll(embeddings.take(6000))
+			embeddings.drop(6000).each { writer.add(it) }
+			writer.close()
+		when:
+			MappedEmbeddingStore store = MappedEmbeddingStore.open(dir.resolve("store"))
+			float[][] queries = randomEmbeddings(20)*.vector as float[][]
+			List<List<Integer>> truth = exact.search(queries, 10).collect { it*.id }
+			double recall = (0..<20).sum { (store.search(queries[it], 10)*.id.intersect(truth[it])).size() } / 200.0
+		then:
+			store.size() == 10000
+			store.dimension() == DIMENSION
+			store.chunk(1234) == "chunk 1234 ✓"
+			store.get(9999).chunk == "chunk 9999 ✓"
+			recall >= expected
+			encoding != MappedEmbeddingStore.Encoding.FLOAT32 || store.vector(17) == embeddings[17].vector
+		cleanup:
+			store?.close()
+		where:
+			encoding                                | expected
+			MappedEmbeddingStore.Encoding.FLOAT32   | 1.0
+			MappedEmbeddingStore.Encoding.INT8      | 0.9
+	}
+
+	def "Removals are skipped and survive reopening"() {
+		given:
+			Path path = dir.resolve("removals")
+			List<Embedding> embeddings = randomEmbeddings(500)
+			MappedEmbeddingStore writer = MappedEmbeddingStore.openForAppend(path, MappedEmbeddingStore.Encoding.FLOAT32)
+			writer.addAll(embeddings)
+		when:
+			boolean removed = writer.remove(42)
+			boolean again = writer.remove(42)
+			writer.close()
+			MappedEmbeddingStore store = MappedEmbeddingStore.open(path)
+		then:
+			removed && !again
+			store.size() == 499
+			store.get(42) == null
+			!(42 in store.search(embeddings[42].vector, 10)*.id)
+			store.search(embeddings[43].vector, 1)[0].id == 43
+		when:
+			store.remove(7)
+		then:
+			thrown(UnsupportedOperationException)
+		cleanup:
+			store?.close()
+	}
+
+	def "Torn append is discarded on open"() {
+		given:
+			Path path = dir.resolve("torn")
+			MappedEmbeddingStore writer = MappedEmbeddingStore.openForAppend(path, MappedEmbeddingStore.Encoding.FLOAT32)
+			writer.addAll(randomEmbeddings(100))
+			writer.close()
+			FileChannel.open(MappedEmbeddingStore.files(path)[1], StandardOpenOption.WRITE).withCloseable { it.truncate(99 * 8 + 3) }
+		when:
+			MappedEmbeddingStore store = MappedEmbeddingStore.openForAppend(path, MappedEmbeddingStore.Encoding.FLOAT32)
+			int id = store.add(randomEmbeddings(1)[0])
+		then:
+			id == 99
+			store.size() == 100
+			store.chunk(98) == "chunk 98 ✓"
+			store.chunk(99) == "chunk 0 ✓"
+		cleanup:
+			store?.close()
+	}
+
+	def "Mapped store keeps metadata and filters searches across reopening"() {
+		given:
+			Path path = dir.resolve("metadata")
+			List<Embedding> embeddings = randomEmbeddings(300)
+			embeddings.eachWithIndex { embedding, i -> if (i % 3) embedding.withMetadata("group", i % 3).withMetadata("tag", "t$i".toString()) }
+			MappedEmbeddingStore writer = MappedEmbeddingStore.openForAppend(path, MappedEmbeddingStore.Encoding.FLOAT32)
+			writer.addAll(embeddings)
+			writer.remove(4)
+			writer.close()
+			FileChannel.open(MappedEmbeddingStore.files(path)[4], StandardOpenOption.WRITE).withCloseable { it.truncate(it.size() - 3) }
+		when:
+			MappedEmbeddingStore store = MappedEmbeddingStore.openForAppend(path, MappedEmbeddingStore.Encoding.FLOAT32)
+			List matches = store.search(embeddings[7].vector, 300, Filter.eq("group", 1))
+		then:
+			store.get(0).metadata == null
+			store.get(5).metadata == [group: 2L, tag: "t5"]
+			store.get(299).metadata == null
+			matches[0].id == 7
+			matches*.id.every { it % 3 == 1 && it != 4 }
+			matches.size() == 99
+			store.search(embeddings[8].vector, 1, Filter.not(Filter.eq("group", 1)))[0].id == 8
+		when:
+			store.add(embeddings[0].withMetadata("group", 1))
+			store.close()
+			store = MappedEmbeddingStore.open(path)
+		then:
+			store.get(300).metadata == [group: 1L]
+			store.search(embeddings[0].vector, 1, Filter.eq("group", 1))[0].id == 300
+		cleanup:
+			store?.close()
+	}
+
+	def "Durable store keeps metadata and filters searches in the memtable, segments and log"() {
+		given:
+			Path path = dir.resolve("durableMetadata")
+			DurableEmbeddingStore store = DurableEmbeddingStore.open(
+				path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 100, 2
+			)
+			Map<String, List<Embedding>> docs = (0..<12).collectEntries { doc ->
+				["doc$doc".toString(), randomEmbeddings(20).each { it.withMetadata("doc", doc).withMetadata("even", doc % 2 == 0) }]
+			}
+		when:
+			docs.each { id, embeddings -> store.put(id, embeddings) }
+			store.compact().get()
+			store.put("late", randomEmbeddings(5).each { it.withMetadata("even", true) }).join()
+			List<List> before = [docs["doc4"][3].vector, docs["doc5"][3].vector].collect { store.search(it as float[], 1000, Filter.eq("even", true)) }
+			store.close()
+			store = DurableEmbeddingStore.open(path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 100, 2)
+			List after = store.search(docs["doc5"][3].vector, 1000, Filter.eq("even", true))
+		then:
+			store.segmentCount() >= 1
+			before[0][0].docId == "doc4" && before[0][0].id == 3
+			before[1].size() == 6 * 20 + 5
+			before[1].every { it.docId == "late" || (it.docId.substring(3) as int) % 2 == 0 }
+			after*.docId == before[1]*.docId
+			store.get("doc5")[3].metadata == [doc: 5L, even: false]
+			store.get("late")[0].metadata == [even: true]
+			store.search(docs["doc5"][3].vector, 1, Filter.eq("doc", 5))[0].docId == "doc5"
+		cleanup:
+			store?.close()
+	}
+
+	def "Durable store applies puts, replacements and deletes across compaction and recovery"() {
+		given:
+			Path path = dir.resolve("durable")
+			DurableEmbeddingStore store = DurableEmbeddingStore.open(
+				path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 500, 2
+			)
+			Map<String, List<Embedding>> docs = (0..<40).collectEntries { ["doc$it".toString(), randomEmbeddings(50)] }
+		when:
+			CompletableFuture.allOf(docs.collect { id, embeddings -> store.put(id, embeddings) } as CompletableFuture[]).join()
+			store.compact().get()
+			docs["doc3"] = randomEmbeddings(10)
+			store.put("doc3", docs["doc3"])
+			store.delete("doc7")
+			docs.remove("doc7")
+			store.put("late", randomEmbeddings(5)).join()
+			docs["late"] = store.get("late")
+			int segments = store.segmentCount()
+			store.close()
+			store = DurableEmbeddingStore.open(path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 500, 2)
+			def match = store.search(docs["doc3"][4].vector, 1)[0]
+		then:
+			segments >= 1 && segments <= 3
+			store.size() == docs.values().sum { it.size() }
+			store.get("doc7") == null
+			store.get("doc3")*.chunk == docs["doc3"]*.chunk
+			store.get("doc12")[9].vector == docs["doc12"][9].vector
+			store.get("late").size() == 5
+			match.docId == "doc3" && match.id == 4
+			store.search(docs["doc20"][0].vector, 1)[0].docId == "doc20"
+			store.search(randomEmbeddings(1)[0].vector, 10000).every { it.docId != "doc7" }
+		cleanup:
+			store?.close()
+	}
+
+	def "Durable store merges in tiers and keeps deletions across reopening"() {
+		given:
+			Path path = dir.resolve("tiers")
+			DurableEmbeddingStore store = DurableEmbeddingStore.open(
+				path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 1000, 3
+			)
+			Map<String, List<Embedding>> docs = [:]
+			List<String> deleted = []
+		when:
+			(0..<8).each { round ->
+				(0..<4).each {
+					String id = "doc$round-$it"
+					docs[id] = randomEmbeddings(20 + round)
+					store.put(id, docs[id])
+				}
+				if (round > 0) {
+					String id = "doc${round - 1}-0"
+					store.delete(id)
+					docs.remove(id)
+					deleted << id
+				}
+				if (round > 1) {
+					String id = "doc${round - 2}-1"
+					docs[id] = randomEmbeddings(3)
+					store.put(id, docs[id])
+				}
+				store.compact().get()
+			}
+			int segments = store.segmentCount()
+			store.close()
+			store = DurableEmbeddingStore.open(path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 1000, 3)
+		then:
+			segments <= 3
+			store.size() == docs.values().sum { it.size() }
+			deleted.every { store.get(it) == null }
+			docs.every { id, embeddings -> store.get(id)*.chunk == embeddings*.chunk }
+			store.search(docs["doc2-3"][5].vector, 1)[0].docId == "doc2-3"
+		cleanup:
+			store?.close()
+	}
+
+	def "Durable store keeps the memtable when a flush fails"() {
+		given:
+			Path path = dir.resolve("failing")
+			// A non empty directory where the first segment's vectors go makes writing that segment fail
+			Files.createDirectories(path.resolve("segment-000000.vec").resolve("obstruction"))
+			DurableEmbeddingStore store = DurableEmbeddingStore.open(
+				path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 100, 8
+			)
+			Map<String, List<Embedding>> docs = (0..<3).collectEntries { ["doc$it".toString(), randomEmbeddings(50)] }
+		when:
+			docs.each { id, embeddings -> store.put(id, embeddings).join() }
+			store.compact().get()
+			store.compact().get()
+			int segments = store.segmentCount()
+			store.close()
+			store = DurableEmbeddingStore.open(path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 100, 8)
+		then:
+			segments == 1
+			store.size() == 150
+			docs.every { id, embeddings -> store.get(id)*.chunk == embeddings*.chunk }
+		cleanup:
+			store?.close()
+	}
+
+	def "Write ahead log ignores a zero filled or garbage tail"() {
+		given:
+			Path path = dir.resolve("tails")
+			DurableEmbeddingStore store = DurableEmbeddingStore.open(
+				path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 1000, 8
+			)
+			List<Embedding> embeddings = randomEmbeddings(10)
+			store.put("doc", embeddings).join()
+			store.close()
+			Path log = Files.list(path).withCloseable { files -> files.filter { it.fileName.toString().endsWith(".log") && Files.size(it) > 0 }.findFirst().get() }
+			Files.write(log, tail, StandardOpenOption.APPEND)
+		when:
+			store = DurableEmbeddingStore.open(path, SimilarityMetric.COSINE, MappedEmbeddingStore.Encoding.FLOAT32, 1000, 8)
+		then:
+			store.size() == 10
+			store.get("doc")*.chunk == embeddings*.chunk
+		cleanup:
+			store?.close()
+		where:
+			tail << [new byte[4096], [0x7f, 0xff, 0xff, 0xf0, 0, 0, 0, 0] as byte[]]
+	}
+
+	def "Write ahead log cuts a failed batch so later records survive replay"() {
+		given:
+			Path path = dir.resolve("cut.log")
+			FailingChannel channel = new FailingChannel(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+			channel.failWrite = 3
+			WriteAheadLog wal = new WriteAheadLog(path, channel)
+			List<String> records = (0..<8).collect { "record $it ".toString() + 'x' * (it * 100) }
+		when:
+			// One record per batch so the fourth write fails part way through
+			List<Boolean> durable = records.collect { String record ->
+				try { wal.append(record.bytes).join(); true } catch (CompletionException ignored) { false }
+			}
+			wal.close()
+			List<String> replayed = []
+			WriteAheadLog.replay(path, { replayed << new String(it) })
+		then:
+			durable == [true, true, true, false, true, true, true, true]
+			replayed == records - records[3]
+	}
+
+	def "Write ahead log fails when a failed batch cannot be cut"() {
+		given:
+			Path path = dir.resolve("failed.log")
+			FailingChannel channel = new FailingChannel(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+			channel.failWrite = 2
+			channel.failTruncate = true
+			WriteAheadLog wal = new WriteAheadLog(path, channel)
+		when:
+			wal.append('one'.bytes).join()
+			wal.append('two'.bytes).join()
+			Throwable torn = null
+			try { wal.append('three'.bytes).join() } catch (CompletionException e) { torn = e.cause }
+			wal.append('four'.bytes)
+		then:
+			thrown(IllegalStateException)
+			torn.message == 'Injected write failure'
+		cleanup:
+			wal?.close()
+			List<String> replayed = []
+			WriteAheadLog.replay(path, { replayed << new String(it) })
+			assert replayed == ['one', 'two']
+	}
+}
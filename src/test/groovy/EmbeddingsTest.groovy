@@ -25,6 +25,8 @@ import com.mentalresonance.dust.nlp.embeddings.huggingface.HFEmbeddingAPIService
 import groovy.util.logging.Slf4j
 import spock.lang.Specification
 
+import java.nio.file.Path
+
 /**
  * Simple test of Embeddings. THis is NOT an efficient way to do things, but is here as an example of how to wire up
  * a pipeline to process text, extract embeddings from the text and match chunks of text via vector similarity testing.
@@ -44,6 +46,8 @@ import spock.lang.Specification
  *     	  		* Chose the closest and send a pair [Query, Selected Chunk] to the pipe
  *     4. Pretty print the resulting matches.
  * </pre
+ * The same pipeline also embeds the document from its file, which is read as it is chunked rather than as one
+ * entire string.
  */
 @Slf4j
 class EmbeddingsTest extends Specification {
@@ -174,6 +178,25 @@ class EmbeddingsTest extends Specification {
 			worked
 	}
 
+	def "Embeddings from a file"() {
+		when:
+			worked = false
+			ActorSystem system = new ActorSystem("Test")
+
+			ActorRef pipe = system.context.actorOf(PipelineActor.props([
+				ServiceManagerActor.props(HFEmbeddingAPIServiceActor.props('http:/192.168.1.184:8080/embed', 256), 1),
+				BuildDataActor.props(),
+				SelectChunksActor.props(),
+				DisplayMatchActor.props()
+			]))
+
+			pipe.tell(new EmbeddingsRequestResponseMsg(getDocumentPath("article2.txt"), null), null)
+			pipe.waitForDeath()
+			system.stop()
+		then:
+			worked
+	}
+
 	/**
 	 * Read the document as one string. Typically we'd use a chunking strategy to 'gross chunk' the document then
 	 * for each big chunk generate embeddings, but for this demo we take the low road.
@@ -187,4 +210,12 @@ class EmbeddingsTest extends Specification {
 				it.readLines().join('\n')
 			}
 	}
+
+	/**
+	 * The document's file
+	 * @return
+	 */
+	private Path getDocumentPath(String name) {
+		Path.of(this.getClass().getClassLoader().getResource(name).toURI())
+	}
 }
\ No newline at end of file